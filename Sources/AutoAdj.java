@@ -43,6 +43,9 @@ class AdjHost implements B4constants
     private double sos, rms;               // from Comparo.resid[]
     private double jac[][];                // [npts][nadj]; dense
     private double wx, wy, wz, wu, wv, ww; // weights for each goal
+    private int nconfigs = 1;              // see Config.java
+    private int ngoodc[] = new int[Config.MAXCONFIGS+1]; 
+    private double mresid[];               // all configurations end to end
 
 
 
@@ -138,6 +141,31 @@ class AdjHost implements B4constants
         sos = Comparo.dGetSOS(); 
         rms = Comparo.dGetRMS(); 
 
+        //----multiple configurations share one residual vector-----
+
+        Config.parse(); 
+        nconfigs = Config.getCount(); 
+        if (nconfigs > 1)
+        {
+            npts = 0; 
+            for (int c=1; c<=nconfigs; c++)
+            {
+                ngoodc[c] = Config.iBuildRays(c, true); 
+                if (ngoodc[c] < 1)
+                {
+                    Config.restore(); 
+                    RT13.iBuildRays(true); 
+                    DMF.bAutoBusy = false; 
+                    JOptionPane.showMessageDialog(optEditor, "Auto: no good rays in config "+c);
+                    return; 
+                }
+                Comparo.doResiduals(); 
+                npts += Comparo.iGetNPTS(); 
+            }
+            mresid = new double[npts]; 
+            dPerformResid(); 
+        }
+
         //----set up for iterative improvement---------
 
         jac = new double[npts][nadj];
@@ -381,6 +409,14 @@ class AdjHost implements B4constants
                         else
                           rayEditor.putBlank(f, row); 
                     }
+                    int iz = op - RFINAL;           // Zernike of this WFE group
+                    if ((iz>=RTZERN) && (iz<RTZERN+RNZERN) || (iz==RTEE) || (iz==RTES))
+                    {
+                        if (RT13.bGoodRay[kray])
+                          rayEditor.putFieldDouble(f, row, RT13.dGetRay(kray, 0, iz)); 
+                        else
+                          rayEditor.putBlank(f, row); 
+                    }
                 }
             } // done with writing all fields for this ray. 
         } // done with all rays. 
@@ -417,7 +453,11 @@ class AdjHost implements B4constants
                 if (hostiter >=maxiter)
                   istatus = MAXITER;
                 else
-                  istatus = myLM.iLMiter(); 
+                {
+                    long t0 = TraceStats.begin(); 
+                    istatus = myLM.iLMiter(); 
+                    TraceStats.end(TraceStats.EV_AUTOITER, t0); 
+                }
                 bComplete = (istatus==BADITER) 
                          || (istatus==LEVELITER) 
                          || (istatus==MAXITER); 
@@ -463,6 +503,8 @@ class AdjHost implements B4constants
     // Employed by LM and by dBuildJacobian() via dNudge(). 
     // Returns sum-of-squares. 
     {
+        if (nconfigs > 1)
+          return dPerformConfigResid(); 
         int nrays = RT13.iBuildRays(false);   // run only good rays
         if (nrays < ngood)
         {
@@ -628,7 +670,40 @@ class AdjHost implements B4constants
     double dFetchResid(int i)
     // Returns one element of the array resid[].
     {
-        return Comparo.resid[i]; 
+        return (nconfigs > 1) ? mresid[i] : Comparo.resid[i]; 
+    }
+
+
+    private double dPerformConfigResid()
+    // Like dPerformResid() but traces every configuration in turn,
+    // each with its own initial good rays, and packs the residuals
+    // end to end so that one adjustment balances all configurations.
+    // Leaves the base configuration traced for the table updates. 
+    {
+        int n = 0; 
+        double s = 0.0; 
+        for (int c=1; c<=nconfigs; c++)
+        {
+            if (Config.iBuildRays(c, false) < ngoodc[c])
+            {
+                Config.iBuildRays(1, false); 
+                return BIGVAL; 
+            }
+            Comparo.doResiduals(); 
+            int m = Comparo.iGetNPTS(); 
+            if (n+m > npts)
+            {
+                Config.iBuildRays(1, false); 
+                return BIGVAL;   // SNH
+            }
+            System.arraycopy(Comparo.resid, 0, mresid, n, m); 
+            n += m; 
+            s += Comparo.dGetSOS(); 
+        }
+        Config.iBuildRays(1, false);   // base: restores the optics
+        sos = s; 
+        rms = (n > 0) ? Math.sqrt(s/n) : -0.0; 
+        return sos; 
     }
 }  //------------end of class AdjHost---------------------------
 
@@ -548,6 +548,10 @@ interface B4constants
     static final int RTNORMZ        =    16;  
     static final int RTWFE          =    17; // dGetRay() special.
     static final int RNATTRIBS      =    18; // how many ray output attribs
+    static final int RTZERN         =    40; // dGetRay() special: Zernike 0...35
+    static final int RNZERN         =    36; // of the WFE group; see Zernike.java
+    static final int RTEE           =    76; // dGetRay() special: encircled diameter
+    static final int RTES           =    77; // and ensquared width; see Energy.java
 
 /*-----------------ray table special calculation codes--------------------*/
 
@@ -585,6 +589,7 @@ interface B4constants
     static final int SETFONT           = 24; // x=size,points; y=0 or 1: bold
     static final int USERCONSTS        = 25; // x,y,z affine consts
     static final int USERSLOPES        = 26; // x,y,z affine slopes
+    static final int RASTER            = 27; // panel image; see GPanel.addRaster()
 
     static final int DOT               = 130; // must add color 0..9
     static final int PLUS              = 140; // must add color 0..9
@@ -630,11 +635,16 @@ interface B4constants
     static final int RM_H1D    = 6;  // has graphic
     static final int RM_MTF    = 7;  // has graphic
     static final int RM_H2D    = 8;  // has graphic
-    static final int RM_AUTOADJ= 9; 
-    static final int RM_AUTORAY= 10; 
-    static final int RM_RANDOM = 11; 
-    static final int RM_DEMO   = 12;  // has demo
-    static final int RM_NITEMS = 13; 
+    static final int RM_FOCUS  = 9;  // has graphic
+    static final int RM_ENERGY = 10; // has graphic
+    static final int RM_GHOST  = 11; 
+    static final int RM_IMSIM  = 12; 
+    static final int RM_FAILS  = 13; 
+    static final int RM_AUTOADJ= 14; 
+    static final int RM_AUTORAY= 15; 
+    static final int RM_RANDOM = 16; 
+    static final int RM_DEMO   = 17;  // has demo
+    static final int RM_NITEMS = 18; 
 
     static final String runItemStr[] = {
          "InOut", 
@@ -646,6 +656,11 @@ interface B4constants
          "Histo1Dim", 
          "MTF", 
          "Histo2Dim", 
+         "Focus", 
+         "Energy", 
+         "Ghosts", 
+         "ImageSim", 
+         "Failures", 
          "AutoAdjust", 
          "AutoRay", 
          "Random", 
@@ -681,7 +696,17 @@ interface B4constants
    static final int UO_RECENTO = 19; 
    static final int UO_RECENTR = 20; 
    static final int UO_RECENTM = 21; 
-   static final int NUOGROUPS  = 22; 
+   static final int UO_FOCUS   = 22; 
+   static final int UO_GHOST   = 23; 
+   static final int UO_CONFIG  = 24; 
+   static final int UO_NONSEQ  = 25; 
+   static final int UO_SYMM    = 26; 
+   static final int UO_SURR    = 27; 
+   static final int UO_PREVIEW = 28; 
+   static final int UO_MTF     = 29; 
+   static final int UO_IMSIM   = 30; 
+   static final int UO_ENERGY  = 31; 
+   static final int NUOGROUPS  = 32; 
 
 //--------UO strings: avoid "|" used in parsing-----------
 //----UO strings is a ragged right array, 
@@ -826,7 +851,9 @@ interface B4constants
           {"Parallax step",          ""},  // 17
           {"Max % vignetting",     "33"},  // 18
           {"Width/Height",        "1.0"},  // 19
-          {"Text output filename",   ""}   // 20
+          {"Text output filename",   ""},  // 20
+          {"Zernike rss, e.g. 4 5",  ""},  // 21: blank=use radio button
+          {"Energy: EE or ES",       ""}   // 22: blank=use radio button
        },
 
        {  // group 6 = UO_PLOT3
@@ -881,7 +908,10 @@ interface B4constants
           {"White",             "T"},  // 15
           {"Black",             "F"},  // 16
           {"Stereo",            "F"},  // 17
-          {"Parallax",          "5"}   // 18
+          {"Parallax",          "5"},  // 18
+          {"Heat map, blank=auto", ""},  // 19: auto above 100 bins
+          {"Heat map log scale?", "F"},  // 20
+          {"Heat map contours",   "0"}   // 21
        },
       
 
@@ -898,7 +928,10 @@ interface B4constants
           {"Quartic Bell?",             "F"},  // 9
           {"Gaussian?*",                "F"},  // 10
           {"Lorentzian?*",              "F"},  // 11
-          {"*Concentration=",           "4"}   // 12
+          {"*Concentration=",           "4"},  // 12
+          {"Stop when converged?",      "F"},  // 13
+          {"Relative std error",     "0.01"},  // 14
+          {"Minimum refreshes",        "20"}   // 15
        },  
 
        {  // group 10 = UO_CAD
@@ -1073,6 +1106,85 @@ interface B4constants
           {"RM7", ""},
           {"RM8", ""},
           {"RM9", ""}
+       },
+
+       {  // group 22 = UO_FOCUS
+          {"Defocus center, blank=best", ""},   // 0
+          {"Defocus span, blank=auto",   ""},   // 1
+          {"Number of planes",         "41"},   // 2
+          {"Show rms X?",               "T"},   // 3
+          {"Show rms Y?",               "T"},   // 4
+          {"Show rms radius?",          "T"}    // 5
+       },
+
+       {  // group 23 = UO_GHOST
+          {"Minimum ghost energy",   "1E-6"},   // 0
+          {"Ghosts listed",            "20"}    // 1
+       },
+
+       {  // group 24 = UO_CONFIG; see Config.java
+          {"Number of configurations",  "1"},   // 0
+          {"Config 2 surf:field=value", ""},    // 1
+          {"Config 3 surf:field=value", ""},    // 2
+          {"Config 4 surf:field=value", ""},    // 3
+          {"Config 5 surf:field=value", ""},    // 4
+          {"Config 6 surf:field=value", ""},    // 5
+          {"Plot2 & Map config, 0=all", "0"}    // 6
+       },
+
+       {  // group 25 = UO_NONSEQ; see NonSeq.java
+          {"Non-sequential tracing?",   "F"},   // 0
+          {"Maximum hits per ray",     "50"}    // 1
+       },
+
+       {  // group 26 = UO_SYMM; see Symmetry.java
+          {"Symmetric tracing?",        "F"}    // 0
+       },
+
+       {  // group 27 = UO_SURR; see Surrogate.java
+          {"Surrogate random rays?",    "F"},   // 0
+          {"Grid nodes per axis",      "17"},   // 1
+          {"Tolerance, lens units",  "1E-6"}    // 2
+       },
+
+       {  // group 28 = UO_PREVIEW; see RT13.bRunPreviewRay()
+          {"Preview Layout, Plot2 rays?", "F"},  // 0
+          {"Tolerance, fraction of pixel", "0.001"} // 1
+       },
+
+       {  // group 29 = UO_MTF; see MTFPanel.doParse2D(), DiffPSF
+          {"2D: azimuth curve, degrees", "45"},  // 0
+          {"2D: show MTF map?",          "F"},   // 1
+          {"Diffraction from WFE?",      "F"},   // 2
+          {"Wavelength, lens units", "0.00055"}, // 3
+          {"WFE group",                  "1"},   // 4: 1=first
+          {"Pupil samples across",      "64"},   // 5
+          {"Padding factor",             "4"},   // 6
+          {"Huygens, not FFT?",          "F"},   // 7
+          {"Huygens cutoff, blank=auto",  ""},   // 8: 0=none
+          {"Direct from rays, no bins?", "F"},   // 9: see RayOTF
+          {"Direct: max freq, blank=auto", ""}   // 10
+       },
+
+       {  // group 30 = UO_IMSIM; see ImageSim.java
+          {"H field variable",         "U0"},   // 0: as Map
+          {"H field span, full",        "0"},   // 1
+          {"V field variable",         "V0"},   // 2
+          {"V field span, full",        "0"},   // 3
+          {"Field nodes per axis",      "3"},   // 4
+          {"Pixel size, lens units", "0.002"},  // 5
+          {"PSF kernel pixels",        "31"},   // 6: odd
+          {"Tile size, pixels",       "128"},   // 7
+          {"PSF from WFE diffraction?", "F"}    // 8: see Options:MTF
+       },
+
+       {  // group 31 = UO_ENERGY; see Energy.java, EnergyPanel.java
+          {"Energy fraction, %",       "80"},   // 0
+          {"Center on chief ray?",      "F"},   // 1: else centroid
+          {"Surface, blank=final",       ""},   // 2
+          {"WFE group",                 "1"},   // 3: 1=first
+          {"Radius span, blank=auto",    ""},   // 4
+          {"Show ensquared?",           "T"}    // 5
        }   
     };
 
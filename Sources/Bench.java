@@ -0,0 +1,280 @@
+package com.stellarsoftware.beam;
+
+import java.awt.image.*;   // BufferedImage
+import java.io.*;          // File
+import java.lang.management.*;  // ManagementFactory
+
+/** Bench.java
+  *
+  *  Headless timing of the ray trace hot paths on the bundled Examples.
+  *  Run from the folder holding Examples, with no window:
+  *
+  *      java -cp . com.stellarsoftware.beam.Bench [examplesDir] [name...]
+  *
+  *  Each example is loaded into the same OEJIF, REJIF and MEJIF editors
+  *  the GUI uses, and parsed by DMF.vMasterParse().  A .MED table is
+  *  added only if the parse asks for one.  Every benchmark is warmed up,
+  *  then repeated for at least MINNANOS, and reports nanoseconds per ray
+  *  and bytes allocated per ray (where the JVM can count allocations):
+  *
+  *    RunOneRay    RT13.bRunOneRay() over all rays
+  *    BuildRays    RT13.iBuildRays(true), which includes doWFEtask()
+  *    AutoIter     one Jacobian pass as AdjHost makes it: nadj+1 traces
+  *                 of the initially good rays, each with Comparo residuals
+  *    MapCell      one MapPanel cell: nudge a surface, setEulers, retrace
+  *    H2Dbin       H2DPanel binning the good table rays through
+  *                 addRayToHisto() and HistoBins, merged as at a redraw
+  *    Render       GPanel.renderList() of a Layout-like ray list
+  *
+  *  Options are read from a private B4OPTIONS.TXT in java.io.tmpdir
+  *  so the user's registry is not touched.
+  *
+  *  (c) 2015 STELLAR SOFTWARE all rights reserved.
+  */
+class Bench implements B4constants
+{
+    static final String EXAMPLES[] = {"LENS", "HUBBLE", "TMA", "FRESNEL",
+                                      "TORIC", "ZERNNULL", "CASS", "Slicer"};
+    static final long MINNANOS = 500000000L;  // half a second per benchmark
+    static final int WARMUPS = 200;
+
+    private static com.sun.management.ThreadMXBean tmx = null;
+    private static long tid = 0;
+
+    private static int nsurfs=0, nrays=0, ngood=0, nadj=0;
+    private static int sink = 0;              // defeats dead code removal
+
+
+    public static void main(String args[])
+    {
+        System.setProperty("java.awt.headless", "true");
+        String sDir = (args.length > 0) ? args[0] : "Examples";
+        String names[] = EXAMPLES;
+        if (args.length > 1)
+        {
+            names = new String[args.length-1];
+            System.arraycopy(args, 1, names, 0, names.length);
+        }
+        DMF.reg = new Registry(System.getProperty("java.io.tmpdir"));
+
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (mx instanceof com.sun.management.ThreadMXBean)
+        {
+            tmx = (com.sun.management.ThreadMXBean) mx;
+            if (tmx.isThreadAllocatedMemorySupported())
+              tmx.setThreadAllocatedMemoryEnabled(true);
+            else
+              tmx = null;
+            tid = Thread.currentThread().getId();
+        }
+
+        System.out.println("example     benchmark     rays        ns/ray     bytes/ray");
+        for (int i=0; i<names.length; i++)
+        {
+            if (!bLoad(sDir, names[i]))
+            {
+                System.out.println(pad(names[i], 12) + "cannot load: status "
+                                   + DMF.giFlags[STATUS]);
+                continue;
+            }
+            doExample(names[i]);
+        }
+        if (sink == 42)
+          System.out.println();
+        System.exit(0);   // the editors leave Swing timers running
+    }
+
+
+    private static boolean bLoad(String sDir, String name)
+    // Opens the editors headlessly and runs the master parse.
+    {
+        DMF.oejif = null;
+        DMF.rejif = null;
+        DMF.mejif = null;
+        File fopt = new File(sDir, name + ".OPT");
+        File fray = new File(sDir, name + ".RAY");
+        if (!fopt.exists() || !fray.exists())
+          return false;
+        DMF.oejif = new OEJIF(0, fopt.getPath());
+        DMF.rejif = new REJIF(0, fray.getPath());
+        DMF.vMasterParse(true);
+        if (DMF.giFlags[STATUS] == GMABSENT)
+        {
+            String meds[] = new File(sDir).list();
+            for (int i=0; (meds != null) && (i<meds.length); i++)
+              if (meds[i].toUpperCase().endsWith(".MED"))
+              {
+                  DMF.mejif = new MEJIF(0, new File(sDir, meds[i]).getPath());
+                  DMF.vMasterParse(true);
+                  if (DMF.giFlags[STATUS] == GPARSEOK)
+                    break;
+              }
+        }
+        return DMF.giFlags[STATUS] == GPARSEOK;
+    }
+
+
+    private static void doExample(String name)
+    {
+        nsurfs = DMF.giFlags[ONSURFS];
+        nrays = DMF.giFlags[RNRAYS];
+        nadj = DMF.giFlags[ONADJ] + DMF.giFlags[RNADJ];
+        ngood = RT13.iBuildRays(true);
+        String s = pad(name, 12);
+
+        report(s, "RunOneRay", nrays, new Runnable()
+        {
+            public void run()
+            {
+                for (int k=1; k<=nrays; k++)
+                  if (RT13.bRunOneRay(k))
+                    sink++;
+            }
+        });
+
+        report(s, "BuildRays", nrays, new Runnable()
+        {
+            public void run()
+            {
+                sink += RT13.iBuildRays(true);
+            }
+        });
+
+        if (ngood < 1)
+          return;
+        RT13.iBuildRays(true);   // initially good rays, as AdjHost records them
+        Comparo.doResiduals();
+        if (Comparo.iGetNPTS() > 0)
+          report(s, "AutoIter", ngood*(nadj+1), new Runnable()
+          {
+              public void run()
+              {
+                  for (int i=0; i<=nadj; i++)
+                  {
+                      sink += RT13.iBuildRays(false);
+                      Comparo.doResiduals();
+                  }
+              }
+          });
+
+        final int jstep = Math.min(2, nsurfs);
+        final double zsave = RT13.surfs[jstep][OZ];
+        report(s, "MapCell", nrays, new Runnable()
+        {
+            public void run()
+            {
+                RT13.surfs[jstep][OZ] = zsave + 1E-6;
+                RT13.setEulers();
+                for (int k=0; k<=nrays; k++)
+                  RT13.iWFEgroup[k] = 0;
+                sink += RT13.iBuildRays(true);
+                RT13.surfs[jstep][OZ] = zsave;
+            }
+        });
+        RT13.setEulers();
+        DMF.vMasterParse(true);  // restores the WFE groups
+        ngood = RT13.iBuildRays(true);
+        if (ngood < 1)
+          return;
+
+        final H2DPanel hp = new H2DPanel(null);   // no window
+        report(s, "H2Dbin", ngood, new Runnable()
+        {
+            public void run()
+            {
+                sink += hp.iBinTableRays();
+            }
+        });
+
+        final BufferedImage bi = new BufferedImage(500, 500, BufferedImage.TYPE_INT_RGB);
+        final BenchPanel bp = new BenchPanel();
+        bp.doTechList(true);
+        report(s, "Render", ngood, new Runnable()
+        {
+            public void run()
+            {
+                bp.renderOffscreen(bi);
+            }
+        });
+    }
+
+
+    private static void report(String s, String what, int nper, Runnable r)
+    // Warms up, then times r for at least MINNANOS.
+    {
+        if (nper < 1)
+          return;
+        for (int i=0; i<WARMUPS; i++)
+          r.run();
+        long reps = 0;
+        long b0 = getAllocated();
+        long t0 = System.nanoTime();
+        long t = 0;
+        while (t < MINNANOS)
+        {
+            r.run();
+            reps++;
+            t = System.nanoTime() - t0;
+        }
+        long bytes = getAllocated() - b0;
+        double perRay = 1.0 / (reps * (double) nper);
+        System.out.println(s + pad(what, 12) + U.fwi(nper, 6)
+          + U.fwd(t*perRay, 14, 1)
+          + ((bytes >= 0) ? U.fwd(bytes*perRay, 14, 1) : "           n/a"));
+    }
+
+
+    private static long getAllocated()
+    {
+        return (tmx != null) ? tmx.getThreadAllocatedBytes(tid) : -1;
+    }
+
+
+    private static String pad(String s, int w)
+    {
+        StringBuffer sb = new StringBuffer(s);
+        while (sb.length() < w)
+          sb.append(' ');
+        return sb.toString();
+    }
+
+
+    static class BenchPanel extends GPanel
+    // Layout-like artwork: each good ray as a polyline in Z,Y.
+    {
+        private static final long serialVersionUID = 42L;
+
+        void doTechList(boolean bArtStatus)
+        {
+            double zmin=Double.MAX_VALUE, zmax=-Double.MAX_VALUE;
+            double ymin=Double.MAX_VALUE, ymax=-Double.MAX_VALUE;
+            for (int k=1; k<=nrays; k++)
+              if (RT13.bGoodRay[k])
+                for (int j=0; j<=nsurfs; j++)
+                {
+                    zmin = Math.min(zmin, RT13.dGetRay(k, j, RZ));
+                    zmax = Math.max(zmax, RT13.dGetRay(k, j, RZ));
+                    ymin = Math.min(ymin, RT13.dGetRay(k, j, RY));
+                    ymax = Math.max(ymax, RT13.dGetRay(k, j, RY));
+                }
+            double zc = 0.5*(zmin+zmax), yc = 0.5*(ymin+ymax);
+            double f = 400.0/Math.max(TOL, Math.max(zmax-zmin, ymax-ymin));
+            clearList(QBASE);
+            addRaw(0.0, 0.0, 0.0, SETWHITEBKG, QBASE);
+            for (int k=1; k<=nrays; k++)
+              if (RT13.bGoodRay[k])
+              {
+                  for (int j=0; j<=nsurfs; j++)
+                    addRaw(f*(RT13.dGetRay(k, j, RZ)-zc), f*(RT13.dGetRay(k, j, RY)-yc),
+                           0.0, (j==0) ? MOVETO : PATHTO, QBASE);
+                  addRaw(0.0, 0.0, 0.0, STROKE, QBASE);
+              }
+        }
+
+        void doRotate(int i, int j)   { }
+        boolean doRandomRay()         { return false; }
+        void doCursor(int i, int j)   { }
+        double getStereo()            { return 0.0; }
+        void doSaveData()             { }
+    }
+}
@@ -0,0 +1,234 @@
+package com.stellarsoftware.beam;
+
+import java.io.*;          // DataOutputStream, File
+import java.util.zip.*;    // CRC32
+
+/** Checkpoint.java
+  *
+  *  Compact binary checkpoints for long jobs: Map sweeps and Random
+  *  accumulations into H1D and H2D.  All static methods; no constructor.
+  *
+  *  Each job kind is keyed by its user option group (UO_MAP, UO_1D...)
+  *  and lives in its own file B4CKPnn.BIN in the same folder as the
+  *  B4OPTIONS.TXT registry.  File layout, all big-endian:
+  *
+  *     int   MAGIC
+  *     int   VERSION
+  *     int   kind         UO group of the job
+  *     long  hash         content hash of optics, rays, media and options
+  *     int   nbytes       length of the job's own payload
+  *     byte  payload[nbytes]
+  *     long  crc          CRC32 of the payload
+  *
+  *  A checkpoint is only offered back when its hash equals the content
+  *  hash of the current tables, so a job resumes only on identical
+  *  optics/ray/media content and identical options.  Files are written
+  *  to a temporary name and then renamed, so a crash mid-write leaves
+  *  the previous checkpoint intact.
+  *
+  *  The random ray generator RT13.rng is saved with the job so that
+  *  a resumed Random run continues the same pseudorandom sequence.
+  *  It is an Rng, below: the generator of java.util.Random with its
+  *  48-bit state in view, so the state is saved as one plain long.
+  *
+  *  (c) 2015 STELLAR SOFTWARE all rights reserved.
+  */
+class Checkpoint implements B4constants
+{
+    static final int MAGIC = 0x42344350;   // "B4CP"
+    static final int VERSION = 2;          // 2: Rng state as a long
+    static final long SAVEMILLIS = 30000;  // periodic checkpoint interval
+
+
+    static long getContentHash(int uoGroups[])
+    // FNV-1a over the parsed optics, ray, and media tables
+    // plus the user options of the given groups.
+    {
+        int nsurfs = DMF.giFlags[ONSURFS];
+        int nrays = DMF.giFlags[RNRAYS];
+        long h = 0xcbf29ce484222325L;
+        h = mix(h, nsurfs);
+        h = mix(h, DMF.giFlags[ONGROUPS]);
+        h = mix(h, nrays);
+        for (int j=1; j<=nsurfs; j++)
+        {
+            for (int i=0; i<ONPARMS; i++)
+              h = mix(h, Double.doubleToLongBits(RT13.surfs[j][i]));
+            h = mix(h, RT13.gO2M[j]);
+            h = mix(h, RT13.group[j]);
+        }
+        for (int k=1; k<=nrays; k++)
+        {
+            for (int i=0; i<RNSTARTS; i++)
+              h = mix(h, Double.doubleToLongBits(RT13.raystarts[k][i]));
+            h = mix(h, RT13.gR2M[k]);
+            h = mix(h, RT13.iWFEgroup[k]);
+        }
+        for (int m=0; m<=MAXMEDIA; m++)
+          for (int f=0; f<MAXFIELDS; f++)
+            h = mix(h, Double.doubleToLongBits(RT13.media[m][f]));
+        if (uoGroups != null)
+          for (int g=0; g<uoGroups.length; g++)
+            if ((uoGroups[g] >= 0) && (uoGroups[g] < NUOGROUPS))
+              for (int j=0; j<UO[uoGroups[g]].length; j++)
+              {
+                  String s = DMF.reg.getuo(uoGroups[g], j);
+                  for (int c=0; c<s.length(); c++)
+                    h = mix(h, s.charAt(c));
+                  h = mix(h, '|');
+              }
+        return h;
+    }
+
+
+    static boolean save(int kind, long hash, byte payload[])
+    // Writes one checkpoint; returns false on any failure.
+    {
+        File f = getFile(kind);
+        File t = new File(f.getPath() + ".TMP");
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        try
+        {
+            DataOutputStream dos = new DataOutputStream(
+              new BufferedOutputStream(new FileOutputStream(t)));
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeInt(kind);
+            dos.writeLong(hash);
+            dos.writeInt(payload.length);
+            dos.write(payload);
+            dos.writeLong(crc.getValue());
+            dos.close();
+            f.delete();     // renameTo will not overwrite on some systems
+            return t.renameTo(f);
+        }
+        catch (IOException e)
+        {
+            t.delete();
+            return false;
+        }
+    }
+
+
+    static DataInputStream load(int kind, long hash)
+    // Returns the payload of a valid checkpoint matching this hash, else null.
+    {
+        File f = getFile(kind);
+        if (!f.exists())
+          return null;
+        try
+        {
+            DataInputStream dis = new DataInputStream(
+              new BufferedInputStream(new FileInputStream(f)));
+            byte payload[] = null;
+            long crcval = 0;
+            try
+            {
+                if ((dis.readInt() != MAGIC) || (dis.readInt() != VERSION))
+                  return null;
+                if ((dis.readInt() != kind) || (dis.readLong() != hash))
+                  return null;
+                int n = dis.readInt();
+                if ((n < 0) || (n > f.length()))
+                  return null;
+                payload = new byte[n];
+                dis.readFully(payload);
+                crcval = dis.readLong();
+            }
+            finally
+            {
+                dis.close();
+            }
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if (crc.getValue() != crcval)
+              return null;
+            return new DataInputStream(new ByteArrayInputStream(payload));
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+
+    static void delete(int kind)
+    // Called when a job runs to completion.
+    {
+        getFile(kind).delete();
+    }
+
+
+    static void writeRandom(DataOutputStream dos, Rng r) throws IOException
+    {
+        dos.writeLong(r.getState());
+    }
+
+
+    static Rng readRandom(DataInputStream dis) throws IOException
+    {
+        long s = dis.readLong();
+        if ((s & ~Rng.MASK) != 0)
+          throw new IOException("bad random state");
+        Rng r = new Rng();
+        r.setState(s);
+        return r;
+    }
+
+
+    static long mix(long h, long v)
+    // FNV-1a, eight bytes at a time; clients may mix in extra items.
+    {
+        for (int i=0; i<8; i++)
+        {
+            h ^= (v & 0xff);
+            h *= 0x100000001b3L;
+            v >>>= 8;
+        }
+        return h;
+    }
+
+
+    @SuppressWarnings("serial")
+    static class Rng extends java.util.Random
+    // The linear congruential generator of java.util.Random, same
+    // sequence from the same seed, but with a state that can be saved.
+    {
+        static final long MULT = 0x5DEECE66DL;
+        static final long MASK = (1L << 48) - 1;
+        private long state;      // set by setSeed() from the superclass
+
+        public synchronized void setSeed(long seed)
+        {
+            super.setSeed(seed);
+            state = (seed ^ MULT) & MASK;
+        }
+
+        protected synchronized int next(int bits)
+        {
+            state = (state * MULT + 0xBL) & MASK;
+            return (int) (state >>> (48 - bits));
+        }
+
+        synchronized long getState()
+        {
+            return state;
+        }
+
+        synchronized void setState(long s)
+        {
+            state = s & MASK;
+        }
+    }
+
+
+    //--------------private methods---------------------------
+
+    private static File getFile(int kind)
+    // Same folder as B4OPTIONS.TXT; see DMF and Registry.
+    {
+        String sDir = System.getProperty("user.dir");
+        return new File(sDir, "B4CKP" + U.fwi(kind, 2).trim() + ".BIN");
+    }
+}
@@ -22,7 +22,7 @@ package com.stellarsoftware.beam;
 class Comparo implements B4constants
 {
     public  static double resid[];        // [npts]; densely packed, public for Auto.
-    public  static int goalAttrib[];      // attribute for each goal; 13=RTWFE.
+    public  static int goalAttrib[];      // attribute for each goal; 13=RTWFE, 40+=Zernike.
     public  static int goalField[];       // field Number for each goal 
     
     private static OEJIF optEditor = null; 
@@ -166,7 +166,9 @@ class Comparo implements B4constants
 
     private static double getRay(int kray, int iattrib)
     {
-        if ((iattrib>=RX) && (iattrib<RNATTRIBS))
+        if ((iattrib>=RX) && (iattrib<RNATTRIBS)
+        || (iattrib>=RTZERN) && (iattrib<RTZERN+RNZERN)   // Zernike of WFE group
+        || (iattrib == RTEE) || (iattrib == RTES))         // energy of WFE group
         {
             double d = RT13.dGetRay(kray, ngroups, iattrib);
             return d; 
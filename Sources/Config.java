@@ -0,0 +1,162 @@
+package com.stellarsoftware.beam;
+
+import java.util.*;        // ArrayList
+
+/** Config.java
+  *
+  *  Multi-configuration table: zoom positions, alternate filters and
+  *  the like.  Configuration 1 is the base .OPT as parsed by OEJIF.
+  *  Each further configuration is a list of overrides of single
+  *  surface parameters, entered in Options:Configurations as
+  *
+  *      surface:field=value  surface:field=value ...
+  *
+  *  where field is any numerical .OPT column header, for example
+  *  "3:Z=41.2  5:Curve=0.0125  7:Index=1.52".  Radius and Shape are
+  *  converted to curvature and asphericity just as OEJIF does.
+  *
+  *  parse() compiles the table once into fixed override arrays.
+  *  RT13 holds a single static optical system, so configurations
+  *  are traced in turn, never concurrently: select(c) swaps its
+  *  overrides into RT13.surfs, restore() swaps the base values back,
+  *  and each calls RT13.setEulers() so that the rotation matrices and
+  *  the NonSeq boxes follow any override.  Each configuration keeps
+  *  its own good-ray list so that iBuildRays(c, false) repeats the
+  *  initial rays of that configuration, as AutoAdj requires.
+  *
+  *  An override wins over an adjustable or a Map parameter of the
+  *  same surface and field, within its configuration.
+  *
+  *  All static methods; no constructor.
+  *
+  *  (c) 2015 STELLAR SOFTWARE all rights reserved.
+  */
+class Config implements B4constants
+{
+    static final int MAXCONFIGS = 6;
+
+    private static int nconfigs = 1;
+    private static int iView = 0;                  // Plot2 & Map: 0=all
+    private static int ovSurf[][] = new int[MAXCONFIGS+1][];
+    private static int ovAttr[][] = new int[MAXCONFIGS+1][];
+    private static double ovValue[][] = new double[MAXCONFIGS+1][];
+    private static double saved[] = new double[0];
+    private static int active = 1;                 // configuration now in RT13
+    private static boolean bGood[][] = new boolean[MAXCONFIGS+1][MAXRAYS+1];
+
+
+    static String parse()
+    // Compiles the UO_CONFIG table; returns "" or a warning.
+    // On any error only the base configuration remains.
+    {
+        restore();
+        nconfigs = 1;
+        int n = U.suckInt(DMF.reg.getuo(UO_CONFIG, 0));
+        n = Math.max(1, Math.min(MAXCONFIGS, n));
+        iView = U.suckInt(DMF.reg.getuo(UO_CONFIG, MAXCONFIGS));
+        if ((iView < 0) || (iView > n))
+          iView = 0;
+        int nsurfs = DMF.giFlags[ONSURFS];
+        ArrayList<String> items = new ArrayList<String>();
+        for (int c=2; c<=n; c++)
+        {
+            int ntok = U.tokenize(DMF.reg.getuo(UO_CONFIG, c-1), " ,;", items);
+            ovSurf[c] = new int[ntok];
+            ovAttr[c] = new int[ntok];
+            ovValue[c] = new double[ntok];
+            for (int i=0; i<ntok; i++)
+            {
+                String s = items.get(i);
+                int colon = s.indexOf(':');
+                int equal = s.indexOf('=');
+                if ((colon < 1) || (equal < colon+2))
+                  return "Config "+c+": bad '"+s+"'";
+                int j = U.suckInt(s.substring(0, colon));
+                int attr = OEJIF.getOptFieldAttrib(s.substring(colon+1, equal));
+                double d = U.suckDouble(s.substring(equal+1));
+                if ((j < 1) || (j > nsurfs))
+                  return "Config "+c+": no surface "+s.substring(0, colon);
+                if ((attr < 0) || (attr >= ONPARMS) || (attr==OTYPE) || (attr==OFORM))
+                  return "Config "+c+": unknown field in '"+s+"'";
+                if (Double.isNaN(d))
+                  return "Config "+c+": bad value in '"+s+"'";
+                switch (attr)  // conversions as in OEJIF.parse()
+                {
+                    case ORAD:   attr = OCURVE; d = (d != 0.0) ? 1.0/d : 0.0; break;
+                    case ORADX:  attr = OCURVX; d = (d != 0.0) ? 1.0/d : 0.0; break;
+                    case ORADY:  attr = OCURVY; d = (d != 0.0) ? 1.0/d : 0.0; break;
+                    case OSHAPE: attr = OASPHER; d = d - 1.0; break;
+                }
+                ovSurf[c][i] = j;
+                ovAttr[c][i] = attr;
+                ovValue[c][i] = d;
+            }
+        }
+        nconfigs = n;
+        return "";
+    }
+
+
+    static int getCount()
+    {
+        return nconfigs;
+    }
+
+
+    static int getView()
+    // Configuration shown by Plot2 and Map; 0 = all.
+    {
+        return iView;
+    }
+
+
+    static void select(int c)
+    // Places configuration c into RT13.surfs; base values are saved.
+    {
+        restore();
+        if ((c < 2) || (c > nconfigs))
+          return;
+        int n = ovSurf[c].length;
+        saved = new double[n];
+        for (int i=0; i<n; i++)
+        {
+            int j = ovSurf[c][i];
+            int attr = ovAttr[c][i];
+            saved[i] = RT13.surfs[j][attr];
+            RT13.surfs[j][attr] = ovValue[c][i];
+        }
+        active = c;
+        RT13.setEulers();    // angles, and the NonSeq boxes
+    }
+
+
+    static void restore()
+    // Returns RT13.surfs to the base configuration.
+    {
+        if (active < 2)
+          return;
+        int c = active;
+        active = 1;
+        for (int i=ovSurf[c].length-1; i>=0; i--)
+          RT13.surfs[ovSurf[c][i]][ovAttr[c][i]] = saved[i];
+        RT13.setEulers();
+    }
+
+
+    static int iBuildRays(int c, boolean bAll)
+    // Selects configuration c and traces it, like RT13.iBuildRays().
+    // bAll=true records this configuration's good rays;
+    // bAll=false runs only those, so the count falls if any fail.
+    // Leaves configuration c selected; call restore() when done.
+    {
+        int nrays = DMF.giFlags[RNRAYS];
+        c = Math.max(1, Math.min(nconfigs, c));
+        select(c);
+        if (!bAll)
+          System.arraycopy(bGood[c], 0, RT13.bGoodRay, 0, nrays+1);
+        int ngood = RT13.iBuildRays(bAll);
+        if (bAll)
+          System.arraycopy(RT13.bGoodRay, 0, bGood[c], 0, nrays+1);
+        return ngood;
+    }
+}
@@ -0,0 +1,88 @@
+package com.stellarsoftware.beam;
+
+/** Convergence.java
+  *
+  *  Batch-means convergence test for Random.
+  *
+  *  After each bunch of random rays Random asks its target panel
+  *  for getBatchMetrics(): a few statistics computed only from the
+  *  rays added during that bunch, for example centroid and rms spot.
+  *  By convention the last metric is a spread (an rms) which sets
+  *  the scale for all the others, so that a centroid sitting near
+  *  zero still converges sensibly.
+  *
+  *  Each metric is estimated by the grand mean of its batch values;
+  *  its standard error is the sample standard deviation of the batch
+  *  values divided by sqrt(nbatches).  The run has converged when
+  *  every standard error is below tol times the scale, and at least
+  *  minbatches batches have been seen.
+  *
+  *  Keeps only running sums, so the cost per batch is tiny.
+  *
+  *  (c) 2015 STELLAR SOFTWARE all rights reserved.
+  */
+class Convergence implements B4constants
+{
+    private double tol;
+    private int minbatches;
+    private int nbatches = 0;
+    private int nmetrics = 0;
+    private double sum[], sumsq[];
+    private double worst = 0.0;    // largest relative error seen this batch
+
+
+    public Convergence(double tol, int minbatches)
+    {
+        this.tol = Math.max(1E-12, Math.abs(tol));
+        this.minbatches = Math.max(2, minbatches);
+    }
+
+
+    public boolean bAddBatch(double metrics[])
+    // Accepts one batch of metrics; returns true when converged.
+    // Null or empty metrics, from a batch with too few rays, are ignored.
+    {
+        if ((metrics == null) || (metrics.length < 1))
+          return false;
+        if (metrics.length != nmetrics)  // first batch, or panel changed
+        {
+            nmetrics = metrics.length;
+            sum = new double[nmetrics];
+            sumsq = new double[nmetrics];
+            nbatches = 0;
+        }
+        for (int i=0; i<nmetrics; i++)
+        {
+            sum[i] += metrics[i];
+            sumsq[i] += metrics[i]*metrics[i];
+        }
+        nbatches++;
+        if (nbatches < 2)
+          return false;
+
+        double scale = Math.abs(sum[nmetrics-1]/nbatches);
+        worst = 0.0;
+        for (int i=0; i<nmetrics; i++)
+        {
+            double mean = sum[i]/nbatches;
+            double var = (sumsq[i] - nbatches*mean*mean)/(nbatches-1);
+            double se = Math.sqrt(Math.max(0.0, var)/nbatches);
+            double s = Math.max(scale, Math.abs(mean));
+            double rel = (s > 0.0) ? se/s : 0.0;
+            worst = Math.max(worst, rel);
+        }
+        return (nbatches >= minbatches) && (worst <= tol);
+    }
+
+
+    public double getRelError()
+    {
+        return worst;
+    }
+
+
+    public int getNbatches()
+    {
+        return nbatches;
+    }
+}
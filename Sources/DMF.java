@@ -194,6 +194,7 @@ public class DMF extends JFrame implements B4constants
         sInitialDir = System.getProperty("user.dir");  
         sCurrentDir = sInitialDir;        
         reg = new Registry(sInitialDir);  // create and load registry 
+        TraceStats.register();            // JMX view of trace counters
         sUserHome = System.getProperty("user.home"); 
         
         //---fix up an absentee project path----
@@ -1139,7 +1140,8 @@ public class DMF extends JFrame implements B4constants
             boolean eselected = oselected || rselected || mselected;
             boolean gselected = (null != getFrontGJIF()); 
             int ii = getFrontGJIFType(); 
-            boolean hselected = ((ii==RM_H1D) || (ii==RM_MTF) || (ii==RM_H2D)); 
+            boolean hselected = ((ii==RM_H1D) || (ii==RM_MTF) || (ii==RM_H2D) || (ii==RM_FOCUS)
+                             || (ii==RM_ENERGY)); 
 
             fileMenuItem[SAVE].setEnabled(eselected); 
             fileMenuItem[SAVEAS].setEnabled(eselected); 
@@ -1322,13 +1324,15 @@ public class DMF extends JFrame implements B4constants
             {
                 int gn = getFrontGJIFType(); 
 
-                // special diagnostic case for MTF...
-                boolean bHaveH1D = (gn == RM_H1D); 
-                runMenuItem[RM_MTF].setEnabled(bHaveH1D);
+                // special diagnostic case for MTF: 1D or 2D histogram...
+                boolean bHaveHisto = (gn == RM_H1D) || (gn == RM_H2D); 
+                boolean bDiffMTF = "T".equals(reg.getuo(UO_MTF, 2)); 
+                runMenuItem[RM_MTF].setEnabled(bHaveHisto || bDiffMTF);
 
                 // special diagnostic case for Random...
                 boolean bRandomOK = ((gn==RM_LAYOUT) || (gn==RM_PLOT2)
-                || (gn==RM_PLOT3) || (gn==RM_H1D) || (gn==RM_H2D) || (gn==RM_MTF)); 
+                || (gn==RM_PLOT3) || (gn==RM_H1D) || (gn==RM_H2D) || (gn==RM_MTF)
+                || (gn==RM_ENERGY)); 
                 // Disabled: Map and MPlot: (gn==RM_MAP), (gn == RM_MPLOT));
                 
                 runMenuItem[RM_RANDOM].setEnabled(bRandomOK); 
@@ -1381,6 +1385,18 @@ public class DMF extends JFrame implements B4constants
             {
                 InOut myIO = new InOut();
             }
+            else if (index == RM_GHOST)
+            {
+                Ghost myGhost = new Ghost();
+            }
+            else if (index == RM_IMSIM)
+            {
+                ImageSim myImageSim = new ImageSim();
+            }
+            else if (index == RM_FAILS)
+            {
+                Failures myFailures = new Failures();
+            }
             else if (index == RM_AUTOADJ)
             {
                 AutoAdj myAutoAdj = new AutoAdj();
@@ -1705,7 +1721,8 @@ public class DMF extends JFrame implements B4constants
         // String s = ""; 
         if ((i>0) && (i<NEXPLANATIONS))
           s = sExplanations[i] + " " + s;
-        dmf.setTitle(sWorkingTitle + s); 
+        if (dmf != null)                  // null when headless; see Bench
+          dmf.setTitle(sWorkingTitle + s); 
     }
 
 
@@ -0,0 +1,467 @@
+package com.stellarsoftware.beam;
+
+import java.util.*;             // LinkedHashMap
+import java.util.concurrent.*;  // ExecutorService
+
+/** DiffPSF.java
+  *
+  *  Diffraction point spread function and MTF of one WFE group, from the
+  *  wavefront error dWFE that RT13.doWFEtask() leaves on each table ray.
+  *
+  *  The rays' pupil coordinates, the pair RT13.getPupilAxis() found on
+  *  the final surface, are centered on their centroid and normalized by
+  *  the largest radius, as in Zernike.  A square grid of npupil samples
+  *  across that diameter is filled by inverse square distance weighting
+  *  of the rays within NEAR mean ray spacings; a sample with no ray that
+  *  near, or beyond the largest radius, is outside the aperture.  Rows
+  *  of the grid are filled in parallel.
+  *
+  *  The pupil function exp(2 pi i W/wavelength) is zero padded to npad,
+  *  a power of two at least npupil*padding, and transformed by U.fft2().
+  *  Its squared modulus divided by that of the unaberrated aperture is
+  *  the PSF in units of the diffraction limited peak, so the PSF peak is
+  *  the Strehl ratio.  The PSF is sampled at wavelength/(npad*du) where
+  *  du is the pupil sample spacing: lens units on the image when the
+  *  pupil is a pair of direction cosines, else radians.  The MTF is kept
+  *  as an OTF2D of the PSF, for MTFPanel.
+  *
+  *  Alternatively, for tilted or curved detectors, the PSF is the Huygens
+  *  sum of the group's rays where they land on the final surface; see
+  *  Huygens.java.  It has the same sample count, and a spacing set by
+  *  the spread of ray directions just as the FFT's is by the pupil.
+  *  Since rays sampled evenly in direction sum to a pattern that repeats
+  *  at wavelength/spacing, a blank Huygens cutoff means half that period.
+  *
+  *  Results are cached by Checkpoint.getContentHash() of the tables, the
+  *  wavelength and sampling options and the group number, so redisplay
+  *  of the same system neither retraces nor transforms.
+  *
+  *  (c) 2015 STELLAR SOFTWARE all rights reserved.
+  */
+class DiffPSF implements B4constants
+{
+    static final double NEAR = 2.5;      // mean ray spacings, for the mask
+    static final int MAXPADDED = 1024;   // largest transform side
+    static final int NCACHE = 8;         // results kept
+
+    private static LinkedHashMap<Long,DiffPSF> cache = new LinkedHashMap<Long,DiffPSF>()
+    {
+        protected boolean removeEldestEntry(Map.Entry<Long,DiffPSF> e)
+        {
+            return size() > NCACHE;
+        }
+    };
+
+    private int npad = 1;                // transform side
+    private double psf[];                // npad*npad, peak = Strehl
+    private double dx = 1.0;             // PSF sample spacing
+    private double cutoff = 1.0;         // diameter/wavelength
+    private double strehl = 0.0;
+    private boolean bAngular = false;    // radians, not lens units
+    private int nrays = 0;               // rays resampled
+    private OTF2D otf = null;
+
+
+    static synchronized DiffPSF get(int ig)
+    // PSF of WFE group ig for the present tables and options, else null.
+    {
+        long key = Checkpoint.mix(Checkpoint.getContentHash(null), ig);
+        key = Checkpoint.mix(key, DMF.reg.getuo(UO_MTF, 3).hashCode());  // wavelength
+        key = Checkpoint.mix(key, DMF.reg.getuo(UO_MTF, 5).hashCode());  // sampling
+        key = Checkpoint.mix(key, DMF.reg.getuo(UO_MTF, 6).hashCode());
+        key = Checkpoint.mix(key, DMF.reg.getuo(UO_MTF, 7).hashCode());  // Huygens
+        key = Checkpoint.mix(key, DMF.reg.getuo(UO_MTF, 8).hashCode());
+        DiffPSF d = cache.get(key);
+        if (d != null)
+          return d;
+        RT13.iBuildRays(true);
+        d = new DiffPSF();
+        if (!d.bCompute(ig))
+          return null;
+        cache.put(key, d);
+        return d;
+    }
+
+
+    int getPad()
+    {
+        return npad;
+    }
+
+
+    double getSpacing()
+    // PSF sample spacing, lens units or radians.
+    {
+        return dx;
+    }
+
+
+    boolean isAngular()
+    {
+        return bAngular;
+    }
+
+
+    double getStrehl()
+    {
+        return strehl;
+    }
+
+
+    double getCutoff()
+    // Incoherent cutoff frequency, diameter/wavelength.
+    {
+        return cutoff;
+    }
+
+
+    int getRayCount()
+    {
+        return nrays;
+    }
+
+
+    double getPSF(int i, int j)
+    // Signed sample offsets from the center; wraps.
+    {
+        i = ((i % npad) + npad) % npad;
+        j = ((j % npad) + npad) % npad;
+        return psf[i*npad + j];
+    }
+
+
+    OTF2D getOTF()
+    {
+        return otf;
+    }
+
+
+    //-------------private methods---------------------
+
+    private boolean bCompute(int ig)
+    {
+        int ngroups = DMF.giFlags[RNWFEGROUPS];
+        if ((ig < 0) || (ig >= ngroups))
+          return false;
+        double wavel = U.suckDouble(DMF.reg.getuo(UO_MTF, 3));
+        if (!(wavel > 0.0))
+          return false;
+        int npupil = U.parseInt(DMF.reg.getuo(UO_MTF, 5));
+        npupil = Math.max(8, Math.min(MAXPADDED/2, npupil));
+        int padding = U.parseInt(DMF.reg.getuo(UO_MTF, 6));
+        padding = Math.max(2, padding);
+        npad = 1;
+        while ((npad < npupil*padding) && (npad < MAXPADDED))
+          npad *= 2;
+        if ("T".equals(DMF.reg.getuo(UO_MTF, 7)))
+          return bHuygens(ig, wavel, npupil); 
+
+        //-----the group's rays in normalized pupil coordinates----
+
+        int jx = RT13.getPupilAxis(ig, 0);
+        int jy = RT13.getPupilAxis(ig, 1);
+        if (jx == jy)
+          return false;
+        bAngular = (jx < RU);
+        int g = DMF.giFlags[ONGROUPS];
+        int nall = DMF.giFlags[RNRAYS];
+        double px[] = new double[nall];
+        double py[] = new double[nall];
+        double pw[] = new double[nall];
+        int n = 0;
+        double xc=0.0, yc=0.0;
+        for (int k=1; k<=nall; k++)
+          if (RT13.bGoodRay[k] && (ig == RT13.iWFEgroup[k]))
+          {
+              px[n] = RT13.dGetRay(k, g, jx);
+              py[n] = RT13.dGetRay(k, g, jy);
+              pw[n] = RT13.dGetRay(k, g, RTWFE);
+              xc += px[n];
+              yc += py[n];
+              n++;
+          }
+        if (n < 3)
+          return false;
+        xc /= n;
+        yc /= n;
+        double r2max = 0.0;
+        for (int i=0; i<n; i++)
+          r2max = Math.max(r2max, (px[i]-xc)*(px[i]-xc) + (py[i]-yc)*(py[i]-yc));
+        if (r2max <= 0.0)
+          return false;
+        double rmax = Math.sqrt(r2max);
+        for (int i=0; i<n; i++)
+        {
+            px[i] = (px[i] - xc)/rmax;
+            py[i] = (py[i] - yc)/rmax;
+        }
+        nrays = n;
+
+        //-----resample onto the pupil grid, rows in parallel-------
+
+        double amp[] = new double[npupil*npupil];
+        double wfe[] = new double[npupil*npupil];
+        Buckets b = new Buckets(px, py, n, NEAR*Math.sqrt(Math.PI/n));
+        int nthreads = Runtime.getRuntime().availableProcessors();
+        nthreads = Math.max(1, Math.min(npupil, nthreads));
+        ArrayList<ResampleTask> tasks = new ArrayList<ResampleTask>();
+        for (int t=0; t<nthreads; t++)
+          tasks.add(new ResampleTask(b, pw, npupil, t, nthreads, amp, wfe));
+        if (nthreads == 1)
+          tasks.get(0).call();
+        else
+        {
+            ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+            try
+            {
+                pool.invokeAll(tasks);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            finally
+            {
+                pool.shutdown();
+            }
+        }
+
+        //-----pupil function, transform, normalize----------
+
+        double sumamp = 0.0;
+        double c[] = new double[2*npad*npad];
+        for (int i=0; i<npupil; i++)
+          for (int j=0; j<npupil; j++)
+          {
+              double a = amp[i*npupil + j];
+              if (a <= 0.0)
+                continue;
+              double phase = 2*Math.PI*wfe[i*npupil + j]/wavel;
+              c[2*(i*npad + j)] = a*Math.cos(phase);
+              c[2*(i*npad + j)+1] = a*Math.sin(phase);
+              sumamp += a;
+          }
+        if (sumamp <= 0.0)
+          return false;
+        U.fft2(c, npad, npad, 1);
+        psf = new double[npad*npad];
+        double norm = 1.0/(sumamp*sumamp);
+        strehl = 0.0;
+        for (int k=0; k<npad*npad; k++)
+        {
+            psf[k] = norm*(c[2*k]*c[2*k] + c[2*k+1]*c[2*k+1]);
+            strehl = Math.max(strehl, psf[k]);
+        }
+        double du = 2.0*rmax/npupil;
+        dx = wavel/(npad*du);
+        cutoff = 2.0*rmax/wavel;
+        otf = new OTF2D(npad, npad, dx, dx);
+        otf.load(psf);
+        return true;
+    }
+
+
+    private boolean bHuygens(int ig, double wavel, int npupil)
+    // The group's rays in the final surface's local frame; see Huygens.
+    {
+        int g = DMF.giFlags[ONGROUPS];
+        int nall = DMF.giFlags[RNRAYS];
+        double rr[][] = new double[nall][];
+        int n = 0;
+        for (int k=1; k<=nall; k++)
+          if (RT13.bGoodRay[k] && (ig == RT13.iWFEgroup[k]))
+          {
+              rr[n] = new double[7];
+              for (int i=0; i<6; i++)
+                rr[n][i] = RT13.dGetRay(k, g, RTXL+i);
+              rr[n][6] = RT13.dGetRay(k, g, RPATH);
+              n++;
+          }
+        if (n < 3)
+          return false;
+        double xc=0.0, yc=0.0, zc=0.0;
+        for (int i=0; i<n; i++)
+        {
+            xc += rr[i][0];
+            yc += rr[i][1];
+            zc += rr[i][2];
+        }
+        xc /= n;
+        yc /= n;
+        zc /= n;
+        double sxx=0.0, sxy=0.0, syy=0.0, sxz=0.0, syz=0.0;
+        for (int i=0; i<n; i++)
+        {
+            double x = rr[i][0] - xc, y = rr[i][1] - yc, z = rr[i][2] - zc;
+            sxx += x*x;
+            sxy += x*y;
+            syy += y*y;
+            sxz += x*z;
+            syz += y*z;
+        }
+        double abc[] = new double[3];       // detector plane z=zc+b*x+c*y
+        double det = sxx*syy - sxy*sxy;
+        if (det > 1E-12*(sxx*syy))
+        {
+            abc[1] = (sxz*syy - syz*sxy)/det;
+            abc[2] = (syz*sxx - sxz*sxy)/det;
+        }
+
+        //-----per ray: phase c + gx*x + gy*y at offset (x,y) on the plane---
+
+        double k = 2*Math.PI/wavel;
+        double c[] = new double[n];
+        double gx[] = new double[n];
+        double gy[] = new double[n];
+        double px[] = new double[n];
+        double py[] = new double[n];
+        double fx=0.0, fy=0.0;
+        for (int i=0; i<n; i++)
+        {
+            double ux = rr[i][3], uy = rr[i][4], uz = rr[i][5];
+            gx[i] = ux + uz*abc[1];
+            gy[i] = uy + uz*abc[2];
+            fx += gx[i];
+            fy += gy[i];
+            c[i] = k*((rr[i][6] - rr[0][6]) + ux*(xc - rr[i][0])
+                    + uy*(yc - rr[i][1]) + uz*(zc - rr[i][2]));
+            px[i] = rr[i][0] - xc;
+            py[i] = rr[i][1] - yc;
+        }
+        fx /= n;
+        fy /= n;
+        double du = 0.0;                    // direction spread, diameter
+        for (int i=0; i<n; i++)
+        {
+            du = Math.max(du, 2*Math.abs(gx[i] - fx));
+            du = Math.max(du, 2*Math.abs(gy[i] - fy));
+            gx[i] *= k;
+            gy[i] *= k;
+        }
+        if (du <= 0.0)
+          return false;
+        double dcut = U.suckDouble(DMF.reg.getuo(UO_MTF, 8));
+        if (U.isNegZero(dcut))      // blank: half the period at which the
+          dcut = 0.5*wavel/(0.5*du*Math.sqrt(Math.PI/n));  // rays' waves repeat
+        if (Double.isNaN(dcut))
+          dcut = 0.0;
+
+        dx = wavel*npupil/(npad*du);
+        double raw[] = Huygens.getIntensity(c, gx, gy, px, py, n, npad, dx, dcut);
+        psf = new double[npad*npad];
+        strehl = 0.0;
+        for (int i=0; i<npad*npad; i++)
+        {
+            psf[i] = raw[i]/((double) n*n);
+            strehl = Math.max(strehl, psf[i]);
+        }
+        cutoff = du/wavel;
+        bAngular = false;
+        nrays = n;
+        otf = new OTF2D(npad, npad, dx, dx);
+        otf.load(psf);
+        return true;
+    }
+
+
+    private static class Buckets
+    // Square cells of side r over the normalized pupil, for near rays.
+    {
+        double px[], py[], r;
+        int n, ncells;
+        int first[], next[];
+
+        Buckets(double x[], double y[], int nrays, double radius)
+        {
+            px = x;
+            py = y;
+            n = nrays;
+            r = radius;
+            ncells = Math.max(1, (int) Math.ceil(2.0/r));
+            first = new int[ncells*ncells];
+            next = new int[n];
+            Arrays.fill(first, -1);
+            for (int i=0; i<n; i++)
+            {
+                int c = getCell(px[i], py[i]);
+                next[i] = first[c];
+                first[c] = i;
+            }
+        }
+
+        int getIndex(double v)
+        {
+            return Math.max(0, Math.min(ncells-1, (int) Math.floor((v + 1.0)/r)));
+        }
+
+        int getCell(double x, double y)
+        {
+            return getIndex(x)*ncells + getIndex(y);
+        }
+    }
+
+
+    private static class ResampleTask implements Callable<Object>
+    // Rows t, t+nt, t+2nt... of the pupil grid; writes only those rows.
+    {
+        Buckets b;
+        double pw[], amp[], wfe[];
+        int npupil, t, nt;
+
+        ResampleTask(Buckets bk, double w[], int np, int first, int every,
+                     double a[], double e[])
+        {
+            b = bk;
+            pw = w;
+            npupil = np;
+            t = first;
+            nt = every;
+            amp = a;
+            wfe = e;
+        }
+
+        public Object call()
+        {
+            double r2 = b.r*b.r;
+            for (int i=t; i<npupil; i+=nt)
+              for (int j=0; j<npupil; j++)
+              {
+                  double x = -1.0 + (i + 0.5)*2.0/npupil;
+                  double y = -1.0 + (j + 0.5)*2.0/npupil;
+                  if (x*x + y*y > 1.0)
+                    continue;
+                  int ix = b.getIndex(x);
+                  int iy = b.getIndex(y);
+                  double sw = 0.0, swv = 0.0;
+                  int exact = -1;
+                  for (int cx=Math.max(0, ix-1); cx<=Math.min(b.ncells-1, ix+1); cx++)
+                    for (int cy=Math.max(0, iy-1); cy<=Math.min(b.ncells-1, iy+1); cy++)
+                      for (int k=b.first[cx*b.ncells + cy]; k>=0; k=b.next[k])
+                      {
+                          double d2 = (b.px[k]-x)*(b.px[k]-x) + (b.py[k]-y)*(b.py[k]-y);
+                          if (d2 > r2)
+                            continue;
+                          if (d2 < 1E-24)
+                            exact = k;
+                          else
+                          {
+                              sw += 1.0/d2;
+                              swv += pw[k]/d2;
+                          }
+                      }
+                  if (exact >= 0)
+                  {
+                      amp[i*npupil + j] = 1.0;
+                      wfe[i*npupil + j] = pw[exact];
+                  }
+                  else if (sw > 0.0)
+                  {
+                      amp[i*npupil + j] = 1.0;
+                      wfe[i*npupil + j] = swv/sw;
+                  }
+              }
+            return null;
+        }
+    }
+}
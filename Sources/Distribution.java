@@ -0,0 +1,366 @@
+package com.stellarsoftware.beam;
+
+import java.io.*;          // DataOutputStream
+
+/** Distribution.java
+  *
+  *  Lossless record of a one dimensional ray distribution at a fine,
+  *  adaptive resolution, with no limit on range or ray count.  Values
+  *  are kept as distances from a reference value in units of the finest
+  *  resolution.  Within SUB units of the reference the buckets are one
+  *  unit wide; beyond, each octave of distance has SUB buckets, so that
+  *  a bucket is never wider than 1/SUB of its distance from the reference.
+  *  Rows of buckets are allocated only when a ray lands in them, so a
+  *  far outlier costs one row.  Counts are longs; values that are not
+  *  finite are counted apart.
+  *
+  *  A Distribution can be re-binned to any display range and bin count
+  *  by rebin(), which spreads each bucket uniformly over its width, and
+  *  asked for quantiles.  Distributions built on separate threads are
+  *  combined by merge(); each instance is for one thread at a time.
+  *
+  *  Used by H1DPanel so that random rays outside the plotted span are
+  *  kept, and a new span or bin count needs no retrace; and by MTFPanel
+  *  for its fine sampling of the line spread function.
+  *
+  *  (c) 2015 STELLAR SOFTWARE all rights reserved.
+  */
+class Distribution
+{
+    static final int LOGSUB = 12;
+    static final int SUB = 1 << LOGSUB;       // buckets per octave
+    static final int MAXROWS = 1100;          // octaves of any double
+
+    private double ref = 0.0;                 // reference value
+    private double unit = 1.0;                // finest bucket width
+    private long pos[][] = new long[MAXROWS][];   // at or above ref
+    private long neg[][] = new long[MAXROWS][];   // below ref
+    private long count = 0, nbad = 0;
+    private double sum = 0.0, sumsq = 0.0;
+    private double vmin = Double.POSITIVE_INFINITY;
+    private double vmax = Double.NEGATIVE_INFINITY;
+
+
+    Distribution(double reference, double resolution)
+    // resolution = finest bucket width, positive.
+    {
+        ref = reference;
+        unit = (resolution > 0.0) ? resolution : 1.0;
+    }
+
+
+    void add(double v)
+    {
+        if (Double.isNaN(v) || Double.isInfinite(v))
+        {
+            nbad++;
+            return;
+        }
+        count++;
+        sum += v;
+        sumsq += v*v;
+        vmin = Math.min(vmin, v);
+        vmax = Math.max(vmax, v);
+        addBucket(v, 1);
+    }
+
+
+    boolean isCompatible(Distribution o)
+    {
+        return (o.ref == ref) && (o.unit == unit);
+    }
+
+
+    void merge(Distribution o)
+    // Adds in another's rays; others' buckets are moved whole if the
+    // reference and resolution differ.
+    {
+        count += o.count;
+        nbad += o.nbad;
+        sum += o.sum;
+        sumsq += o.sumsq;
+        vmin = Math.min(vmin, o.vmin);
+        vmax = Math.max(vmax, o.vmax);
+        for (int s=0; s<2; s++)
+        {
+            long orows[][] = (s == 0) ? o.pos : o.neg;
+            for (int row=0; row<MAXROWS; row++)
+              if (orows[row] != null)
+                for (int col=0; col<SUB; col++)
+                {
+                    long n = orows[row][col];
+                    if (n == 0)
+                      continue;
+                    if (isCompatible(o))
+                    {
+                        long rows[][] = (s == 0) ? pos : neg;
+                        if (rows[row] == null)
+                          rows[row] = new long[SUB];
+                        rows[row][col] += n;
+                    }
+                    else
+                      addBucket(o.getCenter(s, row, col), n);
+                }
+        }
+    }
+
+
+    double getResolution()
+    // Finest bucket width.
+    {
+        return unit;
+    }
+
+
+    long getCount()
+    // Finite rays recorded.
+    {
+        return count;
+    }
+
+
+    long getBadCount()
+    // Rays whose value was not finite.
+    {
+        return nbad;
+    }
+
+
+    double getSum()
+    {
+        return sum;
+    }
+
+
+    double getMean()
+    {
+        return (count > 0) ? sum/count : 0.0;
+    }
+
+
+    double getRms()
+    // rms about the mean.
+    {
+        if (count < 1)
+          return 0.0;
+        double m = sum/count;
+        return Math.sqrt(Math.max(0.0, sumsq/count - m*m));
+    }
+
+
+    double getMin()
+    {
+        return vmin;
+    }
+
+
+    double getMax()
+    {
+        return vmax;
+    }
+
+
+    long rebin(double lo, double hi, double out[])
+    // Spreads the rays over out.length equal bins from lo to hi, each
+    // bucket uniformly across its width.  Returns how many fell outside.
+    {
+        int n = out.length;
+        for (int i=0; i<n; i++)
+          out[i] = 0.0;
+        if ((n < 1) || !(hi > lo))
+          return count;
+        double w = (hi - lo)/n;
+        double inside = 0.0;
+        for (int s=0; s<2; s++)
+        {
+            long rows[][] = (s == 0) ? pos : neg;
+            for (int row=0; row<MAXROWS; row++)
+              if (rows[row] != null)
+                for (int col=0; col<SUB; col++)
+                {
+                    long c = rows[row][col];
+                    if (c == 0)
+                      continue;
+                    double e0 = getEdge(s, row, col, false);
+                    double e1 = getEdge(s, row, col, true);
+                    double x0 = Math.max(lo, e0);
+                    double x1 = Math.min(hi, e1);
+                    if (x1 < x0)
+                      continue;
+                    if (e1 <= e0)                      // below the arithmetic
+                    {
+                        int i = Math.min(n-1, (int) ((x0 - lo)/w));
+                        out[i] += c;
+                        inside += c;
+                        continue;
+                    }
+                    double density = c/(e1 - e0);
+                    int i0 = Math.max(0, Math.min(n-1, (int) ((x0 - lo)/w)));
+                    int i1 = Math.max(0, Math.min(n-1, (int) ((x1 - lo)/w)));
+                    for (int i=i0; i<=i1; i++)
+                    {
+                        double b0 = Math.max(x0, lo + i*w);
+                        double b1 = Math.min(x1, lo + (i+1)*w);
+                        if (b1 > b0)
+                        {
+                            out[i] += density*(b1 - b0);
+                            inside += density*(b1 - b0);
+                        }
+                    }
+                }
+        }
+        return Math.max(0L, count - Math.round(inside));
+    }
+
+
+    double getQuantile(double q)
+    // Value below which a fraction q of the rays lie.
+    {
+        if (count < 1)
+          return 0.0;
+        q = Math.max(0.0, Math.min(1.0, q));
+        double target = q*count;
+        double below = 0.0;
+        for (int row=MAXROWS-1; row>=0; row--)     // neg side, ascending
+          if (neg[row] != null)
+            for (int col=SUB-1; col>=0; col--)
+            {
+                long c = neg[row][col];
+                if ((c > 0) && (below + c >= target))
+                  return interpolate(1, row, col, (target - below)/c);
+                below += c;
+            }
+        for (int row=0; row<MAXROWS; row++)
+          if (pos[row] != null)
+            for (int col=0; col<SUB; col++)
+            {
+                long c = pos[row][col];
+                if ((c > 0) && (below + c >= target))
+                  return interpolate(0, row, col, (target - below)/c);
+                below += c;
+            }
+        return vmax;
+    }
+
+
+    void write(DataOutputStream dos) throws IOException
+    // Sparse: only the nonempty buckets.
+    {
+        dos.writeDouble(ref);
+        dos.writeDouble(unit);
+        dos.writeLong(count);
+        dos.writeLong(nbad);
+        dos.writeDouble(sum);
+        dos.writeDouble(sumsq);
+        dos.writeDouble(vmin);
+        dos.writeDouble(vmax);
+        int nonzero = 0;
+        for (int s=0; s<2; s++)
+          for (int row=0; row<MAXROWS; row++)
+          {
+              long rows[][] = (s == 0) ? pos : neg;
+              if (rows[row] != null)
+                for (int col=0; col<SUB; col++)
+                  if (rows[row][col] != 0)
+                    nonzero++;
+          }
+        dos.writeInt(nonzero);
+        for (int s=0; s<2; s++)
+          for (int row=0; row<MAXROWS; row++)
+          {
+              long rows[][] = (s == 0) ? pos : neg;
+              if (rows[row] != null)
+                for (int col=0; col<SUB; col++)
+                  if (rows[row][col] != 0)
+                  {
+                      dos.writeInt((s*MAXROWS + row)*SUB + col);
+                      dos.writeLong(rows[row][col]);
+                  }
+          }
+    }
+
+
+    static Distribution read(DataInputStream dis) throws IOException
+    {
+        Distribution d = new Distribution(dis.readDouble(), dis.readDouble());
+        d.count = dis.readLong();
+        d.nbad = dis.readLong();
+        d.sum = dis.readDouble();
+        d.sumsq = dis.readDouble();
+        d.vmin = dis.readDouble();
+        d.vmax = dis.readDouble();
+        int nonzero = dis.readInt();
+        for (int i=0; i<nonzero; i++)
+        {
+            int code = dis.readInt();
+            long c = dis.readLong();
+            int col = code % SUB;
+            int row = (code / SUB) % MAXROWS;
+            int s = code / (SUB*MAXROWS);
+            if ((code < 0) || (s > 1))
+              throw new IOException("bad distribution bucket");
+            long rows[][] = (s == 0) ? d.pos : d.neg;
+            if (rows[row] == null)
+              rows[row] = new long[SUB];
+            rows[row][col] = c;
+        }
+        return d;
+    }
+
+
+    //-------------private methods---------------------
+
+    private void addBucket(double v, long n)
+    // Counts n rays into the bucket of finite value v.
+    {
+        double a = (v - ref)/unit;
+        long rows[][] = (a >= 0.0) ? pos : neg;
+        a = Math.abs(a);
+        int row, col;
+        if (a < SUB)
+        {
+            row = 0;
+            col = (int) a;
+        }
+        else
+        {
+            row = Math.getExponent(a) - LOGSUB + 1;
+            col = Math.min(SUB-1, (int) Math.scalb(a, 1-row) - SUB);
+        }
+        if (rows[row] == null)
+          rows[row] = new long[SUB];
+        rows[row][col] += n;
+    }
+
+
+    private double getOffset(int row, int col, boolean bOuter)
+    // Distance from ref, in units, of a bucket's inner or outer edge.
+    {
+        int c = bOuter ? col+1 : col;
+        return (row == 0) ? c : Math.scalb((double) (SUB + c), row-1);
+    }
+
+
+    private double getEdge(int s, int row, int col, boolean bUpper)
+    // Value at the lower or upper edge of a bucket; s=0 pos, 1 neg.
+    {
+        if (s == 0)
+          return ref + unit*getOffset(row, col, bUpper);
+        return ref - unit*getOffset(row, col, !bUpper);
+    }
+
+
+    private double getCenter(int s, int row, int col)
+    {
+        return 0.5*(getEdge(s, row, col, false) + getEdge(s, row, col, true));
+    }
+
+
+    private double interpolate(int s, int row, int col, double f)
+    // Value a fraction f through the bucket, clipped to the data range.
+    {
+        double e0 = getEdge(s, row, col, false);
+        double e1 = getEdge(s, row, col, true);
+        return Math.max(vmin, Math.min(vmax, e0 + f*(e1 - e0)));
+    }
+}
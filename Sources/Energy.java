@@ -0,0 +1,304 @@
+package com.stellarsoftware.beam;
+
+import java.util.*;        // Arrays
+
+/** Energy.java
+  *
+  *  Encircled and ensquared energy of a spot: the fraction of its rays
+  *  within a circle of given radius, or a square of given half width,
+  *  about a fixed center on one surface, local X and Y.
+  *
+  *  Each ray adds its radius and its half width, the larger of |dx| and
+  *  |dy|, to a Distribution, so any number of rays is kept at a relative
+  *  resolution of 1/Distribution.SUB in memory that does not grow with
+  *  the count, and no ray is ever sorted.  Diameters enclosing a given
+  *  fraction are twice the Distribution's quantiles; a curve of the
+  *  fraction enclosed versus radius comes from its rebin().
+  *
+  *  The center is either the centroid of a WFE group's good table rays
+  *  or its chief ray, taken as the ray nearest the middle of the pupil
+  *  that RT13.getPupilAxis() found for the group.  Random rays are added
+  *  about the center of the table rays, so it stays fixed as they land.
+  *
+  *  The table rays of each WFE group are evaluated on demand, as in
+  *  Zernike: RT13 calls invalidate() after each table trace.  Ray table
+  *  fields "EE" and "ES" show the encircled and ensquared diameters of
+  *  each ray's group at the fraction set in Options:Energy; goal fields
+  *  "EEg" and "ESg" are matched by AutoAdj through Comparo.  Map can
+  *  show either one, and EnergyPanel draws both curves.
+  *
+  *  Those table diameters are exact: the few table rays also keep their
+  *  sorted radii and half widths, interpolated between neighbors, so
+  *  they move smoothly with the optics as AutoAdj's small steps need.
+  *  The bucket grid of a Distribution would make them move in steps.
+  *  The Distribution serves the curves and the streamed random rays.
+  *
+  *  (c) 2015 STELLAR SOFTWARE all rights reserved.
+  */
+class Energy implements B4constants
+{
+    static final double RESOLUTION = 1E-4;   // finest bucket, of the table spot
+
+    private static boolean bStale = true;
+    private static Energy table[] = new Energy[MAXWFEGROUPS];
+
+    private double xc=0.0, yc=0.0;           // center
+    private Distribution round, square;      // radius, half width
+    private double exact[][] = null;         // sorted, table rays only
+
+
+    Energy(double xcenter, double ycenter, double resolution)
+    {
+        xc = xcenter;
+        yc = ycenter;
+        round = new Distribution(0.0, resolution);
+        square = new Distribution(0.0, resolution);
+    }
+
+
+    void add(double x, double y)
+    {
+        double dx = x - xc;
+        double dy = y - yc;
+        round.add(Math.sqrt(dx*dx + dy*dy));
+        square.add(Math.max(Math.abs(dx), Math.abs(dy)));
+    }
+
+
+    void merge(Energy o)
+    // Adds in another's rays; its center is taken to be the same.
+    {
+        round.merge(o.round);
+        square.merge(o.square);
+    }
+
+
+    Energy copy()
+    {
+        Energy e = new Energy(xc, yc, getResolution());
+        e.merge(this);
+        return e;
+    }
+
+
+    double getXcenter()
+    {
+        return xc;
+    }
+
+
+    double getYcenter()
+    {
+        return yc;
+    }
+
+
+    double getResolution()
+    {
+        return round.getResolution();
+    }
+
+
+    long getCount()
+    {
+        return round.getCount();
+    }
+
+
+    double getDiameter(double fraction, boolean bSquare)
+    // Diameter of the circle, or width of the square, enclosing fraction.
+    {
+        return 2.0*(bSquare ? square : round).getQuantile(fraction);
+    }
+
+
+    double getMaxRadius()
+    {
+        return (round.getCount() > 0) ? round.getMax() : 0.0;
+    }
+
+
+    void getCurve(boolean bSquare, double rmax, double out[])
+    // Fraction enclosed at out.length radii from 0 to rmax.
+    {
+        int n = out.length;
+        if (n < 1)
+          return;
+        long count = getCount();
+        if ((n < 2) || (count < 1))
+        {
+            for (int i=0; i<n; i++)
+              out[i] = 0.0;
+            return;
+        }
+        double bins[] = new double[n-1];
+        (bSquare ? square : round).rebin(0.0, rmax, bins);
+        out[0] = 0.0;
+        for (int i=1; i<n; i++)
+          out[i] = out[i-1] + bins[i-1]/count;
+    }
+
+
+    //-------------table rays, per WFE group------------------
+
+    static synchronized void invalidate()
+    // The table rays have been retraced.
+    {
+        bStale = true;
+    }
+
+
+    static synchronized Energy getTable(int ig)
+    // Table rays of WFE group ig per Options:Energy, else null.
+    {
+        if (bStale)
+        {
+            bStale = false;
+            for (int i=0; i<MAXWFEGROUPS; i++)
+              table[i] = null;
+        }
+        if ((ig < 0) || (ig >= Math.min(MAXWFEGROUPS, DMF.giFlags[RNWFEGROUPS])))
+          return null;
+        if (table[ig] == null)
+          table[ig] = getGroup(ig);
+        return table[ig];
+    }
+
+
+    static double getTableDiameter(int ig, boolean bSquare)
+    // At the fraction of Options:Energy; -0.0 if no rays.
+    {
+        Energy e = getTable(ig);
+        if ((e == null) || (e.getCount() < 1))
+          return -0.0;
+        return 2.0*getQuantile(e.exact[bSquare ? 1 : 0], getFraction());
+    }
+
+
+    static double getFraction()
+    {
+        double pct = U.suckDouble(DMF.reg.getuo(UO_ENERGY, 0));
+        if (Double.isNaN(pct) || (pct <= 0.0) || (pct > 100.0))
+          pct = 80.0;
+        return 0.01*pct;
+    }
+
+
+    static int getSurface()
+    // Optics group of Options:Energy; blank is the final one.
+    {
+        int ngroups = DMF.giFlags[ONGROUPS];
+        String s = DMF.reg.getuo(UO_ENERGY, 2).trim();
+        if (s.length() < 1)
+          return ngroups;
+        return Math.max(1, Math.min(ngroups, U.parseInt(s)));
+    }
+
+
+    //-------------private methods---------------------
+
+    private static Energy getGroup(int ig)
+    {
+        int g = getSurface();
+        int nrays = DMF.giFlags[RNRAYS];
+        int n = 0;
+        double xs=0.0, ys=0.0;
+        for (int k=1; k<=nrays; k++)
+          if (RT13.bGoodRay[k] && (ig == RT13.iWFEgroup[k]))
+          {
+              xs += RT13.dGetRay(k, g, RTXL);
+              ys += RT13.dGetRay(k, g, RTYL);
+              n++;
+          }
+        if (n < 1)
+          return null;
+        double x0 = xs/n;
+        double y0 = ys/n;
+        if ("T".equals(DMF.reg.getuo(UO_ENERGY, 1)))
+        {
+            int kc = getChief(ig);
+            if (kc > 0)
+            {
+                x0 = RT13.dGetRay(kc, g, RTXL);
+                y0 = RT13.dGetRay(kc, g, RTYL);
+            }
+        }
+        double rmax = 0.0;
+        for (int k=1; k<=nrays; k++)
+          if (RT13.bGoodRay[k] && (ig == RT13.iWFEgroup[k]))
+            rmax = Math.max(rmax, Math.hypot(RT13.dGetRay(k, g, RTXL) - x0,
+                                             RT13.dGetRay(k, g, RTYL) - y0));
+        Energy e = new Energy(x0, y0, (rmax > 0.0) ? RESOLUTION*rmax : 1E-12);
+        e.exact = new double[2][n];
+        int i = 0;
+        for (int k=1; k<=nrays; k++)
+          if (RT13.bGoodRay[k] && (ig == RT13.iWFEgroup[k]))
+          {
+              double x = RT13.dGetRay(k, g, RTXL);
+              double y = RT13.dGetRay(k, g, RTYL);
+              e.add(x, y);
+              double dx = x - x0;
+              double dy = y - y0;
+              e.exact[0][i] = Math.sqrt(dx*dx + dy*dy);
+              e.exact[1][i] = Math.max(Math.abs(dx), Math.abs(dy));
+              i++;
+          }
+        Arrays.sort(e.exact[0]);
+        Arrays.sort(e.exact[1]);
+        return e;
+    }
+
+
+    private static double getQuantile(double sorted[], double q)
+    // Value below which a fraction q of the rays lie, each ray taken
+    // to fill 1/n of the fraction centered on its own value.
+    {
+        int n = sorted.length;
+        double x = q*n - 0.5;
+        if (x <= 0.0)
+          return sorted[0];
+        if (x >= n-1)
+          return sorted[n-1];
+        int i = (int) x;
+        return sorted[i] + (x-i)*(sorted[i+1] - sorted[i]);
+    }
+
+
+    private static int getChief(int ig)
+    // Good ray of group ig nearest the pupil centroid, else 0.
+    {
+        int jx = RT13.getPupilAxis(ig, 0);
+        int jy = RT13.getPupilAxis(ig, 1);
+        if (jx == jy)
+          return 0;
+        int g = DMF.giFlags[ONGROUPS];
+        int nrays = DMF.giFlags[RNRAYS];
+        int n = 0;
+        double pxs=0.0, pys=0.0;
+        for (int k=1; k<=nrays; k++)
+          if (RT13.bGoodRay[k] && (ig == RT13.iWFEgroup[k]))
+          {
+              pxs += RT13.dGetRay(k, g, jx);
+              pys += RT13.dGetRay(k, g, jy);
+              n++;
+          }
+        if (n < 1)
+          return 0;
+        pxs /= n;
+        pys /= n;
+        int kbest = 0;
+        double best = Double.MAX_VALUE;
+        for (int k=1; k<=nrays; k++)
+          if (RT13.bGoodRay[k] && (ig == RT13.iWFEgroup[k]))
+          {
+              double dx = RT13.dGetRay(k, g, jx) - pxs;
+              double dy = RT13.dGetRay(k, g, jy) - pys;
+              if (dx*dx + dy*dy < best)
+              {
+                  best = dx*dx + dy*dy;
+                  kbest = k;
+              }
+          }
+        return kbest;
+    }
+}
@@ -0,0 +1,323 @@
+package com.stellarsoftware.beam;
+
+import java.io.*;          // fileWriter
+import javax.swing.*;      // Graphics2D features
+
+@SuppressWarnings("serial")
+
+/**
+  * EnergyPanel draws encircled and ensquared energy curves.
+  *
+  * Custom artwork class furnishes artwork to GPanel.
+  *
+  * Shows the fraction of rays within a circle of radius r, black, and
+  * within a square of half width r, red, about the centroid or chief
+  * ray of one WFE group at the surface chosen in Options:Energy.  The
+  * table rays come from Energy.getTable(); random rays then land in a
+  * copy of it, about the same center, so the curves fill in as they
+  * arrive.  A random ray counts in the WFE group of its guide ray,
+  * RT13.getGuideRay().  As in H2DPanel, the random rays are kept until
+  * the options, the surface, or the number of table rays change.
+  *
+  * The legend gives the diameter and square width enclosing the
+  * fraction of Options:Energy, and the ray count.
+  *
+  * @author M.Lampton (c) STELLAR SOFTWARE 2004, 2015 all rights reserved.
+  */
+public class EnergyPanel extends GPanel
+{
+    // public static final long serialVersionUID = 42L;
+
+    final double EXTRAROOM = 2.0;  // windowsize / plotbox
+    final double MINSPAN = 1E-12;
+    final int NCURVE = 101;        // samples per curve
+
+    private int surf, group = 1, npRays;
+    private double rspan = 1.0;
+    private boolean bSquare = true;
+    private Energy energy = null;  // table rays plus random rays
+    private double ee[] = new double[NCURVE];
+    private double es[] = new double[NCURVE];
+    private int hnticks, hndigits, vnticks, vndigits;
+    private double hticks[] = new double[12];
+    private double vticks[] = new double[12];
+
+
+    public EnergyPanel(GJIF gj)
+    {
+        myGJIF = gj;           // protected; used here & GPanel
+        bClobber = true;       // protected; random redo() needs new artwork
+        bPleaseParseUO = true; // protected; assures initial parse.
+    }
+
+//-----------protected methods concretizing GPanel-------
+
+    protected void doTechList(boolean bFullArt) // replaces abstract method
+    // Called by GPanel when fresh artwork is needed:
+    // Ignores bFullArt, always writes complete diagram.
+    {
+        int nrays = DMF.giFlags[RNRAYS];
+        RT13.iBuildRays(true);
+        if (bPleaseParseUO || (surf != Energy.getSurface()) || (npRays != nrays))
+        {
+            doParse();
+            npRays = nrays;
+        }
+        if (energy == null)
+        {
+            myGJIF.postWarning("No good rays in this WFE group");
+            clearList(QBASE);
+            return;
+        }
+        myGJIF.postWarning("");
+        doArt();
+    }
+
+    protected void doRotate(int i, int j) // replaces abstract method
+    {
+        // do nothing
+    }
+
+    protected boolean doRandomRay() // replaces abstract "do" method
+    {
+        if ((energy == null) || !RT13.bRunRandomRay())
+          return false;
+        addRay();
+        while (RT13.bNextRandomImage())   // reduced pupil; see Symmetry
+          addRay();
+        return true;
+    }
+
+    protected void doCursor(int ix, int iy)  // replaces abstract method
+    // delivers current cursor coordinates
+    {
+        return;
+    }
+
+    protected double getStereo()    // replaces abstract "get" method
+    {
+        return 0.0;
+    }
+
+    protected void doSaveData()     // replaces abstract "do" method
+    {
+        JFileChooser fc = new JFileChooser(); // import javax.swing.*;
+        String sDir = DMF.sCurrentDir;
+        if (sDir != null)
+        {
+            File fDir = new File(sDir);
+            if (fDir != null)
+              if (fDir.isDirectory())
+                fc.setCurrentDirectory(fDir);
+        }
+        int q = fc.showSaveDialog(null);
+        if (q == JFileChooser.CANCEL_OPTION)
+          return;
+        File file = fc.getSelectedFile();
+        if ((file == null) || (energy == null))
+          return;
+
+        FileWriter fw = null;              // import java.io.*;
+        PrintWriter pw = null;             // import java.io.*;
+        try
+        {
+            fw = new FileWriter(file);
+            pw = new PrintWriter(fw);
+            double f = Energy.getFraction();
+            pw.println("Energy, surface "+surf+", "+energy.getCount()+" rays");
+            pw.println("Center X "+U.fwe(energy.getXcenter())+"  Y "+U.fwe(energy.getYcenter()));
+            pw.println("EE"+getPercent()+" diameter "+U.fwe(energy.getDiameter(f, false)));
+            pw.println("ES"+getPercent()+" width    "+U.fwe(energy.getDiameter(f, true)));
+            pw.println("      radius         EE         ES");
+            for (int i=0; i<NCURVE; i++)
+              pw.println(U.fwe(rspan*i/(NCURVE-1))+" "+U.fwd(ee[i],10,6)+" "+U.fwd(es[i],10,6));
+            fw.close();
+        }
+        catch (Exception e)
+        {}
+    }
+
+
+    //---------private methods---------------
+
+    private void doParse()
+    // Fresh table rays, center, and radius span; drops random rays.
+    {
+        bPleaseParseUO = false;
+        surf = Energy.getSurface();
+        group = Math.max(1, U.parseInt(DMF.reg.getuo(UO_ENERGY, 3)));
+        bSquare = !"F".equals(DMF.reg.getuo(UO_ENERGY, 5));
+        Energy e = Energy.getTable(group-1);
+        energy = (e != null) ? e.copy() : null;
+        if (energy == null)
+          return;
+        rspan = U.suckDouble(DMF.reg.getuo(UO_ENERGY, 4));
+        if (Double.isNaN(rspan) || (rspan <= 0.0))
+          rspan = energy.getMaxRadius();
+        rspan = Math.max(MINSPAN, rspan);
+
+        uxspan = EXTRAROOM * rspan;
+        uxcenter = 0.5 * rspan;
+        uyspan = EXTRAROOM * 100.0;  // 100% energy
+        uycenter = 50.0;
+
+        int results[] = new int[2];
+        U.ruler(0, rspan, true, hticks, results);
+        hnticks = results[0];
+        hndigits = results[1];
+        vnticks = 6;
+        vndigits = 0;
+        for (int i=0; i<=5; i++)
+          vticks[i] = i*20;
+    }
+
+
+    private void addRay()
+    {
+        int k = RT13.getGuideRay();
+        if ((k > 0) && (RT13.iWFEgroup[k] == group-1))
+          energy.add(RT13.dGetRay(0, surf, RTXL), RT13.dGetRay(0, surf, RTYL));
+    }
+
+
+    private String getPercent()
+    {
+        return U.fwd(100.0*Energy.getFraction(), 6, 0).trim();
+    }
+
+
+    //--------------ARTWORK-------------------
+
+    private void add2D(double x, double y, int op)  // local shorthand
+    {
+        addScaled(x, y, 0.0, op, QBASE);   // GPanel service
+    }
+
+
+    private void doArt()
+    {
+        energy.getCurve(false, rspan, ee);
+        energy.getCurve(true, rspan, es);
+        addFurniture("radius", "%energy");
+
+        int iFontcode = getUOGraphicsFontCode();
+        int iHpoints = iFontcode / 10000;
+        int iWpoints = 1 + iHpoints / 2;
+        double scaledW = iWpoints * uxspan / dUOpixels;
+        double scaledH = iHpoints * uyspan / dUOpixels;
+        double f = Energy.getFraction();
+        double dx = rspan / (NCURVE-1);
+        int colors[] = {BLACK, RED};
+        double curves[][] = {ee, es};
+        String names[] = {"EE"+getPercent()+" diam "+U.fwe(energy.getDiameter(f, false)),
+                          "ES"+getPercent()+" width "+U.fwe(energy.getDiameter(f, true))};
+        int ncurves = bSquare ? 2 : 1;
+        for (int c=0; c<ncurves; c++)
+        {
+            addRaw(0., 0., 0., SETCOLOR+colors[c], QBASE);
+            for (int i=0; i<NCURVE; i++)
+            {
+                int op = (i==0) ? MOVETO : ((i < NCURVE-1) ? PATHTO : STROKE);
+                add2D(i*dx, 100*curves[c][i], op);
+            }
+
+            // legend at lower right, in the curve's color
+            addLegend(names[c], 20.0 - c*scaledH, scaledW, iFontcode);
+        }
+        addRaw(0., 0., 0., SETCOLOR+BLACK, QBASE);
+        addLegend(energy.getCount()+" rays, surface "+surf, 20.0 - 2*scaledH, scaledW, iFontcode);
+    }  // end of doArt()
+
+
+    private void addLegend(String s, double y, double scaledW, int iFontcode)
+    // Right justified at the end of the radius axis.
+    {
+        for (int k=0; k<s.length(); k++)
+        {
+            int ic = (int) s.charAt(k) + iFontcode;
+            add2D(rspan + scaledW*(k-s.length()), y, ic);
+        }
+    }
+
+
+    private void addFurniture(String hst, String vst)
+    // Clears the artwork and draws both rulers and their titles.
+    {
+        int iFontcode = getUOGraphicsFontCode();
+        int iHpoints = iFontcode / 10000;
+        int iWpoints = 1 + iHpoints / 2;
+        double scaledW = iWpoints * uxspan / dUOpixels;
+        double xtick = 0.5 * iWpoints * uxspan / dUOpixels;
+        double ytick = 0.5 * iWpoints * uyspan / dUOpixels;
+        double scaledH = iHpoints * uyspan / dUOpixels;
+        double hyoffset = -scaledH;                 // for horiz scale
+        double vyoffset = -0.4*scaledH;             // for vert scale
+        double vrhgap = 0.2;                        // LowerLeftOrigin
+
+        clearList(QBASE);
+        addRaw(0., 0., 0., SETWHITEBKG, QBASE);      // unscaled
+        addRaw(0., 0., 0., SETCOLOR+BLACK, QBASE);   // unscaled
+        addRaw(1., 0., 0., SETSOLIDLINE, QBASE);     // unscaled
+        addRaw(0., 0., 0., COMMENTRULER, QBASE);     // unscaled
+
+        //----the radius ruler at the bottom----
+
+        add2D(hticks[0], 0.0, MOVETO);
+        add2D(hticks[0], ytick, PATHTO);
+        add2D(hticks[0], 0.0, PATHTO);
+        for (int i=1; i<hnticks; i++)
+        {
+            add2D(hticks[i], 0.0, PATHTO);
+            add2D(hticks[i], ytick, PATHTO);
+            int op = (i < hnticks-1) ? PATHTO : STROKE;
+            add2D(hticks[i], 0.0, op);
+        }
+        for (int i=0; i<hnticks; i++)
+        {
+            String s = U.fwe(hticks[i]);
+            int nchars = s.length();
+            double dmid = 0.5*nchars;
+            for (int k=0; k<nchars; k++)
+            {
+                int ic = (int) s.charAt(k) + iFontcode;
+                add2D(hticks[i] + scaledW*(k-dmid), hyoffset, ic);
+            }
+        }
+        int hnchars = hst.length();
+        for (int k=0; k<hnchars; k++)
+        {
+            int ic = (int) hst.charAt(k) + iFontcode;
+            add2D(uxcenter + scaledW*(k-hnchars/2), -2.5*scaledH, ic);
+        }
+
+        //----the percent ruler at the left----
+
+        addRaw(0., 0., 0., COMMENTRULER, QBASE);
+        add2D(0.0, vticks[0], MOVETO);
+        add2D(xtick, vticks[0], PATHTO);
+        add2D(0.0, vticks[0], PATHTO);
+        for (int i=1; i<vnticks; i++)
+        {
+            add2D(0.0, vticks[i], PATHTO);
+            add2D(xtick, vticks[i], PATHTO);
+            int op = (i < vnticks-1) ? PATHTO : STROKE;
+            add2D(0.0, vticks[i], op);
+        }
+        for (int i=0; i<vnticks; i++)
+        {
+            String s = U.fwd(vticks[i], 16, vndigits).trim();
+            int nchars = s.length();
+            for (int k=0; k<nchars; k++)
+            {
+                int ic = (int) s.charAt(k) + iFontcode;
+                add2D(scaledW*(k-nchars-vrhgap), vticks[i]+vyoffset, ic);
+            }
+        }
+        int vnchars = vst.length();
+        for (int k=0; k<vnchars; k++)
+        {
+            int ic = (int) vst.charAt(k) + iFontcode;
+            add2D((k-vnchars-1)*scaledW, uycenter, ic);
+        }
+    }  // end of addFurniture()
+}
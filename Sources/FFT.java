@@ -0,0 +1,296 @@
+package com.stellarsoftware.beam;
+
+import java.util.*;             // HashMap
+import java.util.concurrent.*;  // ExecutorService
+
+/** FFT.java
+  *
+  *  Fast Fourier transforms behind U.fft(), U.realfft() and U.fft2().
+  *  Results are the same as U.fourn(), which remains the reference:
+  *  data[] = {real0, imag0, real1, imag1...}; isign=+1 gives the
+  *  unnormalized sum over j of data[j]*exp(+2 pi i j k/n), and
+  *  isign=-1 the inverse, divided by n as there.
+  *
+  *  Each transform size gets a Plan, made once and kept: its bit reversal
+  *  permutation and its n/2 twiddle factors, exact from Math.cos and
+  *  Math.sin rather than from a recurrence.  Plans are read only once
+  *  made, so any number of threads may share them.
+  *
+  *  A real input of n points is packed as n/2 complex points, transformed
+  *  at half size and then separated, returning bins 0...n/2; the rest
+  *  are their complex conjugates.
+  *
+  *  A 2D transform does all its rows and then all its columns, each pass
+  *  split among the processors when the grid has at least MINPARALLEL
+  *  points.  The worker threads are daemons made on first use and kept.
+  *
+  *  All static methods; no constructor.
+  *
+  *  (c) 2015 STELLAR SOFTWARE all rights reserved.
+  */
+class FFT
+{
+    static final int MINPARALLEL = 65536;   // points, for parallel 2D passes
+
+    private static HashMap<Integer,Plan> plans = new HashMap<Integer,Plan>();
+    private static ExecutorService pool = null;
+    private static int nthreads = 1;
+
+
+    static boolean isPowerOfTwo(int n)
+    {
+        return (n > 0) && ((n & (n-1)) == 0);
+    }
+
+
+    static void transform(double data[], int off, int n, int isign)
+    // In place complex transform of n points starting at data[off].
+    {
+        butterfly(data, off, n, isign);
+        if (isign < 0)
+          for (int i=off; i<off+2*n; i++)
+            data[i] /= n;
+    }
+
+
+    static void realTransform(double x[], int n, double out[], int isign)
+    // Transform of n real points x[0...n-1] into out[0...n+1], that is,
+    // complex bins 0...n/2.  x[] is left unchanged.
+    {
+        if (n < 2)
+        {
+            out[0] = (n == 1) ? x[0] : 0.0;
+            out[1] = 0.0;
+            return;
+        }
+        int m = n/2;
+        double z[] = new double[2*m];
+        System.arraycopy(x, 0, z, 0, n);     // even=real, odd=imaginary
+        butterfly(z, 0, m, isign);
+        Plan p = getPlan(n);
+        double scale = (isign < 0) ? 1.0/n : 1.0;
+        for (int k=0; k<=m; k++)
+        {
+            int k1 = (k == m) ? 0 : k;
+            int k2 = (k == 0) ? 0 : m-k;
+            double ar = z[2*k1], ai = z[2*k1+1];      // Z[k]
+            double br = z[2*k2], bi = -z[2*k2+1];     // conj Z[m-k]
+            double er = 0.5*(ar + br), ei = 0.5*(ai + bi);  // even part
+            double orr = 0.5*(ai - bi), oi = -0.5*(ar - br); // odd part
+            double wr = (k < m) ? p.cos[k] : -1.0;
+            double wi = (k < m) ? isign*p.sin[k] : 0.0;
+            out[2*k] = scale*(er + wr*orr - wi*oi);
+            out[2*k+1] = scale*(ei + wr*oi + wi*orr);
+        }
+    }
+
+
+    static void transform2D(double data[], int n0, int n1, int isign)
+    // In place; point (i,j) at data[2*(i*n1 + j)], as U.fourn() with nn={n0,n1}.
+    {
+        ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        int nt = (n0*n1 >= MINPARALLEL) ? getThreads() : 1;
+        for (int t=0; t<nt; t++)
+          tasks.add(new RowTask(data, n0, n1, isign, t, nt));
+        runAll(tasks);
+        tasks.clear();
+        for (int t=0; t<nt; t++)
+          tasks.add(new ColumnTask(data, n0, n1, isign, t, nt));
+        runAll(tasks);
+    }
+
+
+    //-------------private methods---------------------
+
+    private static void butterfly(double data[], int off, int n, int isign)
+    // Unnormalized transform in place, by the plan for n.
+    {
+        if (n < 2)
+          return;
+        Plan p = getPlan(n);
+        int rev[] = p.rev;
+        for (int i=0; i<n; i++)
+        {
+            int j = rev[i];
+            if (i < j)
+            {
+                int a = off + 2*i;
+                int b = off + 2*j;
+                double t = data[a];
+                data[a] = data[b];
+                data[b] = t;
+                t = data[a+1];
+                data[a+1] = data[b+1];
+                data[b+1] = t;
+            }
+        }
+        for (int len=2; len<=n; len*=2)
+        {
+            int half = len/2;
+            int step = n/len;
+            for (int i=0; i<n; i+=len)
+              for (int k=0; k<half; k++)
+              {
+                  double wr = p.cos[k*step];
+                  double wi = isign*p.sin[k*step];
+                  int a = off + 2*(i+k);
+                  int b = a + 2*half;
+                  double tr = wr*data[b] - wi*data[b+1];
+                  double ti = wr*data[b+1] + wi*data[b];
+                  data[b] = data[a] - tr;
+                  data[b+1] = data[a+1] - ti;
+                  data[a] += tr;
+                  data[a+1] += ti;
+              }
+        }
+    }
+
+
+    private static synchronized Plan getPlan(int n)
+    {
+        Plan p = plans.get(n);
+        if (p == null)
+        {
+            p = new Plan(n);
+            plans.put(n, p);
+        }
+        return p;
+    }
+
+
+    private static class Plan
+    // Bit reversal and twiddles exp(2 pi i k/n), k=0...n/2-1.
+    {
+        int rev[];
+        double cos[], sin[];
+
+        Plan(int n)
+        {
+            rev = new int[n];
+            int nbits = Integer.numberOfTrailingZeros(n);
+            for (int i=0; i<n; i++)
+              rev[i] = (nbits == 0) ? 0 : Integer.reverse(i) >>> (32 - nbits);
+            cos = new double[Math.max(1, n/2)];
+            sin = new double[Math.max(1, n/2)];
+            for (int k=0; k<n/2; k++)
+            {
+                cos[k] = Math.cos(2*Math.PI*k/n);
+                sin[k] = Math.sin(2*Math.PI*k/n);
+            }
+        }
+    }
+
+
+    private static class RowTask implements Callable<Object>
+    // Rows t, t+nt, t+2nt...
+    {
+        double data[];
+        int n0, n1, isign, t, nt;
+
+        RowTask(double d[], int a, int b, int s, int first, int every)
+        {
+            data = d;
+            n0 = a;
+            n1 = b;
+            isign = s;
+            t = first;
+            nt = every;
+        }
+
+        public Object call()
+        {
+            for (int i=t; i<n0; i+=nt)
+              transform(data, 2*i*n1, n1, isign);
+            return null;
+        }
+    }
+
+
+    private static class ColumnTask implements Callable<Object>
+    // Columns t, t+nt, t+2nt...; each gathered into a contiguous buffer.
+    {
+        double data[];
+        int n0, n1, isign, t, nt;
+
+        ColumnTask(double d[], int a, int b, int s, int first, int every)
+        {
+            data = d;
+            n0 = a;
+            n1 = b;
+            isign = s;
+            t = first;
+            nt = every;
+        }
+
+        public Object call()
+        {
+            double buf[] = new double[2*n0];
+            for (int j=t; j<n1; j+=nt)
+            {
+                for (int i=0; i<n0; i++)
+                {
+                    buf[2*i] = data[2*(i*n1 + j)];
+                    buf[2*i+1] = data[2*(i*n1 + j)+1];
+                }
+                transform(buf, 0, n0, isign);
+                for (int i=0; i<n0; i++)
+                {
+                    data[2*(i*n1 + j)] = buf[2*i];
+                    data[2*(i*n1 + j)+1] = buf[2*i+1];
+                }
+            }
+            return null;
+        }
+    }
+
+
+    private static synchronized int getThreads()
+    // Makes the daemon pool on first use.
+    {
+        if (pool == null)
+        {
+            nthreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+            pool = Executors.newFixedThreadPool(nthreads, new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "FFT");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return nthreads;
+    }
+
+
+    private static void runAll(ArrayList<Callable<Object>> tasks)
+    {
+        if (tasks.size() == 1)
+        {
+            try
+            {
+                tasks.get(0).call();
+            }
+            catch (Exception e)
+            {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
+        try
+        {
+            java.util.List<Future<Object>> futures = pool.invokeAll(tasks);
+            for (int i=0; i<futures.size(); i++)
+              futures.get(i).get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.stellarsoftware.beam;
+
+import java.awt.*;         // Font
+import javax.swing.*;      // JOptionPane, JTextArea
+
+/** Failures.java
+  *
+  *  Ray failure accounting: a table of failed rays by the surface where
+  *  each stopped and its failure code, for every ray traced since the
+  *  last reset: table rays from any run item, and random rays.  The
+  *  counts are kept by TraceStats.  Reset, then run Random or Map, to
+  *  see which aperture limits throughput there.
+  *
+  *  Arrays of numerically solved facets add a second table: facet
+  *  intercepts, the mean cells walked and solver iterations per
+  *  intercept, and rays that found no facet.
+  *
+  *  Like InOut this is a task, not a panel: it runs once and reports.
+  *
+  *  (c) 2015 STELLAR SOFTWARE all rights reserved.
+  */
+class Failures implements B4constants
+{
+    public Failures()  // constructor; performs the entire task.
+    {
+        int nsurfs = DMF.giFlags[ONSURFS];
+        long t[][] = TraceStats.getFailTable(nsurfs);
+        long ntraced = TraceStats.getRaysTraced();
+        long ngood = TraceStats.getRaysGood();
+
+        //-----show only codes that occurred-----
+
+        long bycode[] = new long[TraceStats.NCODES];
+        for (int j=0; j<=nsurfs; j++)
+          for (int c=1; c<TraceStats.NCODES; c++)
+            bycode[c] += t[j][c];
+
+        StringBuffer sb = new StringBuffer();
+        sb.append("Rays traced = " + ntraced + "   good = " + ngood
+                 + "   failed = " + (ntraced-ngood) + '\n' + '\n');
+        sb.append("surf      total");
+        for (int c=1; c<TraceStats.NCODES; c++)
+          if (bycode[c] > 0)
+            sb.append("    " + sResults[c]);  // codes are three letters
+        sb.append('\n');
+        long total = 0;
+        for (int j=0; j<=nsurfs; j++)
+        {
+            long n = 0;
+            for (int c=1; c<TraceStats.NCODES; c++)
+              n += t[j][c];
+            if (n < 1)
+              continue;
+            total += n;
+            sb.append(U.fwi(j, 4) + fwl(n, 11));
+            for (int c=1; c<TraceStats.NCODES; c++)
+              if (bycode[c] > 0)
+                sb.append(fwl(t[j][c], 7));
+            sb.append('\n');
+        }
+        sb.append(" all" + fwl(total, 11));
+        for (int c=1; c<TraceStats.NCODES; c++)
+          if (bycode[c] > 0)
+            sb.append(fwl(bycode[c], 7));
+        sb.append('\n');
+
+        long f[][] = TraceStats.getFacetTable(nsurfs);
+        boolean bFacets = false;
+        for (int j=0; j<=nsurfs; j++)
+          if (f[j][0] > 0)
+          {
+              if (!bFacets)
+                sb.append('\n' + "surf  facet hits   cells/ray   iters/ray     no facet" + '\n');
+              bFacets = true;
+              sb.append(U.fwi(j, 4) + fwl(f[j][0]-f[j][2], 12)
+                       + U.fwd(f[j][1]/(double) f[j][0], 12, 2)
+                       + U.fwd(f[j][3]/(double) f[j][0], 12, 2) + fwl(f[j][2], 13) + '\n');
+          }
+
+        JTextArea ta = new JTextArea(sb.toString(), Math.min(30, nsurfs+6), 72);
+        ta.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        ta.setEditable(false);
+        String options[] = {"OK", "Reset counts"};
+        int result = JOptionPane.showOptionDialog(DMF.oejif, new JScrollPane(ta),
+          "Ray failures by surface and code",
+          JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, options, options[0]);
+        if (result == 1)
+          TraceStats.reset();
+    }
+
+
+    private static String fwl(long n, int w)
+    // Right justified long; counts can exceed an int.
+    {
+        String s = Long.toString(n);
+        while (s.length() < w)
+          s = " " + s;
+        return s;
+    }
+}
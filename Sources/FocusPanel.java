@@ -0,0 +1,424 @@
+package com.stellarsoftware.beam;
+
+import java.io.*;          // fileWriter
+import javax.swing.*;      // Graphics2D features
+
+@SuppressWarnings("serial")
+
+/**
+  * FocusPanel draws an analytic through-focus curve.
+  *
+  * Custom artwork class furnishes artwork to GPanel.
+  *
+  * Traces the table rays once.  Beyond the final surface every ray
+  * is a straight line, so its position on a plane displaced by dz
+  * along the final surface's local axis is linear in dz:
+  *
+  *     x(dz) = ax + bx*dz   where  ax = x - u*z/w,  bx = u/w
+  *     y(dz) = ay + by*dz   where  ay = y - v*z/w,  by = v/w
+  *
+  * One pass over the good rays accumulates the sums of a, b, aa, ab,
+  * and bb for each of x and y.  Every plane's centroid and variance
+  * then follow in constant time:
+  *
+  *     var(dz) = Vaa + 2*Vab*dz + Vbb*dz*dz
+  *
+  * and the best focus is the minimum of this quadratic, -Vab/Vbb.
+  * No ray is retraced for any plane.
+  *
+  * Planes are parallel to the vertex plane of the final surface and
+  * displacements are measured from its vertex along local +Z.
+  *
+  * @author M.Lampton (c) STELLAR SOFTWARE 2004, 2015 all rights reserved.
+  */
+public class FocusPanel extends GPanel
+{
+    // public static final long serialVersionUID = 42L;
+
+    final double EXTRAROOM = 2.0;  // windowsize / plotbox
+    final double MINSPAN = 1E-6;
+    final int MAXPLANES = 1001;
+
+    private int nsurfs, ngroups, nrays, ngood, npSurfs, npRays;
+    private int nplanes = 41;
+    private double zcenter = 0.0, zspan = 1.0;
+    private boolean bAutoCenter = true;         // center option blank
+    private double zbest[] = new double[3];     // x, y, radial best focus
+    private double rbest[] = new double[3];     // rms at each best focus
+    private double Sx[] = new double[5];        // a, b, aa, ab, bb sums
+    private double Sy[] = new double[5];
+    private double dz[] = new double[MAXPLANES];
+    private double xcen[] = new double[MAXPLANES];
+    private double ycen[] = new double[MAXPLANES];
+    private double xrms[] = new double[MAXPLANES];
+    private double yrms[] = new double[MAXPLANES];
+    private double rrms[] = new double[MAXPLANES];
+    private double rmsmax = 1.0;
+    private boolean bShow[] = new boolean[3];   // rms x, rms y, rms r
+    private int hnticks, hndigits, vnticks, vndigits;
+    private double hticks[] = new double[12];
+    private double vticks[] = new double[12];
+
+
+    public FocusPanel(GJIF gj)
+    {
+        myGJIF = gj;           // protected; used here & GPanel
+        bClobber = true;       // protected; random redo() needs new artwork
+        bPleaseParseUO = true; // protected; assures initial parse.
+    }
+
+//-----------protected methods concretizing GPanel-------
+
+    protected void doTechList(boolean bFullArt) // replaces abstract method
+    // Called by GPanel when fresh artwork is needed:
+    // Ignores bFullArt, always writes complete diagram.
+    {
+        nsurfs = DMF.giFlags[ONSURFS];
+        ngroups = DMF.giFlags[ONGROUPS];
+        nrays = DMF.giFlags[RNRAYS];
+        ngood = RT13.iBuildRays(true);
+        if (ngood < 2)
+        {
+            myGJIF.postWarning("Need at least two good rays");
+            return;
+        }
+        myGJIF.postWarning("");
+        doMoments();
+        boolean bMoved = bAutoCenter && (zcenter != zbest[2]);  // an edit
+        if ((npSurfs != nsurfs) || (npRays != nrays) || bPleaseParseUO || bMoved)
+        {
+            doParse();
+            npSurfs = nsurfs;
+            npRays = nrays;
+        }
+        doPlanes();
+        doArt();
+    }
+
+    protected void doRotate(int i, int j) // replaces abstract method
+    {
+        // do nothing
+    }
+
+    boolean doRandomRay()          // replaces abstract "do" method
+    {
+        return false;
+    }
+
+    protected void doCursor(int ix, int iy)  // replaces abstract method
+    // delivers current cursor coordinates
+    {
+        return;
+    }
+
+    protected double getStereo()    // replaces abstract "get" method
+    {
+        return 0.0;
+    }
+
+    protected void doSaveData()     // replaces abstract "do" method
+    {
+        JFileChooser fc = new JFileChooser(); // import javax.swing.*;
+        String sDir = DMF.sCurrentDir;
+        if (sDir != null)
+        {
+            File fDir = new File(sDir);
+            if (fDir != null)
+              if (fDir.isDirectory())
+                fc.setCurrentDirectory(fDir);
+        }
+        int q = fc.showSaveDialog(null);
+        if (q == JFileChooser.CANCEL_OPTION)
+          return;
+        File file = fc.getSelectedFile();
+        if (file == null)
+          return;
+
+        FileWriter fw = null;              // import java.io.*;
+        PrintWriter pw = null;             // import java.io.*;
+        try
+        {
+            fw = new FileWriter(file);
+            pw = new PrintWriter(fw);
+            pw.println("Through focus, "+ngood+" good rays");
+            pw.println("Best focus X  "+U.fwe(zbest[0])+"  rms "+U.fwe(rbest[0]));
+            pw.println("Best focus Y  "+U.fwe(zbest[1])+"  rms "+U.fwe(rbest[1]));
+            pw.println("Best focus R  "+U.fwe(zbest[2])+"  rms "+U.fwe(rbest[2]));
+            pw.println("          dz       Xcen       Ycen       Xrms       Yrms       Rrms");
+            for (int i=0; i<nplanes; i++)
+              pw.println(U.fwe(dz[i])+" "+U.fwe(xcen[i])+" "+U.fwe(ycen[i])
+                +" "+U.fwe(xrms[i])+" "+U.fwe(yrms[i])+" "+U.fwe(rrms[i]));
+            fw.close();
+        }
+        catch (Exception e)
+        {}
+    }
+
+
+    //---------private methods---------------
+
+    private void doMoments()
+    // The single pass over the traced rays at the final group.
+    {
+        for (int i=0; i<5; i++)
+          Sx[i] = Sy[i] = 0.0;
+        int n = 0;
+        for (int kray=1; kray<=nrays; kray++)
+        {
+            if (!RT13.bGoodRay[kray])
+              continue;
+            double w = RT13.dGetRay(kray, ngroups, RTWL);
+            if (Math.abs(w) < TOL)
+              continue;
+            double x = RT13.dGetRay(kray, ngroups, RTXL);
+            double y = RT13.dGetRay(kray, ngroups, RTYL);
+            double z = RT13.dGetRay(kray, ngroups, RTZL);
+            double bx = RT13.dGetRay(kray, ngroups, RTUL) / w;
+            double by = RT13.dGetRay(kray, ngroups, RTVL) / w;
+            double ax = x - bx*z;
+            double ay = y - by*z;
+            Sx[0] += ax;     Sy[0] += ay;
+            Sx[1] += bx;     Sy[1] += by;
+            Sx[2] += ax*ax;  Sy[2] += ay*ay;
+            Sx[3] += ax*bx;  Sy[3] += ay*by;
+            Sx[4] += bx*bx;  Sy[4] += by*by;
+            n++;
+        }
+        ngood = n;
+        if (n < 1)
+          return;
+        for (int i=0; i<5; i++)
+        {
+            Sx[i] /= n;
+            Sy[i] /= n;
+        }
+        // convert second moments to central moments Vaa, Vab, Vbb
+        Sx[2] -= Sx[0]*Sx[0];  Sy[2] -= Sy[0]*Sy[0];
+        Sx[3] -= Sx[0]*Sx[1];  Sy[3] -= Sy[0]*Sy[1];
+        Sx[4] -= Sx[1]*Sx[1];  Sy[4] -= Sy[1]*Sy[1];
+
+        zbest[0] = getBest(Sx[3], Sx[4]);
+        zbest[1] = getBest(Sy[3], Sy[4]);
+        zbest[2] = getBest(Sx[3]+Sy[3], Sx[4]+Sy[4]);
+        rbest[0] = Math.sqrt(getVar(Sx, zbest[0]));
+        rbest[1] = Math.sqrt(getVar(Sy, zbest[1]));
+        rbest[2] = Math.sqrt(getVar(Sx, zbest[2]) + getVar(Sy, zbest[2]));
+    }
+
+    private double getBest(double vab, double vbb)
+    // Minimum of the variance quadratic; collimated beams stay put.
+    {
+        return (vbb > 0.0) ? -vab/vbb : 0.0;
+    }
+
+    private double getVar(double s[], double d)
+    {
+        return Math.max(0.0, s[2] + 2.0*s[3]*d + s[4]*d*d);
+    }
+
+    private void doParse()
+    // Parses UO fields and sets the defocus range; moments are ready.
+    {
+        bPleaseParseUO = false; // flag in GPanel
+
+        nplanes = U.parseInt(DMF.reg.getuo(UO_FOCUS, 2));
+        nplanes = Math.max(2, Math.min(MAXPLANES, nplanes));
+        for (int i=0; i<3; i++)
+          bShow[i] = "T".equals(DMF.reg.getuo(UO_FOCUS, 3+i));
+
+        String sc = DMF.reg.getuo(UO_FOCUS, 0).trim();
+        zcenter = (sc.length() > 0) ? U.suckDouble(sc) : Double.NaN;
+        bAutoCenter = Double.isNaN(zcenter);
+        if (bAutoCenter)
+          zcenter = zbest[2];
+
+        // Auto span: four times the depth where radial rms doubles.
+        String ss = DMF.reg.getuo(UO_FOCUS, 1).trim();
+        zspan = (ss.length() > 0) ? Math.abs(U.suckDouble(ss)) : 0.0;
+        if (Double.isNaN(zspan) || (zspan < MINSPAN))
+        {
+            double vbb = Sx[4] + Sy[4];
+            double vmin = rbest[2]*rbest[2];
+            zspan = (vbb > 0.0) ? 4.0*Math.sqrt(3.0*vmin/vbb) : 0.0;
+            if (zspan < MINSPAN)
+              zspan = Math.max(MINSPAN, Math.abs(zcenter));
+        }
+
+        int results[] = new int[2];
+        U.ruler(zcenter-0.5*zspan, zcenter+0.5*zspan, false, hticks, results);
+        hnticks = results[NTICKS];
+        hndigits = results[NFRACDIGITS];
+
+        // now set the local scale factors in host GPanel...
+        uxcenter = zcenter;
+        uxspan = EXTRAROOM * zspan;
+    }
+
+    private void doPlanes()
+    // Evaluates every plane from the moments; no retrace.
+    {
+        rmsmax = 0.0;
+        for (int i=0; i<nplanes; i++)
+        {
+            double d = zcenter + zspan*(i/(nplanes-1.0) - 0.5);
+            dz[i] = d;
+            xcen[i] = Sx[0] + Sx[1]*d;
+            ycen[i] = Sy[0] + Sy[1]*d;
+            double vx = getVar(Sx, d);
+            double vy = getVar(Sy, d);
+            xrms[i] = Math.sqrt(vx);
+            yrms[i] = Math.sqrt(vy);
+            rrms[i] = Math.sqrt(vx+vy);
+            if (bShow[0]) rmsmax = Math.max(rmsmax, xrms[i]);
+            if (bShow[1]) rmsmax = Math.max(rmsmax, yrms[i]);
+            if (bShow[2]) rmsmax = Math.max(rmsmax, rrms[i]);
+        }
+        rmsmax = Math.max(MINSPAN, rmsmax);
+
+        int results[] = new int[2];
+        U.ruler(0.0, rmsmax, true, vticks, results);
+        vnticks = results[NTICKS];
+        vndigits = results[NFRACDIGITS];
+        double vtop = vticks[vnticks-1];
+        uycenter = 0.5 * vtop;
+        uyspan = EXTRAROOM * vtop;
+    }
+
+
+
+
+    //--------------ARTWORK-------------------
+    //--------------ARTWORK-------------------
+    //--------------ARTWORK-------------------
+
+    private void add2D(double x, double y, int op)  // local shorthand
+    {
+        addScaled(x, y, 0.0, op, QBASE);   // GPanel service
+    }
+
+    private void addString(String s, double x, double y, double scaledW, int iFontcode)
+    // Writes a string centered at (x,y).
+    {
+        int nchars = s.length();
+        double dmid = 0.5*nchars;
+        for (int k=0; k<nchars; k++)
+        {
+            int ic = (int) s.charAt(k) + iFontcode;
+            add2D(x + scaledW*(k-dmid), y, ic);
+        }
+    }
+
+    private void addCurve(double v[])
+    {
+        add2D(dz[0], v[0], MOVETO);
+        for (int i=1; i<nplanes; i++)
+          add2D(dz[i], v[i], (i < nplanes-1) ? PATHTO : STROKE);
+    }
+
+
+    private void doArt()
+    {
+        int iFontcode = getUOGraphicsFontCode();
+        int iHpoints = iFontcode / 10000;
+        int iWpoints = 1 + iHpoints / 2;
+        double scaledW = iWpoints * uxspan / dUOpixels;
+        double xtick = 0.5 * iWpoints * uxspan / dUOpixels;
+        double ytick = 0.5 * iWpoints * uyspan / dUOpixels;
+        double scaledH = iHpoints * uyspan / dUOpixels;
+        double hyoffset = -scaledH;                 // for horiz scale
+        double vyoffset = -0.4*scaledH;             // for vert scale
+        double vrhgap = 0.2;                        // LowerLeftOrigin
+
+        //------draw the furniture--------
+
+        clearList(QBASE);
+        addRaw(0., 0., 0., SETWHITEBKG, QBASE);      // unscaled
+        addRaw(0., 0., 0., SETCOLOR+BLACK, QBASE);   // unscaled
+        addRaw(1., 0., 0., SETSOLIDLINE, QBASE);     // unscaled
+        addRaw(0., 0., 0., COMMENTRULER, QBASE);     // unscaled
+
+        //----the X ruler at Y=0----
+
+        double yruler = 0.0;
+        add2D(hticks[0], yruler, MOVETO);
+        add2D(hticks[0], yruler+ytick, PATHTO);
+        add2D(hticks[0], yruler, PATHTO);
+        for (int i=1; i<hnticks; i++)
+        {
+            add2D(hticks[i], yruler, PATHTO);
+            add2D(hticks[i], yruler+ytick, PATHTO);
+            int op = (i < hnticks-1) ? PATHTO : STROKE;
+            add2D(hticks[i], yruler, op);
+        }
+        for (int i=0; i<hnticks; i++)
+          addString(U.fwd(hticks[i], 16, hndigits).trim(),
+            hticks[i], yruler+hyoffset, scaledW, iFontcode);
+        addString("defocus", uxcenter, yruler-2.5*scaledH, scaledW, iFontcode);
+
+        //----the V ruler at the left end of the X ruler----
+
+        addRaw(0., 0., 0., COMMENTRULER, QBASE);
+        double xruler = hticks[0];
+        add2D(xruler, vticks[0], MOVETO);
+        add2D(xruler+xtick, vticks[0], PATHTO);
+        add2D(xruler, vticks[0], PATHTO);
+        for (int i=1; i<vnticks; i++)
+        {
+            add2D(xruler, vticks[i],PATHTO);
+            add2D(xruler+xtick, vticks[i], PATHTO);
+            int op = (i < vnticks-1) ? PATHTO : STROKE;
+            add2D(xruler, vticks[i], op);
+        }
+        for (int i=0; i<vnticks; i++)
+        {
+            String s = U.fwd(vticks[i], 16, vndigits).trim();
+            int nchars = s.length();
+            for (int k=0; k<nchars; k++)
+            {
+                int ic = (int) s.charAt(k) + iFontcode;
+                double x = xruler + scaledW*(k-nchars-vrhgap);
+                add2D(x, vticks[i]+vyoffset, ic); // coord = CharCenter.
+            }
+        }
+        String vst = "rms";
+        int vnchars = vst.length();
+        for (int k=0; k<vnchars; k++)
+        {
+            int ic = (int) vst.charAt(k) + iFontcode;
+            double x = xruler + (k-vnchars-4)*scaledW;
+            add2D(x, uycenter, ic);   // coord = CharCenter.
+        }
+
+        //-----the curves: X red, Y blue, radial black------
+
+        addRaw(0., 0., 0., COMMENTDATA, QBASE);
+        if (bShow[0])
+        {
+            addRaw(0., 0., 0., SETCOLOR+RED, QBASE);
+            addCurve(xrms);
+        }
+        if (bShow[1])
+        {
+            addRaw(0., 0., 0., SETCOLOR+BLUE, QBASE);
+            addCurve(yrms);
+        }
+        if (bShow[2])
+        {
+            addRaw(0., 0., 0., SETCOLOR+BLACK, QBASE);
+            addCurve(rrms);
+        }
+
+        //-----best radial focus marker and annotation------
+
+        addRaw(0., 0., 0., COMMENTANNO, QBASE);
+        addRaw(0., 0., 0., SETCOLOR+BLACK, QBASE);
+        double zb = zbest[2];
+        if ((zb >= hticks[0]) && (zb <= hticks[hnticks-1]))
+        {
+            add2D(zb, 0.0, MOVETO);
+            add2D(zb, rbest[2], STROKE);
+        }
+        String sb = "best focus " + U.fwe(zb).trim() + "  rms " + U.fwe(rbest[2]).trim();
+        addString(sb, uxcenter, vticks[vnticks-1] + 2.0*scaledH, scaledW, iFontcode);
+    }  // end of doArt()
+}
@@ -65,6 +65,8 @@ public class GJIF extends BJIF implements B4constants
             case RM_H1D:    myGPanel = new H1DPanel(this); break;
             case RM_H2D:    myGPanel = new H2DPanel(this); break; 
             case RM_MTF:    myGPanel = new MTFPanel(this); break; 
+            case RM_FOCUS:  myGPanel = new FocusPanel(this); break; 
+            case RM_ENERGY: myGPanel = new EnergyPanel(this); break; 
             case RM_DEMO:   myGPanel = new DemoPanel(this); break; 
             default:        U.beep(); return; 
         } 
@@ -31,6 +31,16 @@ import javax.imageio.*;    // PNG, JPEG
   *     protected void doCursor(i,j) to manage the cursor in user space
   *     protected double getStereo()
   *     protected void doSaveData()  to a file, for histograms
+  *
+  * A panel may place one bitmap among its artwork with addRaster(); it is
+  * drawn where its RASTER op falls in the list, scaled and panned like
+  * the vectors, and handed to CAD as one filled rectangle per pixel run.
+  *
+  * Panels that accumulate random rays may also override getBatchMetrics()
+  * and resetBatch() so that Random can stop when their statistics have
+  * converged, 
+  * and the checkpoint trio getCheckpointGroup(), writeCheckpoint(),
+  * readCheckpoint() so that long Random runs survive a restart. 
   * 
   * Extensions needing mouse pan zoom must use AddScaledItem(xyz, opcode)
   * to add a vertex to a drawing and MUST FIRST SET THE AFFINES
@@ -146,6 +156,53 @@ abstract class GPanel extends JPanel implements B4constants, Printable
     abstract double  getStereo(); 
     abstract void    doSaveData(); 
     
+    //---Optional hook for Random's convergence test; see Convergence----
+    
+    double[] getBatchMetrics()
+    // Extensions that accumulate random rays may override this to return
+    // statistics of only those rays added since the previous call,
+    // with a spread (rms) as the last element.  Null means no opinion.
+    {
+        return null; 
+    }
+
+    void resetBatch()
+    // Called by Random as a run starts: forgets rays added before it,
+    // so the first batch holds only the run's own random rays.
+    {
+    }
+
+    //---Optional hooks for Random checkpoints; see Checkpoint----------
+
+    int getCheckpointGroup()
+    // UO group whose options define this panel's accumulation, or -1 if
+    // the panel has nothing worth saving.
+    {
+        return -1; 
+    }
+
+    void writeCheckpoint(DataOutputStream dos) throws IOException
+    {
+    }
+
+    boolean readCheckpoint(DataInputStream dis) throws IOException
+    // Returns false if the saved data do not fit the present parse.
+    {
+        return false; 
+    }
+
+    //---Benchmark hook: renders the base list without a window; see Bench----
+
+    void renderOffscreen(BufferedImage bi)
+    {
+        dim = new Dimension(bi.getWidth(), bi.getHeight()); 
+        imid = dim.width / 2; 
+        jmid = dim.height / 2; 
+        Graphics2D g2 = bi.createGraphics(); 
+        renderList(baseList, g2, 0.0, true); 
+        g2.dispose(); 
+    }
+    
     //----QuadLists available internally for assembling artwork----------------
     //---client users will call these using QBASE, QBATCH etc------------------
     
@@ -154,6 +211,8 @@ abstract class GPanel extends JPanel implements B4constants, Printable
     private ArrayList<XYZO> randList;    // vector art for accumulated random rays
     private ArrayList<XYZO> finishList;  // vector art finishing Layouts
     private ArrayList<XYZO> annoList;    // vector art for annotation
+    private BufferedImage raster = null; // see addRaster()
+    private double rasterBox[] = new double[4];  // scaled left, bottom, right, top
     
     //--------Constructor---------------------
 
@@ -276,7 +335,7 @@ abstract class GPanel extends JPanel implements B4constants, Printable
            return; 
         }
         boolean bPortrait = "T".equals(DMF.reg.getuo(UO_CAD, 10)); 
-        CAD.doCAD(style, bPortrait, baseList, randList, finishList, annoList); 
+        CAD.doCAD(style, bPortrait, getRasterCells(baseList), randList, finishList, annoList); 
     }
     
 
@@ -358,6 +417,20 @@ abstract class GPanel extends JPanel implements B4constants, Printable
         addScaled(xyz, op, which); 
     }
 
+    protected void addRaster(BufferedImage bi, double x0, double y0, 
+                             double x1, double y1, int which)
+    // Places bi with its lower left corner at user (x0,y0) and its upper
+    // right at (x1,y1).  Only one raster per panel; it is kept by reference
+    // so its pixels may be changed in place before the next redraw.
+    {
+        raster = bi; 
+        rasterBox[0] = getax(x0); 
+        rasterBox[1] = getay(y0); 
+        rasterBox[2] = getax(x1); 
+        rasterBox[3] = getay(y1); 
+        addRaw(0., 0., 0., RASTER, which); 
+    }
+
     
 
     //--------------private & client support area-----------
@@ -414,6 +487,7 @@ abstract class GPanel extends JPanel implements B4constants, Printable
             g2Tech = (Graphics2D) biTech.getGraphics();
             setGraphicSmoothing(g2Tech);
 
+            long t0 = TraceStats.begin(); 
             doTechList(bArtStatus); // locally stashed bArtStatus             
             double dStereo = getStereo(); 
             
@@ -427,6 +501,7 @@ abstract class GPanel extends JPanel implements B4constants, Printable
                 renderListTwice(baseList, biTech, dStereo, true);  
                 renderListTwice(finishList, biTech, dStereo, true); 
             }
+            TraceStats.end(TraceStats.EV_REDRAW, t0); 
         }
 
         //----all artwork------------
@@ -596,6 +671,22 @@ abstract class GPanel extends JPanel implements B4constants, Printable
     }
 
 
+    protected double getPreviewTol()
+    // Length tolerance for display-only random rays, in user units: 
+    // the UO_PREVIEW fraction of one pixel at the current zoom, or
+    // zero for full precision.  See RT13.bRunPreviewRay(). 
+    {
+        final double MAXFRAC = 0.1;   // beyond this a cloud visibly blurs
+        if (!"T".equals(DMF.reg.getuo(UO_PREVIEW, 0)))
+          return 0.0; 
+        double f = U.suckDouble(DMF.reg.getuo(UO_PREVIEW, 1)); 
+        if (Double.isNaN(f) || (f <= 0.0))
+          return 0.0; 
+        double pixel = Math.min(Math.abs(uxspan), Math.abs(uyspan)) / dUOpixels; 
+        return Math.min(f, MAXFRAC) * pixel; 
+    }
+
+
     protected double getux(double ax)
     // converts annoX to userX
     {
@@ -1211,6 +1302,63 @@ abstract class GPanel extends JPanel implements B4constants, Printable
 
 
 
+    private void renderRaster(Graphics2D gX)
+    // Nearest pixel, so each bin stays a sharp rectangle when zoomed.
+    {
+        if (raster == null)
+          return; 
+        int i0 = getIXPIX(rasterBox[0]); 
+        int i1 = getIXPIX(rasterBox[2]); 
+        int j0 = getIYPIX(rasterBox[3]);    // top
+        int j1 = getIYPIX(rasterBox[1]); 
+        gX.setRenderingHint(RenderingHints.KEY_INTERPOLATION, 
+                            RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR); 
+        gX.drawImage(raster, i0, j0, i1-i0, j1-j0, null); 
+    }
+
+
+    private ArrayList<XYZO> getRasterCells(ArrayList<XYZO> aList)
+    // For CAD: aList with its RASTER op replaced by filled rectangles,
+    // one per run of same colored pixels along each image row. 
+    {
+        int t0 = -1; 
+        for (int t=0; t<aList.size(); t++)
+          if (aList.get(t).getO() == RASTER)
+            t0 = t; 
+        if ((raster == null) || (t0 < 0))
+          return aList; 
+        ArrayList<XYZO> cList = new ArrayList<XYZO>(aList.subList(0, t0)); 
+        int w = raster.getWidth(); 
+        int h = raster.getHeight(); 
+        double dx = (rasterBox[2] - rasterBox[0])/w; 
+        double dy = (rasterBox[3] - rasterBox[1])/h; 
+        for (int j=0; j<h; j++)
+        {
+            double y = rasterBox[3] - j*dy;       // row 0 at top
+            int i = 0; 
+            while (i < w)
+            {
+                int rgb = raster.getRGB(i, j); 
+                int k = i+1; 
+                while ((k < w) && (raster.getRGB(k, j) == rgb))
+                  k++; 
+                double x = rasterBox[0] + i*dx; 
+                double x1 = rasterBox[0] + k*dx; 
+                cList.add(new XYZO(((rgb >> 16) & 255)/255.0, ((rgb >> 8) & 255)/255.0, 
+                                   (rgb & 255)/255.0, SETRGB)); 
+                cList.add(new XYZO(x,  y,    0.0, MOVETO)); 
+                cList.add(new XYZO(x1, y,    0.0, PATHTO)); 
+                cList.add(new XYZO(x1, y-dy, 0.0, PATHTO)); 
+                cList.add(new XYZO(x,  y-dy, 0.0, PATHTO)); 
+                cList.add(new XYZO(x,  y,    0.0, FILL)); 
+                i = k; 
+            }
+        }
+        cList.addAll(aList.subList(t0+1, aList.size())); 
+        return cList; 
+    }
+
+
     private void renderList(ArrayList<XYZO> aList, Graphics2D gX, 
                             double dStereo, boolean bPreClear)
     // Renders a given List onto a given Graphics2D.
@@ -1319,6 +1467,10 @@ abstract class GPanel extends JPanel implements B4constants, Printable
                      BasicStroke.JOIN_ROUND, fline+2.0f, fdash, 0.0f));
                   break; 
                   
+               case RASTER:
+                  renderRaster(gX); 
+                  break; 
+
                case SETRGB:
                   int r = (int) Math.round(255.0 * U.minmax(x, 0, 1)); 
                   int g = (int) Math.round(255.0 * U.minmax(y, 0, 1)); 
@@ -0,0 +1,262 @@
+package com.stellarsoftware.beam;
+
+import java.awt.*;         // Font
+import java.util.*;        // ArrayList, Collections
+import java.util.concurrent.*;  // ExecutorService
+import javax.swing.*;      // JOptionPane, JTextArea
+
+/** Ghost.java
+  *
+  *  Two-bounce ghost analysis.  Enumerates every reflection pair (i,j)
+  *  with i<j: the ray travels forward to surface j, reflects back to
+  *  surface i, reflects forward again, and continues to the final
+  *  surface.  Each path is traced by RT13.iTraceGhost() which reuses
+  *  the RT13 interceptors, diameter tests and redirectors, with the
+  *  two ghost reflections forced.
+  *
+  *  Pruning, cheapest first:
+  *    -- pairs whose surfaces are not refracting lenses are skipped;
+  *    -- pairs crossing surface types a ghost cannot retrace are skipped;
+  *    -- pairs whose normal-incidence Fresnel product is below the
+  *       minimum ghost energy are skipped without tracing;
+  *    -- each ray stops as soon as it leaves an aperture or its
+  *       energy falls below the minimum.
+  *  Surviving pairs are traced in parallel, one task per pair.
+  *
+  *  Ghosts are ranked by irradiance at the final surface relative to
+  *  the primary image: energy fraction over the area of the rms spot.
+  *
+  *  Like InOut this is a task, not a panel: it runs once and reports.
+  *
+  *  (c) 2015 STELLAR SOFTWARE all rights reserved.
+  */
+class Ghost implements B4constants
+{
+    private OEJIF optEditor = null;
+    private int nsurfs=0, nrays=0, ngood=0;
+    private double minEnergy = 1E-6;
+    private int nlist = 20;
+    private double rmsPrimary = 0.0, rFloor = 0.0;
+
+
+    public Ghost()  // constructor; performs the entire task.
+    {
+        optEditor = DMF.oejif;
+        nsurfs = DMF.giFlags[ONSURFS];
+        nrays = DMF.giFlags[RNRAYS];
+        if (DMF.giFlags[ONGROUPS] != nsurfs)
+        {
+            JOptionPane.showMessageDialog(optEditor, "Ghosts: ungrouped optics only");
+            return;
+        }
+        ngood = RT13.iBuildRays(true);
+        if (ngood < 1)
+        {
+            JOptionPane.showMessageDialog(optEditor, "Ghosts: no good rays");
+            return;
+        }
+
+        minEnergy = U.suckDouble(DMF.reg.getuo(UO_GHOST, 0));
+        if (Double.isNaN(minEnergy) || (minEnergy < 0.0))
+          minEnergy = 0.0;
+        nlist = Math.max(1, U.parseInt(DMF.reg.getuo(UO_GHOST, 1)));
+
+        doPrimary();
+
+        //-----enumerate and prune the reflection pairs------
+
+        int npairs=0, nlens=0, nskip=0, nweak=0;
+        ArrayList<GhostTask> tasks = new ArrayList<GhostTask>();
+        for (int jj=2; jj<=nsurfs; jj++)
+          for (int ji=1; ji<jj; ji++)
+          {
+              npairs++;
+              double ri = getNormalReflectance(ji);
+              double rj = getNormalReflectance(jj);
+              if ((ri <= 0.0) || (rj <= 0.0))
+              {
+                  nlens++;
+                  continue;
+              }
+              if (!bPathOK(ji))
+              {
+                  nskip++;
+                  continue;
+              }
+              if (ri*rj < minEnergy)
+              {
+                  nweak++;
+                  continue;
+              }
+              tasks.add(new GhostTask(ji, jj));
+          }
+
+        //-----trace the survivors in parallel--------
+
+        ArrayList<double[]> results = new ArrayList<double[]>();
+        if (tasks.size() > 0)
+        {
+            int nthreads = Runtime.getRuntime().availableProcessors();
+            nthreads = Math.max(1, Math.min(tasks.size(), nthreads));
+            ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+            try
+            {
+                java.util.List<Future<double[]>> futures = pool.invokeAll(tasks);
+                for (int i=0; i<futures.size(); i++)
+                {
+                    double r[] = futures.get(i).get();
+                    if (r[NLAND] > 0)
+                      results.add(r);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException e)
+            {
+                JOptionPane.showMessageDialog(optEditor, "Ghosts: "+e.getCause());
+                return;
+            }
+            finally
+            {
+                pool.shutdown();
+            }
+        }
+
+        Collections.sort(results, new Comparator<double[]>()
+        {
+            public int compare(double a[], double b[])
+            {
+                return Double.compare(b[IRRAD], a[IRRAD]);  // brightest first
+            }
+        });
+
+        //-----report-------------
+
+        StringBuffer sb = new StringBuffer();
+        sb.append("Pairs = "+npairs+"   not refracting = "+nlens
+                 +"   unsupported = "+nskip+"   too weak = "+nweak+'\n');
+        sb.append("Traced = "+tasks.size()+"   reaching final surface = "+results.size()
+                 +"   good rays = "+ngood+'\n');
+        sb.append("Primary rms radius = "+U.fwe(rmsPrimary)+'\n'+'\n');
+        sb.append("rank  i   j  nrays      energy        Xcen        Ycen     rms rad   irradiance"+'\n');
+        for (int n=0; (n<results.size()) && (n<nlist); n++)
+        {
+            double r[] = results.get(n);
+            sb.append(U.fwi(n+1,4) + U.fwi((int) r[JI],4) + U.fwi((int) r[JJ],4)
+                     + U.fwi((int) r[NLAND],7) + U.fwe(r[ENERGY]) + U.fwe(r[XCEN])
+                     + U.fwe(r[YCEN]) + U.fwe(r[RMS]) + U.fwe(r[IRRAD]) + '\n');
+        }
+
+        JTextArea ta = new JTextArea(sb.toString(), Math.min(30, 6+nlist), 82);
+        ta.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        ta.setEditable(false);
+        JOptionPane.showMessageDialog(optEditor, new JScrollPane(ta),
+          "Ghosts ranked by relative irradiance", JOptionPane.PLAIN_MESSAGE);
+    }
+
+
+    //-----result array indices---------
+
+    static final int JI=0, JJ=1, NLAND=2, ENERGY=3, XCEN=4, YCEN=5, RMS=6, IRRAD=7, NRESULTS=8;
+
+
+    private class GhostTask implements Callable<double[]>
+    // One reflection pair; touches only RT13 tables and local arrays.
+    {
+        int ji, jj;
+
+        GhostTask(int i, int j)
+        {
+            ji = i;
+            jj = j;
+        }
+
+        public double[] call()
+        {
+            double r[] = new double[NRESULTS];
+            r[JI] = ji;
+            r[JJ] = jj;
+            double out[] = new double[3];
+            double se=0, sx=0, sy=0, sxx=0, syy=0;
+            int n = 0;
+            for (int k=1; k<=nrays; k++)
+            {
+                // sequential prefix must reach surface jj-1
+                if (!RT13.bGoodRay[k] && (RT13.getHowfarLoop(k) < jj))
+                  continue;
+                if (RROK != RT13.iTraceGhost(k, ji, jj, minEnergy, out))
+                  continue;
+                double e = out[2];
+                se += e;
+                sx += e*out[0];
+                sy += e*out[1];
+                sxx += e*out[0]*out[0];
+                syy += e*out[1]*out[1];
+                n++;
+            }
+            r[NLAND] = n;
+            if ((n < 1) || (se <= 0.0))
+              return r;
+            r[ENERGY] = se/ngood;
+            r[XCEN] = sx/se;
+            r[YCEN] = sy/se;
+            double var = sxx/se - r[XCEN]*r[XCEN] + syy/se - r[YCEN]*r[YCEN];
+            r[RMS] = Math.sqrt(Math.max(0.0, var));
+            double rg = Math.max(rFloor, r[RMS]);
+            double rp = Math.max(rFloor, rmsPrimary);
+            r[IRRAD] = r[ENERGY] * (rp*rp) / (rg*rg);
+            return r;
+        }
+    }
+
+
+    private void doPrimary()
+    // rms radius of the ordinary image on the final surface.
+    {
+        double sx=0, sy=0, sxx=0, syy=0;
+        for (int k=1; k<=nrays; k++)
+          if (RT13.bGoodRay[k])
+          {
+              double x = RT13.dGetRay(k, nsurfs, RTXL);
+              double y = RT13.dGetRay(k, nsurfs, RTYL);
+              sx += x;
+              sy += y;
+              sxx += x*x;
+              syy += y*y;
+          }
+        sx /= ngood;
+        sy /= ngood;
+        rmsPrimary = Math.sqrt(Math.max(0.0, sxx/ngood - sx*sx + syy/ngood - sy*sy));
+        rFloor = Math.max(1E-3*rmsPrimary, 1E-6*DMF.getOsize());
+        if (rFloor <= 0.0)
+          rFloor = TOL;
+    }
+
+
+    private double getNormalReflectance(int j)
+    // Fresnel reflectance at normal incidence; zero for non-lenses.
+    {
+        if (OTLENS != RT13.surfs[j][OTYPE])
+          return 0.0;
+        int kray = RT13.getGuideRay();
+        if (kray < 1)
+          kray = 1;
+        return RT13.dGetFresnel(0.0, RT13.getRefraction(j, kray),
+                                     RT13.getRefraction(j+1, kray));
+    }
+
+
+    private boolean bPathOK(int ji)
+    // Surfaces after ji are all retraced; see RT13.iTraceGhost().
+    {
+        for (int j=ji+1; j<nsurfs; j++)
+        {
+            int type = (int) RT13.surfs[j][OTYPE];
+            if ((type!=OTLENS) && (type!=OTMIRROR) && (type!=OTIRIS) && (type!=OTDISTORT))
+              return false;
+        }
+        return true;
+    }
+}
@@ -56,7 +56,8 @@ public class H1DPanel extends GPanel
     final double EXTRAROOM = 2.0;  // windowsize / plotbox
     final double EXTRASPAN = 1.5;  // plotwidth / datarange
     final double MINSPAN = 1E-8; 
-    final int MAXBINS = 1025; 
+    final int MAXBINS = 8193;          // display bins; see Distribution
+    final double FINEDIV = 1048576.0;  // finest resolution = hspan/FINEDIV
 
     private double histopeak = 1.0; 
     private double histotop = 1.0; 
@@ -66,15 +67,23 @@ public class H1DPanel extends GPanel
     private int nbins = 0;            // used for digitizing each ray 
 
     private int CADstyle=0;
-    private int histo[] = new int[MAXBINS]; 
+    private int histo[] = new int[MAXBINS];     // snapshot of bins
+    private HistoBins bins = new HistoBins(MAXBINS); 
     private int vnticks, vndigits; 
     private double vticks[] = new double[10];
     private String hst; 
      
     private double sum = 0.0; 
     private int    count = 0; 
+    private long   nout = 0;               // rays outside hmin...hmax
+    private Distribution dist = null;      // every ray, any range
+    private long   distKey = 0;            // content of dist's rays
+    private RayOTF rays = null;            // sums over rays, for direct MTF
     private boolean bShowAverage = true; 
 
+    private double bsum = 0.0, bsumsq = 0.0;  // batch sums for Random
+    private int    bcount = 0; 
+
 
     public H1DPanel(GJIF gj) // the constructor
     // Called by GJIF to begin a new P1D panel.
@@ -140,11 +149,74 @@ public class H1DPanel extends GPanel
         if (RT13.bRunRandomRay())
         {
            addRayToHisto(0); 
+           while (RT13.bNextRandomImage())   // reduced pupil; see Symmetry
+             addRayToHisto(0); 
            return true; 
         }
         return false; 
     } 
 
+    double[] getBatchMetrics()  // overrides GPanel hook for Random
+    // Returns {mean, rms} of this batch of histogrammed rays.
+    {
+        if (bcount < 2)
+          return null; 
+        double mean = bsum/bcount; 
+        double rms = Math.sqrt(Math.max(0.0, bsumsq/bcount - mean*mean)); 
+        resetBatch(); 
+        return new double[] {mean, rms}; 
+    }
+
+    void resetBatch()           // overrides GPanel hook for Random
+    {
+        bsum = bsumsq = 0.0; 
+        bcount = 0; 
+    }
+
+    int getCheckpointGroup()    // overrides GPanel hook for Random
+    {
+        return UO_1D; 
+    }
+
+    void writeCheckpoint(DataOutputStream dos) throws IOException
+    {
+        dos.writeUTF(hst); 
+        dos.writeInt(nbins); 
+        dos.writeDouble(hmin); 
+        dos.writeDouble(hmax); 
+        dos.writeInt(count); 
+        dos.writeDouble(sum); 
+        int counts[] = new int[MAXBINS]; 
+        bins.merge(counts); 
+        for (int i=0; i<nbins; i++)
+          dos.writeInt(counts[i]); 
+        dos.writeLong(nout); 
+        dist.write(dos); 
+    }
+
+    boolean readCheckpoint(DataInputStream dis) throws IOException
+    // Accepts saved bins only if they match the present parse.
+    {
+        if (!hst.equals(dis.readUTF()))
+          return false; 
+        if ((dis.readInt() != nbins) || (dis.readDouble() != hmin) || (dis.readDouble() != hmax))
+          return false; 
+        int c = dis.readInt(); 
+        double s = dis.readDouble(); 
+        int counts[] = new int[MAXBINS]; 
+        for (int i=0; i<nbins; i++)
+          counts[i] = dis.readInt(); 
+        long n = dis.readLong(); 
+        Distribution d = Distribution.read(dis); 
+        count = c;
+        sum = s; 
+        nout = n; 
+        dist = d; 
+        bins.load(counts); 
+        setVertScale(); 
+        return true; 
+    }
+
     protected void doCursor(int ix, int iy)  // replaces abstract method
     // delivers current cursor coordinates
     {
@@ -180,6 +252,7 @@ public class H1DPanel extends GPanel
         {
             fw = new FileWriter(file);
             pw = new PrintWriter(fw);
+            setVertScale();                // latest counts
             for (int i=0; i<nbins; i++)
               pw.println(histo[i]); 
             fw.close();
@@ -198,6 +271,7 @@ public class H1DPanel extends GPanel
         {
             fw = new FileWriter(file);
             pw = new PrintWriter(fw);
+            setVertScale();                // latest counts
             for (int i=0; i<nbins; i++)
               pw.println(histo[i]); 
             fw.close();
@@ -337,10 +411,30 @@ public class H1DPanel extends GPanel
         uyspan = EXTRAROOM; // around the plotbox
 
         //---finally compute the table-ray histogram------
+        //---or, same trace as before, re-bin all its rays----
 
-        for (int i=0; i<MAXBINS; i++)
-          histo[i] = 0; 
-
+        long key = Checkpoint.getContentHash(new int[] {UO_RAND, UO_DEF}); 
+        key = Checkpoint.mix(key, hst.hashCode()); 
+        bins.clear(); 
+        if ((dist != null) && (key == distKey))
+        {
+            double fine[] = new double[nbins]; 
+            nout = dist.rebin(hmin, hmax, fine); 
+            int counts[] = new int[MAXBINS]; 
+            for (int i=0; i<nbins; i++)
+              counts[i] = (int) Math.round(fine[i]); 
+            bins.load(counts); 
+            count = (int) dist.getCount(); 
+            sum = dist.getSum(); 
+            getRayOTF();    // starts over if Options:MTF has changed
+            return; 
+        }
+        dist = new Distribution(hmid, hspan/FINEDIV); 
+        distKey = key; 
+        rays = RayOTF.create(hspan, false); 
+        count = 0; 
+        sum = 0.0; 
+        nout = 0; 
         for (int kray=1; kray<=nrays; kray++)
           if (RT13.bGoodRay[kray])
             addRayToHisto(kray); 
@@ -487,6 +581,8 @@ public class H1DPanel extends GPanel
         {
             double average = sum/count; 
             String sAverage = "avg=" +U.fwd(average,12,6).trim()+" n="+count; 
+            if (nout > 0)
+              sAverage += " out="+nout; 
             int nchar = sAverage.length(); 
             for (int k=0; k<nchar; k++)
             {
@@ -511,7 +607,31 @@ public class H1DPanel extends GPanel
 
     public int getHisto(int i)    // for MTF
     {
-        return ((i>=0) && (i<nbins)) ? histo[i] : 0;
+        return ((i>=0) && (i<nbins)) ? bins.getCount(i) : 0;
+    }
+
+    public double getHistoMin()   // for MTF
+    {
+        return hmin; 
+    }
+
+    Distribution getDistribution()  // for MTF; every ray so far
+    {
+        return dist; 
+    }
+
+    RayOTF getRayOTF()   // for MTF; null unless Options:MTF direct
+    // Starts over from the table rays if Options:MTF has changed.
+    {
+        if (!RayOTF.isCurrent(rays, hspan, false))
+        {
+            rays = RayOTF.create(hspan, false); 
+            if (rays != null)
+              for (int kray=1; kray<=nrays; kray++)
+                if (RT13.bGoodRay[kray])
+                  rays.add(RT13.dGetRay(kray, hsurf, hattr)); 
+        }
+        return rays; 
     }
 
 
@@ -520,19 +640,25 @@ public class H1DPanel extends GPanel
         double h = RT13.dGetRay(kray, hsurf, hattr); 
         int ih = (int) Math.floor(nbins*(h-hmin)/(hmax-hmin)); 
         if ((ih>=0) && (ih<nbins))
-          histo[ih]++; 
+          bins.add(ih); 
+        else
+          nout++; 
+        dist.add(h); 
+        if (rays != null)
+          rays.add(h); 
         sum += h; 
         count++; 
+        bsum += h; 
+        bsumsq += h*h; 
+        bcount++; 
     }
 
 
     private void setVertScale()
-    // Frequent rescalings as histo builds up.
+    // Rescales at each redraw as histo builds up, 
+    // merging the bins into histo[] and finding the peak.
     {
-        histopeak = 10.0; // never zero!
-        for (int i=0; i<nbins; i++)
-          if (histopeak < histo[i])
-            histopeak = histo[i];
+        histopeak = Math.max(10.0, bins.merge(histo)); // never zero!
         int results[] = new int[2]; 
         U.ruler(0, histopeak, true, vticks, results); 
         vnticks = results[0];
@@ -2,6 +2,7 @@ package com.stellarsoftware.beam;
 
 import javax.swing.*;      // Graphics2D; JFileChooser
 import java.io.*;          // Save Data
+import java.awt.image.*;   // BufferedImage for the heat map
 
 @SuppressWarnings("serial")
 
@@ -18,6 +19,13 @@ import java.io.*;          // Save Data
   * 
   * Converted to QBASE, March 2015, line 655. 
   *
+  * Heat map: above MAX2DBINS bins on an axis, or when Options asks, the
+  * bins are seen from straight above as one raster image, one pixel per
+  * bin, colored through a thermometer LUT, linear or log in the count. 
+  * The image persists between redraws: only bins whose counts changed
+  * since the last one are repainted, unless the count scale moved. 
+  * Optional contour lines are traced through the bin centers. 
+  *
   * @author M.Lampton (c) STELLAR SOFTWARE 2004-2015 all rights reserved.
   */
 public class H2DPanel extends GPanel
@@ -29,7 +37,11 @@ public class H2DPanel extends GPanel
     final double EXTRAROOM = 2.0;  
     final double EXTRASPAN = 1.2; 
     final double MINSPAN = 1E-8; 
-    final int    MAX2DBINS = 100; 
+    final int    MAX2DBINS = 100;   // 3D bars
+    final int    MAXHEATBINS = 512; 
+    final int    MAXCONTOURS = 20; 
+    final int    NLUT = 256;        // heat map colors
+    final int    NLEGEND = 64;      // heat map color bar steps
 
     private double hmin=0, hmax=0, vmin=0, vmax=0;
     private double hmid=0, hspan=1, vmid=0, vspan=1; 
@@ -43,7 +55,10 @@ public class H2DPanel extends GPanel
     private double az, cosaz=1, sinaz=0; 
     private double el, cosel=1, sinel=0; 
 
-    private int histo[][]; 
+    private int histo[][];                  // snapshot of bins
+    private HistoBins bins = new HistoBins(1); 
+    private OTF2D otf = null;               // cached for MTFPanel
+    private RayOTF rays = null;             // sums over rays, for direct MTF
     private int nhbins, nvbins; 
     private double dhisto[][]; 
     private int nhticks, nhdigits;
@@ -60,6 +75,16 @@ public class H2DPanel extends GPanel
     private String hst, vst; 
     private boolean whitebkg, bOrch, bStereo; 
 
+    private boolean bHeat, bLog;             // heat map options
+    private int ncontours = 0; 
+    private BufferedImage heat = null;       // one pixel per bin
+    private int heatCounts[] = null;         // counts last painted
+    private double heatScale = 0.0;          // zmax last painted
+    private int lut[] = new int[NLUT];       // RGB thermometer
+
+    private double bh=0, bv=0, bhh=0, bvv=0;  // batch sums for Random
+    private int    bcount = 0; 
+
 
 
     public H2DPanel(GJIF gj)
@@ -104,11 +129,16 @@ public class H2DPanel extends GPanel
             npRays = nrays; 
         } 
 
-        doArt();             // allow random
+        if (bHeat)
+          doArtHeat(); 
+        else
+          doArt();             // allow random
     }
 
     void doRotate(int i, int j) // replaces abstract "doXX" method
     {
+        if (bHeat)           // always seen from above
+          return; 
         double daz = i/3; 
         az += daz; 
         cosaz = U.cosd(az); 
@@ -124,11 +154,71 @@ public class H2DPanel extends GPanel
         if (RT13.bRunRandomRay())
         {
            addRayToHisto(0); 
+           while (RT13.bNextRandomImage())   // reduced pupil; see Symmetry
+             addRayToHisto(0); 
            return true; 
         }
         return false; 
     } 
 
+    double[] getBatchMetrics()  // overrides GPanel hook for Random
+    // Returns {hcentroid, vcentroid, rms radius} of this batch of rays.
+    {
+        if (bcount < 2)
+          return null; 
+        double hc = bh/bcount; 
+        double vc = bv/bcount; 
+        double var = bhh/bcount - hc*hc + bvv/bcount - vc*vc; 
+        resetBatch(); 
+        return new double[] {hc, vc, Math.sqrt(Math.max(0.0, var))}; 
+    }
+
+    void resetBatch()           // overrides GPanel hook for Random
+    {
+        bh = bv = bhh = bvv = 0.0; 
+        bcount = 0; 
+    }
+
+    int getCheckpointGroup()    // overrides GPanel hook for Random
+    {
+        return UO_2D; 
+    }
+
+    void writeCheckpoint(DataOutputStream dos) throws IOException
+    {
+        dos.writeUTF(hst); 
+        dos.writeUTF(vst); 
+        dos.writeInt(nhbins); 
+        dos.writeInt(nvbins); 
+        dos.writeDouble(hmin); 
+        dos.writeDouble(hmax); 
+        dos.writeDouble(vmin); 
+        dos.writeDouble(vmax); 
+        int counts[] = new int[nhbins*nvbins]; 
+        bins.merge(counts); 
+        for (int i=0; i<nhbins*nvbins; i++)
+          dos.writeInt(counts[i]); 
+    }
+
+    boolean readCheckpoint(DataInputStream dis) throws IOException
+    // Accepts saved bins only if they match the present parse.
+    {
+        if (!hst.equals(dis.readUTF()) || !vst.equals(dis.readUTF()))
+          return false; 
+        if ((dis.readInt() != nhbins) || (dis.readInt() != nvbins))
+          return false; 
+        if ((dis.readDouble() != hmin) || (dis.readDouble() != hmax))
+          return false; 
+        if ((dis.readDouble() != vmin) || (dis.readDouble() != vmax))
+          return false; 
+        int counts[] = new int[nhbins*nvbins]; 
+        for (int i=0; i<nhbins*nvbins; i++)
+          counts[i] = dis.readInt(); 
+        bins.load(counts); 
+        fitUnitHeight(); 
+        return true; 
+    }
+
     protected void doCursor(int ix, int iy)  // replaces abstract method
     // delivers current cursor coordinates
     {
@@ -138,7 +228,7 @@ public class H2DPanel extends GPanel
     protected double getStereo()    // replaces abstract "get" method
     {
         double d = 0.0; 
-        boolean bS = "T".equals(DMF.reg.getuo(UO_2D, 17));
+        boolean bS = "T".equals(DMF.reg.getuo(UO_2D, 17)) && !bHeat;
         if (bS)
         {
             String ss = DMF.reg.getuo(UO_2D, 18); 
@@ -173,6 +263,7 @@ public class H2DPanel extends GPanel
         {
             fw = new FileWriter(file);
             pw = new PrintWriter(fw);
+            fitUnitHeight();               // latest counts
             for (int j=0; j<nvbins; j++)
             {
                 for (int i=0; i<nhbins-1; i++)
@@ -234,13 +325,24 @@ public class H2DPanel extends GPanel
         vattr = RT13.getAttrNum(vop); 
 
         nhbins = U.parseInt(DMF.reg.getuo(UO_2D, 4));  
-        nhbins = Math.max(2, Math.min(MAX2DBINS, nhbins)); 
         nvbins = U.parseInt(DMF.reg.getuo(UO_2D, 5)); 
-        nvbins = Math.max(2, Math.min(MAX2DBINS, nvbins));
+        String sHeat = DMF.reg.getuo(UO_2D, 19).trim(); 
+        if (sHeat.length() > 0)
+          bHeat = "T".equals(sHeat); 
+        else
+          bHeat = (nhbins > MAX2DBINS) || (nvbins > MAX2DBINS); 
+        int nmax = bHeat ? MAXHEATBINS : MAX2DBINS; 
+        nhbins = Math.max(2, Math.min(nmax, nhbins)); 
+        nvbins = Math.max(2, Math.min(nmax, nvbins));
+        bLog = "T".equals(DMF.reg.getuo(UO_2D, 20)); 
+        ncontours = U.parseInt(DMF.reg.getuo(UO_2D, 21)); 
+        ncontours = Math.max(0, Math.min(MAXCONTOURS, ncontours)); 
+        heat = null;         // repaint every bin
 
         CADstyle = 0;  
         histo = new int[nhbins][nvbins]; 
         dhisto = new double[nhbins][nvbins]; 
+        bins = new HistoBins(nhbins*nvbins); 
 
         uxcenter = 0.0;     // Unit cube
         uxspan = EXTRAROOM; // Unit cube
@@ -383,9 +485,8 @@ public class H2DPanel extends GPanel
         //---all done scaling data to histogram---------------
         //---Finally compute the table-ray histogram--------
 
-        for (int i=0; i<nhbins; i++)
-          for (int j=0; j<nvbins; j++)
-            histo[i][j] = 0; 
+        bins.clear(); 
+        rays = RayOTF.create(getHistoSpan(), true); 
         for (int kray=1; kray<=nrays; kray++)
           if (RT13.bGoodRay[kray])
             addRayToHisto(kray); 
@@ -435,6 +536,11 @@ public class H2DPanel extends GPanel
 
     private void doArt()
     {
+        fitUnitHeight();     // merges the random rays added since last art
+        cosaz = U.cosd(az);  // doArtHeat() may have looked straight down
+        sinaz = U.sind(az); 
+        cosel = U.cosd(el); 
+        sinel = U.sind(el); 
         ngroups = DMF.giFlags[ONGROUPS];
         nrays = DMF.giFlags[RNRAYS];
         double xyz[] = new double[3]; 
@@ -596,36 +702,274 @@ public class H2DPanel extends GPanel
 
 
 
+    private void doArtHeat()
+    // Plan view: the heat map raster, its frame and corner labels,
+    // contours, and a color bar at the right. 
+    {
+        fitUnitHeight();     // merges the random rays added since last art
+        cosaz = 1.0;         // straight down, for the 3D string methods
+        sinaz = 0.0; 
+        cosel = 0.0; 
+        sinel = 1.0; 
+
+        int iFontcode = getUOGraphicsFontCode();  
+        int iWpoints = 1 + (iFontcode / 10000) / 2;   
+        double xtick = 0.5 * iWpoints * uxspan / dUOpixels; 
+        double ytick = 0.5 * iWpoints * uyspan / dUOpixels;  
+
+        whitebkg = "T".equals(DMF.reg.getuo(UO_2D, 15));
+        int fore = whitebkg ? BLACK : WHITE; 
+        clearList(QBASE);  
+        addRaw(0., 0., 0., (whitebkg ? SETWHITEBKG : SETBLACKBKG), QBASE);
+        addRaw(0., 0., 0., SETCOLOR+fore, QBASE); 
+        addRaw(1., 0., 0., SETSOLIDLINE, QBASE); 
+        addRaw(0., 0., 0., COMMENTRULER, QBASE); 
+        addAffines(); 
+
+        paintHeat(); 
+        addRaster(heat, -0.5, -0.5, +0.5, +0.5, QBASE); 
+
+        addRaw(0., 0., 0., SETCOLOR+fore, QBASE); 
+        add3Dview(-0.5, -0.5, -0.5, MOVETO);
+        add3Dview(+0.5, -0.5, -0.5, PATHTO);
+        add3Dview(+0.5, +0.5, -0.5, PATHTO);
+        add3Dview(-0.5, +0.5, -0.5, PATHTO);
+        add3Dview(-0.5, -0.5, -0.5, STROKE);
+
+        int extra = 4; 
+        double yy = -0.5 - extra*ytick; 
+        addStringCenter(-0.5, yy, -0.5, shmin); 
+        addStringCenter(+0.5, yy, -0.5, shmax); 
+        double xx = -0.5 - (svmin.length()+1)*xtick; 
+        addStringCenter(xx, -0.5, -0.5, svmin); 
+        addStringCenter(xx, +0.5, -0.5, svmax); 
+
+        if (ncontours > 0)
+          addContours(); 
+
+        //-----color bar, zero to the top of the count scale-----
+
+        double x0 = 0.6; 
+        double x1 = 0.65; 
+        double dy = 1.0/NLEGEND; 
+        for (int k=0; k<NLEGEND; k++)
+        {
+            double f = (k + 0.5)/NLEGEND; 
+            addRaw(U.getRed(f), U.getGreen(f), U.getBlue(f), SETRGB, QBASE); 
+            double y = -0.5 + k*dy; 
+            add3Dview(x0, y,    -0.5, MOVETO); 
+            add3Dview(x1, y,    -0.5, PATHTO); 
+            add3Dview(x1, y+dy, -0.5, PATHTO); 
+            add3Dview(x0, y+dy, -0.5, PATHTO); 
+            add3Dview(x0, y,    -0.5, FILL); 
+        }
+        addRaw(0., 0., 0., SETCOLOR+fore, QBASE); 
+        String stop = U.fwd(zmax, 16, 0).trim() + (bLog ? " log" : ""); 
+        addStringCenter(0.5*(x0+x1), -0.5 - extra*ytick, -0.5, "0"); 
+        addStringCenter(0.5*(x0+x1), +0.5 + 2*ytick, -0.5, stop); 
+    }  // end of doArtHeat()
+
+
+    private double getLevel(int count)
+    // 0...1 on the linear or log count scale.
+    {
+        if (zmax <= 0.0)
+          return 0.0; 
+        if (bLog)
+          return Math.log(1.0 + count)/Math.log(1.0 + zmax); 
+        return count/zmax; 
+    }
+
+
+    private void paintHeat()
+    // Brings the raster up to histo[][]: every pixel after a parse or a
+    // new count scale, otherwise only bins whose counts have changed. 
+    // Empty bins show the background. 
+    {
+        boolean bAll = (heat == null) || (zmax != heatScale); 
+        if (heat == null)
+        {
+            heat = new BufferedImage(nhbins, nvbins, BufferedImage.TYPE_INT_RGB); 
+            heatCounts = new int[nhbins*nvbins]; 
+            for (int k=0; k<NLUT; k++)
+            {
+                double f = k/(NLUT - 1.0); 
+                lut[k] = (getByte(U.getRed(f)) << 16) 
+                       + (getByte(U.getGreen(f)) << 8) + getByte(U.getBlue(f)); 
+            }
+        }
+        heatScale = zmax; 
+        int empty = whitebkg ? 0xFFFFFF : 0; 
+        int pixels[] = ((DataBufferInt) heat.getRaster().getDataBuffer()).getData(); 
+        for (int i=0; i<nhbins; i++)
+          for (int j=0; j<nvbins; j++)
+          {
+              int c = histo[i][j]; 
+              int k = i*nvbins + j; 
+              if (!bAll && (c == heatCounts[k]))
+                continue; 
+              heatCounts[k] = c; 
+              int m = (int) Math.round((NLUT-1)*Math.min(1.0, getLevel(c))); 
+              pixels[(nvbins-1-j)*nhbins + i] = (c > 0) ? lut[m] : empty;   // row 0 at top
+          }
+    }
+
+
+    private int getByte(double f)
+    {
+        return (int) Math.round(255.0 * U.minmax(f, 0.0, 1.0)); 
+    }
+
+
+    private void addContours()
+    // Marching squares between bin centers at evenly spaced levels. 
+    {
+        double dx = 1.0/nhbins; 
+        double dy = 1.0/nvbins; 
+        double px[] = new double[4]; 
+        double py[] = new double[4]; 
+        double f[][] = new double[nhbins][nvbins]; 
+        for (int i=0; i<nhbins; i++)
+          for (int j=0; j<nvbins; j++)
+            f[i][j] = getLevel(histo[i][j]); 
+        for (int n=1; n<=ncontours; n++)
+        {
+            double t = n/(ncontours + 1.0); 
+            for (int i=0; i<nhbins-1; i++)
+              for (int j=0; j<nvbins-1; j++)
+              {
+                  double a = f[i][j];        // corners counterclockwise
+                  double b = f[i+1][j]; 
+                  double c = f[i+1][j+1]; 
+                  double d = f[i][j+1]; 
+                  double x = -0.5 + (i+0.5)*dx; 
+                  double y = -0.5 + (j+0.5)*dy; 
+                  int m = 0; 
+                  if ((a < t) != (b < t))
+                  {
+                      px[m] = x + dx*(t-a)/(b-a); 
+                      py[m++] = y; 
+                  }
+                  if ((b < t) != (c < t))
+                  {
+                      px[m] = x + dx; 
+                      py[m++] = y + dy*(t-b)/(c-b); 
+                  }
+                  if ((d < t) != (c < t))
+                  {
+                      px[m] = x + dx*(t-d)/(c-d); 
+                      py[m++] = y + dy; 
+                  }
+                  if ((a < t) != (d < t))
+                  {
+                      px[m] = x; 
+                      py[m++] = y + dy*(t-a)/(d-a); 
+                  }
+                  for (int k=0; k+1<m; k+=2)   // saddles pair in order
+                  {
+                      add3Dview(px[k],   py[k],   -0.5, MOVETO); 
+                      add3Dview(px[k+1], py[k+1], -0.5, STROKE); 
+                  }
+              }
+        }
+    }
+
+
+
     private void addRayToHisto(int kray)
     {
        double h = RT13.dGetRay(kray, hsurf, hattr); 
+       double v = RT13.dGetRay(kray, vsurf, vattr); 
+       bh += h; 
+       bv += v; 
+       bhh += h*h; 
+       bvv += v*v; 
+       bcount++; 
+       if (rays != null)
+         rays.add(h, v); 
        h = (h-hmin)/(hmax-hmin); 
        if ((h<0) || (h>0.99999999))
          return; 
-       double v = RT13.dGetRay(kray, vsurf, vattr); 
        v = (v-vmin)/(vmax-vmin); 
        if ((v<0) || (v>0.99999999))
          return; 
        int ih = (int) (nhbins*h); 
        int iv = (int) (nvbins*v); 
        if ((ih>=0) && (ih<nhbins) && (iv>=0) && (iv<nvbins))
-       {
-          histo[ih][iv]++; 
-          fitUnitHeight(); 
-       } 
+         bins.add(ih*nvbins + iv); 
+    }
+
+
+    int iBinTableRays()     // for Bench; needs no window
+    // Parses on first use, then bins the good table rays afresh
+    // and merges as at a redraw.  Returns the rays binned.
+    {
+        if (bPleaseParseUO)
+        {
+            nsurfs = DMF.giFlags[ONSURFS]; 
+            ngroups = DMF.giFlags[ONGROUPS]; 
+            nrays = DMF.giFlags[RNRAYS]; 
+            if (getUOwarning().length() > 0)
+              return 0; 
+            doParse(); 
+        }
+        bins.clear(); 
+        int n = 0; 
+        for (int kray=1; kray<=nrays; kray++)
+          if (RT13.bGoodRay[kray])
+          {
+              addRayToHisto(kray); 
+              n++; 
+          }
+        fitUnitHeight(); 
+        return n; 
+    }
+
+
+    double getHistoSpan()   // for MTF; the larger axis
+    {
+        return Math.max(hspan, vspan); 
+    }
+
+
+    RayOTF getRayOTF()   // for MTF; null unless Options:MTF direct
+    // Starts over from the table rays if Options:MTF has changed.
+    {
+        if (!RayOTF.isCurrent(rays, getHistoSpan(), true))
+        {
+            rays = RayOTF.create(getHistoSpan(), true); 
+            if (rays != null)
+              for (int kray=1; kray<=nrays; kray++)
+                if (RT13.bGoodRay[kray])
+                  rays.add(RT13.dGetRay(kray, hsurf, hattr), RT13.dGetRay(kray, vsurf, vattr)); 
+        }
+        return rays; 
+    }
+
+
+    OTF2D getOTF()   // for MTF; brought up to the latest rays
+    {
+        double dh = hspan/nhbins; 
+        double dv = vspan/nvbins; 
+        if ((otf == null) || !otf.isCompatible(nhbins, nvbins, dh, dv))
+          otf = new OTF2D(nhbins, nvbins, dh, dv); 
+        int counts[] = new int[nhbins*nvbins]; 
+        bins.merge(counts); 
+        otf.update(counts); 
+        return otf; 
     }
 
 
     private void fitUnitHeight()
-    // Frequent rescales with random rays.
-    // Determine histopeak, and then
+    // Rescales at each redraw, not each random ray: 
+    // merges the bins into histo[][], finding histopeak, and then
     // Normalize dhisto[] to unit height...
     {
-        histopeak = 0.0; 
+        int counts[] = new int[nhbins*nvbins]; 
+        histopeak = bins.merge(counts); 
         for (int i=0; i<nhbins; i++)
           for (int j=0; j<nvbins; j++)
-            if (histopeak < histo[i][j])
-              histopeak = histo[i][j];
+            histo[i][j] = counts[i*nvbins + j]; 
 
         U.ruler(0.0, histopeak, false, zticks, results); 
 
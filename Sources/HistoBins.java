@@ -0,0 +1,150 @@
+package com.stellarsoftware.beam;
+
+import java.util.concurrent.atomic.*;  // AtomicIntegerArray
+
+/** HistoBins.java
+  *
+  *  Bin counts for H1DPanel and H2DPanel, safe for many threads adding
+  *  rays at once.  Each thread increments its own stripe, an atomic
+  *  array made when the thread first adds, so adders neither lock nor
+  *  contend; past MAXSTRIPES threads share stripes round robin.  One
+  *  adding thread, the usual case, means one stripe and no more memory
+  *  than a plain array.  The peak is kept up to date by add() itself,
+  *  so a redraw only copies the counts into a plain snapshot.
+  *
+  *  A 2D histogram uses bin index i*nvbins + j.
+  *
+  *  (c) 2015 STELLAR SOFTWARE all rights reserved.
+  */
+class HistoBins
+{
+    static final int MAXSTRIPES = 16;
+
+    private final int nbins;
+    private volatile AtomicIntegerArray stripes[];
+    private int nadders = 0;
+    private final AtomicInteger peak = new AtomicInteger();
+    private final ThreadLocal<AtomicIntegerArray> mine = new ThreadLocal<AtomicIntegerArray>();
+
+
+    HistoBins(int n)
+    {
+        nbins = Math.max(1, n);
+        stripes = new AtomicIntegerArray[0];
+    }
+
+
+    int getNbins()
+    {
+        return nbins;
+    }
+
+
+    void add(int i)
+    // Counts one ray into bin i; out of range is ignored.
+    {
+        if ((i < 0) || (i >= nbins))
+          return;
+        AtomicIntegerArray a = mine.get();
+        if (a == null)
+        {
+            a = getStripe();
+            mine.set(a);
+        }
+        int c = a.incrementAndGet(i);
+        if (stripes.length > 1)
+          c = getCount(i);
+        int p = peak.get();
+        while ((c > p) && !peak.compareAndSet(p, c))
+          p = peak.get();
+    }
+
+
+    int getCount(int i)
+    // Present total of bin i over all stripes.
+    {
+        if ((i < 0) || (i >= nbins))
+          return 0;
+        AtomicIntegerArray s[] = stripes;
+        int sum = 0;
+        for (int k=0; k<s.length; k++)
+          sum += s[k].get(i);
+        return sum;
+    }
+
+
+    int getPeak()
+    {
+        return peak.get();
+    }
+
+
+    int merge(int snap[])
+    // Totals all stripes into snap[0...nbins-1]; returns the peak count.
+    {
+        AtomicIntegerArray s[] = stripes;
+        for (int i=0; i<nbins; i++)
+        {
+            int sum = 0;
+            for (int k=0; k<s.length; k++)
+              sum += s[k].get(i);
+            snap[i] = sum;
+        }
+        return peak.get();
+    }
+
+
+    void load(int snap[])
+    // Replaces all counts by snap[], as from a checkpoint.
+    {
+        clear();
+        AtomicIntegerArray a = getFirst();
+        int p = 0;
+        for (int i=0; i<nbins; i++)
+        {
+            a.set(i, snap[i]);
+            p = Math.max(p, snap[i]);
+        }
+        peak.set(p);
+    }
+
+
+    void clear()
+    {
+        AtomicIntegerArray s[] = stripes;
+        for (int k=0; k<s.length; k++)
+          for (int i=0; i<nbins; i++)
+            s[k].set(i, 0);
+        peak.set(0);
+    }
+
+
+    //-------------private methods---------------------
+
+    private synchronized AtomicIntegerArray getStripe()
+    // A new stripe for each new adding thread, up to MAXSTRIPES.
+    {
+        int ns = stripes.length;
+        if (nadders < ns)
+          return stripes[nadders++];
+        if (ns < MAXSTRIPES)
+        {
+            AtomicIntegerArray s[] = new AtomicIntegerArray[ns+1];
+            System.arraycopy(stripes, 0, s, 0, ns);
+            s[ns] = new AtomicIntegerArray(nbins);
+            stripes = s;
+            nadders++;
+            return s[ns];
+        }
+        return stripes[nadders++ % ns];
+    }
+
+
+    private synchronized AtomicIntegerArray getFirst()
+    // Stripe zero, made if no thread has added yet.
+    {
+        if (stripes.length < 1)
+          stripes = new AtomicIntegerArray[] {new AtomicIntegerArray(nbins)};
+        return stripes[0];
+    }
+}
@@ -0,0 +1,179 @@
+package com.stellarsoftware.beam;
+
+import java.util.*;                    // ArrayList
+import java.util.concurrent.*;         // ExecutorService
+import java.util.concurrent.atomic.*;  // AtomicInteger
+
+/** Huygens.java
+  *
+  *  Huygens point spread function: the coherent sum, at each sample point
+  *  of the image, of one unit wavelet per ray.  It needs no planar or
+  *  paraxial image, so it serves tilted or curved detectors.
+  *
+  *  Each ray arrives at the final surface at P, in that surface's local
+  *  frame, with direction d and optical path L from its start.  Near P
+  *  it is a plane wave, with phase k*(L + d.(q-P)) at a point q, where
+  *  k = 2 pi/wavelength and image space is taken to have index 1.  The
+  *  sample points q lie on the plane fitted through the landing points,
+  *  so a tilted detector is sampled in its own plane; over a PSF the sag
+  *  of a curved one is negligible.  On that plane every ray's phase is
+  *  linear in the sample indices, c + gx*i + gy*j.
+  *
+  *  The kernel works tile by tile, TILE x TILE samples, each tile done by
+  *  one thread against every ray: one sine and cosine per ray per tile row,
+  *  then a complex rotation per sample.  Threads take tiles in turn from
+  *  a shared counter.  With a cutoff, a ray adds nothing at samples farther
+  *  than the cutoff from where it landed, and tiles wholly beyond are
+  *  skipped for that ray.
+  *
+  *  Used by DiffPSF when Options:MTF asks for Huygens.
+  *
+  *  All static methods; no constructor.
+  *
+  *  (c) 2015 STELLAR SOFTWARE all rights reserved.
+  */
+class Huygens
+{
+    static final int TILE = 16;
+
+
+    static double[] getIntensity(double c[], double gx[], double gy[],
+                                 double px[], double py[], int nrays,
+                                 int npix, double dx, double cutoff)
+    // Squared modulus at npix*npix samples, spacing dx, sample (a,b) at
+    // offset ((a-npix/2)*dx, (b-npix/2)*dx) from the reference point.
+    // Per ray: phase c + gx*x + gy*y at offset (x,y); landed at (px,py).
+    // cutoff <= 0 means none.  Stored at index i*npix+j, offsets wrapped.
+    {
+        double out[] = new double[npix*npix];
+        int ntiles = (npix + TILE - 1)/TILE;
+        AtomicInteger next = new AtomicInteger();
+        int nthreads = Runtime.getRuntime().availableProcessors();
+        nthreads = Math.max(1, Math.min(ntiles*ntiles, nthreads));
+        ArrayList<TileTask> tasks = new ArrayList<TileTask>();
+        for (int t=0; t<nthreads; t++)
+          tasks.add(new TileTask(c, gx, gy, px, py, nrays, npix, dx, cutoff, next, out));
+        if (nthreads == 1)
+        {
+            tasks.get(0).call();
+            return out;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+        try
+        {
+            pool.invokeAll(tasks);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        return out;
+    }
+
+
+    //-------------private methods---------------------
+
+    private static class TileTask implements Callable<Object>
+    {
+        double c[], gx[], gy[], px[], py[], out[];
+        int nrays, npix;
+        double dx, cutoff;
+        AtomicInteger next;
+
+        TileTask(double c0[], double gx0[], double gy0[], double px0[], double py0[],
+                 int n, int np, double d, double cut, AtomicInteger counter, double o[])
+        {
+            c = c0;
+            gx = gx0;
+            gy = gy0;
+            px = px0;
+            py = py0;
+            nrays = n;
+            npix = np;
+            dx = d;
+            cutoff = cut;
+            next = counter;
+            out = o;
+        }
+
+        public Object call()
+        {
+            int ntiles = (npix + TILE - 1)/TILE;
+            double re[] = new double[TILE*TILE];
+            double im[] = new double[TILE*TILE];
+            double cut2 = cutoff*cutoff;
+            for (int tile=next.getAndIncrement(); tile<ntiles*ntiles; tile=next.getAndIncrement())
+            {
+                int a0 = (tile / ntiles)*TILE;
+                int b0 = (tile % ntiles)*TILE;
+                int na = Math.min(TILE, npix - a0);
+                int nb = Math.min(TILE, npix - b0);
+                double x0 = (a0 - npix/2)*dx;
+                double y0 = (b0 - npix/2)*dx;
+                double x1 = x0 + (na-1)*dx;
+                double y1 = y0 + (nb-1)*dx;
+                Arrays.fill(re, 0.0);
+                Arrays.fill(im, 0.0);
+                for (int k=0; k<nrays; k++)
+                {
+                    boolean bEach = false;            // test each sample
+                    if (cutoff > 0.0)
+                    {
+                        double ex = Math.max(0.0, Math.max(x0 - px[k], px[k] - x1));
+                        double ey = Math.max(0.0, Math.max(y0 - py[k], py[k] - y1));
+                        if (ex*ex + ey*ey > cut2)
+                          continue;                   // whole tile beyond
+                        double fx = Math.max(Math.abs(x0 - px[k]), Math.abs(x1 - px[k]));
+                        double fy = Math.max(Math.abs(y0 - py[k]), Math.abs(y1 - py[k]));
+                        bEach = (fx*fx + fy*fy > cut2);
+                    }
+                    double sr = Math.cos(gy[k]*dx);   // step along a row
+                    double si = Math.sin(gy[k]*dx);
+                    for (int a=0; a<na; a++)
+                    {
+                        double x = x0 + a*dx;
+                        double phase = c[k] + gx[k]*x + gy[k]*y0;
+                        double wr = Math.cos(phase);
+                        double wi = Math.sin(phase);
+                        int base = a*TILE;
+                        for (int b=0; b<nb; b++)
+                        {
+                            if (bEach)
+                            {
+                                double y = y0 + b*dx;
+                                double r2 = (x-px[k])*(x-px[k]) + (y-py[k])*(y-py[k]);
+                                if (r2 <= cut2)
+                                {
+                                    re[base+b] += wr;
+                                    im[base+b] += wi;
+                                }
+                            }
+                            else
+                            {
+                                re[base+b] += wr;
+                                im[base+b] += wi;
+                            }
+                            double t = wr*sr - wi*si;
+                            wi = wr*si + wi*sr;
+                            wr = t;
+                        }
+                    }
+                }
+                for (int a=0; a<na; a++)
+                  for (int b=0; b<nb; b++)
+                  {
+                      int i = (a0 + a - npix/2 + npix) % npix;    // wrapped
+                      int j = (b0 + b - npix/2 + npix) % npix;
+                      double r = re[a*TILE+b];
+                      double m = im[a*TILE+b];
+                      out[i*npix + j] = r*r + m*m;
+                  }
+            }
+            return null;
+        }
+    }
+}
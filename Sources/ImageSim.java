@@ -0,0 +1,556 @@
+package com.stellarsoftware.beam;
+
+import java.awt.image.*;        // BufferedImage
+import java.io.*;               // File
+import java.util.*;             // ArrayList
+import java.util.concurrent.*;  // ExecutorService
+import java.util.concurrent.atomic.*;  // AtomicInteger
+import javax.imageio.*;         // ImageIO
+import javax.swing.*;           // JFileChooser, JOptionPane
+
+/** ImageSim.java
+  *
+  *  Extended scene simulation: a PNG or JPG picture, taken as the ideal
+  *  image on the final surface, is blurred by the point spread function
+  *  of the optics, which may change across the field.
+  *
+  *  The picture spans the full H and V field spans of Options:ImageSim,
+  *  about the ray table's own field.  The field variables are stepped
+  *  just as Map steps them, to a coarse grid of nodes per axis reaching
+  *  the picture's corners, and at each node the PSF is sampled into a
+  *  square kernel of picture pixels:
+  *    -- geometric: each good ray's landing point, relative to the
+  *       centroid, spread over the four nearest pixels, as H2D bins;
+  *    -- diffraction: DiffPSF of the WFE group chosen in Options:MTF,
+  *       averaged over each pixel.
+  *  Each kernel holds the fraction of the light it captures, so a kernel
+  *  too small for the blur darkens the picture; the report gives the
+  *  least fraction.  Kernels are centered, so distortion is not shown.
+  *
+  *  Between nodes the PSF is interpolated bilinearly.  Rather than
+  *  blending kernels pixel by pixel, the picture is split by the same
+  *  bilinear weights into one layer per node, each layer is convolved
+  *  with its node's kernel, and the results are summed; this is exact
+  *  for the interpolated PSF and leaves no seams.
+  *
+  *  Convolution is by FFT in overlapping tiles (overlap-save): each tile
+  *  reads its pixels plus a kernel radius all round, padded to a power
+  *  of two, and keeps only the part the wraparound cannot reach.  Only
+  *  the nodes whose weight reaches a tile are transformed for it, and
+  *  their products are summed before one inverse transform.  Red and
+  *  green share one complex transform, since the kernels are real.
+  *  Tiles are done in parallel, and each thread needs only its own few
+  *  tile buffers, so memory beyond the two pictures does not grow with
+  *  picture size.  Tiles are limited to a padded size of MAXPAD.  The
+  *  kernel transforms of all nodes are made once and kept when they fit
+  *  in MAXKEPT doubles; otherwise each tile transforms the few kernels
+  *  it needs.  Blurring is done in linear light, not sRGB.
+  *
+  *  Like Ghost this is a task, not a panel: it runs once and reports.
+  *  The result is written beside the input as name_sim.png.
+  *
+  *  (c) 2015 STELLAR SOFTWARE all rights reserved.
+  */
+class ImageSim implements B4constants
+{
+    static final int MAXNODES = 9;      // per axis
+    static final int MAXKERNEL = 255;   // pixels across
+    static final int MAXPAD = 512;      // FFT size of a tile plus overlap
+    static final int MAXKEPT = 1 << 24; // doubles of kept kernel transforms
+    static final int NLUT = 4096;       // linear to sRGB table
+
+    private String result = "";
+    private int nh=1, nv=1, nk=31, npad=64;
+    private double kernels[][];         // per node, nk*nk, row major
+    private double kfft[][];            // per node, npad*npad complex, or null
+    private double minCaptured = 1.0;
+    private static double toLinear[] = null;
+    private static int toSRGB[] = null;
+
+
+    public ImageSim()  // constructor; performs the entire task.
+    {
+        JFileChooser fc = new JFileChooser();
+        fc.setDialogTitle("Scene to image");
+        if (DMF.sCurrentDir != null)
+        {
+            File fDir = new File(DMF.sCurrentDir);
+            if (fDir.isDirectory())
+              fc.setCurrentDirectory(fDir);
+        }
+        fc.addChoosableFileFilter(new FileFilterJPG());
+        fc.setFileFilter(new FileFilterPNG());
+        int q = fc.showOpenDialog(null);
+        if (q != JFileChooser.APPROVE_OPTION)
+          return;
+        File fin = fc.getSelectedFile();
+        if (fin == null)
+          return;
+        DMF.sCurrentDir = fin.getParent();
+        String name = fin.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0)
+          name = name.substring(0, dot);
+        File fout = new File(fin.getParent(), name + "_sim.png");
+
+        String s = simulate(fin, fout);
+        JOptionPane.showMessageDialog(DMF.oejif, s);
+    }
+
+
+    ImageSim(File fin, File fout)  // constructor without dialogs.
+    {
+        result = simulate(fin, fout);
+    }
+
+
+    String getResult()
+    {
+        return result;
+    }
+
+
+    //-------------private methods---------------------
+
+    private String simulate(File fin, File fout)
+    // Returns a report or an error message.
+    {
+        long t0 = System.currentTimeMillis();
+        BufferedImage in = null;
+        try
+        {
+            in = ImageIO.read(fin);
+        }
+        catch (IOException e)
+        {
+            return "ImageSim: cannot read "+fin.getName();
+        }
+        if (in == null)
+          return "ImageSim: not a PNG or JPG image: "+fin.getName();
+
+        String err = getKernels();
+        if (err.length() > 0)
+          return "ImageSim: "+err;
+        long t1 = System.currentTimeMillis();
+
+        int w = in.getWidth();
+        int h = in.getHeight();
+        int argb[] = in.getRGB(0, 0, w, h, null, 0, w);
+        in = null;                              // just the pixels now
+        int out[] = new int[w*h];
+        int tile = npad - nk + 1;
+        int ntx = (w + tile - 1)/tile;
+        int nty = (h + tile - 1)/tile;
+        AtomicInteger next = new AtomicInteger();
+        int nthreads = Runtime.getRuntime().availableProcessors();
+        nthreads = Math.max(1, Math.min(ntx*nty, nthreads));
+        ArrayList<TileTask> tasks = new ArrayList<TileTask>();
+        for (int t=0; t<nthreads; t++)
+          tasks.add(new TileTask(argb, out, w, h, ntx, nty, next));
+        if (nthreads == 1)
+          tasks.get(0).call();
+        else
+        {
+            ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+            try
+            {
+                pool.invokeAll(tasks);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return "ImageSim: interrupted";
+            }
+            finally
+            {
+                pool.shutdown();
+            }
+        }
+
+        BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        bi.setRGB(0, 0, w, h, out, 0, w);
+        try
+        {
+            ImageIO.write(bi, "png", fout);
+        }
+        catch (IOException e)
+        {
+            return "ImageSim: cannot write "+fout.getName();
+        }
+        long t2 = System.currentTimeMillis();
+        return "Wrote "+fout.getName()+"   "+w+" x "+h+" pixels\n"
+              +"Field nodes = "+nh+" x "+nv+"   kernel = "+nk+"   tile = "+tile+'\n'
+              +"Least light in a kernel = "+U.fwd(minCaptured, 6, 3)+'\n'
+              +"PSFs "+(t1-t0)+" ms   convolution "+(t2-t1)+" ms";
+    }
+
+
+    private String getKernels()
+    // Steps the field to each node and samples its PSF; "" if OK.
+    {
+        int nsurfs = DMF.giFlags[ONSURFS];
+        int nrays = DMF.giFlags[RNRAYS];
+        int ngroups = DMF.giFlags[ONGROUPS];
+        if ((nsurfs < 1) || (nrays < 1))
+          return "no optics or rays";
+        boolean bDiff = "T".equals(DMF.reg.getuo(UO_IMSIM, 8));
+        double hspan = U.suckDouble(DMF.reg.getuo(UO_IMSIM, 1));
+        double vspan = U.suckDouble(DMF.reg.getuo(UO_IMSIM, 3));
+        hspan = Double.isNaN(hspan) ? 0.0 : hspan;
+        vspan = Double.isNaN(vspan) ? 0.0 : vspan;
+        int n = U.parseInt(DMF.reg.getuo(UO_IMSIM, 4));
+        n = Math.max(2, Math.min(MAXNODES, n));
+        nh = (hspan != 0.0) ? n : 1;
+        nv = (vspan != 0.0) ? n : 1;
+        double pixel = U.suckDouble(DMF.reg.getuo(UO_IMSIM, 5));
+        if (!(pixel > 0.0))
+          return "pixel size must be positive";
+        nk = U.parseInt(DMF.reg.getuo(UO_IMSIM, 6));
+        nk = Math.max(1, Math.min(MAXKERNEL, nk)) | 1;   // odd
+        int tile = U.parseInt(DMF.reg.getuo(UO_IMSIM, 7));
+        tile = Math.max(16, Math.min(MAXPAD - nk + 1, tile));
+        npad = 1;
+        while (npad < tile + nk - 1)
+          npad *= 2;
+
+        int asH[] = {0, -1};
+        int asV[] = {0, -1};
+        if ((nh > 1) && !MapPanel.parseOneStepVar(DMF.reg.getuo(UO_IMSIM, 0), asH, ngroups))
+          return "H field variable unknown";
+        if ((nv > 1) && !MapPanel.parseOneStepVar(DMF.reg.getuo(UO_IMSIM, 2), asV, ngroups))
+          return "V field variable unknown";
+        int ig = 0;
+        if (bDiff)
+        {
+            ig = U.parseInt(DMF.reg.getuo(UO_MTF, 4)) - 1;
+            if ((ig < 0) || (ig >= DMF.giFlags[RNWFEGROUPS]))
+              return "no such WFE group; see Options:MTF";
+        }
+
+        //-----save, step, sample, restore--------
+
+        double hRaysave[] = new double[nrays+1];
+        double vRaysave[] = new double[nrays+1];
+        double hOptsave = 0.0, vOptsave = 0.0;
+        for (int k=1; k<=nrays; k++)
+        {
+            if (asH[1] == 0)
+              hRaysave[k] = RT13.raystarts[k][asH[0]];
+            if (asV[1] == 0)
+              vRaysave[k] = RT13.raystarts[k][asV[0]];
+        }
+        if (asH[1] > 0)
+          hOptsave = RT13.surfs[asH[1]][asH[0]];
+        if (asV[1] > 0)
+          vOptsave = RT13.surfs[asV[1]][asV[0]];
+
+        kernels = new double[nh*nv][];
+        String err = "";
+        for (int iv=0; (iv<nv) && (err.length() == 0); iv++)
+          for (int ih=0; (ih<nh) && (err.length() == 0); ih++)
+          {
+              double dH = (nh > 1) ? (-0.5 + ih/(nh-1.0))*hspan : 0.0;
+              double dV = (nv > 1) ? (0.5 - iv/(nv-1.0))*vspan : 0.0;  // top row first
+              for (int k=1; k<=nrays; k++)
+              {
+                  if (asH[1] == 0)
+                    RT13.raystarts[k][asH[0]] = hRaysave[k] + dH;
+                  if (asV[1] == 0)
+                    RT13.raystarts[k][asV[0]] = vRaysave[k] + dV;
+              }
+              if (asH[1] > 0)
+                RT13.surfs[asH[1]][asH[0]] = hOptsave + dH;
+              if (asV[1] > 0)
+                RT13.surfs[asV[1]][asV[0]] = vOptsave + dV;
+              RT13.setEulers();
+              double kern[] = bDiff ? getDiffKernel(ig, pixel) : getRayKernel(pixel);
+              if (kern == null)
+                err = "no PSF at field node "+(ih+1)+", "+(iv+1);
+              kernels[iv*nh + ih] = kern;
+          }
+
+        for (int k=1; k<=nrays; k++)
+        {
+            if (asH[1] == 0)
+              RT13.raystarts[k][asH[0]] = hRaysave[k];
+            if (asV[1] == 0)
+              RT13.raystarts[k][asV[0]] = vRaysave[k];
+        }
+        if (asH[1] > 0)
+          RT13.surfs[asH[1]][asH[0]] = hOptsave;
+        if (asV[1] > 0)
+          RT13.surfs[asV[1]][asV[0]] = vOptsave;
+        RT13.setEulers();
+        if (err.length() > 0)
+          return err;
+
+        for (int node=0; node<nh*nv; node++)
+        {
+            double sum = 0.0;
+            for (int i=0; i<nk*nk; i++)
+              sum += kernels[node][i];
+            minCaptured = Math.min(minCaptured, sum);
+        }
+        kfft = new double[nh*nv][];
+        if ((long) nh*nv*2*npad*npad <= MAXKEPT)
+          for (int node=0; node<nh*nv; node++)
+          {
+              kfft[node] = new double[2*npad*npad];
+              getKernelFFT(node, kfft[node]);
+          }
+        getTables();
+        return "";
+    }
+
+
+    private void getKernelFFT(int node, double f[])
+    // Transform of one node's kernel, centered on sample zero.
+    {
+        Arrays.fill(f, 0.0);
+        int r = nk/2;
+        for (int a=0; a<nk; a++)
+          for (int b=0; b<nk; b++)
+          {
+              int i = (a - r + npad) % npad;
+              int j = (b - r + npad) % npad;
+              f[2*(i*npad + j)] = kernels[node][a*nk + b];
+          }
+        U.fft2(f, npad, npad, 1);
+    }
+
+
+    private double[] getRayKernel(double pixel)
+    // Landing points on the final surface about their centroid,
+    // each spread over four pixels; rows are -Y, columns +X.
+    {
+        int ngood = RT13.iBuildRays(true);
+        if (ngood < 1)
+          return null;
+        int g = DMF.giFlags[ONGROUPS];
+        int nrays = DMF.giFlags[RNRAYS];
+        double xc=0.0, yc=0.0;
+        for (int k=1; k<=nrays; k++)
+          if (RT13.bGoodRay[k])
+          {
+              xc += RT13.dGetRay(k, g, RTXL);
+              yc += RT13.dGetRay(k, g, RTYL);
+          }
+        xc /= ngood;
+        yc /= ngood;
+        double kern[] = new double[nk*nk];
+        int r = nk/2;
+        for (int k=1; k<=nrays; k++)
+          if (RT13.bGoodRay[k])
+          {
+              double c = r + (RT13.dGetRay(k, g, RTXL) - xc)/pixel;
+              double a = r - (RT13.dGetRay(k, g, RTYL) - yc)/pixel;
+              int a0 = (int) Math.floor(a);
+              int c0 = (int) Math.floor(c);
+              double fa = a - a0;
+              double fc = c - c0;
+              deposit(kern, a0, c0, (1-fa)*(1-fc)/ngood);
+              deposit(kern, a0, c0+1, (1-fa)*fc/ngood);
+              deposit(kern, a0+1, c0, fa*(1-fc)/ngood);
+              deposit(kern, a0+1, c0+1, fa*fc/ngood);
+          }
+        return kern;
+    }
+
+
+    private void deposit(double kern[], int a, int c, double v)
+    {
+        if ((a >= 0) && (a < nk) && (c >= 0) && (c < nk))
+          kern[a*nk + c] += v;
+    }
+
+
+    private double[] getDiffKernel(int ig, double pixel)
+    // DiffPSF averaged over each pixel; rows are -Y, columns +X.
+    {
+        DiffPSF d = DiffPSF.get(ig);
+        if (d == null)
+          return null;
+        int np = d.getPad();
+        double dx = d.getSpacing();
+        double total = 0.0;
+        for (int i=0; i<np; i++)
+          for (int j=0; j<np; j++)
+            total += d.getPSF(i, j);
+        if (!(total > 0.0))
+          return null;
+        int ns = Math.max(1, Math.min(8, (int) Math.ceil(pixel/dx)));  // subsamples
+        double kern[] = new double[nk*nk];
+        int r = nk/2;
+        for (int a=0; a<nk; a++)
+          for (int c=0; c<nk; c++)
+          {
+              double sum = 0.0;
+              for (int sa=0; sa<ns; sa++)
+                for (int sc=0; sc<ns; sc++)
+                {
+                    double x = (c - r + (sc + 0.5)/ns - 0.5)*pixel/dx;
+                    double y = -(a - r + (sa + 0.5)/ns - 0.5)*pixel/dx;
+                    int ix = (int) Math.floor(x);
+                    int iy = (int) Math.floor(y);
+                    double fx = x - ix;
+                    double fy = y - iy;
+                    sum += (1-fx)*(1-fy)*d.getPSF(ix, iy) + fx*(1-fy)*d.getPSF(ix+1, iy)
+                         + (1-fx)*fy*d.getPSF(ix, iy+1) + fx*fy*d.getPSF(ix+1, iy+1);
+                }
+              kern[a*nk + c] = sum/(ns*ns)*(pixel/dx)*(pixel/dx)/total;
+          }
+        return kern;
+    }
+
+
+    private static synchronized void getTables()
+    // sRGB to linear light and back.
+    {
+        if (toLinear != null)
+          return;
+        toLinear = new double[256];
+        for (int i=0; i<256; i++)
+        {
+            double v = i/255.0;
+            toLinear[i] = (v <= 0.04045) ? v/12.92 : Math.pow((v + 0.055)/1.055, 2.4);
+        }
+        toSRGB = new int[NLUT+1];
+        for (int i=0; i<=NLUT; i++)
+        {
+            double v = i/(double) NLUT;
+            v = (v <= 0.0031308) ? 12.92*v : 1.055*Math.pow(v, 1/2.4) - 0.055;
+            toSRGB[i] = (int) Math.round(255*v);
+        }
+    }
+
+
+    private static int getSRGB(double v)
+    {
+        if (!(v > 0.0))
+          return 0;
+        if (v >= 1.0)
+          return 255;
+        return toSRGB[(int) (v*NLUT + 0.5)];
+    }
+
+
+    private class TileTask implements Callable<Object>
+    // Takes tiles in turn from a shared counter; writes only its tiles.
+    {
+        int argb[], out[];
+        int w, h, ntx, nty;
+        AtomicInteger next;
+
+        TileTask(int a[], int o[], int width, int height, int nx, int ny, AtomicInteger counter)
+        {
+            argb = a;
+            out = o;
+            w = width;
+            h = height;
+            ntx = nx;
+            nty = ny;
+            next = counter;
+        }
+
+        public Object call()
+        {
+            int r = nk/2;
+            int tile = npad - nk + 1;
+            int nn = npad*npad;
+            double rg[] = new double[2*nn];     // red + i green
+            double bb[] = new double[2*nn];     // blue
+            double sumrg[] = new double[2*nn];
+            double sumbb[] = new double[2*nn];
+            double kf[] = null;                 // when kfft[] is not kept
+            double uh[] = new double[npad];     // node coordinates
+            double uv[] = new double[npad];
+            double wh[] = new double[npad];     // weights along H
+            int px[] = new int[npad];           // clamped pixels
+            int py[] = new int[npad];
+            for (int t=next.getAndIncrement(); t<ntx*nty; t=next.getAndIncrement())
+            {
+                int x0 = (t % ntx)*tile - r;
+                int y0 = (t / ntx)*tile - r;
+                double umin=nh, umax=0.0, vmin=nv, vmax=0.0;
+                for (int i=0; i<npad; i++)
+                {
+                    px[i] = Math.max(0, Math.min(w-1, x0 + i));
+                    py[i] = Math.max(0, Math.min(h-1, y0 + i));
+                    uh[i] = (px[i] + 0.5)/w*(nh-1);
+                    uv[i] = (py[i] + 0.5)/h*(nv-1);
+                    umin = Math.min(umin, uh[i]);
+                    umax = Math.max(umax, uh[i]);
+                    vmin = Math.min(vmin, uv[i]);
+                    vmax = Math.max(vmax, uv[i]);
+                }
+                Arrays.fill(sumrg, 0.0);
+                Arrays.fill(sumbb, 0.0);
+                for (int jv=(int) Math.floor(vmin); jv<=Math.min(nv-1, (int) Math.ceil(vmax)); jv++)
+                  for (int jh=(int) Math.floor(umin); jh<=Math.min(nh-1, (int) Math.ceil(umax)); jh++)
+                  {
+                      for (int b=0; b<npad; b++)
+                        wh[b] = Math.max(0.0, 1.0 - Math.abs(uh[b] - jh));
+                      boolean bAny = false;
+                      for (int a=0; a<npad; a++)
+                      {
+                          double wv = Math.max(0.0, 1.0 - Math.abs(uv[a] - jv));
+                          int row = py[a]*w;
+                          for (int b=0; b<npad; b++)
+                          {
+                              double wt = wv*wh[b];
+                              int k = 2*(a*npad + b);
+                              if (wt <= 0.0)
+                              {
+                                  rg[k] = rg[k+1] = bb[k] = bb[k+1] = 0.0;
+                                  continue;
+                              }
+                              bAny = true;
+                              int p = argb[row + px[b]];
+                              rg[k] = wt*toLinear[(p >> 16) & 255];
+                              rg[k+1] = wt*toLinear[(p >> 8) & 255];
+                              bb[k] = wt*toLinear[p & 255];
+                              bb[k+1] = 0.0;
+                          }
+                      }
+                      if (!bAny)
+                        continue;
+                      U.fft2(rg, npad, npad, 1);
+                      U.fft2(bb, npad, npad, 1);
+                      double f[] = kfft[jv*nh + jh];
+                      if (f == null)
+                      {
+                          if (kf == null)
+                            kf = new double[2*nn];
+                          getKernelFFT(jv*nh + jh, kf);
+                          f = kf;
+                      }
+                      for (int k=0; k<2*nn; k+=2)
+                      {
+                          sumrg[k]   += rg[k]*f[k] - rg[k+1]*f[k+1];
+                          sumrg[k+1] += rg[k]*f[k+1] + rg[k+1]*f[k];
+                          sumbb[k]   += bb[k]*f[k] - bb[k+1]*f[k+1];
+                          sumbb[k+1] += bb[k]*f[k+1] + bb[k+1]*f[k];
+                      }
+                  }
+                U.fft2(sumrg, npad, npad, -1);
+                U.fft2(sumbb, npad, npad, -1);
+                for (int a=r; a<r+tile; a++)
+                {
+                    int y = y0 + a;
+                    if (y >= h)
+                      break;
+                    for (int b=r; b<r+tile; b++)
+                    {
+                        int x = x0 + b;
+                        if (x >= w)
+                          break;
+                        int k = 2*(a*npad + b);
+                        out[y*w + x] = (getSRGB(sumrg[k]) << 16)
+                                     | (getSRGB(sumrg[k+1]) << 8) | getSRGB(sumbb[k]);
+                    }
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -63,6 +63,9 @@ class InOut implements B4constants
         ss += "      Nrays = "+U.fwi(ngood,9).trim() + '\n'  
              +"      Ngoals = "+U.fwi(ngoals,1)      + '\n'
              +"      Nterms = "+U.fwi(npts,9).trim(); 
+        Config.parse(); 
+        if (Config.getCount() > 1)
+          ss += getConfigSummary(); 
         JOptionPane.showMessageDialog(rayEditor, ss, 
           "RMS from goals", JOptionPane.PLAIN_MESSAGE); // shows no icon
     }
@@ -86,6 +89,33 @@ class InOut implements B4constants
     }
 
 
+    private String getConfigSummary()
+    // RMS for each configuration and for all together. 
+    // Finishes by retracing the base so RT13 matches the ray table. 
+    {
+        String s = ""; 
+        double sos = 0.0; 
+        int npts = 0; 
+        for (int c=1; c<=Config.getCount(); c++)
+        {
+            int n = Config.iBuildRays(c, true); 
+            s += '\n' + "Config " + c + ":  Nrays = " + U.fwi(n,9).trim(); 
+            if (n > 0)
+            {
+                Comparo.doResiduals(); 
+                s += "  RMS = " + U.fwe(Comparo.dGetRMS()); 
+                sos += Comparo.dGetSOS(); 
+                npts += Comparo.iGetNPTS(); 
+            }
+        }
+        Config.restore(); 
+        RT13.iBuildRays(true); 
+        if (npts > 0)
+          s += '\n' + "All configs RMS = " + U.fwe(Math.sqrt(sos/npts)); 
+        return s; 
+    }
+
+
     private void vUpdateRayTable()
     // Grabs selected data from RT13.dGetRay() and fills in RayTable.
     // Assumed globals: nrays, nfields, ngoals, rayEditor.
@@ -120,6 +150,11 @@ class InOut implements B4constants
                     int ia = RT13.getAttrNum(op); 
                     if ((ia>=0) && (ia<RNATTRIBS) && (g>0) && (g<=howfarRay))
                       rayEditor.putFieldDouble(f, row, RT13.dGetRay(kray,g,ia));  
+                    int iz = op - RFINAL;           // Zernike of this WFE group
+                    if ((iz>=RTZERN) && (iz<RTZERN+RNZERN) && RT13.bGoodRay[kray])
+                      rayEditor.putFieldDouble(f, row, RT13.dGetRay(kray,0,iz));  
+                    if (((iz==RTEE) || (iz==RTES)) && RT13.bGoodRay[kray])
+                      rayEditor.putFieldDouble(f, row, RT13.dGetRay(kray,0,iz));  
                 }
             } // done with writing all fields for this ray. 
         } // done with all rays. 
@@ -1115,7 +1115,7 @@ public class LayoutPanel extends GPanel   // implements B4constants via GPanel
     {
         boolean isGood; 
         if (kray == 0)
-          isGood = RT13.bRunRandomRay();
+          isGood = RT13.bRunPreviewRay(getPreviewTol());  // display only
         else
           isGood = RT13.bGoodRay[kray];  
         int rayerr = RT13.getStatus(kray);         // ray error status
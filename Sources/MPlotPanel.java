@@ -191,9 +191,17 @@ public class MPlotPanel extends GPanel
 
         doStash();  // line 556 below
      
-        for (int ix=0; ix<nHsteps; ix++) 
+        int iSweep = getSweepAxis(); 
+        if (iSweep == 0)
           for (int iy=0; iy<nVsteps; iy++)
-            calcOneBox(ix, iy);  // parse & trace only; no artwork; allows uniform size
+            calcSweep(iy, true);   // one spectral trace per row of boxes
+        else if (iSweep == 1)
+          for (int ix=0; ix<nHsteps; ix++)
+            calcSweep(ix, false);  // one spectral trace per column of boxes
+        else
+          for (int ix=0; ix<nHsteps; ix++) 
+            for (int iy=0; iy<nVsteps; iy++)
+              calcOneBox(ix, iy);  // parse & trace only; no artwork; allows uniform size
        
         doRestore();  // line 567 below
 
@@ -626,14 +634,9 @@ public class MPlotPanel extends GPanel
     
         //---now zero and gather the local results----
 
-        hspans[ix][iy] = 0.0; 
-        vspans[ix][iy] = 0.0; 
         for (int m=0; m<2; m++)
-        {
-            centroids[ix][iy][m] = 0.0; 
-            for (int k=1; k<=nrays; k++)
-              results[ix][iy][m][k] = 0.0; 
-        }
+          for (int k=1; k<=nrays; k++)
+            results[ix][iy][m][k] = 0.0; 
         
         // Now pack results[] with good rays ONLY...
 
@@ -647,9 +650,88 @@ public class MPlotPanel extends GPanel
                 kcolor[ix][iy][kcount] = (int) RT13.raystarts[k][RSCOLOR];  // kcount not k
               kcount++; 
           }
+        calcMoments(ix, iy, kcount); 
+    } 
+
+
+    private int getSweepAxis()
+    // 0 if the boxes of each row differ only in wavelength, 1 if those of
+    // each column do, else -1.  Such a row or column needs only one
+    // RT13.iTraceSpectral() call.  The other axis must not set @wave,
+    // since waveField[] holds only one axis's wavelengths. 
+    {
+        boolean bWaveH=false, bOtherH=false, bWaveV=false, bOtherV=false; 
+        for (int s=0; s<3; s++)
+        {
+            if (ijH[0][s] >= 0)
+              if ((ijH[1][s] == 0) && (ijH[0][s] == RSWAVEL))
+                bWaveH = true; 
+              else
+                bOtherH = true; 
+            if (ijV[0][s] >= 0)
+              if ((ijV[1][s] == 0) && (ijV[0][s] == RSWAVEL))
+                bWaveV = true; 
+              else
+                bOtherV = true; 
+        }
+        if (bWaveH && !bOtherH && !bWaveV)
+          return 0; 
+        if (bWaveV && !bOtherV && !bWaveH)
+          return 1; 
+        return -1; 
+    }
+
 
+    private void calcSweep(int m, boolean bRow)
+    // Gathers spot diagram info for row m of boxes (bRow) or column m,
+    // whose boxes differ only in wavelength, with one spectral trace.
+    // Like calcOneBox(), runs between doStash() and doRestore().
+    {
+        ngroups = DMF.giFlags[ONGROUPS]; 
+        nrays = DMF.giFlags[RNRAYS]; 
+        int n = bRow ? nHsteps : nVsteps; 
+
+        if (bRow)
+          setTempParms(0, m); 
+        else
+          setTempParms(m, 0); 
+        RT13.gwave = 0;    // the sweep sets each wavelength itself
+
+        int waves[] = new int[n]; 
+        for (int i=0; i<n; i++)
+          waves[i] = waveField[i]; 
+        int grp[] = {hsurf, vsurf}; 
+        double out[][][][] = new double[n][nrays+1][2][RNATTRIBS]; 
+        boolean good[][] = new boolean[n][nrays+1]; 
+        RT13.iTraceSpectral(waves, grp, out, good); 
+
+        for (int i=0; i<n; i++)
+        {
+            int ix = bRow ? i : m; 
+            int iy = bRow ? m : i; 
+            int kcount = 0; 
+            for (int k=1; k<=nrays; k++)
+              if (good[i][k])
+              {
+                  results[ix][iy][0][kcount] = out[i][k][0][hattr]; 
+                  results[ix][iy][1][kcount] = out[i][k][1][vattr]; 
+                  if (kcolor[ix][iy][k] == ABSENT)
+                    kcolor[ix][iy][kcount] = (int) RT13.raystarts[k][RSCOLOR]; 
+                  kcount++; 
+              }
+            ngood[ix][iy] = kcount; 
+            calcMoments(ix, iy, kcount); 
+        }
+    }
+
+
+    private void calcMoments(int ix, int iy, int kcount)
+    // Centroid, spans and moments of the kcount good rays of box ix,iy.
+    {
         //---now get their centers-------------
         
+        centroids[ix][iy][0] = 0.0; 
+        centroids[ix][iy][1] = 0.0; 
         for (int k=0; k<kcount; k++)
         {
             centroids[ix][iy][0] += results[ix][iy][0][k]; 
@@ -13,6 +13,24 @@ import javax.swing.*;      // Graphics2D features
   *
   * Needs to get properly centered and sized. Rect not square. 
   *
+  * Opened with an H2D window in front, shows the 2D MTF of its spot
+  * histogram from OTF2D: sagittal (along H), tangential (along V) and
+  * one more azimuth, or a colored map of the whole MTF.  Each redraw
+  * brings the cached OTF up to the rays that have landed since. 
+  *
+  * With Options:MTF "Diffraction from WFE" set, shows instead the 
+  * diffraction MTF of one WFE group, from DiffPSF, with its Strehl ratio.
+  *
+  * With Options:MTF "Direct from rays" set, the H1D or H2D window sums
+  * every ray it histograms into a RayOTF, and the curves or map come from
+  * their characteristic function with no bins, up to any frequency.
+  * The RayOTF sets the frequencies; each redraw adds in the rays that
+  * have landed since. 
+  *
+  * Random with the MTF window in front sends its rays to the H1D or H2D
+  * window the MTF was opened on, redraws both, and so refines the MTF
+  * as they land.  A diffraction MTF takes no random rays. 
+  *
   * @author M.Lampton (c) STELLAR SOFTWARE 2004 all rights reserved.
   */
 public class MTFPanel extends GPanel
@@ -22,6 +40,9 @@ public class MTFPanel extends GPanel
     final double EXTRAROOM = 2.0;  
     final double MINSPAN = 1E-6; 
     final int MAXBINS = 1025; 
+    final int NFINE = 8192;        // samples from the H1D Distribution
+    final int NCURVE = 64;         // samples per 2D azimuth curve
+    final double CYCLES2D = 16.0;  // 2D reach, cycles per histogram span
     private double histospan = 1.0; 
     private double deltaf = 1.0; 
     private double freqspan = 1.0; 
@@ -35,6 +56,13 @@ public class MTFPanel extends GPanel
     private double hticks[] = new double[12]; 
     private double vticks[] = new double[12];
     private H1DPanel myH1DPanel = null; 
+    private H2DPanel myH2DPanel = null; 
+    private boolean bDiffraction = false;  // DiffPSF, not a histogram
+    private DiffPSF diff = null; 
+    private boolean bMap = false;  // 2D: map rather than curves
+    private boolean bDirect = false;  // RayOTF, not bins
+    private double azimuth = 45.0; // 2D: third curve, degrees
+    private double curves[][] = new double[3][NCURVE]; 
      
 
     public MTFPanel(GJIF gj)
@@ -42,6 +70,20 @@ public class MTFPanel extends GPanel
         myGJIF = gj;     // protected; used here & GPanel
         bClobber = true; // protected; random redo() needs new artwork
         
+        if ("T".equals(DMF.reg.getuo(UO_MTF, 2)))
+        {
+            bDiffraction = true; 
+            doParse2D(); 
+            return; 
+        }
+        GJIF front = DMF.getFrontGJIF(); 
+        if ((front != null) && (front.getType() == RM_H2D))
+        {
+            myH2DPanel = (H2DPanel) front.getGPanel(); 
+            doParse2D(); 
+            return; 
+        }
+
         // The following will get the most recently constructed g1D
         // but this is not necessarily the g1D that is currently in front. 
         
@@ -51,7 +93,21 @@ public class MTFPanel extends GPanel
             return; 
         }
         myH1DPanel = (H1DPanel) g1D.getGPanel(); 
+        histospan = myH1DPanel.getHistoSpan();
+        if (RayOTF.isWanted())   // redrawn as rays land
+        {
+            doParse2D(); 
+            return; 
+        }
+        doParse1D(); 
+    }
+
+
+    private void doParse1D()
+    // Transforms the H1D histogram or its Distribution, every ray so far.
+    {
         nbins = myH1DPanel.getNbins(); 
+        ncomplexpairs = 1; 
         while ((ncomplexpairs < nbins) && (ncomplexpairs < 1024))
           ncomplexpairs *= 2; 
 
@@ -61,10 +117,21 @@ public class MTFPanel extends GPanel
         deltaf = 1.0 / histospan; 
         freqspan = deltaf * nplotfreqs;
 
-        for (int i=0; i<MAXBINS; i++)  // ok beyond nbins
+        double lsf[];   // real line spread function
+        Distribution dist = myH1DPanel.getDistribution(); 
+        if (dist != null)  // full resolution over exactly the histo span
         {
-           cData[2*i] = (double) myH1DPanel.getHisto(i);
-           cData[2*i+1] = 0.0; 
+            ncomplexpairs = NFINE; 
+            cData = new double[2*NFINE]; 
+            lsf = new double[NFINE]; 
+            double hmin = myH1DPanel.getHistoMin(); 
+            dist.rebin(hmin, hmin+histospan, lsf); 
+        }
+        else
+        {
+            lsf = new double[ncomplexpairs]; 
+            for (int i=0; i<ncomplexpairs; i++)  // ok beyond nbins
+              lsf[i] = (double) myH1DPanel.getHisto(i);
         }
 
         // now set the local scale factors in host GPanel...
@@ -85,10 +152,13 @@ public class MTFPanel extends GPanel
           vticks[i] = i*20; 
 
 
-        // now do the Fourier transform....
-        int nn[] = new int[1]; 
-        nn[0] = ncomplexpairs; 
-        U.fourn(cData, nn, 1, 1); 
+        // now do the Fourier transform, real input....
+        U.realfft(lsf, ncomplexpairs, cData, 1); 
+        for (int k=ncomplexpairs/2+1; k<ncomplexpairs; k++)  // conjugates
+        {
+            cData[2*k] = cData[2*(ncomplexpairs-k)]; 
+            cData[2*k+1] = -cData[2*(ncomplexpairs-k)+1]; 
+        }
         for (int i=0; i<nplotfreqs; i++)
           dPower[i] = cData[2*i]*cData[2*i] + cData[2*i+1]*cData[2*i+1]; 
         if (dPower[0] > 0.0)
@@ -105,7 +175,19 @@ public class MTFPanel extends GPanel
     // Called by GPanel when fresh artwork is needed:
     // Ignotes bFullArt, always writes complete diagram. 
     {
-        doArt();
+        if (!bDiffraction && (myH2DPanel == null) && !bDirect)
+        {
+            if (myH1DPanel != null)
+              doParse1D();   // takes in any random rays
+            doArt();
+            return; 
+        }
+        if (bPleaseParseUO || bDirect)   // direct: the rays may start over
+          doParse2D(); 
+        if (bDirect)
+          doArtDirect(); 
+        else
+          doArt2D(); 
     }
 
     protected void doRotate(int i, int j) // replaces abstract method
@@ -114,11 +196,52 @@ public class MTFPanel extends GPanel
     }
 
     boolean doRandomRay()          // replaces abstract "do" method
+    // The ray lands in the histogram this MTF comes from.
     {
-        // alert myP1DPanel !  NOT YET IMPLEMENTED. 
-        return false; 
+        GPanel src = getSource(); 
+        return (src != null) && src.doRandomRay(); 
     } 
 
+    public void redo()             // after each Random bunch
+    {
+        super.redo(); 
+        GPanel src = getSource(); 
+        if (src != null)
+          src.redo(); 
+    }
+
+    double[] getBatchMetrics()     // overrides GPanel hook for Random
+    {
+        GPanel src = getSource(); 
+        return (src != null) ? src.getBatchMetrics() : null; 
+    }
+
+    void resetBatch()              // overrides GPanel hook for Random
+    {
+        GPanel src = getSource(); 
+        if (src != null)
+          src.resetBatch(); 
+    }
+
+    int getCheckpointGroup()       // overrides GPanel hook for Random
+    {
+        GPanel src = getSource(); 
+        return (src != null) ? src.getCheckpointGroup() : -1; 
+    }
+
+    void writeCheckpoint(DataOutputStream dos) throws IOException
+    {
+        GPanel src = getSource(); 
+        if (src != null)
+          src.writeCheckpoint(dos); 
+    }
+
+    boolean readCheckpoint(DataInputStream dis) throws IOException
+    {
+        GPanel src = getSource(); 
+        return (src != null) && src.readCheckpoint(dis); 
+    }
+
     protected void doCursor(int ix, int iy)  // replaces abstract method
     // delivers current cursor coordinates
     {
@@ -154,8 +277,17 @@ public class MTFPanel extends GPanel
         {
             fw = new FileWriter(file);
             pw = new PrintWriter(fw);
-            for (int i=0; i<nbins; i++)
-              pw.println(U.fwd(dPower[i],12,6)); 
+            if (bDiffraction || (myH2DPanel != null) || bDirect)  // freq, sag, tan, az
+              for (int i=0; i<NCURVE; i++)
+              {
+                  pw.print(U.fwe(freqspan*i/(NCURVE-1)));
+                  for (int c=0; c<getNcurves(); c++)
+                    pw.print(", " + U.fwd(100*curves[c][i],12,6).trim()); 
+                  pw.println(); 
+              }
+            else
+              for (int i=0; i<nplotfreqs; i++)  // the computed powers only
+                pw.println(U.fwd(dPower[i],12,6)); 
             fw.close();
         }
         catch (Exception e)
@@ -163,6 +295,15 @@ public class MTFPanel extends GPanel
     } 
 
 
+    private GPanel getSource()
+    // The histogram window whose rays this MTF shows, or null.
+    {
+        if (bDiffraction)
+          return null; 
+        if (myH2DPanel != null)
+          return myH2DPanel; 
+        return myH1DPanel; 
+    }
 
 
 
@@ -178,6 +319,26 @@ public class MTFPanel extends GPanel
     
 
     private void doArt()  
+    {
+        addFurniture(0.0, 0.0, "frequency", "%MTF"); 
+
+        ////// Now plot the histogram....
+
+        double dx = freqspan / nplotfreqs; 
+        add2D(0, 0, MOVETO); 
+        add2D(0, dPower[0], PATHTO);     // up
+        add2D(dx, dPower[0], PATHTO);    // and over
+        for (int i=1; i<nplotfreqs; i++)
+        {
+            add2D(i*dx, dPower[i], PATHTO); 
+            int op = (i < nplotfreqs-1) ? PATHTO : STROKE; 
+            add2D((i+1)*dx, dPower[i], op); 
+        }
+    }  // end of doArt()
+
+
+    private void addFurniture(double xruler, double yruler, String hst, String vst)
+    // Clears the artwork and draws both rulers and their titles.
     {
         int iFontcode = getUOGraphicsFontCode();  
         int iHpoints = iFontcode / 10000;     
@@ -199,9 +360,8 @@ public class MTFPanel extends GPanel
         addRaw(0., 0., 0., COMMENTRULER, QBASE);     // unscaled
                 
 
-        //----the X ruler at Y=0----
+        //----the X ruler at Y=yruler----
 
-        double yruler = 0.0;
         add2D(hticks[0], yruler, MOVETO); 
         add2D(hticks[0], yruler+ytick, PATHTO); 
         add2D(hticks[0], yruler, PATHTO); 
@@ -230,7 +390,6 @@ public class MTFPanel extends GPanel
         }
 
         // title for horizontal axis...
-        String hst = "frequency"; 
         int hnchars = hst.length(); 
         for (int k=0; k<hnchars; k++)
         {
@@ -243,7 +402,6 @@ public class MTFPanel extends GPanel
         //////// v ruler at left /////////////
 
         addRaw(0., 0., 0., COMMENTRULER, QBASE);  
-        double xruler = 0.0; 
         add2D(xruler, vticks[0], MOVETO); 
         add2D(xruler+xtick, vticks[0], PATHTO); 
         add2D(xruler, vticks[0], PATHTO); 
@@ -270,7 +428,6 @@ public class MTFPanel extends GPanel
         } 
 
         // title for vertical axis...
-        String vst = "%MTF";
         int vnchars = vst.length(); 
         for (int k=0; k<vnchars; k++)
         {
@@ -278,19 +435,202 @@ public class MTFPanel extends GPanel
             double x = xruler + (k-vnchars-1)*scaledW; 
             add2D(x, uycenter, ic);   // coord = CharCenter.
         }
+    }  // end of addFurniture()
 
-        ////// Now plot the histogram....
 
-        double dx = freqspan / nplotfreqs; 
-        add2D(0, 0, MOVETO); 
-        add2D(0, dPower[0], PATHTO);     // up
-        add2D(dx, dPower[0], PATHTO);    // and over
-        for (int i=1; i<nplotfreqs; i++)
+    //--------------2D MTF from H2DPanel--------------
+
+    private void doParse2D()
+    // Frequency range and scales; redone when Options change. 
+    {
+        bPleaseParseUO = false; 
+        azimuth = U.suckDouble(DMF.reg.getuo(UO_MTF, 0)); 
+        if (Double.isNaN(azimuth))
+          azimuth = 45.0; 
+        bMap = "T".equals(DMF.reg.getuo(UO_MTF, 1)) && (myH1DPanel == null); 
+        bDirect = !bDiffraction && RayOTF.isWanted(); 
+
+        OTF2D otf = bDirect ? null : getOTF2D(); 
+        RayOTF rays = bDirect ? getRayOTF() : null; 
+        if (rays != null)   // no Nyquist limit
         {
-            add2D(i*dx, dPower[i], PATHTO); 
-            int op = (i < nplotfreqs-1) ? PATHTO : STROKE; 
-            add2D((i+1)*dx, dPower[i], op); 
+            freqspan = rays.getMaxFreq(); 
+            bMap = rays.isMap(); 
         }
-    }  // end of doArt()
+        else if (otf != null)
+        {
+            freqspan = Math.min(otf.getNyquist(0.0), otf.getNyquist(90.0)); 
+            if (bDiffraction)   // to the cutoff
+              freqspan = Math.min(freqspan, diff.getCutoff()); 
+            else
+              freqspan = Math.min(freqspan, CYCLES2D / otf.getSpan()); 
+        }
+
+        int results[] = new int[2]; 
+        if (bMap)   // square field of signed frequencies
+        {
+            uxspan = uyspan = EXTRAROOM * 2.0 * freqspan; 
+            uxcenter = uycenter = 0.0; 
+            U.ruler(-freqspan, freqspan, true, hticks, results); 
+            hnticks = vnticks = results[0]; 
+            hndigits = vndigits = results[1]; 
+            for (int i=0; i<hnticks; i++)
+              vticks[i] = hticks[i]; 
+            return; 
+        }
+        uxspan = EXTRAROOM * freqspan; 
+        uxcenter = 0.5 * freqspan; 
+        uyspan = EXTRAROOM * 100.0;  
+        uycenter = 50.0; 
+        U.ruler(0, freqspan, true, hticks, results); 
+        hnticks = results[0]; 
+        hndigits = results[1]; 
+        vnticks = 6; 
+        vndigits = 0; 
+        for (int i=0; i<=5; i++)
+          vticks[i] = i*20; 
+    }
+
+
+    private OTF2D getOTF2D()
+    // H2D: brought up to the rays landed since; else cached diffraction.
+    {
+        if (!bDiffraction)
+          return myH2DPanel.getOTF(); 
+        int ig = U.parseInt(DMF.reg.getuo(UO_MTF, 4)) - 1; 
+        diff = DiffPSF.get(Math.max(0, ig)); 
+        return (diff != null) ? diff.getOTF() : null; 
+    }
+
+
+    private void doArt2D()
+    {
+        OTF2D otf = getOTF2D(); 
+        if (otf == null)
+        {
+            addFurniture(0.0, 0.0, "frequency", "%MTF"); 
+            myGJIF.postWarning("No diffraction PSF: check WFE group and wavelength"); 
+            return; 
+        }
+        if (bDiffraction)
+          myGJIF.postWarning(""); 
+        double az[] = {0.0, 90.0, azimuth}; 
+        for (int c=0; c<3; c++)
+          otf.getCurve(az[c], freqspan, curves[c]); 
+
+        if (bMap)
+        {
+            addFurniture(hticks[0], vticks[0], "H frequency", "V frequency"); 
+            double sh = otf.getStepH(); 
+            double sv = otf.getStepV(); 
+            int mh = (int) Math.floor(freqspan/sh); 
+            int mv = (int) Math.floor(freqspan/sv); 
+            for (int kh=-mh; kh<=mh; kh++)
+              for (int kv=-mv; kv<=mv; kv++)
+                addCell((kh-0.5)*sh, (kv-0.5)*sv, sh, sv, otf.getMTF(kh, kv)); 
+            return; 
+        }
+
+        boolean bAngular = bDiffraction && diff.isAngular(); 
+        addCurves(bAngular ? "cycles/radian" : "frequency", 
+                  bDiffraction ? "Strehl " + U.fwd(diff.getStrehl(), 6, 3).trim() : ""); 
+    }  // end of doArt2D()
+
+
+    private RayOTF getRayOTF()
+    {
+        if (myH2DPanel != null)
+          return myH2DPanel.getRayOTF(); 
+        return (myH1DPanel != null) ? myH1DPanel.getRayOTF() : null; 
+    }
+
+
+    private void doArtDirect()
+    // Curves or map from the rays' characteristic function, no bins.
+    {
+        RayOTF rays = getRayOTF(); 
+        if (rays == null)
+        {
+            addFurniture(0.0, 0.0, "frequency", "%MTF"); 
+            myGJIF.postWarning("No rays kept: redraw the histogram with direct MTF set"); 
+            return; 
+        }
+        myGJIF.postWarning(""); 
+        rays.update(); 
+        if (bMap)
+        {
+            addFurniture(hticks[0], vticks[0], "H frequency", "V frequency"); 
+            int m = RayOTF.NMAP; 
+            double s = freqspan / m; 
+            for (int i=0; i<=2*m; i++)      // V
+              for (int p=0; p<=2*m; p++)    // H
+                addCell((p-m-0.5)*s, (i-m-0.5)*s, s, s, rays.getMTF(i, p)); 
+            return; 
+        }
+        for (int c=0; c<getNcurves(); c++)
+          rays.getCurve(c, curves[c]); 
+        addCurves("frequency", rays.getCount() + " rays, no bins"); 
+    }
+
+
+    private int getNcurves()
+    // 1D direct has only H.
+    {
+        return (bDirect && (myH2DPanel == null)) ? 1 : 3; 
+    }
+
+
+    private void addCell(double x, double y, double w, double h, double d)
+    // One colored map rectangle at lower left (x,y), MTF d.
+    {
+        addRaw(U.getRed(d), U.getGreen(d), U.getBlue(d), SETRGB, QBASE); 
+        add2D(x, y, MOVETO); 
+        add2D(x+w, y, PATHTO); 
+        add2D(x+w, y+h, PATHTO); 
+        add2D(x, y+h, PATHTO); 
+        add2D(x, y, FILL); 
+    }
+
+
+    private void addCurves(String htitle, String note)
+    // Rulers, then curves[] with a legend at upper right and a note below.
+    {
+        addFurniture(0.0, 0.0, htitle, "%MTF"); 
+        int iFontcode = getUOGraphicsFontCode();  
+        int iHpoints = iFontcode / 10000;     
+        int iWpoints = 1 + iHpoints / 2;   
+        double scaledW = iWpoints * uxspan / dUOpixels; 
+        double scaledH = iHpoints * uyspan / dUOpixels; 
+        int colors[] = {BLACK, RED, BLUE}; 
+        String names[] = {"sagittal (H)", "tangential (V)", 
+                          "azimuth " + U.fwe(azimuth)}; 
+        double dx = freqspan / (NCURVE-1); 
+        int ncurves = getNcurves(); 
+        for (int c=0; c<ncurves; c++)
+        {
+            addRaw(0., 0., 0., SETCOLOR+colors[c], QBASE); 
+            for (int i=0; i<NCURVE; i++)
+            {
+                int op = (i==0) ? MOVETO : ((i < NCURVE-1) ? PATHTO : STROKE); 
+                add2D(i*dx, 100*curves[c][i], op); 
+            }
+
+            // legend at upper right, in the curve's color
+            String s = names[c]; 
+            double y = 100.0 - (c+0.5)*scaledH; 
+            for (int k=0; k<s.length(); k++)
+            {
+                int ic = (int) s.charAt(k) + iFontcode; 
+                add2D(freqspan + scaledW*(k-s.length()), y, ic); 
+            }
+        }
+        addRaw(0., 0., 0., SETCOLOR+BLACK, QBASE); 
+        double y = 100.0 - (ncurves+0.5)*scaledH; 
+        for (int k=0; k<note.length(); k++)
+        {
+            int ic = (int) note.charAt(k) + iFontcode; 
+            add2D(freqspan + scaledW*(k-note.length()), y, ic); 
+        }
+    }  // end of addCurves()
 }
 
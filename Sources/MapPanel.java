@@ -8,7 +8,10 @@ import java.awt.event.*;   // Events
 
 @SuppressWarnings("serial")
 
-/** March 2015: adopted explicit QBASE for artwork quads. 
+/** Finished cells are checkpointed every Checkpoint.SAVEMILLIS, and a 
+  * restarted Map on identical optics, rays, media and options resumes
+  * at the first unfinished cell.  See resumeCheckpoint().
+  * March 2015: adopted explicit QBASE for artwork quads. 
   * March 2015: improved output text file, including .CSV format.
   * 2012: Scales added for HorVar and VertVar
   * 2011: With this plan every options starts a fresh new run.
@@ -128,6 +131,8 @@ public class MapPanel extends GPanel // implements Runnable
     private boolean bCSV; 
     private String  sOutfile; 
     private boolean bOutfile; 
+    private int     zernTerms[] = new int[0];  // nonempty: map their rss
+    private int     energyType = -1;    // 0=EE, 1=ES: map its diameter
     
     //-----derived AttribSurf codes from user options---
     
@@ -231,8 +236,65 @@ public class MapPanel extends GPanel // implements Runnable
         bPleaseParseUO = false; 
         goodBunches = 0; 
         dList = new ArrayList<Double>(); // zero data.        
+        resumeCheckpoint(); // finished cells from an interrupted run
         startBunches(); // starts the timing loop
     }
+
+
+    private void resumeCheckpoint()
+    // Called by startMap() after a good parse. 
+    // Reloads finished cells if a checkpoint matches this content. 
+    {
+        ckpHash = Checkpoint.getContentHash(new int[] {UO_MAP, UO_CONFIG, UO_ENERGY}); 
+        ckpTime = System.currentTimeMillis(); 
+        DataInputStream dis = Checkpoint.load(UO_MAP, ckpHash); 
+        if (dis == null)
+          return; 
+        ArrayList<Double> dSaved = new ArrayList<Double>(); 
+        ArrayList<String> sSaved = new ArrayList<String>(); 
+        try
+        {
+            int ncells = dis.readInt(); 
+            int ngood = dis.readInt(); 
+            if ((ncells < 0) || (ncells >= maxBunches))
+              return; 
+            for (int k=0; k<ncells; k++)
+              dSaved.add(Double.valueOf(dis.readDouble())); 
+            int nstrings = dis.readInt(); 
+            for (int k=0; k<nstrings; k++)
+              sSaved.add(dis.readUTF()); 
+            dList = dSaved; 
+            goodBunches = ngood; 
+            if (bOutfile && (nstrings > 0))
+              sList = sSaved; 
+        }
+        catch (IOException e)
+        {}
+    }
+
+
+    private void saveCheckpoint()
+    // Called periodically by the timer; a few bytes per cell.
+    {
+        ckpTime = System.currentTimeMillis(); 
+        try
+        {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(); 
+            DataOutputStream dos = new DataOutputStream(bos); 
+            dos.writeInt(dList.size()); 
+            dos.writeInt(goodBunches); 
+            for (int k=0; k<dList.size(); k++)
+              dos.writeDouble(dList.get(k).doubleValue()); 
+            int nstrings = (bOutfile && (sList != null)) ? sList.size() : 0; 
+            dos.writeInt(nstrings); 
+            for (int k=0; k<nstrings; k++)
+              dos.writeUTF(sList.get(k)); 
+            dos.close(); 
+            Checkpoint.save(UO_MAP, ckpHash, bos.toByteArray()); 
+        }
+        catch (IOException e)
+        {}
+    }
     
     
     private String doParseUO() 
@@ -247,6 +309,9 @@ public class MapPanel extends GPanel // implements Runnable
           return "No surfaces are defined"; 
         if (nrays<2)
           return "Fewer than two rays are defined"; 
+        String cwarn = Config.parse(); 
+        if (cwarn.length() > 0)
+          return cwarn; 
           
         //---find out which mapType radio button is true-------
 
@@ -287,6 +352,26 @@ public class MapPanel extends GPanel // implements Runnable
             bCSV = temp.endsWith(".CSV");
         }
 
+        ArrayList<String> zlist = new ArrayList<String>(); 
+        int nz = U.tokenize(DMF.reg.getuo(UO_MAP, 21), " ,;", zlist); 
+        zernTerms = new int[nz]; 
+        for (int i=0; i<nz; i++)
+        {
+            zernTerms[i] = U.suckInt(zlist.get(i)); 
+            if ((zernTerms[i] < 0) || (zernTerms[i] >= RNZERN) 
+            || Double.isNaN(U.suckDouble(zlist.get(i))))
+              return "Zernike term unknown: "+zlist.get(i); 
+        }
+
+        String sEnergy = DMF.reg.getuo(UO_MAP, 22).trim().toUpperCase(); 
+        energyType = -1; 
+        if (sEnergy.equals("EE"))
+          energyType = 0; 
+        else if (sEnergy.equals("ES"))
+          energyType = 1; 
+        else if (sEnergy.length() > 0)
+          return "Energy type unknown: "+sEnergy; 
+
 
         //----test the map parameters for validity----
         
@@ -323,7 +408,10 @@ public class MapPanel extends GPanel // implements Runnable
         if (bOutfile)
         {
             sList = new ArrayList<String>(); 
-            String s = "  "+sVvar+",   "+sHvar+",  Ngood,   Xf,   Yf,   Zf,  "+sType[mapType]; 
+            String sMetric = (zernTerms.length > 0) ? "Zernike" : sType[mapType]; 
+            if (energyType >= 0)
+              sMetric = ((energyType == 0) ? "EE" : "ES") + Math.round(100*Energy.getFraction()); 
+            String s = "  "+sVvar+",   "+sHvar+",  Ngood,   Xf,   Yf,   Zf,  "+sMetric; 
             // sVvar, sHvar reversed 16 Feb 2015
             sList.add(s); 
         }
@@ -333,7 +421,7 @@ public class MapPanel extends GPanel // implements Runnable
     } // end of doParseUO()
 
 
-    private static boolean parseOneStepVar(String s, int ij[], int ngroups)
+    static boolean parseOneStepVar(String s, int ij[], int ngroups)
     // Parses one candidate StepVar specification.
     // Returns ij[0] = iattribute and ij[1] = jsurf;
     //
@@ -448,6 +536,8 @@ public class MapPanel extends GPanel // implements Runnable
     // RAYS ONLY; DOES NOT CALL ANY DISPLAY SOFTWARE. 
     // The timing driver will call GPanel.redo() after each pass here. 
     {   
+        long t0 = TraceStats.begin(); 
+
         //-----initialize the optical relocation deltas---
         
         int sofar = dList.size(); // the next cell to evaluate
@@ -514,34 +604,61 @@ public class MapPanel extends GPanel // implements Runnable
         for (int kray=0; kray<=nrays; kray++)
           RT13.iWFEgroup[kray] = 0;   // all rays are in WFEgroup zero
         
+        //---With multiple configurations, each is traced in turn---
+        //---and the cell shows the worst; see Config.java.----------
+
         double d = -0.0; 
-        int ngood = RT13.iBuildRays(true);  // builds all rays
-        if (ngood < minGood)
-          d = BADCELL; 
-        else 
+        String s = null; 
+        boolean bGood = true; 
+        int nconf = Config.getCount(); 
+        int cfirst = 1; 
+        int clast = nconf; 
+        if ((nconf > 1) && (Config.getView() > 0))
+          cfirst = clast = Config.getView(); 
+        for (int iconf=cfirst; iconf<=clast; iconf++)
         {
-            goodBunches++; 
+            int ngood = (nconf > 1) ? Config.iBuildRays(iconf, true)
+                                    : RT13.iBuildRays(true);  // builds all rays
+            if ((ngood < minGood) || (d == BADCELL))
+            {
+                bGood = bGood && (ngood >= minGood); 
+                d = BADCELL; 
+                continue; 
+            }
+            double dc = BADCELL; 
             switch(mapType)
             {
-               case 0:   d = getRmsWFE(); break; 
-               case 1:   d = getPvWFE(); break; 
-               case 2:   d = 0.707107*getRssPSF(); break; 
-               case 3:   d = getRssPSF(); break; 
-               default:  d = BADCELL; 
+               case 0:   dc = getRmsWFE(); break; 
+               case 1:   dc = getPvWFE(); break; 
+               case 2:   dc = 0.707107*getRssPSF(); break; 
+               case 3:   dc = getRssPSF(); break; 
             }
+            if (zernTerms.length > 0)
+              dc = Zernike.getRss(0, zernTerms);   // all rays are in group zero
+            if (energyType >= 0)
+              dc = Energy.getTableDiameter(0, energyType == 1); 
+            if ((iconf > cfirst) && (dc != BADCELL) && (dc <= d))
+              continue;   // not the worst configuration
+            d = dc; 
             if (bOutfile)
             {
                 char c = bCSV ? ',' : ' ';
-                String s = U.fwd(dV1,16,9)+c     // reversed 16 Feb 2015
+                s = U.fwd(dV1,16,9)+c            // reversed 16 Feb 2015
                   +U.fwd(dH1,16,9)+c             // reversed 16 Feb 2015
                   +U.fwi(ngood,9)+c
                   +U.fwd(getAverage(RX),16,6)+c  // centroid Xfinal
                   +U.fwd(getAverage(RY),16,6)+c  // centroid Yfinal
                   +U.fwd(getAverage(RZ),16,6)+c  // centroid Zfinal
                   +U.fwd(d,16,9);                // selected metric
-                sList.add(s); 
             }
         }
+        Config.restore(); 
+        if (bGood)
+        {
+            goodBunches++; 
+            if (s != null)
+              sList.add(s); 
+        }
         dList.add(new Double(d)); ////// this is it!
         
         //----finally, undo the parameter step-------
@@ -566,6 +683,7 @@ public class MapPanel extends GPanel // implements Runnable
           RT13.surfs[asV[1]][asV[0]] = vOptsave; 
           
         RT13.setEulers();       // meat ax approach
+        TraceStats.end(TraceStats.EV_MAPCELL, t0); 
     } 
 
     
@@ -949,12 +1067,14 @@ public class MapPanel extends GPanel // implements Runnable
     private int goodcount=0;
     private int iBunch=0; 
     private boolean bRunning = true; 
+    private long ckpHash = 0;   // content hash for Checkpoint
+    private long ckpTime = 0;   // time of last checkpoint
 
     private void startBunches()
     {
         nrays = DMF.giFlags[RNRAYS]; 
         goodcount = 0; 
-        iBunch = 0; 
+        iBunch = dList.size();  // nonzero if resumed from a checkpoint
         myTimer = new javax.swing.Timer(20, doTick); 
         bRunning = true; 
         myTimer.start(); 
@@ -970,11 +1090,14 @@ public class MapPanel extends GPanel // implements Runnable
                 iBunch++; 
                 if (iBunch >= maxBunches)
                   bRunning = false; 
+                else if (System.currentTimeMillis()-ckpTime > Checkpoint.SAVEMILLIS)
+                  saveCheckpoint(); 
                 redo();  // GPanel: myBatchList -> g2Tech, and blit.
             }
             else
             {
                 myTimer.stop(); 
+                Checkpoint.delete(UO_MAP); 
                 doFinishFile(); 
             }
         } 
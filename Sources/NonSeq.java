@@ -0,0 +1,296 @@
+package com.stellarsoftware.beam;
+
+/** NonSeq.java
+  *
+  *  Non-sequential tracing support: user options and a bounding volume
+  *  hierarchy over the surfaces.  In this mode a ray may strike any
+  *  surface in any order, as in a light pipe or a stray light path; see
+  *  RT13.iRunNonSeq() for the trace itself.
+  *
+  *  Each surface having an outer diameter gets an axis aligned box in
+  *  the lab frame, enclosing its aperture and its sag over the aperture.
+  *  The boxes are sorted into a binary tree by median split along the
+  *  longest axis.  getCandidates() walks the tree with the slab test and
+  *  returns the surfaces whose boxes the ray enters, nearest first, so
+  *  the tracer can stop testing once a box lies beyond its best hit.
+  *  Surfaces without a diameter, and all irises whose plates are
+  *  unbounded, are always candidates.
+  *
+  *  prepare() builds the tree after parsing and when the options change.
+  *  refresh() is called by RT13.setEulers() whenever the surfaces have
+  *  been moved, as by each AutoAdj or Map step: it refits the boxes and
+  *  keeps the tree, rebuilding only when a surface gains or loses its
+  *  box.  A tree refit this way may be less tight, never wrong.
+  *  The mode requires ungrouped optics; the final surface ends each ray.
+  *
+  *  All static methods; no constructor.
+  *
+  *  (c) 2015 STELLAR SOFTWARE all rights reserved.
+  */
+class NonSeq implements B4constants
+{
+    static final int NSAMP = 8;                   // sag samples per side
+
+    private static boolean bActive = false;
+    private static int maxHits = 50;
+
+    private static int nsurfs = 0;
+    private static int nfree = 0;                 // unbounded surfaces
+    private static int free[] = new int[MAXSURFS+1];
+    private static boolean bBounded[] = new boolean[MAXSURFS+1];
+    private static double box[][] = new double[MAXSURFS+1][6];  // xyz min, xyz max
+
+    private static int nnodes = 0;
+    private static double node[][] = new double[2*MAXSURFS+1][6];
+    private static int nodeLeft[] = new int[2*MAXSURFS+1];
+    private static int nodeRight[] = new int[2*MAXSURFS+1];
+    private static int nodeSurf[] = new int[2*MAXSURFS+1];     // leaf surface or 0
+
+
+    static boolean isActive()
+    {
+        return bActive;
+    }
+
+
+    static int getMaxHits()
+    {
+        return maxHits;
+    }
+
+
+    static void prepare()
+    // Reads the options and, if the mode is on, rebuilds the tree.
+    {
+        nsurfs = DMF.giFlags[ONSURFS];
+        bActive = "T".equals(DMF.reg.getuo(UO_NONSEQ, 0))
+               && (nsurfs >= 2) && (DMF.giFlags[ONGROUPS] == nsurfs);
+        maxHits = Math.max(1, Math.min(100000, U.suckInt(DMF.reg.getuo(UO_NONSEQ, 1))));
+        if (bActive)
+          build();
+    }
+
+
+    static void refresh()
+    // Refits the tree to the surfaces as now placed.
+    {
+        if (!bActive)
+          return;
+        if (nsurfs != DMF.giFlags[ONSURFS])
+        {
+            prepare();
+            return;
+        }
+        for (int j=1; j<=nsurfs; j++)
+          if (bBox(j) != bBounded[j])
+          {
+              build();
+              return;
+          }
+        for (int k=nnodes-1; k>=0; k--)   // children follow their parents
+        {
+            double b[] = node[k];
+            if (nodeSurf[k] > 0)
+            {
+                System.arraycopy(box[nodeSurf[k]], 0, b, 0, 6);
+                continue;
+            }
+            double l[] = node[nodeLeft[k]];
+            double r[] = node[nodeRight[k]];
+            for (int a=0; a<3; a++)
+            {
+                b[a] = Math.min(l[a], r[a]);
+                b[a+3] = Math.max(l[a+3], r[a+3]);
+            }
+        }
+    }
+
+
+    static int getCandidates(double ray[], int list[], double tlist[])
+    // Surfaces whose boxes the lab ray enters, sorted by entry distance.
+    // Unbounded surfaces are listed with entry distance zero.
+    // Uses only the caller's arrays, each at least MAXSURFS+1 long.
+    {
+        int n = 0;
+        for (int i=0; i<nfree; i++)
+        {
+            list[n] = free[i];
+            tlist[n++] = 0.0;
+        }
+        if (nnodes > 0)
+        {
+            double inv[] = new double[3];
+            inv[0] = 1.0/ray[RU];    // infinities are fine in the slab test
+            inv[1] = 1.0/ray[RV];
+            inv[2] = 1.0/ray[RW];
+            int stack[] = new int[2*MAXSURFS+1];
+            int sp = 0;
+            stack[sp++] = 0;
+            while (sp > 0)
+            {
+                int k = stack[--sp];
+                double t = dSlab(node[k], ray, inv);
+                if (t < 0.0)
+                  continue;
+                if (nodeSurf[k] > 0)
+                {
+                    int i = n++;      // insertion sort by entry distance
+                    while ((i > 0) && (tlist[i-1] > t))
+                    {
+                        list[i] = list[i-1];
+                        tlist[i] = tlist[i-1];
+                        i--;
+                    }
+                    list[i] = nodeSurf[k];
+                    tlist[i] = t;
+                }
+                else
+                {
+                    stack[sp++] = nodeLeft[k];
+                    stack[sp++] = nodeRight[k];
+                }
+            }
+        }
+        return n;
+    }
+
+
+    //-------------private methods---------------------
+
+    private static double dSlab(double b[], double ray[], double inv[])
+    // Entry distance of the ray into box b, zero if inside; -1 if missed.
+    {
+        double tmin = 0.0;
+        double tmax = Double.MAX_VALUE;
+        for (int a=0; a<3; a++)
+        {
+            double t1 = (b[a]   - ray[RX+a]) * inv[a];
+            double t2 = (b[a+3] - ray[RX+a]) * inv[a];
+            if (Double.isNaN(t1) || Double.isNaN(t2))  // parallel, on a face
+              continue;
+            tmin = Math.max(tmin, Math.min(t1, t2));
+            tmax = Math.min(tmax, Math.max(t1, t2));
+            if (tmax < tmin)
+              return -1.0;
+        }
+        return tmin;
+    }
+
+
+    private static void build()
+    {
+        int items[] = new int[MAXSURFS+1];
+        int nitems = 0;
+        nfree = 0;
+        for (int j=1; j<=nsurfs; j++)
+        {
+            bBounded[j] = bBox(j);
+            if (bBounded[j])
+              items[nitems++] = j;
+            else
+              free[nfree++] = j;
+        }
+        nnodes = 0;
+        if (nitems > 0)
+          iBuildNode(items, 0, nitems);
+    }
+
+
+    private static int iBuildNode(int items[], int lo, int hi)
+    // Returns the node index enclosing items[lo..hi-1].
+    {
+        int k = nnodes++;
+        double b[] = node[k];
+        for (int a=0; a<3; a++)
+        {
+            b[a] = Double.MAX_VALUE;
+            b[a+3] = -Double.MAX_VALUE;
+        }
+        for (int i=lo; i<hi; i++)
+          for (int a=0; a<3; a++)
+          {
+              b[a] = Math.min(b[a], box[items[i]][a]);
+              b[a+3] = Math.max(b[a+3], box[items[i]][a+3]);
+          }
+        if (hi-lo == 1)
+        {
+            nodeSurf[k] = items[lo];
+            return k;
+        }
+        nodeSurf[k] = 0;
+
+        //---median split of box centers along the longest axis----
+
+        int axis = 0;
+        for (int a=1; a<3; a++)
+          if (b[a+3]-b[a] > b[axis+3]-b[axis])
+            axis = a;
+        for (int i=lo+1; i<hi; i++)
+        {
+            int t = items[i];
+            double c = box[t][axis] + box[t][axis+3];
+            int m = i;
+            while ((m > lo) && (box[items[m-1]][axis] + box[items[m-1]][axis+3] > c))
+            {
+                items[m] = items[m-1];
+                m--;
+            }
+            items[m] = t;
+        }
+        int mid = (lo + hi)/2;
+        nodeLeft[k] = iBuildNode(items, lo, mid);
+        nodeRight[k] = iBuildNode(items, mid, hi);
+        return k;
+    }
+
+
+    private static boolean bBox(int j)
+    // Lab frame box around the aperture of surface j; false if unbounded.
+    {
+        double surf[] = RT13.surfs[j];
+        int type = (int) surf[OTYPE];
+        if ((type == OTIRIS) || (type == OTIRISARRAY))
+          return false;
+        double diay = surf[OODIAY];
+        double diax = surf[OODIAX];
+        if (U.isNegZero(diax))
+          diax = diay;
+        if ((diax <= TINY) || (diay <= TINY))
+          return false;
+        double x0 = surf[OFFOX] - 0.5*diax;
+        double y0 = surf[OFFOY] - 0.5*diay;
+        double zmin = 0.0, zmax = 0.0;
+        for (int i=0; i<=NSAMP; i++)
+          for (int k=0; k<=NSAMP; k++)
+          {
+              double z = Z.dGetZsurf(x0 + i*diax/NSAMP, y0 + k*diay/NSAMP, surf);
+              if (Double.isNaN(z) || Double.isInfinite(z))
+                continue;
+              zmin = Math.min(zmin, z);
+              zmax = Math.max(zmax, z);
+          }
+        double pad = TOL + 1E-6*Math.max(diax, diay);
+        double b[] = box[j];
+        for (int a=0; a<3; a++)
+        {
+            b[a] = Double.MAX_VALUE;
+            b[a+3] = -Double.MAX_VALUE;
+        }
+        for (int c=0; c<8; c++)   // the eight corners, local to lab
+        {
+            double x = ((c & 1) == 0) ? x0 - pad : x0 + diax + pad;
+            double y = ((c & 2) == 0) ? y0 - pad : y0 + diay + pad;
+            double z = ((c & 4) == 0) ? zmin - pad : zmax + pad;
+            double p[] = new double[3];
+            p[0] = surf[OX] + surf[OE11]*x + surf[OE12]*y + surf[OE13]*z;
+            p[1] = surf[OY] + surf[OE21]*x + surf[OE22]*y + surf[OE23]*z;
+            p[2] = surf[OZ] + surf[OE31]*x + surf[OE32]*y + surf[OE33]*z;
+            for (int a=0; a<3; a++)
+            {
+                b[a] = Math.min(b[a], p[a]);
+                b[a+3] = Math.max(b[a+3], p[a]);
+            }
+        }
+        return true;
+    }
+}
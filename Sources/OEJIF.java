@@ -382,6 +382,7 @@ class OEJIF extends EJIF
         //------------set the Euler angle matrix------------------
 
         RT13.setEulers(); 
+        NonSeq.prepare();   // the tree of surface boxes
 
         //------------Test each surface for groovyness----------------
         for (int j=1; j<=nsurfs; j++)
@@ -0,0 +1,261 @@
+package com.stellarsoftware.beam;
+
+/** OTF2D.java
+  *
+  *  Optical transfer function of a 2D point spread histogram, kept up to
+  *  date as random rays land.  The bins are zero padded to a power of two
+  *  at least twice their count on each axis, at most MAXPAD, and are
+  *  transformed by U.fft2(), bin (i,j) at index i*npad[1]+j
+  *  just as in HistoBins.
+  *
+  *  A histogram with more than MAXPAD bins on an axis is not padded on it,
+  *  only rounded up to a power of two.
+  *
+  *  update() keeps the counts it last transformed.  Since the transform is
+  *  linear, a bin whose count changed by d adds d times its own plane wave
+  *  to the OTF.  The waves of one row of bins share their H factor, so the
+  *  changes of each row are first summed along V from the twiddle tables,
+  *  then spread over the grid in a single pass per row: any number of
+  *  changed bins in a few rows costs about one pass per row.  When the
+  *  changes fall in more rows than that is cheaper for, as when a bunch of
+  *  random rays lands across the whole spot, the grid is redone by FFT;
+  *  for a histogram scaled to its spot that is the common case.  A redraw
+  *  with no new rays costs only the comparison.
+  *
+  *  The MTF is the OTF modulus normalized by its zero frequency value.
+  *  Frequencies are in cycles per unit of the histogram axes: step
+  *  1/(npad*binwidth) on each axis, so the Nyquist frequency is
+  *  1/(2*binwidth).  getCurve() gives the MTF along any azimuth by
+  *  bilinear interpolation: 0 degrees is along H, 90 along V.
+  *
+  *  Used by H2DPanel.getOTF() and MTFPanel.
+  *
+  *  (c) 2015 STELLAR SOFTWARE all rights reserved.
+  */
+class OTF2D
+{
+    static final int MAXPAD = 256;
+
+    private int nh, nv;                  // histogram bins
+    private double dh, dv;               // bin widths
+    private int npad[] = new int[2];     // padded sizes, powers of two
+    private int last[];                  // counts last transformed
+    private double otf[];                // real, imag, real...
+    private double cosh[], sinh[], cosv[], sinv[];   // twiddles
+    private double rowre[], rowim[];     // one row's changes along V
+
+
+    OTF2D(int nhbins, int nvbins, double hwidth, double vwidth)
+    {
+        nh = Math.max(1, nhbins);
+        nv = Math.max(1, nvbins);
+        dh = hwidth;
+        dv = vwidth;
+        npad[0] = getPad(nh);
+        npad[1] = getPad(nv);
+        last = new int[nh*nv];
+        otf = new double[2*npad[0]*npad[1]];
+        cosh = new double[npad[0]];
+        sinh = new double[npad[0]];
+        cosv = new double[npad[1]];
+        sinv = new double[npad[1]];
+        rowre = new double[npad[1]];
+        rowim = new double[npad[1]];
+        for (int i=0; i<npad[0]; i++)
+        {
+            cosh[i] = Math.cos(2*Math.PI*i/npad[0]);
+            sinh[i] = Math.sin(2*Math.PI*i/npad[0]);
+        }
+        for (int j=0; j<npad[1]; j++)
+        {
+            cosv[j] = Math.cos(2*Math.PI*j/npad[1]);
+            sinv[j] = Math.sin(2*Math.PI*j/npad[1]);
+        }
+    }
+
+
+    boolean isCompatible(int nhbins, int nvbins, double hwidth, double vwidth)
+    {
+        return (nhbins == nh) && (nvbins == nv) && (hwidth == dh) && (vwidth == dv);
+    }
+
+
+    synchronized void update(int counts[])
+    // Brings the OTF up to counts[i*nvbins + j].
+    {
+        int nchanged = 0, nrows = 0;
+        boolean bRow[] = new boolean[nh];
+        for (int k=0; k<nh*nv; k++)
+          if (counts[k] != last[k])
+          {
+              nchanged++;
+              if (!bRow[k/nv])
+                nrows++;
+              bRow[k/nv] = true;
+          }
+        if (nchanged == 0)
+          return;
+        long ngrid = (long) npad[0]*npad[1];
+        int nlog = 0;
+        while ((1L << nlog) < ngrid)
+          nlog++;
+        long direct = 8L*nrows*ngrid + 4L*nchanged*npad[1];   // flops
+        long fft = 5L*ngrid*nlog;
+        if (direct < fft)
+        {
+            for (int i=0; i<nh; i++)
+              if (bRow[i])
+                addRow(i, counts);
+            return;
+        }
+        System.arraycopy(counts, 0, last, 0, nh*nv);
+        java.util.Arrays.fill(otf, 0.0);
+        for (int i=0; i<nh; i++)
+          for (int j=0; j<nv; j++)
+            otf[2*(i*npad[1] + j)] = last[i*nv + j];
+        U.fft2(otf, npad[0], npad[1], 1);
+    }
+
+
+    synchronized void load(double values[])
+    // Transforms a real grid values[i*nvbins + j] whole, as DiffPSF.
+    {
+        java.util.Arrays.fill(otf, 0.0);
+        for (int i=0; i<nh; i++)
+          for (int j=0; j<nv; j++)
+            otf[2*(i*npad[1] + j)] = values[i*nv + j];
+        U.fft2(otf, npad[0], npad[1], 1);
+    }
+
+
+    int getPadH()
+    {
+        return npad[0];
+    }
+
+
+    int getPadV()
+    {
+        return npad[1];
+    }
+
+
+    double getSpan()
+    // Larger histogram extent, units of the axes.
+    {
+        return Math.max(nh*dh, nv*dv);
+    }
+
+
+    double getStepH()
+    // Frequency step along H, cycles per unit.
+    {
+        return 1.0/(npad[0]*dh);
+    }
+
+
+    double getStepV()
+    {
+        return 1.0/(npad[1]*dv);
+    }
+
+
+    synchronized double getMTF(int kh, int kv)
+    // Normalized modulus at signed frequency indices; wraps negatives.
+    {
+        double zero = Math.hypot(otf[0], otf[1]);
+        if (zero <= 0.0)
+          return 0.0;
+        kh = ((kh % npad[0]) + npad[0]) % npad[0];
+        kv = ((kv % npad[1]) + npad[1]) % npad[1];
+        int k = 2*(kh*npad[1] + kv);
+        return Math.hypot(otf[k], otf[k+1])/zero;
+    }
+
+
+    double getNyquist(double azdeg)
+    // Highest frequency along an azimuth that stays within both Nyquists.
+    {
+        double c = Math.abs(Math.cos(Math.toRadians(azdeg)));
+        double s = Math.abs(Math.sin(Math.toRadians(azdeg)));
+        double fh = (c > 1E-9) ? 0.5/(dh*c) : Double.MAX_VALUE;
+        double fv = (s > 1E-9) ? 0.5/(dv*s) : Double.MAX_VALUE;
+        return Math.min(fh, fv);
+    }
+
+
+    void getCurve(double azdeg, double fmax, double out[])
+    // MTF at out.length frequencies from 0 to fmax along azdeg.
+    {
+        int n = out.length;
+        double c = Math.cos(Math.toRadians(azdeg));
+        double s = Math.sin(Math.toRadians(azdeg));
+        for (int i=0; i<n; i++)
+        {
+            double f = (n > 1) ? fmax*i/(n-1) : 0.0;
+            out[i] = getInterpolated(f*c/getStepH(), f*s/getStepV());
+        }
+    }
+
+
+    //-------------private methods---------------------
+
+    private int getPad(int n)
+    {
+        int p = 1;
+        while ((p < 2*n) && (p < MAXPAD))
+          p *= 2;
+        while (p < n)      // finer than MAXPAD: unpadded
+          p *= 2;
+        return p;
+    }
+
+
+    private void addRow(int i, int counts[])
+    // Adds the plane waves of the changed bins of row i, same sign as
+    // U.fft2(), and takes their counts as transformed.
+    {
+        int ph = npad[0];
+        int pv = npad[1];
+        java.util.Arrays.fill(rowre, 0.0);
+        java.util.Arrays.fill(rowim, 0.0);
+        for (int j=0; j<nv; j++)
+        {
+            int k = i*nv + j;
+            int d = counts[k] - last[k];
+            if (d == 0)
+              continue;
+            last[k] = counts[k];
+            for (int kv=0; kv<pv; kv++)
+            {
+                int mv = (int) (((long) kv*j) % pv);
+                rowre[kv] += d*cosv[mv];
+                rowim[kv] += d*sinv[mv];
+            }
+        }
+        for (int kh=0; kh<ph; kh++)
+        {
+            int mh = (int) (((long) kh*i) % ph);
+            double ar = cosh[mh];
+            double ai = sinh[mh];
+            int base = 2*kh*pv;
+            for (int kv=0; kv<pv; kv++)
+            {
+                otf[base+2*kv]   += ar*rowre[kv] - ai*rowim[kv];
+                otf[base+2*kv+1] += ar*rowim[kv] + ai*rowre[kv];
+            }
+        }
+    }
+
+
+    private double getInterpolated(double x, double y)
+    // Bilinear MTF at fractional signed frequency indices.
+    {
+        int ix = (int) Math.floor(x);
+        int iy = (int) Math.floor(y);
+        double fx = x - ix;
+        double fy = y - iy;
+        return (1-fx)*(1-fy)*getMTF(ix, iy) + fx*(1-fy)*getMTF(ix+1, iy)
+             + (1-fx)*fy*getMTF(ix, iy+1) + fx*fy*getMTF(ix+1, iy+1);
+    }
+}
@@ -159,6 +159,116 @@ class Options extends JMenu implements B4constants
           });
         this.add(do2dItem); 
 
+        JMenuItem focusItem = new JMenuItem("Focus"); 
+        focusItem.addActionListener(new
+          ActionListener()
+          {
+             public void actionPerformed(ActionEvent ae)
+             {
+                doFocusDialog(owner); 
+             }
+          });
+        this.add(focusItem); 
+
+        JMenuItem energyItem = new JMenuItem("Energy"); 
+        energyItem.addActionListener(new
+          ActionListener()
+          {
+             public void actionPerformed(ActionEvent ae)
+             {
+                doEnergyDialog(owner); 
+             }
+          });
+        this.add(energyItem); 
+
+        JMenuItem ghostItem = new JMenuItem("Ghosts"); 
+        ghostItem.addActionListener(new
+          ActionListener()
+          {
+             public void actionPerformed(ActionEvent ae)
+             {
+                doGhostDialog(owner); 
+             }
+          });
+        this.add(ghostItem); 
+
+        JMenuItem imsimItem = new JMenuItem("Image Simulation"); 
+        imsimItem.addActionListener(new
+          ActionListener()
+          {
+             public void actionPerformed(ActionEvent ae)
+             {
+                doImageSimDialog(owner); 
+             }
+          });
+        this.add(imsimItem); 
+
+        JMenuItem configItem = new JMenuItem("Configurations"); 
+        configItem.addActionListener(new
+          ActionListener()
+          {
+             public void actionPerformed(ActionEvent ae)
+             {
+                doConfigDialog(owner); 
+             }
+          });
+        this.add(configItem); 
+
+        JMenuItem nonseqItem = new JMenuItem("NonSequential"); 
+        nonseqItem.addActionListener(new
+          ActionListener()
+          {
+             public void actionPerformed(ActionEvent ae)
+             {
+                doNonSeqDialog(owner); 
+             }
+          });
+        this.add(nonseqItem); 
+
+        JMenuItem symmItem = new JMenuItem("Symmetry"); 
+        symmItem.addActionListener(new
+          ActionListener()
+          {
+             public void actionPerformed(ActionEvent ae)
+             {
+                doSymmetryDialog(owner); 
+             }
+          });
+        this.add(symmItem); 
+
+        JMenuItem surrItem = new JMenuItem("Surrogate"); 
+        surrItem.addActionListener(new
+          ActionListener()
+          {
+             public void actionPerformed(ActionEvent ae)
+             {
+                doSurrogateDialog(owner); 
+             }
+          });
+        this.add(surrItem); 
+
+        JMenuItem previewItem = new JMenuItem("Preview"); 
+        previewItem.addActionListener(new
+          ActionListener()
+          {
+             public void actionPerformed(ActionEvent ae)
+             {
+                doPreviewDialog(owner); 
+             }
+          });
+        this.add(previewItem); 
+
+        JMenuItem mtfItem = new JMenuItem("MTF"); 
+        mtfItem.addActionListener(new
+          ActionListener()
+          {
+             public void actionPerformed(ActionEvent ae)
+             {
+                doMTFDialog(owner); 
+             }
+          });
+        this.add(mtfItem); 
+
         JMenuItem randomItem = new JMenuItem("Random"); 
         randomItem.addActionListener(new
           ActionListener()
@@ -589,9 +699,12 @@ class Options extends JMenu implements B4constants
         LabelDataBox percent = new LabelDataBox(UO_MAP, 18, NCHARS); 
         LabelDataBox aspect = new LabelDataBox(UO_MAP, 19, NCHARS); 
         LabelDataBox outbox = new LabelDataBox(UO_MAP, 20, 20); 
+        LabelDataBox zernbox = new LabelDataBox(UO_MAP, 21, NCHARS); 
+        LabelDataBox energybox = new LabelDataBox(UO_MAP, 22, NCHARS); 
 
         int result = JOptionPane.showOptionDialog(frame,
-           new Object[] {bhrb, bmbH, bmbV, percent, aspect, outbox},
+           new Object[] {bhrb, bmbH, bmbV, percent, aspect, outbox, zernbox,
+                         energybox},
            "Map Options", 
            JOptionPane.OK_CANCEL_OPTION, 
            JOptionPane.PLAIN_MESSAGE,
@@ -621,6 +734,8 @@ class Options extends JMenu implements B4constants
             DMF.reg.putuo(UO_MAP, 18, percent.getText()); 
             DMF.reg.putuo(UO_MAP, 19, aspect.getText()); 
             DMF.reg.putuo(UO_MAP, 20, outbox.getText());  
+            DMF.reg.putuo(UO_MAP, 21, zernbox.getText());  
+            DMF.reg.putuo(UO_MAP, 22, energybox.getText());  
             
             updateAllInstances("Map"); 
         }
@@ -739,10 +854,14 @@ class Options extends JMenu implements B4constants
         LabelDataBox vmin    = new LabelDataBox(UO_2D, 13, NCHARS);
         LabelDataBox vmax    = new LabelDataBox(UO_2D, 14, NCHARS); 
         BorHorizStereoBox bhsb = new BorHorizStereoBox("Format", UO_2D, 15, frame); 
+        LabelDataBox heat    = new LabelDataBox(UO_2D, 19, NCHARS); 
+        LabelBitBox bLog     = new LabelBitBox(UO_2D, 20); 
+        LabelDataBox contours = new LabelDataBox(UO_2D, 21, NCHARS); 
 
         int result = JOptionPane.showOptionDialog(frame,
            new Object[] {display, hvar, vvar, hbins, vbins,
-              elev, azim, bounds, hmin, hmax, vmin, vmax, bhsb}, 
+              elev, azim, bounds, hmin, hmax, vmin, vmax, bhsb,
+              heat, bLog, contours}, 
            "Histogram 2Dim Options", 
            JOptionPane.OK_CANCEL_OPTION, 
            JOptionPane.PLAIN_MESSAGE,
@@ -771,6 +890,9 @@ class Options extends JMenu implements B4constants
             for (int i=0; i<3; i++)
               DMF.reg.putuo(UO_2D, 15+i, bhsb.isSelected(i) ? "T" : "F"); 
             DMF.reg.putuo(UO_2D, 18, bhsb.getText()); 
+            DMF.reg.putuo(UO_2D, 19, heat.getText()); 
+            DMF.reg.putuo(UO_2D, 20, bLog.isSelected() ? "T" : "F"); 
+            DMF.reg.putuo(UO_2D, 21, contours.getText()); 
 
             updateAllInstances("Histo2Dim"); 
         }
@@ -779,6 +901,318 @@ class Options extends JMenu implements B4constants
 
 
 
+    void doFocusDialog(JFrame frame)
+    // through-focus options
+    {
+        LabelDataBox center  = new LabelDataBox(UO_FOCUS, 0, NCHARS); 
+        LabelDataBox span    = new LabelDataBox(UO_FOCUS, 1, NCHARS); 
+        LabelDataBox nplanes = new LabelDataBox(UO_FOCUS, 2, NCHARS); 
+        LabelBitBox showx    = new LabelBitBox(UO_FOCUS, 3); 
+        LabelBitBox showy    = new LabelBitBox(UO_FOCUS, 4); 
+        LabelBitBox showr    = new LabelBitBox(UO_FOCUS, 5); 
+
+        int result = JOptionPane.showOptionDialog(frame,
+           new Object[] {center, span, nplanes, showx, showy, showr}, 
+           "Through Focus Options", 
+           JOptionPane.OK_CANCEL_OPTION, 
+           JOptionPane.PLAIN_MESSAGE,
+           null, null, null); 
+
+        if (result == JOptionPane.OK_OPTION)
+        {
+            DMF.reg.putuo(UO_FOCUS, 0, center.getText()); 
+            DMF.reg.putuo(UO_FOCUS, 1, span.getText()); 
+            DMF.reg.putuo(UO_FOCUS, 2, nplanes.getText()); 
+            DMF.reg.putuo(UO_FOCUS, 3, showx.isSelected() ? "T" : "F"); 
+            DMF.reg.putuo(UO_FOCUS, 4, showy.isSelected() ? "T" : "F"); 
+            DMF.reg.putuo(UO_FOCUS, 5, showr.isSelected() ? "T" : "F"); 
+            updateAllInstances("Focus"); 
+        }
+    }
+
+
+
+
+    void doEnergyDialog(JFrame frame)
+    // encircled and ensquared energy; see Energy, EnergyPanel
+    {
+        LabelDataBox percent = new LabelDataBox(UO_ENERGY, 0, NCHARS); 
+        LabelBitBox bChief   = new LabelBitBox(UO_ENERGY, 1); 
+        LabelDataBox surface = new LabelDataBox(UO_ENERGY, 2, NCHARS); 
+        LabelDataBox group   = new LabelDataBox(UO_ENERGY, 3, NCHARS); 
+        LabelDataBox span    = new LabelDataBox(UO_ENERGY, 4, NCHARS); 
+        LabelBitBox bSquare  = new LabelBitBox(UO_ENERGY, 5); 
+
+        int result = JOptionPane.showOptionDialog(frame,
+           new Object[] {percent, bChief, surface, group, span, bSquare}, 
+           "Energy Options", 
+           JOptionPane.OK_CANCEL_OPTION, 
+           JOptionPane.PLAIN_MESSAGE,
+           null, null, null); 
+
+        if (result == JOptionPane.OK_OPTION)
+        {
+            DMF.reg.putuo(UO_ENERGY, 0, percent.getText()); 
+            DMF.reg.putuo(UO_ENERGY, 1, bChief.isSelected() ? "T" : "F"); 
+            DMF.reg.putuo(UO_ENERGY, 2, surface.getText()); 
+            DMF.reg.putuo(UO_ENERGY, 3, group.getText()); 
+            DMF.reg.putuo(UO_ENERGY, 4, span.getText()); 
+            DMF.reg.putuo(UO_ENERGY, 5, bSquare.isSelected() ? "T" : "F"); 
+            Energy.invalidate();    // center and surface may differ
+            updateAllInstances("Energy"); 
+        }
+    }
+
+
+
+
+    void doGhostDialog(JFrame frame)
+    // two-bounce ghost options; Ghost is a task so nothing to update.
+    {
+        LabelDataBox emin   = new LabelDataBox(UO_GHOST, 0, NCHARS); 
+        LabelDataBox nlist  = new LabelDataBox(UO_GHOST, 1, NCHARS); 
+
+        int result = JOptionPane.showOptionDialog(frame,
+           new Object[] {emin, nlist}, 
+           "Ghost Options", 
+           JOptionPane.OK_CANCEL_OPTION, 
+           JOptionPane.PLAIN_MESSAGE,
+           null, null, null); 
+
+        if (result == JOptionPane.OK_OPTION)
+        {
+            DMF.reg.putuo(UO_GHOST, 0, emin.getText()); 
+            DMF.reg.putuo(UO_GHOST, 1, nlist.getText()); 
+        }
+    }
+
+
+
+
+    void doImageSimDialog(JFrame frame)
+    // extended scene options; ImageSim is a task so nothing to update.
+    {
+        LabelDataBox hvar   = new LabelDataBox(UO_IMSIM, 0, NCHARS); 
+        LabelDataBox hspan  = new LabelDataBox(UO_IMSIM, 1, NCHARS); 
+        LabelDataBox vvar   = new LabelDataBox(UO_IMSIM, 2, NCHARS); 
+        LabelDataBox vspan  = new LabelDataBox(UO_IMSIM, 3, NCHARS); 
+        LabelDataBox nodes  = new LabelDataBox(UO_IMSIM, 4, NCHARS); 
+        LabelDataBox pixel  = new LabelDataBox(UO_IMSIM, 5, NCHARS); 
+        LabelDataBox kernel = new LabelDataBox(UO_IMSIM, 6, NCHARS); 
+        LabelDataBox tile   = new LabelDataBox(UO_IMSIM, 7, NCHARS); 
+        LabelBitBox bDiff   = new LabelBitBox(UO_IMSIM, 8); 
+
+        int result = JOptionPane.showOptionDialog(frame,
+           new Object[] {hvar, hspan, vvar, vspan, nodes, pixel, kernel,
+                         tile, bDiff}, 
+           "Image Simulation Options", 
+           JOptionPane.OK_CANCEL_OPTION, 
+           JOptionPane.PLAIN_MESSAGE,
+           null, null, null); 
+
+        if (result == JOptionPane.OK_OPTION)
+        {
+            DMF.reg.putuo(UO_IMSIM, 0, hvar.getText()); 
+            DMF.reg.putuo(UO_IMSIM, 1, hspan.getText()); 
+            DMF.reg.putuo(UO_IMSIM, 2, vvar.getText()); 
+            DMF.reg.putuo(UO_IMSIM, 3, vspan.getText()); 
+            DMF.reg.putuo(UO_IMSIM, 4, nodes.getText()); 
+            DMF.reg.putuo(UO_IMSIM, 5, pixel.getText()); 
+            DMF.reg.putuo(UO_IMSIM, 6, kernel.getText()); 
+            DMF.reg.putuo(UO_IMSIM, 7, tile.getText()); 
+            DMF.reg.putuo(UO_IMSIM, 8, bDiff.isSelected() ? "T" : "F"); 
+        }
+    }
+
+
+
+
+    void doConfigDialog(JFrame frame)
+    // multiple configuration table; see Config.java
+    {
+        int n = Config.MAXCONFIGS + 1; 
+        LabelDataBox boxes[] = new LabelDataBox[n]; 
+        for (int i=0; i<n; i++)
+          boxes[i] = new LabelDataBox(UO_CONFIG, i, 3*NCHARS); 
+
+        int result = JOptionPane.showOptionDialog(frame,
+           boxes, 
+           "Configuration Options", 
+           JOptionPane.OK_CANCEL_OPTION, 
+           JOptionPane.PLAIN_MESSAGE,
+           null, null, null); 
+
+        if (result == JOptionPane.OK_OPTION)
+        {
+            for (int i=0; i<n; i++)
+              DMF.reg.putuo(UO_CONFIG, i, boxes[i].getText()); 
+            String warn = Config.parse(); 
+            if (warn.length() > 0)
+              JOptionPane.showMessageDialog(frame, warn); 
+            updateAllInstances("Plot2Dim"); 
+            updateAllInstances("Map"); 
+        }
+    }
+
+
+
+
+
+    void doNonSeqDialog(JFrame frame)
+    // non-sequential tracing; see NonSeq.java
+    {
+        LabelBitBox bNonSeq = new LabelBitBox(UO_NONSEQ, 0); 
+        LabelDataBox maxhits = new LabelDataBox(UO_NONSEQ, 1, NCHARS); 
+
+        int result = JOptionPane.showOptionDialog(frame,
+           new Object[] {bNonSeq, maxhits}, 
+           "Non-sequential Options", 
+           JOptionPane.OK_CANCEL_OPTION, 
+           JOptionPane.PLAIN_MESSAGE,
+           null, null, null); 
+
+        if (result == JOptionPane.OK_OPTION)
+        {
+            DMF.reg.putuo(UO_NONSEQ, 0, bNonSeq.isSelected() ? "T" : "F"); 
+            DMF.reg.putuo(UO_NONSEQ, 1, maxhits.getText()); 
+            if (bNonSeq.isSelected() && (DMF.giFlags[ONGROUPS] != DMF.giFlags[ONSURFS]))
+              JOptionPane.showMessageDialog(frame, "Non-sequential: ungrouped optics only"); 
+            NonSeq.prepare();     // rebuilds the surface tree
+            updateAllInstances("GJIF"); 
+        }
+    }
+
+
+
+
+
+    void doSymmetryDialog(JFrame frame)
+    // reduced tracing of symmetric systems; see Symmetry.java
+    {
+        LabelBitBox bSymm = new LabelBitBox(UO_SYMM, 0); 
+
+        int result = JOptionPane.showOptionDialog(frame,
+           new Object[] {bSymm}, 
+           "Symmetry Options", 
+           JOptionPane.OK_CANCEL_OPTION, 
+           JOptionPane.PLAIN_MESSAGE,
+           null, null, null); 
+
+        if (result == JOptionPane.OK_OPTION)
+        {
+            DMF.reg.putuo(UO_SYMM, 0, bSymm.isSelected() ? "T" : "F"); 
+            if (bSymm.isSelected())   // checks every table ray once
+              JOptionPane.showMessageDialog(frame, Symmetry.validate()); 
+            updateAllInstances("GJIF"); 
+        }
+    }
+
+
+
+
+
+    void doSurrogateDialog(JFrame frame)
+    // interpolated random rays; see Surrogate.java
+    {
+        LabelBitBox bSurr = new LabelBitBox(UO_SURR, 0); 
+        LabelDataBox nodes = new LabelDataBox(UO_SURR, 1, NCHARS); 
+        LabelDataBox tol = new LabelDataBox(UO_SURR, 2, NCHARS); 
+
+        int result = JOptionPane.showOptionDialog(frame,
+           new Object[] {bSurr, nodes, tol}, 
+           "Surrogate Options", 
+           JOptionPane.OK_CANCEL_OPTION, 
+           JOptionPane.PLAIN_MESSAGE,
+           null, null, null); 
+
+        if (result == JOptionPane.OK_OPTION)
+        {
+            DMF.reg.putuo(UO_SURR, 0, bSurr.isSelected() ? "T" : "F"); 
+            DMF.reg.putuo(UO_SURR, 1, nodes.getText()); 
+            DMF.reg.putuo(UO_SURR, 2, tol.getText()); 
+            String s = Surrogate.prepare();   // builds the grids now
+            if (bSurr.isSelected())
+              JOptionPane.showMessageDialog(frame, s); 
+        }
+    }
+
+
+
+
+
+    void doPreviewDialog(JFrame frame)
+    // display precision of Layout and Plot2 random rays; see RT13
+    {
+        LabelBitBox bPreview = new LabelBitBox(UO_PREVIEW, 0); 
+        LabelDataBox frac = new LabelDataBox(UO_PREVIEW, 1, NCHARS); 
+
+        int result = JOptionPane.showOptionDialog(frame,
+           new Object[] {bPreview, frac}, 
+           "Preview Options", 
+           JOptionPane.OK_CANCEL_OPTION, 
+           JOptionPane.PLAIN_MESSAGE,
+           null, null, null); 
+
+        if (result == JOptionPane.OK_OPTION)
+        {
+            DMF.reg.putuo(UO_PREVIEW, 0, bPreview.isSelected() ? "T" : "F"); 
+            DMF.reg.putuo(UO_PREVIEW, 1, frac.getText()); 
+        }
+    }
+
+
+
+
+
+    void doMTFDialog(JFrame frame)
+    // 2D MTF of an H2D histogram or of diffraction; see MTFPanel, DiffPSF
+    {
+        LabelDataBox azimuth = new LabelDataBox(UO_MTF, 0, NCHARS); 
+        LabelBitBox bMap = new LabelBitBox(UO_MTF, 1); 
+        LabelBitBox bDiff = new LabelBitBox(UO_MTF, 2); 
+        LabelDataBox wavel = new LabelDataBox(UO_MTF, 3, NCHARS); 
+        LabelDataBox group = new LabelDataBox(UO_MTF, 4, NCHARS); 
+        LabelDataBox npupil = new LabelDataBox(UO_MTF, 5, NCHARS); 
+        LabelDataBox padding = new LabelDataBox(UO_MTF, 6, NCHARS); 
+        LabelBitBox bHuygens = new LabelBitBox(UO_MTF, 7); 
+        LabelDataBox hcutoff = new LabelDataBox(UO_MTF, 8, NCHARS); 
+        LabelBitBox bDirect = new LabelBitBox(UO_MTF, 9); 
+        LabelDataBox fmax = new LabelDataBox(UO_MTF, 10, NCHARS); 
+        boolean bWasDirect = RayOTF.isWanted(); 
+
+        int result = JOptionPane.showOptionDialog(frame,
+           new Object[] {azimuth, bMap, bDiff, wavel, group, npupil, padding,
+                         bHuygens, hcutoff, bDirect, fmax}, 
+           "MTF Options", 
+           JOptionPane.OK_CANCEL_OPTION, 
+           JOptionPane.PLAIN_MESSAGE,
+           null, null, null); 
+
+        if (result == JOptionPane.OK_OPTION)
+        {
+            DMF.reg.putuo(UO_MTF, 0, azimuth.getText()); 
+            DMF.reg.putuo(UO_MTF, 1, bMap.isSelected() ? "T" : "F"); 
+            DMF.reg.putuo(UO_MTF, 2, bDiff.isSelected() ? "T" : "F"); 
+            DMF.reg.putuo(UO_MTF, 3, wavel.getText()); 
+            DMF.reg.putuo(UO_MTF, 4, group.getText()); 
+            DMF.reg.putuo(UO_MTF, 5, npupil.getText()); 
+            DMF.reg.putuo(UO_MTF, 6, padding.getText()); 
+            DMF.reg.putuo(UO_MTF, 7, bHuygens.isSelected() ? "T" : "F"); 
+            DMF.reg.putuo(UO_MTF, 8, hcutoff.getText()); 
+            DMF.reg.putuo(UO_MTF, 9, bDirect.isSelected() ? "T" : "F"); 
+            DMF.reg.putuo(UO_MTF, 10, fmax.getText()); 
+            if (bWasDirect != bDirect.isSelected())   // histograms keep rays
+            {
+                updateAllInstances("Histo1Dim"); 
+                updateAllInstances("Histo2Dim"); 
+            }
+            updateAllInstances("MTF"); 
+        }
+    }
+
+
+
+
 
     void doRandomDialog(JFrame frame)
     // this version from A154 with distributions
@@ -793,8 +1227,13 @@ class Options extends JMenu implements B4constants
         BorVertRadioBox uvw = new BorVertRadioBox("U0 V0 W0", UO_RAND, 5, 2);         // two buttons
         BorVertRadioField brf = new BorVertRadioField("Distribution", UO_RAND,7,5);
 
+        // convergence stopping, evaluated by batch means: see Convergence
+        LabelBitBox conv = new LabelBitBox(UO_RAND, 13); 
+        LabelDataBox relerr = new LabelDataBox(UO_RAND, 14, NCHARS); 
+        LabelDataBox minref = new LabelDataBox(UO_RAND, 15, NCHARS); 
+
         int result = JOptionPane.showOptionDialog(frame,
-           new Object[] {refresh, tries, succ, xyz, uvw, brf}, 
+           new Object[] {refresh, tries, succ, xyz, uvw, brf, conv, relerr, minref}, 
            "Random Ray Options", 
            JOptionPane.OK_CANCEL_OPTION, 
            JOptionPane.PLAIN_MESSAGE,
@@ -815,6 +1254,10 @@ class Options extends JMenu implements B4constants
             for (int i=0; i<5; i++)   // five buttons
               DMF.reg.putuo(UO_RAND, 7+i, brf.isSelected(i) ? "T" : "F"); 
             DMF.reg.putuo(UO_RAND, 12, brf.getText()); 
+            DMF.reg.putuo(UO_RAND, 13, conv.isSelected() ? "T" : "F"); 
+            DMF.reg.putuo(UO_RAND, 14, relerr.getText().trim()); 
+            s = minref.getText(); 
+            DMF.reg.putuo(UO_RAND, 15, sNumber(s, 999999999)); 
         }
     }
     
@@ -42,6 +42,9 @@ public class Plot2Panel extends GPanel
     private boolean blackbkg = false; 
     private boolean badUO = false;  
 
+    private double bh=0, bv=0, bhh=0, bvv=0;  // batch sums for Random
+    private int    bcount = 0; 
+
 
     //----------------public methods------------------------
 
@@ -101,6 +104,24 @@ public class Plot2Panel extends GPanel
         return drawOneRandomRay(); 
     }
 
+    double[] getBatchMetrics()  // overrides GPanel hook for Random
+    // Returns {hcentroid, vcentroid, rms radius} of this batch of plotted rays.
+    {
+        if (bcount < 2)
+          return null; 
+        double hc = bh/bcount; 
+        double vc = bv/bcount; 
+        double var = bhh/bcount - hc*hc + bvv/bcount - vc*vc; 
+        resetBatch(); 
+        return new double[] {hc, vc, Math.sqrt(Math.max(0.0, var))}; 
+    }
+
+    void resetBatch()           // overrides GPanel hook for Random
+    {
+        bh = bv = bhh = bvv = 0.0; 
+        bcount = 0; 
+    }
+
     protected void doCursor(int ix, int iy)  // replaces abstract method
     // Given mouse cursor coordinates in pixels, 
     // delivers current cursor user coordinates
@@ -412,8 +433,36 @@ public class Plot2Panel extends GPanel
 
         /// finally... draw the table ray hits. 
 
-        for (int k=1; k<=nrays; k++)
-          drawOneTableRay(k); // not random ray
+        Config.parse(); 
+        int nconf = Config.getCount(); 
+        if (nconf < 2)
+        {
+            for (int k=1; k<=nrays; k++)
+              drawOneTableRay(k); // not random ray
+            return; 
+        }
+
+        /// multiple configurations: overlaid, each with its own symbol;
+        /// the base is retraced last so Random continues from it. 
+
+        int symbols[] = {DOT, PLUS, SQUARE, DIAMOND}; 
+        int iBase = iSymbol; 
+        int i0 = 0; 
+        while ((i0 < 3) && (symbols[i0] != iBase))
+          i0++; 
+        int iView = Config.getView(); 
+        for (int c=1; c<=nconf; c++)
+          if ((iView == 0) || (iView == c))
+          {
+              Config.iBuildRays(c, true); 
+              if (iView == 0)
+                iSymbol = symbols[(i0+c-1) % 4]; 
+              for (int k=1; k<=nrays; k++)
+                drawOneTableRay(k); 
+          }
+        iSymbol = iBase; 
+        Config.restore(); 
+        ngood = RT13.iBuildRays(true); 
 
     }  //------------------end of doArt()
     
@@ -467,7 +516,10 @@ public class Plot2Panel extends GPanel
 
         boolean bStatus;
 
-        RT13.bRunRandomRay();   // run one random ray.
+        if (isLength(hattr) && isLength(vattr))   // pixels are lengths
+          RT13.bRunPreviewRay(getPreviewTol()); 
+        else
+          RT13.bRunRandomRay();   // run one random ray.
         bStatus = (RT13.getHowfarRay(0) >= jmin);
 
         if (bStatus)
@@ -481,6 +533,11 @@ public class Plot2Panel extends GPanel
             double xxx = RT13.dGetRay(0, hsurf, hattr); 
             double yyy = RT13.dGetRay(0, vsurf, vattr); 
             addScaled(xxx, yyy, 0., iSymbol+icolor, QBATCH);  
+            bh += xxx; 
+            bv += yyy; 
+            bhh += xxx*xxx; 
+            bvv += yyy*yyy; 
+            bcount++; 
             if ((jOtherSurface > 0) && (hsurf == vsurf))
             {
                xxx = RT13.dGetRay(0, jOtherSurface, hattr); 
@@ -507,4 +564,12 @@ public class Plot2Panel extends GPanel
           myOther = 0; 
         return myOther;
     }
+
+
+    private static boolean isLength(int attr)
+    // Positions only: a preview tolerance in pixels means nothing 
+    // for directions, angles, path or WFE.
+    {
+        return ((attr >= RX) && (attr <= RZ)) || ((attr >= RTXL) && (attr <= RTZL)); 
+    }
 }
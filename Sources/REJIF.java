@@ -151,6 +151,10 @@ class REJIF extends EJIF
             } 
             if ((op>=RGOAL) && (op<RGOAL+13))    // RGOAL=10100=Xg; 10101=YG; ... 10112=wg.
               ngoals++; 
+            if ((op>=RGOAL+RTZERN) && (op<RGOAL+RTZERN+RNZERN))  // Zern4g etc
+              ngoals++; 
+            if ((op == RGOAL+RTEE) || (op == RGOAL+RTES))        // EEg, ESg
+              ngoals++; 
             if (op % 100 == RTWFE)
               DMF.giFlags[RWFEFIELD] = fwfe = field; 
         }
@@ -219,14 +223,16 @@ class REJIF extends EJIF
             // but don't store them anywhere.  
             // InOut and Auto will store them internally as needed.
 
-            if ((op >= RGOAL) && (op <= RGOAL+RTWL))  // greater than 10100 !!
+            boolean bZern = (op>=RGOAL+RTZERN) && (op<RGOAL+RTZERN+RNZERN)
+                         || (op == RGOAL+RTEE) || (op == RGOAL+RTES);   // per WFE group
+            if ((op >= RGOAL) && (op <= RGOAL+RTWL) || bZern)  // greater than 10100 !!
             {   
-                if (DMF.giFlags[RAYGOALATT0] > RABSENT)
+                if (!bZern && (DMF.giFlags[RAYGOALATT0] > RABSENT))
                 {
                     DMF.giFlags[RAYGOALFIELD1] = field; 
                     DMF.giFlags[RAYGOALATT1] = op;
                 }
-                else
+                else if (!bZern)                   // Zernike goals: not for AutoRay
                 {
                     DMF.giFlags[RAYGOALFIELD0] = field; 
                     DMF.giFlags[RAYGOALATT0] = op; 
@@ -306,6 +312,19 @@ class REJIF extends EJIF
         if ((c0up=='W') && (c1up=='F') && (c2up=='E'))
           return RTWFE+RFINAL;
 
+        if (s.startsWith("ZERN"))   // Zernike term of the WFE group: Zern4, Zern4g
+        {
+            int n = U.suckInt(s); 
+            if ((len < 5) || (n >= RNZERN))
+              return RABSENT; 
+            return RTZERN + n + (s.endsWith("G") ? RGOAL : RFINAL); 
+        }
+
+        if (s.equals("EE") || s.equals("EEG"))   // encircled energy diameter, goal
+          return RTEE + ((len > 2) ? RGOAL : RFINAL); 
+        if (s.equals("ES") || s.equals("ESG"))   // ensquared energy width, goal
+          return RTES + ((len > 2) ? RGOAL : RFINAL); 
+
         /// calculate the surfcode:
         int surfcode = 0; 
         switch (c1up)   // c1 determines the surface code. DO NOT USE C1 FOR OTHER THINGS.
@@ -178,6 +178,8 @@ class RT13 implements B4constants
     //------for all other purposes keep gwave=0 so rays control wavelengths--------
 
     public static int     gwave = 0;   
+    private static double nvec[] = null;   // index vector during iTraceSpectral()
+    private static double facetLimits[][] = new double[MAXSURFS+1][];  // dArrayNumSolve()
  
     /*----------Groups of surfaces, all filled in by OEJIF-------*/
     /*----- but of course j[g] is ray dependent.-----------------*/
@@ -210,10 +212,27 @@ class RT13 implements B4constants
         }
         if (iattrib == RTWFE)
           return dWFE[kray]; //--why use a special array for WFE?
+        if ((iattrib >= RTZERN) && (iattrib < RTZERN+RNZERN))
+        {
+            int k = (kray > 0) ? kray : kGuideRay;  // random rays: guide group
+            return Zernike.getCoef(iWFEgroup[k], iattrib-RTZERN); 
+        }
+        if ((iattrib == RTEE) || (iattrib == RTES))
+        {
+            int k = (kray > 0) ? kray : kGuideRay;  // random rays: guide group
+            return Energy.getTableDiameter(iWFEgroup[k], iattrib == RTES); 
+        }
         return -0.0; 
     }
 
 
+    static public int getPupilAxis(int ig, int i)
+    // Pupil coordinate pair of WFE group ig, i=0,1; equal if none.
+    {
+        return ijWFE[ig][i]; 
+    }
+
+
     static public double dGetSurf(int iatt, int jsurf)
     // Returns one of the many surface parameters & attributes. 
     // DO NOT USE THIS WITH GROUPS -- defined results only when ungrouped.
@@ -269,27 +288,93 @@ class RT13 implements B4constants
             for (int iatt=0; iatt<RNATTRIBS; iatt++)
               dRays[k][grp][iatt] = -0.0; 
 
+        long t0 = TraceStats.begin(); 
         ngood = 0; 
+        boolean bSym = Symmetry.prepare();   // opt-in reduced tracing
 
         for (int k=1; k<=gnrays; k++)
           if (bAll || bGoodRay[k])
           {
-              boolean bOK = bRunOneRay(k);  // copy to dRays[][][] from each rayseq[][].
+              boolean bOK; 
+              int r = bSym ? Symmetry.getSource(k) : k; 
+              if ((r < k) && (bAll || bGoodRay[r]))
+                bOK = bCopyImage(k, r, Symmetry.getElement(k)); 
+              else
+              {
+                  bOK = bRunOneRay(k);  // copy to dRays[][][] from each rayseq[][].
+                  for (int grp=0; grp<=howfar[k]; grp++)
+                    for (int iatt=0; iatt<RNATTRIBS; iatt++)
+                      dRays[k][grp][iatt] = rayseq[grp][iatt];  // also in bRunOneRay() ???
+              }
               if (bOK)
                 ngood++; 
               if (bAll)
                 bGoodRay[k] = bOK;
-              for (int grp=0; grp<=howfar[k]; grp++)
-                for (int iatt=0; iatt<RNATTRIBS; iatt++)
-                  dRays[k][grp][iatt] = rayseq[grp][iatt];  // also in bRunOneRay() ???
           }
 
         doWFEtask(ngood, gnrays, gngroups); 
+        TraceStats.end(TraceStats.EV_BUILDRAYS, t0); 
         return ngood; 
     } //---end of iBuildRays()------
 
 
 
+    static private boolean bCopyImage(int k, int r, int e)
+    // Table ray k is the image of ray r under symmetry element e;
+    // fills its results from those of r without tracing. See Symmetry. 
+    {
+        stat[k] = stat[r]; 
+        howfar[k] = howfar[r]; 
+        bExtend[k] = bExtend[r]; 
+        for (int g=0; g<=howfar[r]; g++)
+        {
+            jfound[k][g] = jfound[r][g]; 
+            System.arraycopy(dRays[r][g], 0, dRays[k][g], 0, RNATTRIBS); 
+            Symmetry.vApplyRay(e, dRays[k][g]); 
+        }
+        return (RROK==stat[k]); 
+    }
+
+
+
+    static public boolean bNextRandomImage()
+    // Reduced pupil random rays; see Symmetry.  After bRunRandomRay() 
+    // succeeds, each call replaces ray zero by its next image under the
+    // symmetry group, with its WFE.  After the last it restores the ray
+    // that was traced and returns false, so a client bins them all with
+    //     while (RT13.bNextRandomImage())  addRay(0); 
+    {
+        int n = howfar[0]; 
+        if (iImage == 0)
+        {
+            if (!Symmetry.bRandomElement(Symmetry.MX) 
+             && !Symmetry.bRandomElement(Symmetry.MY)
+             && !Symmetry.bRandomElement(Symmetry.SWAP))
+              return false; 
+            for (int g=0; g<=n; g++)
+              System.arraycopy(dRays[0][g], 0, imageSave[g], 0, RNATTRIBS); 
+            imageWFE = dWFE[0]; 
+        }
+        while (++iImage < Symmetry.NELEMENTS)
+          if (Symmetry.bRandomElement(iImage))
+          {
+              for (int g=0; g<=n; g++)
+              {
+                  System.arraycopy(imageSave[g], 0, dRays[0][g], 0, RNATTRIBS); 
+                  Symmetry.vApplyRay(iImage, dRays[0][g]); 
+              }
+              vRandomWFE(); 
+              return true; 
+          }
+        for (int g=0; g<=n; g++)
+          System.arraycopy(imageSave[g], 0, dRays[0][g], 0, RNATTRIBS); 
+        dWFE[0] = imageWFE; 
+        iImage = 0; 
+        return false; 
+    }
+
+
+
     static public boolean bRunOneRay(int kray) 
     // Runs a single ray. If kray==0, random ray; else table ray.
     // Outputs to runray[g][attrib] and   jfound[kray][group].
@@ -298,6 +383,71 @@ class RT13 implements B4constants
     {
         int nsurfs = DMF.giFlags[ONSURFS]; 
         int ngroups = DMF.giFlags[ONGROUPS]; 
+        kGuideRay = iInitRaySeq(kray, nsurfs);           // SETUP group zero ????
+        vRunFromStart(kray, nsurfs, ngroups); 
+        return bFinishRay(kray); 
+
+    } //--------end of bRunOneRay()-----------------------
+
+
+
+    static public boolean bRunStart(int kray, double start[])
+    // Traces ray zero from the given start[RX...RW], -0.0 where absent,
+    // with the wavelength, color and order of table ray kray.  Absent 
+    // directions are completed as for table rays.  Used by Surrogate
+    // to sample its grid; results via dGetRay(0,...) and getStatus(0). 
+    {
+        int nsurfs = DMF.giFlags[ONSURFS]; 
+        int ngroups = DMF.giFlags[ONGROUPS]; 
+        for (int j=0; j<=MAXSURFS; j++)
+          for (int i=RX; i<=RTWL; i++)
+            rayseq[j][i] = -0.0;
+        for (int i=RX; i<=RW; i++)
+          rayseq[0][i] = start[i]; 
+        rayseq[0][RPATH] = raystarts[kray][RPATH]; 
+        bUserOptionPositive = "T".equals(DMF.reg.getuo(UO_DEF, 3)); 
+        vFinishStart(); 
+        kGuideRay = kray; 
+        vRunFromStart(0, nsurfs, ngroups); 
+        for (int g=0; g<=howfar[0]; g++)
+          for (int iatt=0; iatt<RNATTRIBS; iatt++)
+            dRays[0][g][iatt] = rayseq[g][iatt]; 
+        return bFinishRay(0); 
+    }
+
+
+
+    static private boolean bFinishRay(int kray)
+    // Tail of every trace: copies a good ray, counts it.
+    {
+        if (RROK==stat[kray])  // update the ray table; but also in iBuildRays() ???
+        {
+            for (int g=0; g<=howfar[kray]; g++)
+              for (int iatt=0; iatt<RNATTRIBS; iatt++)
+                dRays[kray][g][iatt] = rayseq[g][iatt];
+        }
+
+        vCountRay(kray); 
+        return (RROK==stat[kray]);   // return success or failure
+    }
+
+
+    static private void vCountRay(int kray)
+    // TraceStats: the ray, and where and why it stopped if it failed.
+    {
+        TraceStats.countRay(RROK==stat[kray]); 
+        if (RROK != stat[kray])
+          TraceStats.countFail((stat[kray]==RRGRP) ? jstart[howfar[kray]]
+                                                   : jfound[kray][howfar[kray]], stat[kray]); 
+    }
+
+
+
+    static private void vRunFromStart(int kray, int nsurfs, int ngroups)
+    // The trace proper, from the ray start already in rayseq[0]. 
+    // Sets rayseq[][], stat[kray], howfar[kray] and jfound[kray][]. 
+    // Called by bRunOneRay() and iTraceSpectral(). 
+    {
         int prevstatus = RROK; 
         boolean propagated = false; 
 
@@ -305,8 +455,13 @@ class RT13 implements B4constants
         int prev = RROK;         // shorthand raystatus for previous surface
         howfar[kray] = 0;        // progress indicator
         bExtend[kray] = false;
-        kGuideRay = iInitRaySeq(kray, nsurfs);           // SETUP group zero ????
         jfound[kray][0] = 0; 
+
+        if (NonSeq.isActive())                           // any order; see NonSeq
+        {
+            stat[kray] = iRunNonSeq(kray, nsurfs); 
+            return; 
+        }
         
         for (int g=1; g<=ngroups; g++)                   // group loop
         {
@@ -326,7 +481,7 @@ class RT13 implements B4constants
             boolean bBack    = (OTBLFRONT==surfs[j-1][OTYPE]) && (OTBLBACK==surfs[j][OTYPE]);
             boolean bBimodal = bFront || bBack; 
 
-            double d = dIntercept(rayseq[g], surfs[j]);
+            double d = dIntercept(rayseq[g], surfs[j], j);
             if (d<0.0)                                   // intercept failure: bak, mis, Dia, ...
             {
                 stat[kray] = (int) (-d);                 // miss or backward
@@ -383,17 +538,108 @@ class RT13 implements B4constants
             if (!bLoop)     // bail out of surface loop
               break; 
         }
+    } //--------end of vRunFromStart()-----------------------
+
+
+
+    static public int iTraceSpectral(int waves[], int grp[], double out[][][][], boolean good[][])
+    // Spectral sweep: traces every table ray at each media wavelength
+    // column waves[w] in one pass, for lateral and longitudinal color or
+    // polychromatic spots without retracing whole tables per wavelength.
+    // Each ray start is set up once and reused for all wavelengths. 
+    // Indices come from one vector per wavelength, nvec[w][j], filled
+    // here before tracing, so getRefraction() needs no media lookups.
+    // Gratings see the numerical value of each media wavelength name.
+    // A column below 1 leaves each ray at its own @wave, as bRunOneRay().
+    // Fills out[w][kray][i][iatt] with the ray at group grp[i], as
+    // dGetRay(), and good[w][kray]; both need nrays+1 rows per wavelength.
+    // RTWFE is not filled in: wavefront groups are an iBuildRays() pass.
+    // Returns the number of good rays summed over all wavelengths.
+    // Ray status, progress, groups found and @wave of each ray, and the
+    // guide ray, are put back afterward, as are dRays[][][]: the other
+    // displays see the same results as before.  Used by MPlotPanel.
+    {
+        int nsurfs = DMF.giFlags[ONSURFS]; 
+        int ngroups = DMF.giFlags[ONGROUPS]; 
+        int nrays = DMF.giFlags[RNRAYS]; 
+        int nwaves = waves.length; 
+        if ((nrays < 1) || (nsurfs < 1) || (nwaves < 1))
+          return 0; 
 
-        if (RROK==stat[kray])  // update the ray table; but also in iBuildRays() ???
+        //----one index vector per wavelength-------
+
+        double vecs[][] = new double[nwaves][]; 
+        double wavel[] = new double[nwaves]; 
+        int gwavesave = gwave; 
+        for (int w=0; w<nwaves; w++)
         {
-            for (int g=0; g<=howfar[kray]; g++)
-              for (int iatt=0; iatt<RNATTRIBS; iatt++)
-                dRays[kray][g][iatt] = rayseq[g][iatt];
+            wavel[w] = Double.NaN; 
+            if (waves[w] < 1)
+              continue; 
+            gwave = waves[w]; 
+            vecs[w] = new double[nsurfs+1]; 
+            for (int j=1; j<=nsurfs; j++)
+              vecs[w][j] = getRefraction(j, 1); 
+            if ((waves[w] < MEJIF.mwaves.length) && (MEJIF.mwaves[waves[w]] != null))
+              wavel[w] = U.suckDouble(MEJIF.mwaves[waves[w]]); 
         }
+        gwave = gwavesave; 
 
-        return (RROK==stat[kray]);   // return success or failure
+        //----each ray start once, then every wavelength------
 
-    } //--------end of bRunOneRay()-----------------------
+        int ngood = 0; 
+        double start[] = new double[RNATTRIBS]; 
+        int jsave[] = new int[MAXGROUPS+1]; 
+        int ksave = kGuideRay; 
+        try
+        {
+            for (int k=1; k<=nrays; k++)
+            {
+                int ssave = stat[k]; 
+                int hsave = howfar[k]; 
+                boolean esave = bExtend[k]; 
+                double wsave = raystarts[k][RSWAVEL]; 
+                System.arraycopy(jfound[k], 0, jsave, 0, MAXGROUPS+1); 
+                try
+                {
+                    kGuideRay = iInitRaySeq(k, nsurfs); 
+                    System.arraycopy(rayseq[0], 0, start, 0, RNATTRIBS); 
+                    for (int w=0; w<nwaves; w++)
+                    {
+                        System.arraycopy(start, 0, rayseq[0], 0, RNATTRIBS); 
+                        nvec = vecs[w]; 
+                        if (!Double.isNaN(wavel[w]))
+                          raystarts[k][RSWAVEL] = wavel[w]; 
+                        vRunFromStart(k, nsurfs, ngroups); 
+                        good[w][k] = (RROK == stat[k]); 
+                        vCountRay(k); 
+                        if (good[w][k])
+                          ngood++; 
+                        for (int i=0; i<grp.length; i++)
+                          if (good[w][k] && (grp[i] >= 0) && (grp[i] <= howfar[k]))
+                            System.arraycopy(rayseq[grp[i]], 0, out[w][k][i], 0, RNATTRIBS); 
+                          else
+                            for (int iatt=0; iatt<RNATTRIBS; iatt++)
+                              out[w][k][i][iatt] = -0.0; 
+                    }
+                }
+                finally
+                {
+                    stat[k] = ssave; 
+                    howfar[k] = hsave; 
+                    bExtend[k] = esave; 
+                    raystarts[k][RSWAVEL] = wsave; 
+                    System.arraycopy(jsave, 0, jfound[k], 0, MAXGROUPS+1); 
+                }
+            }
+        }
+        finally
+        {
+            nvec = null; 
+            kGuideRay = ksave; 
+        }
+        return ngood; 
+    }
 
 
 
@@ -441,7 +687,7 @@ class RT13 implements B4constants
         for (int j=jstart[g]; j<=jstop[g]; j++)
         {
             labtovx(rayseq[g-1], rayseq[g], surfs[j]); 
-            dTrial[j] = dIntercept(rayseq[g], surfs[j]);
+            dTrial[j] = dIntercept(rayseq[g], surfs[j], j);
             iTrial[j] = (dTrial[j]>=0.0) ? RROK : (int) (-dTrial[j]);
             if (iTrial[j]==RROK)
             {
@@ -485,13 +731,54 @@ class RT13 implements B4constants
     {
         int gnsurfs = DMF.giFlags[ONSURFS]; 
         int gngroups = DMF.giFlags[ONGROUPS]; 
-        boolean bStatus = bRunOneRay(0); // includes iInitRaySeq()
+        boolean bStatus = true; 
+        iImage = 0;                      // see bNextRandomImage()
+        kGuideRay = iInitRaySeq(0, gnsurfs); 
+        if (Surrogate.bEvaluate(kGuideRay, rayseq[0], dRays[0], jfound[0]))
+        {
+            stat[0] = RROK;              // interpolated; see Surrogate
+            howfar[0] = gngroups; 
+            bExtend[0] = false; 
+            TraceStats.countRay(true); 
+        }
+        else
+        {
+            vRunFromStart(0, gnsurfs, gngroups); 
+            bStatus = bFinishRay(0); 
+            for (int jsurf=0; jsurf<=howfar[0]; jsurf++)
+              for (int iatt=0; iatt<RNATTRIBS; iatt++)
+                dRays[0][jsurf][iatt] = rayseq[jsurf][iatt]; 
+        }
+
+        if (bStatus && (solveTol == TOL))   //---update WFE information------
+          vRandomWFE(); 
+        return bStatus; 
+    }
+
+
+    static public boolean bRunPreviewRay(double tol)
+    // A random ray for display only: as bRunRandomRay() but the root
+    // solvers stop at length tolerance tol, a small part of one pixel
+    // at the caller's zoom, and WFE is not evaluated.  Full precision
+    // returns afterward, so tables, histograms, MTF and WFE never see
+    // preview rays.  Called by Layout and Plot2; tol=0 is full precision. 
+    {
+        solveTol = Math.max(TOL, tol); 
+        try
+        {
+            return bRunRandomRay(); 
+        }
+        finally
+        {
+            solveTol = TOL; 
+        }
+    }
 
-        for (int jsurf=0; jsurf<=howfar[0]; jsurf++)
-          for (int iatt=0; iatt<RNATTRIBS; iatt++)
-            dRays[0][jsurf][iatt] = rayseq[jsurf][iatt]; 
 
-        if (bStatus)          //---update WFE information------
+    static private void vRandomWFE()
+    // WFE of random ray zero from dRays[0], using its guide ray group.
+    {
+        int gnsurfs = DMF.giFlags[ONSURFS]; 
         {
             int ig = iWFEgroup[kGuideRay];
             double dsk, dek; 
@@ -513,7 +800,6 @@ class RT13 implements B4constants
                      + tiltWFE[ig][1]*dRays[0][gnsurfs][jx]
                      + tiltWFE[ig][2]*dRays[0][gnsurfs][jy];
         }
-        return bStatus; 
     }
 
 
@@ -579,6 +865,12 @@ class RT13 implements B4constants
         return bExtend[kray];
     }
 
+    static public int getFound(int kray, int g)
+    // Returns the surface that ray "kray" found within group g.
+    {
+        return jfound[kray][g]; 
+    }
+
     static public int getGuideRay()
     // Returns the number 1...nrays of ray whose color, wavel, order is in use.
     // Most useful for random rays, where kray=0. 
@@ -602,6 +894,8 @@ class RT13 implements B4constants
           return 1.0;        // error condition
         if (jsurf > nsurfs)
           jsurf = nsurfs;   // eliminate final refraction to vacuum; A186
+        if (nvec != null)
+          return nvec[jsurf];  // spectral sweep; see iTraceSpectral()
         double refr = surfs[jsurf][OREFRACT]; 
         if (Double.isNaN(refr))
         {
@@ -651,6 +945,219 @@ class RT13 implements B4constants
            surfs[j][OE32] = sr*sp*ct + cr*st;    // Z <- y; M32
            surfs[j][OE33] = cp*ct;               // Z <- z; M33
        }
+       NonSeq.refresh();                         // surfaces have moved
+    }
+
+
+    static public int iTraceGhost(int kray, int ji, int jj, double minEnergy, double out[])
+    // Traces table ray kray along the two-bounce ghost path that reflects
+    // at surface jj back towards surface ji, reflects again at ji, and then
+    // proceeds forward through ji+1...nsurfs.  Ungrouped optics only. 
+    // Starts from the sequential result dRays[kray][jj-1], so iBuildRays()
+    // must have been run.  Uses only local working arrays, so many ghost
+    // paths can be traced at once in separate threads; called by Ghost.
+    // Energy is the unpolarized Fresnel fraction: transmission at every
+    // lens surface crossed, times the two ghost reflectances.
+    // Returns RROK with out[] = {xlocal, ylocal, energy} at the final surface;
+    // else a ray failure code; or -1 once energy falls below minEnergy.
+    {
+        int nsurfs = DMF.giFlags[ONSURFS]; 
+        if ((ji<1) || (jj<=ji) || (jj>nsurfs))
+          return RRNON; 
+
+        //----sequential prefix 1...jj-1 already traced: transmissions only----
+
+        double energy = 1.0; 
+        for (int j=1; j<jj; j++)
+          if (OTLENS == surfs[j][OTYPE])
+            energy *= 1.0 - dGetFresnel(dRays[kray][j][RTANGLE],
+                                 getRefraction(j, kray), getRefraction(j+1, kray)); 
+        if (energy < minEnergy)
+          return -1; 
+
+        double prev[] = new double[RNATTRIBS]; 
+        double ray[] = new double[RNATTRIBS]; 
+        for (int iatt=0; iatt<RNATTRIBS; iatt++)
+          prev[iatt] = dRays[kray][jj-1][iatt]; 
+
+        //----then jj reflect, jj-1...ji+1 backward, ji reflect, ji+1...nsurfs----
+
+        int nback = jj - ji; 
+        int nvisits = 1 + nback + nsurfs - ji; 
+        for (int v=0; v<nvisits; v++)
+        {
+            int j = (v <= nback) ? jj-v : ji+v-nback;   
+            boolean bForward = (v==0) || (v>nback); 
+            boolean bGhost = (v==0) || (v==nback); 
+            double n1 = getRefraction(bForward ? j : j+1, kray); 
+            double n2 = getRefraction(bForward ? j+1 : j, kray); 
+
+            labtovx(prev, ray, surfs[j]); 
+            double d = dIntercept(ray, surfs[j], j); 
+            if (d < 0.0)
+              return (int) (-d);               // mis, bak, dia....
+            vPropagate(ray, d, n1, surfs[j]); 
+            int istat = iDiams(ray, surfs[j]); 
+            if (istat != RROK)
+              return istat; 
+            vSetAngle(ray, surfs[j]); 
+
+            if ((j == nsurfs) && !bGhost)      // arrived
+            {
+                out[0] = ray[RTXL]; 
+                out[1] = ray[RTYL]; 
+                out[2] = energy; 
+                return RROK; 
+            }
+
+            int type = (int) surfs[j][OTYPE]; 
+            double refl = (type==OTLENS) ? dGetFresnel(ray[RTANGLE], n1, n2) : 0.0; 
+            if (bGhost)
+            {
+                energy *= refl; 
+                istat = iMirror(ray, surfs[j]); 
+            }
+            else switch(type)
+            {
+                case OTLENS:    energy *= 1.0 - refl; 
+                                istat = iTGindex(ray, surfs[j], kray, n1, n2); 
+                                break; 
+                case OTMIRROR:  istat = iMirror(ray, surfs[j]); break; 
+                case OTIRIS: 
+                case OTDISTORT: break; 
+                default:        return RRNON;   // arrays, CBs, bimodals...
+            }
+            if (istat != RROK)
+              return istat; 
+            if (energy < minEnergy)
+              return -1; 
+            vxtolab(ray, surfs[j]); 
+            double swap[] = prev; 
+            prev = ray; 
+            ray = swap; 
+        }
+        return RRNON;  // SNH
+    }
+
+
+    static private int iRunNonSeq(int kray, int nsurfs)
+    // Non-sequential trace of rayseq[0]: at each step the nearest surface
+    // struck within its aperture, in any order, from NonSeq's tree.
+    // Ends on reaching the final surface, returning RROK, or on a failure.
+    // Lenses refract, or reflect if TIR as in a light pipe; mirrors
+    // reflect; irises absorb outside their openings.  The ray's medium
+    // is tracked as the space between two surfaces: space m lies in
+    // front of surface m, so crossing surface j swaps space j and j+1.
+    // The surface just left is not retested.
+    // Rows 1..nsurfs-1 hold the first intermediate hits and rows past
+    // the last hit repeat it; row nsurfs holds the final surface, so
+    // analyses of the final surface work unchanged.
+    {
+        int cand[] = new int[MAXSURFS+1]; 
+        double tcand[] = new double[MAXSURFS+1]; 
+        double trial[] = new double[RNATTRIBS]; 
+        double best[] = new double[RNATTRIBS]; 
+        double prev[] = new double[RNATTRIBS]; 
+        System.arraycopy(rayseq[0], 0, prev, 0, RNATTRIBS); 
+        int m = 1;          // space the ray is in
+        int jprev = 0;      // surface just left
+        int row = 0;        // last row written
+        for (int hit=1; hit<=NonSeq.getMaxHits(); hit++)
+        {
+            int n = NonSeq.getCandidates(prev, cand, tcand); 
+            double dbest = Double.MAX_VALUE; 
+            int jbest = 0, sbest = RRMIS; 
+            double nm = getRefraction(m, kray); 
+            for (int i=0; (i<n) && (tcand[i]<dbest); i++)
+            {
+                int j = cand[i]; 
+                if (j == jprev)
+                  continue; 
+                labtovx(prev, trial, surfs[j]); 
+                double d = dIntercept(trial, surfs[j], j); 
+                if ((d <= 0.0) || (d >= dbest))
+                  continue; 
+                vPropagate(trial, d, nm, surfs[j]); 
+                int s = iDiams(trial, surfs[j]); 
+                if ((s != RROK) && (OTIRIS != surfs[j][OTYPE]))
+                  continue;                  // passes outside this optic
+                dbest = d; 
+                jbest = j; 
+                sbest = s; 
+                System.arraycopy(trial, 0, best, 0, RNATTRIBS); 
+            }
+            if (jbest == 0)
+              return RRMIS;                  // escaped
+
+            int status = sbest; 
+            vSetAngle(best, surfs[jbest]); 
+            if (status == RROK)
+            {
+                int m2 = m;                  // space across surface jbest
+                if (m == jbest)
+                  m2 = jbest+1; 
+                else if (m == jbest+1)
+                  m2 = jbest; 
+                else if (nm == getRefraction(jbest, kray))
+                  m2 = jbest+1; 
+                else if (nm == getRefraction(jbest+1, kray))
+                  m2 = jbest; 
+                switch ((int) surfs[jbest][OTYPE])
+                {
+                    case OTLENS:   status = iTGindex(best, surfs[jbest], 
+                                                     (kray > 0) ? kray : getGuideRay(), 
+                                                     nm, getRefraction(m2, kray)); 
+                                   if (status == RRTIR)
+                                     status = iMirror(best, surfs[jbest]); 
+                                   else
+                                     m = m2; 
+                                   break; 
+                    case OTMIRROR: status = iMirror(best, surfs[jbest]); break; 
+                    case OTIRIS: 
+                    case OTDISTORT: m = m2; break; 
+                    default:       status = RRNON;   // arrays, gratings...
+                }
+            }
+            vxtolab(best, surfs[jbest]); 
+
+            if ((jbest == nsurfs) || (status != RROK) || (row < nsurfs-1))
+            {
+                int r = (jbest == nsurfs) ? nsurfs : Math.min(row+1, nsurfs-1); 
+                for (int g=row+1; g<r; g++)  // repeat the last hit
+                {
+                    System.arraycopy(rayseq[row], 0, rayseq[g], 0, RNATTRIBS); 
+                    jfound[kray][g] = jfound[kray][row]; 
+                }
+                System.arraycopy(best, 0, rayseq[r], 0, RNATTRIBS); 
+                jfound[kray][r] = jbest; 
+                row = r; 
+                howfar[kray] = r; 
+            }
+            if ((jbest == nsurfs) || (status != RROK))
+              return status; 
+            System.arraycopy(best, 0, prev, 0, RNATTRIBS); 
+            jprev = jbest; 
+        }
+        return RRPRP;   // too many hits
+    }
+
+
+    static double dGetFresnel(double degrees, double n1, double n2)
+    // Unpolarized Fresnel reflectance at incidence angle "degrees"
+    // going from index n1 into index n2; 1.0 beyond the critical angle.
+    {
+        n1 = Math.abs(n1); 
+        n2 = Math.abs(n2); 
+        if (n1 == n2)
+          return 0.0; 
+        double ci = U.cosd(degrees); 
+        double st = n1 * U.sind(degrees) / n2; 
+        if (st >= 1.0)
+          return 1.0; 
+        double ct = Math.sqrt(1.0 - st*st); 
+        double rs = (n1*ci - n2*ct) / (n1*ci + n2*ct); 
+        double rp = (n1*ct - n2*ci) / (n1*ct + n2*ci); 
+        return 0.5*(rs*rs + rp*rp); 
     }
 
 
@@ -662,6 +1169,8 @@ class RT13 implements B4constants
     /*-----------------------------------------------------------*/
 
     private static int kGuideRay      = 0; 
+    private static double solveTol    = TOL;   // root tolerance; see bRunPreviewRay()
+    static Checkpoint.Rng rng = new Checkpoint.Rng();      // random rays; see Checkpoint
     private static boolean bExtend[]  = new boolean[MAXRAYS+1]; 
     private static int stat[]    = new int[MAXRAYS+1];
     private static int howfar[]       = new int[MAXRAYS+1];
@@ -684,6 +1193,10 @@ class RT13 implements B4constants
     private static int    ijWFE[][]   = new int[MAXWFEGROUPS][2];     // pupil
     
     private static int    ngood = 0; 
+
+    private static int    iImage = 0;                // see bNextRandomImage()
+    private static double imageSave[][] = new double[MAXGROUPS+1][RNATTRIBS]; 
+    private static double imageWFE = 0.0; 
     
     
 
@@ -703,6 +1216,8 @@ class RT13 implements B4constants
     {
         for (int k=1; k<=gnrays; k++)
           dWFE[k] = -0.0; 
+        Zernike.invalidate();  // refits on demand
+        Energy.invalidate();   // likewise
 
         if (gngood < 1)
           return; 
@@ -922,14 +1437,14 @@ class RT13 implements B4constants
         
         if (bRandom) // Choose a random local kray for color, wavel, order.
         {
-            kray = (int) (nrays * Math.random() + 1.0); 
+            kray = (int) (nrays * rng.nextDouble() + 1.0); 
             iGroup = iWFEgroup[kray]; 
         }
 
         //----Construct the random ray values XYZUVWP here-------------
      
 
-        int krandxyz = (int) (nrays * Math.random() + 1.0);  
+        int krandxyz = (int) (nrays * rng.nextDouble() + 1.0);  
         for (int i=RX; i<=RZ; i++)
         {   
             boolean bAbsent = U.isNegZero(raystarts[kray][i]); 
@@ -946,7 +1461,7 @@ class RT13 implements B4constants
               rayseq[0][i] = raystarts[kray][i]; 
         }  
 
-        int kranduvw = (int) (nrays * Math.random() + 1.0);           
+        int kranduvw = (int) (nrays * rng.nextDouble() + 1.0);           
         for (int i=RU; i<=RW; i++)
         {   
             boolean bAbsent = U.isNegZero(raystarts[kray][i]); 
@@ -978,8 +1493,8 @@ class RT13 implements B4constants
                  break;
               case 1:  // isotropic U0 
                  {
-                     double s = span * Math.random();
-                     double p = U.TWOPI * Math.random(); 
+                     double s = span * rng.nextDouble();
+                     double p = U.TWOPI * rng.nextDouble(); 
                      double q = bUserOptionPositive ? 1-s : s-1; 
                      double r = Math.sqrt(1.0 - q*q); 
                      rayseq[0][RU] = q; 
@@ -989,8 +1504,8 @@ class RT13 implements B4constants
                  break; 
               case 2:  // isotropic V0 
                  {
-                     double s = span * Math.random();
-                     double p = U.TWOPI * Math.random(); 
+                     double s = span * rng.nextDouble();
+                     double p = U.TWOPI * rng.nextDouble(); 
                      double q = bUserOptionPositive ? 1-s : s-1; 
                      double r = Math.sqrt(1.0 - q*q); 
                      rayseq[0][RV] = q; 
@@ -1000,8 +1515,8 @@ class RT13 implements B4constants
                  break; 
               case 3: // isotropic W0
                  {
-                     double s = span * Math.random();
-                     double p = U.TWOPI * Math.random(); 
+                     double s = span * rng.nextDouble();
+                     double p = U.TWOPI * rng.nextDouble(); 
                      double q = bUserOptionPositive ? 1-s : s-1; 
                      double r = Math.sqrt(1.0 - q*q); 
                      rayseq[0][RW] = q; 
@@ -1012,6 +1527,14 @@ class RT13 implements B4constants
              }
          }
 
+        vFinishStart(); 
+        return kray; 
+    }
+
+
+    static private void vFinishStart()
+    // Completes the start rayseq[0] of a table or random ray.
+    {
         //---If there are still absentees {U0, V0, W0} then ----
         //---the lastAbsentAttrib will receive the makeup--------
 
@@ -1037,15 +1560,13 @@ class RT13 implements B4constants
         for (int i=RX; i<=RW; i++)
           if (-0.0==rayseq[0][i])
             rayseq[0][i] = 0.0;  // clean up any remaining -0.0 cases.
-
-        return kray; 
     }
 
     static private double getRand(int which, double dConcen)
     // returns 0<x<1 with various distribution densities.
     // dConcen = halfspan/width50; if =1, uniform.  
     {
-        double uni = Math.random(); 
+        double uni = rng.nextDouble(); 
         dConcen = Math.max(1, dConcen);  
         if (dConcen<1.01)
           which = 0;   // adopt uniform
@@ -1061,7 +1582,7 @@ class RT13 implements B4constants
                     double x=0.5;                     
                     boolean bOut=true; 
                     while (bOut)
-                      {x = 0.5+sigma*U.grand(); bOut=(x>=1.)||(x<=0.); }
+                      {x = 0.5+sigma*U.grand(rng); bOut=(x>=1.)||(x<=0.); }
                     return x; 
 
            case 4:  double b = 4*dConcen - 4;              // Lorentzian
@@ -1179,7 +1700,7 @@ class RT13 implements B4constants
     /*---------optical methods: interceptors & rootfinders--------*/
     /*---------optical methods: interceptors & rootfinders--------*/
 
-    static private double dIntercept(double ray[], double surf[])
+    static private double dIntercept(double ray[], double surf[], int jsurf)
     // This does not move the ray.  Instead, if OK, recommends d>=0;
     // RAY length = ZERO is VALID for plane surfaces;  (exactly zero? slightly negative?)
     // RAY length = ZERO is INVALID for curved surfaces. 
@@ -1217,7 +1738,10 @@ class RT13 implements B4constants
            case OSPOLYREV:
            case OSZERNREV:
            case OSZERNTOR: 
-           case OSBICONIC: d = dNumSolve(ray, surf); 
+           case OSBICONIC: if (bArray)
+                             d = dArrayNumSolve(ray, surf, jsurf); 
+                           else
+                             d = dNumSolve(ray, surf, jsurf); 
                            break;
         }
         if (Math.abs(d) < TOL)
@@ -1428,9 +1952,184 @@ class RT13 implements B4constants
 
 
 
-    static private double dNumSolve(double ray[], double surf[])
+    static private double dArrayNumSolve(double ray[], double surf[], int jsurf)
+    // Facet intercept for arrays of numerically solved profiles.
+    // Z.dGetZsurf() folds x,y into one cell, so the array surface jumps
+    // at every cell edge, which misleads bBracket() and iBrent().
+    // Instead the ray is walked cell by cell in local x,y, within the
+    // slab of z that the profile can reach, and on each cell the smooth
+    // profile about that cell's vertex is solved by Newton's method,
+    // safeguarded by bisection.  The first root along the ray wins. 
+    // Cells walked and iterations are tallied per surface in TraceStats.
+    // Returns error codes -RRMIS, -RRBAK
+    {
+        int MAXCELLS = 1000;   // oblique rays across huge arrays
+        double px = surf[OODIAX] / Math.max(1, (int) surf[ONARRAYX]); 
+        double py = surf[OODIAY] / Math.max(1, (int) surf[ONARRAYY]); 
+        if ((surf[OODIAX]<=TOL) || (surf[ONARRAYX]<1) 
+         || (surf[OODIAY]<=TOL) || (surf[ONARRAYY]<1))
+          return dNumSolve(ray, surf, jsurf);  // unfolded, hence smooth
+
+        //----the slab of z reached by any one facet------
+
+        double zlim[] = getFacetLimits(jsurf, surf, px, py); 
+        double u = ray[RTUL], v = ray[RTVL], w = ray[RTWL]; 
+        double da = 0.0, db = 9E99; 
+        if (Math.abs(w) > TOL)
+        {
+            double t1 = (zlim[0] - ray[RTZL])/w; 
+            double t2 = (zlim[1] - ray[RTZL])/w; 
+            da = Math.max(0.0, Math.min(t1, t2)); 
+            db = Math.max(t1, t2); 
+            if (db < 0.0)
+              return -RRBAK; 
+        }
+        else if ((ray[RTZL] < zlim[0]) || (ray[RTZL] > zlim[1]))
+          return -RRMIS; 
+
+        //-----walk the cells along the ray--------------
+
+        double x = ray[RTXL] + u*da; 
+        double y = ray[RTYL] + v*da; 
+        double cx = x - Z.dSawtoothX(x, surf);   // vertex of this cell
+        double cy = y - Z.dSawtoothY(y, surf); 
+        double d = da; 
+        int niter[] = new int[1]; 
+        int ncells = 0; 
+        while ((d < db) && (ncells < MAXCELLS))
+        {
+            ncells++; 
+            double dx = (u > TOL) ? (cx + 0.5*px - ray[RTXL])/u
+                      : (u < -TOL) ? (cx - 0.5*px - ray[RTXL])/u : 9E99; 
+            double dy = (v > TOL) ? (cy + 0.5*py - ray[RTYL])/v
+                      : (v < -TOL) ? (cy - 0.5*py - ray[RTYL])/v : 9E99; 
+            double dnext = Math.max(d, Math.min(db, Math.min(dx, dy))); 
+            double root = dFacetRoot(d, dnext, cx, cy, ray, surf, niter); 
+            if (root >= 0.0)
+            {
+                TraceStats.countSolve(jsurf, niter[0]); 
+                TraceStats.countFacets(jsurf, ncells, true); 
+                return root; 
+            }
+            if (dx <= dnext)
+              cx += (u > 0.0) ? px : -px; 
+            if (dy <= dnext)
+              cy += (v > 0.0) ? py : -py; 
+            d = dnext; 
+        }
+        TraceStats.countSolve(jsurf, niter[0]); 
+        TraceStats.countFacets(jsurf, ncells, false); 
+        return -RRMIS; 
+    }
+
+
+    static private double dFacetRoot(double a, double b, double cx, double cy, 
+                                     double ray[], double surf[], int niter[])
+    // Root of fFacet() within [a,b] for the cell with vertex cx,cy;
+    // returns -1.0 if there is no sign change on this cell. 
+    // Newton steps, replaced by bisection whenever they leave the bracket.
+    {
+        int MAXIT = 50; 
+        double slope[] = new double[1]; 
+        double fa = fFacet(a, cx, cy, ray, surf, null); 
+        double fb = fFacet(b, cx, cy, ray, surf, null); 
+        niter[0] += 2; 
+        if (fa*fb > 0.0)
+          return -1.0; 
+        if (fa == 0.0)
+          return (a > TOL) ? a : -1.0;   // zero length is invalid if curved
+        if (fb == 0.0)
+          return b; 
+        double d = a - fa*(b-a)/(fb-fa);  // secant start 
+        for (int iter=0; iter<MAXIT; iter++)
+        {
+            double f = fFacet(d, cx, cy, ray, surf, slope); 
+            niter[0]++; 
+            if (f == 0.0)
+              return d; 
+            if (f*fa < 0.0)
+              b = d; 
+            else
+            {
+                a = d; 
+                fa = f; 
+            }
+            double toler = 2.0*TOL*Math.abs(d) + solveTol; 
+            double dn = (slope[0] != 0.0) ? d - f/slope[0] : a; 
+            if (Math.abs(dn-d) <= toler)
+              return dn; 
+            if ((dn <= a) || (dn >= b))
+              dn = 0.5*(a + b); 
+            if (b-a <= toler)
+              return dn; 
+            d = dn; 
+        }
+        return d; 
+    }
+
+
+    static private double fFacet(double d, double cx, double cy, 
+                                 double ray[], double surf[], double slope[])
+    // Like zDiff() but for the unfolded profile about vertex cx,cy;
+    // if slope is not null also returns the derivative in d.
+    {
+        double x = ray[RTXL] + ray[RTUL]*d - cx; 
+        double y = ray[RTYL] + ray[RTVL]*d - cy; 
+        if (slope != null)
+        {
+            double norm[] = new double[3]; 
+            Z.vGetZnormProfile(x, y, surf, norm); 
+            double zx = -norm[0]/norm[2]; 
+            double zy = -norm[1]/norm[2]; 
+            slope[0] = ray[RTWL] - zx*ray[RTUL] - zy*ray[RTVL]; 
+        }
+        return ray[RTZL] + ray[RTWL]*d - Z.dGetZprofile(x, y, surf); 
+    }
+
+
+    static private double[] getFacetLimits(int jsurf, double surf[], double px, double py)
+    // Lowest and highest z of one cell profile, padded, sampled on a grid.
+    // Cached per surface until any parameter of that surface changes;
+    // each entry is replaced whole, so concurrent tracers are safe. 
+    {
+        int NSAMP = 8; 
+        double lim[] = facetLimits[jsurf]; 
+        if ((lim != null) && bSameParms(lim, surf))
+          return lim; 
+        lim = new double[2 + ONPARMS]; 
+        System.arraycopy(surf, 0, lim, 2, ONPARMS); 
+        double zlo = 0.0, zhi = 0.0; 
+        for (int i=0; i<=NSAMP; i++)
+          for (int k=0; k<=NSAMP; k++)
+          {
+              double z = Z.dGetZprofile((i-0.5*NSAMP)*px/NSAMP, (k-0.5*NSAMP)*py/NSAMP, surf); 
+              if (Double.isNaN(z) || Double.isInfinite(z))
+                continue; 
+              zlo = Math.min(zlo, z); 
+              zhi = Math.max(zhi, z); 
+          }
+        double pad = 0.1*(zhi - zlo) + 1E-6*Math.max(px, py) + TOL; 
+        lim[0] = zlo - pad; 
+        lim[1] = zhi + pad; 
+        facetLimits[jsurf] = lim; 
+        return lim; 
+    }
+
+
+    static private boolean bSameParms(double lim[], double surf[])
+    {
+        for (int i=0; i<ONPARMS; i++)
+          if (Double.doubleToLongBits(lim[2+i]) != Double.doubleToLongBits(surf[i]))
+            return false; 
+        return true; 
+    }
+
+
+
+    static private double dNumSolve(double ray[], double surf[], int jsurf)
     // Returns propagation length if OK, else -1.0.
     // Relies upon Z.vGetZsurf() for the surface model. 
+    // Brent iterations are tallied per surface in TraceStats.
     // How to manage HINT for best efficiency?
     // M.Lampton STELLAR SOFTWARE (C) 1989, 2003, 2005
     // Error: -RRBAK
@@ -1438,7 +2137,7 @@ class RT13 implements B4constants
         double d[] = new double[2]; 
         if (bBracket(d, ray, surf))
         { 
-            iBrent(d, ray, surf); 
+            TraceStats.countSolve(jsurf, iBrent(d, ray, surf)); 
             return d[0];
         }
         return -RRBAK;  // bracket fail is usually due to backward ray 
@@ -1532,7 +2231,7 @@ class RT13 implements B4constants
                 fb = fc;
                 fc = fa;
             }
-            toler = 2.0 * TOL * Math.abs(b) + TOL;
+            toler = 2.0 * TOL * Math.abs(b) + solveTol;
             xm = 0.5*(c-b);
             t[0] = b;     // return value
             if ((Math.abs(xm) <= toler) || (fb == 0.0))
@@ -1939,7 +2638,15 @@ class RT13 implements B4constants
         int kray = getGuideRay(); 
         double numer = getRefraction(jsurf, kray); 
         double denom = getRefraction(jsurf+1, kray); 
+        return iTGindex(ray, surf, kray, numer, denom); 
+    }
+
 
+    static private int iTGindex(double ray[], double surf[], int kray, double numer, double denom)
+    // The body of iTG() with explicit ray and indices, so that ghost
+    // paths can refract backwards through a surface, numer<-->denom.
+    // Touches no static working arrays; safe to call from many threads. 
+    {
         if (Double.isNaN(numer) || (numer==0.0))
           numer = 1.0; 
         if (Double.isNaN(denom) || (denom==0.0))
@@ -2042,9 +2749,9 @@ class RT13 implements B4constants
     static private int iScatter(double ray[], double surf[])
     {
         double radians = (Math.PI/180.0) * surf[OSCATTER]; 
-        ray[RTUL] += radians * U.grand(); 
-        ray[RTVL] += radians * U.grand();
-        ray[RTWL] += radians * U.grand();  
+        ray[RTUL] += radians * U.grand(rng); 
+        ray[RTVL] += radians * U.grand(rng);
+        ray[RTWL] += radians * U.grand(rng);  
         double sum = U.sqr(ray[RTUL]) + U.sqr(ray[RTVL]) + U.sqr(ray[RTWL]); 
         sum = Math.sqrt(sum); 
         ray[RTUL] /= sum;  
@@ -2,6 +2,7 @@ package com.stellarsoftware.beam;
 
 import java.awt.*;           // Action
 import java.awt.event.*;     // Event
+import java.io.*;            // checkpoint streams
 import javax.swing.*;
 
 /** Random.java
@@ -31,6 +32,24 @@ import javax.swing.*;
   *  All the math work is done within RT13.
   *  Only the kickoff management is done here. 
   *
+  *  Optional convergence stopping, UO_RAND 13-15: after each refresh
+  *  the target panel's getBatchMetrics() is handed to a Convergence
+  *  which stops the run once the batch-means standard error of every
+  *  metric falls below the requested relative error.  Panels that 
+  *  offer no metrics run on to maxtries or maxgood as before.
+  *  resetBatch() as the run starts keeps table rays and rays of an
+  *  earlier run out of the first batch.
+  *
+  *  Checkpoints: if the target panel names a checkpoint group, the
+  *  accumulation is saved every Checkpoint.SAVEMILLIS, when the user
+  *  stops, and when an edit halts the run; the next Random on the same
+  *  content offers to resume it, generator state included.  A run that
+  *  reaches its stopping criterion discards its checkpoint. 
+  *
+  *  Each run first lets Surrogate check that its interpolation 
+  *  grids still match the optics; an edit ends the run, so the bunches
+  *  need not check again.  See Surrogate.java.
+  *
   *
   *  @author: M.Lampton (c) 2003 STELLAR SOFTWARE all rights reserved.
   */
@@ -46,6 +65,12 @@ class Random implements B4constants
     private int nsurfs, nrays, nfields; 
     private boolean bRunning = true; 
     private int iEdits = 0;         // shuts down if editors change.
+    private Convergence conv = null;  // null unless convergence stopping
+    private boolean bConverged = false; 
+    private int ckpGroup = -1;      // UO group of target panel, or -1
+    private long ckpHash = 0;       // content hash at start of run
+    private long ckpTime = 0;       // time of last checkpoint
+    private boolean bFinished = false;  // reached stopping criterion
 
     public Random() // constructor
     {
@@ -69,6 +94,15 @@ class Random implements B4constants
         maxtries = Math.max(1, maxtries); 
         maxgood = U.suckInt(DMF.reg.getuo(UO_RAND, 2)); 
         maxgood = Math.max(1, maxgood); 
+        conv = null; 
+        if ("T".equals(DMF.reg.getuo(UO_RAND, 13)))
+        {
+            double relerr = U.suckDouble(DMF.reg.getuo(UO_RAND, 14)); 
+            if (U.isNegZero(relerr) || (relerr <= 0.0))
+              relerr = 0.01; 
+            int minref = U.suckInt(DMF.reg.getuo(UO_RAND, 15)); 
+            conv = new Convergence(relerr, minref); 
+        }
         GJIF gFront = DMF.getFrontGJIF(); // null SNH.
         targetPanel = gFront.getGPanel(); // null SNH.
     }
@@ -116,6 +150,11 @@ class Random implements B4constants
     {
         goodcount = 0; 
         totalcount = 0; 
+        bConverged = false; 
+        bFinished = false; 
+        offerResume(); 
+        targetPanel.resetBatch();   // table rays are no batch
+        Surrogate.prepare();    // rebuilds only if changed
         myTimer = new javax.swing.Timer(50, doBunch); 
         bRunning = true; 
         myTimer.start(); 
@@ -128,17 +167,36 @@ class Random implements B4constants
         {
             if (bRunning)
             {
+                long t0 = TraceStats.begin(); 
                 for (int i=0; i<nBunch; i++)
                 {
                     if (targetPanel.doRandomRay())
                       goodcount++;  
                     totalcount++; 
-                    if ((totalcount>=maxtries) || (goodcount>=maxgood) || (DMF.nEdits!=iEdits))
+                    if ((totalcount>=maxtries) || (goodcount>=maxgood))
+                    {
+                        bFinished = true; 
+                        bRunning = false; 
+                        break; 
+                    }
+                    if (DMF.nEdits!=iEdits)
                     {
                         bRunning = false; 
                         break; 
                     }
                 }
+                TraceStats.end(TraceStats.EV_RANDOM, t0); 
+                if (conv != null)
+                  if (conv.bAddBatch(targetPanel.getBatchMetrics()))
+                  {
+                      bConverged = true; 
+                      bFinished = true; 
+                      bRunning = false; 
+                  }
+                if (bFinished && (ckpGroup >= 0))
+                  Checkpoint.delete(ckpGroup); 
+                else if (!bRunning || (System.currentTimeMillis()-ckpTime > Checkpoint.SAVEMILLIS))
+                  saveCheckpoint(); 
                 String s = "Ray Starts = " + Integer.toString(totalcount); 
                 jlTop.setText(s); 
                 String g = "Ray Finishes = " + Integer.toString(goodcount); 
@@ -149,6 +207,9 @@ class Random implements B4constants
                     double percent = (goodcount*100.0)/totalcount; 
                     r = "Percent = " + U.fwd(percent, 5, 1); 
                 }
+                if ((conv != null) && (conv.getNbatches() > 1))
+                  r += bConverged ? "  converged" 
+                     : "  err = " + U.fwd(conv.getRelError(), 8, 4).trim(); 
                 jlBot.setText(r);  
                 targetPanel.redo();  // myBatchList -> g2Tech, and blit.
             }
@@ -161,8 +222,68 @@ class Random implements B4constants
     };
 
 
+    private void offerResume()
+    // Looks for a checkpoint of this panel's accumulation on identical content.
+    {
+        ckpGroup = targetPanel.getCheckpointGroup(); 
+        ckpTime = System.currentTimeMillis(); 
+        if (ckpGroup < 0)
+          return; 
+        ckpHash = Checkpoint.getContentHash(new int[] {UO_DEF}); 
+        for (int i=3; i<=12; i++)   // ray distribution options only
+          ckpHash = Checkpoint.mix(ckpHash, DMF.reg.getuo(UO_RAND, i).hashCode()); 
+        DataInputStream dis = Checkpoint.load(ckpGroup, ckpHash); 
+        if (dis == null)
+          return; 
+        try
+        {
+            int total = dis.readInt(); 
+            int good = dis.readInt(); 
+            Checkpoint.Rng r = Checkpoint.readRandom(dis); 
+            int q = JOptionPane.showConfirmDialog(jd, 
+              "Resume the saved run of " + total + " ray starts?", 
+              "Random", JOptionPane.YES_NO_OPTION); 
+            if (q != JOptionPane.YES_OPTION)
+              return; 
+            if (targetPanel.readCheckpoint(dis))
+            {
+                totalcount = total; 
+                goodcount = good; 
+                RT13.rng = r; 
+                targetPanel.redo(); 
+            }
+        }
+        catch (IOException e)
+        {}
+    }
+
+
+    private void saveCheckpoint()
+    {
+        ckpTime = System.currentTimeMillis(); 
+        if ((ckpGroup < 0) || (totalcount < 1))
+          return; 
+        try
+        {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(); 
+            DataOutputStream dos = new DataOutputStream(bos); 
+            dos.writeInt(totalcount); 
+            dos.writeInt(goodcount); 
+            Checkpoint.writeRandom(dos, RT13.rng); 
+            targetPanel.writeCheckpoint(dos); 
+            dos.close(); 
+            Checkpoint.save(ckpGroup, ckpHash, bos.toByteArray()); 
+        }
+        catch (IOException e)
+        {}
+    }
+
+
     private void shutdown()
     {
+        if (bRunning && !bFinished)
+          saveCheckpoint(); 
+        bRunning = false; 
         myTimer.stop(); 
         myTimer = null; 
         jd.setVisible(false);  
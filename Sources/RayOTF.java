@@ -0,0 +1,301 @@
+package com.stellarsoftware.beam;
+
+import java.util.*;                    // ArrayList, Arrays
+import java.util.concurrent.*;         // ExecutorService
+
+/** RayOTF.java
+  *
+  *  Geometric optical transfer function straight from the ray coordinates,
+  *  with no histogram: the characteristic function of the landing points,
+  *
+  *     OTF(f) = (1/N) * sum over rays of exp(-2 pi i (fh*h + fv*v)),
+  *
+  *  whose modulus is the geometric MTF.  No bin width limits the highest
+  *  frequency and no choice of bins or range changes the answer.
+  *
+  *  Frequencies lie on lines of equally spaced points, f0 + p*df, so each
+  *  ray needs only two sines and cosines per line; the rest are complex
+  *  rotations.  The lines are fixed when the RayOTF is made, from
+  *  Options:MTF and the span of the histogram: curves through zero
+  *  frequency along H, V and the chosen azimuth (H only in 1D), or a
+  *  square map of signed frequencies.  Coordinates are kept relative to
+  *  the first ray, which changes no modulus but keeps the phases small.
+  *
+  *  Only the running sums are kept.  New rays wait in a buffer of
+  *  NPENDING until update() or a full buffer sums them in, so memory
+  *  does not grow with the ray count.  Different lines need a new RayOTF,
+  *  which starts over; see isCurrent().  Large updates split the rays
+  *  among daemon threads made on first use and kept, each with its own
+  *  partial sums, added up afterward.
+  *
+  *  Frequencies are in cycles per unit of the coordinates; azimuth 0 is
+  *  along H, 90 along V.  Filled by H1DPanel and H2DPanel when Options:MTF
+  *  asks for the MTF direct from rays; drawn by MTFPanel.
+  *
+  *  (c) 2015 STELLAR SOFTWARE all rights reserved.
+  */
+class RayOTF implements B4constants
+{
+    static final int MINPARALLEL = 4096;   // rays per thread, at least
+    static final int NPENDING = 65536;     // rays held before summing
+    static final int NCURVE = 64;          // points per curve
+    static final int NMAP = 16;            // map: frequencies each side
+    static final double CYCLES = 16.0;     // auto reach, cycles per span
+    static final double MINSPAN = 1E-6;
+
+    private static ExecutorService pool = null;
+    private static int nthreads = 1;
+
+    private double layout[];               // fmax, azimuth, map, ncurves
+    private int count = 0, nsummed = 0, npending = 0;
+    private double h[] = new double[NPENDING];
+    private double v[] = new double[NPENDING];
+    private double h0=0.0, v0=0.0;         // first ray
+    private int npts = 0;
+    private double f0h[], f0v[], dfh[], dfv[];
+    private double re[], im[];
+
+
+    static boolean isWanted()
+    // Options:MTF direct from rays.
+    {
+        return "T".equals(DMF.reg.getuo(UO_MTF, 9));
+    }
+
+
+    static RayOTF create(double span, boolean b2D)
+    // Lines for a histogram of this span; null unless isWanted().
+    {
+        return isWanted() ? new RayOTF(getLayout(span, b2D)) : null;
+    }
+
+
+    static boolean isCurrent(RayOTF r, double span, boolean b2D)
+    // False when r should be replaced by create(span, b2D).
+    {
+        if (!isWanted())
+          return r == null;
+        return (r != null) && Arrays.equals(r.layout, getLayout(span, b2D));
+    }
+
+
+    synchronized void add(double x, double y)
+    {
+        if (count == 0)
+        {
+            h0 = x;
+            v0 = y;
+        }
+        h[npending] = x - h0;
+        v[npending] = y - v0;
+        npending++;
+        count++;
+        if (npending == NPENDING)
+          update();
+    }
+
+
+    void add(double x)
+    {
+        add(x, 0.0);
+    }
+
+
+    synchronized int getCount()
+    {
+        return count;
+    }
+
+
+    double getMaxFreq()
+    {
+        return layout[0];
+    }
+
+
+    boolean isMap()
+    // Map: line i has fv = (i-NMAP)*fmax/NMAP, point p has fh likewise.
+    // Curves: line c along H, V, azimuth; point p at p*fmax/(NCURVE-1).
+    {
+        return layout[2] != 0.0;
+    }
+
+
+    synchronized void update()
+    // Sums the waiting rays into every line.
+    {
+        if (npending < 1)
+          return;
+        int nt = Math.max(1, Math.min(getThreads(), npending/MINPARALLEL));
+        if (nt == 1)
+          new SumTask(this, 0, npending, re, im).call();
+        else
+        {
+            ArrayList<SumTask> tasks = new ArrayList<SumTask>();
+            for (int t=0; t<nt; t++)
+            {
+                int a = (int) ((long) npending*t/nt);
+                int b = (int) ((long) npending*(t+1)/nt);
+                tasks.add(new SumTask(this, a, b, new double[re.length], new double[im.length]));
+            }
+            try
+            {
+                pool.invokeAll(tasks);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;       // nothing added; the next update tries again
+            }
+            for (SumTask task : tasks)   // the reduction
+              for (int i=0; i<re.length; i++)
+              {
+                  re[i] += task.sre[i];
+                  im[i] += task.sim[i];
+              }
+        }
+        nsummed += npending;
+        npending = 0;
+    }
+
+
+    synchronized double getMTF(int line, int p)
+    // Modulus over the ray count at point p of a line, as of update().
+    {
+        if ((nsummed < 1) || (line < 0) || (line >= f0h.length) || (p < 0) || (p >= npts))
+          return 0.0;
+        int i = line*npts + p;
+        return Math.hypot(re[i], im[i])/nsummed;
+    }
+
+
+    synchronized void getCurve(int line, double out[])
+    {
+        for (int p=0; p<out.length; p++)
+          out[p] = getMTF(line, p);
+    }
+
+
+    //-------------private methods---------------------
+
+    private RayOTF(double lay[])
+    {
+        layout = lay;
+        double fmax = lay[0];
+        if (isMap())
+        {
+            int n = 2*NMAP + 1;
+            double step = fmax/NMAP;
+            setLines(n, n);
+            for (int i=0; i<n; i++)
+            {
+                f0h[i] = -NMAP*step;
+                f0v[i] = (i-NMAP)*step;
+                dfh[i] = step;
+            }
+            return;
+        }
+        int ncurves = (int) lay[3];
+        double az[] = {0.0, 90.0, lay[1]};
+        double step = fmax/(NCURVE-1);
+        setLines(ncurves, NCURVE);
+        for (int c=0; c<ncurves; c++)
+        {
+            dfh[c] = step*Math.cos(Math.toRadians(az[c]));
+            dfv[c] = step*Math.sin(Math.toRadians(az[c]));
+        }
+    }
+
+
+    private static double[] getLayout(double span, boolean b2D)
+    // From Options:MTF: fmax, azimuth, map, ncurves.
+    {
+        double fmax = U.suckDouble(DMF.reg.getuo(UO_MTF, 10));
+        if (Double.isNaN(fmax) || (fmax <= 0.0))
+          fmax = CYCLES / Math.max(MINSPAN, span);
+        double az = U.suckDouble(DMF.reg.getuo(UO_MTF, 0));
+        if (Double.isNaN(az))
+          az = 45.0;
+        boolean bMap = b2D && "T".equals(DMF.reg.getuo(UO_MTF, 1));
+        return new double[] {fmax, az, bMap ? 1.0 : 0.0, b2D ? 3.0 : 1.0};
+    }
+
+
+    private void setLines(int nlines, int n)
+    {
+        f0h = new double[nlines];
+        f0v = new double[nlines];
+        dfh = new double[nlines];
+        dfv = new double[nlines];
+        npts = n;
+        re = new double[nlines*n];
+        im = new double[nlines*n];
+    }
+
+
+    private static synchronized int getThreads()
+    // Makes the daemon pool on first use.
+    {
+        if (pool == null)
+        {
+            nthreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+            pool = Executors.newFixedThreadPool(nthreads, new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "RayOTF");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return nthreads;
+    }
+
+
+    private static class SumTask implements Callable<Object>
+    {
+        double h[], v[], f0h[], f0v[], dfh[], dfv[], sre[], sim[];
+        int first, last, npts;
+
+        SumTask(RayOTF o, int a, int b, double r[], double m[])
+        {
+            h = o.h;
+            v = o.v;
+            f0h = o.f0h;
+            f0v = o.f0v;
+            dfh = o.dfh;
+            dfv = o.dfv;
+            npts = o.npts;
+            first = a;
+            last = b;
+            sre = r;
+            sim = m;
+        }
+
+        public Object call()
+        {
+            double twopi = 2.0*Math.PI;
+            for (int k=first; k<last; k++)
+              for (int line=0; line<f0h.length; line++)
+              {
+                  double phase = -twopi*(f0h[line]*h[k] + f0v[line]*v[k]);
+                  double step = -twopi*(dfh[line]*h[k] + dfv[line]*v[k]);
+                  double wr = Math.cos(phase);
+                  double wi = Math.sin(phase);
+                  double sr = Math.cos(step);
+                  double si = Math.sin(step);
+                  int base = line*npts;
+                  for (int p=0; p<npts; p++)
+                  {
+                      sre[base+p] += wr;
+                      sim[base+p] += wi;
+                      double t = wr*sr - wi*si;
+                      wi = wr*si + wi*sr;
+                      wr = t;
+                  }
+              }
+            return null;
+        }
+    }
+}
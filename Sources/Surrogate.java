@@ -0,0 +1,459 @@
+package com.stellarsoftware.beam;
+
+import java.util.*;        // ArrayList, Arrays, HashMap
+
+/** Surrogate.java
+  *
+  *  Interpolated random rays for dense previews.  In a smooth system
+  *  every ray result is a smooth function of the ray start, so a
+  *  random ray can be read from a table of traced rays instead of
+  *  being traced itself.
+  *
+  *  Table rays fall into classes that trace alike: same WFE group,
+  *  wavelength, order, medium, path start and absent start columns.
+  *  A class whose random starts vary continuously in one or two of
+  *  X0...W0 gets a grid of traced starts across its smins and spans,
+  *  "nodes" per axis.  A random start inside a grid cell is evaluated
+  *  by cubic Lagrange interpolation on the four by four nearest nodes,
+  *  for every attribute RX...RTNORMZ at every group.  WFE then follows
+  *  from the interpolated path, as for a traced random ray.
+  *
+  *  Error estimate: each cell's center and edge midpoints (quarter
+  *  points in one dimension) are traced and compared with their
+  *  interpolation, in positions and path, and in directions and normals
+  *  times the system size.  A cell is used only if that error is within
+  *  the tolerance, every node of its stencil and every sample reached
+  *  the final surface through the same surfaces, and no node at or next
+  *  to its corners failed.  That margin of one cell keeps a vane or an
+  *  aperture edge that slips between samples from being interpolated
+  *  over.  Rays landing in any other cell are traced as usual; so are
+  *  classes with discrete or isotropic starts or with three varying
+  *  coordinates.
+  *
+  *  Opt-in, UO_SURR.  Random calls prepare() once as each run starts,
+  *  and Options when UO_SURR changes; grids are rebuilt only when the
+  *  content hash of the optics, rays, media and random options changes.
+  *
+  *  All static methods; no constructor.
+  *
+  *  (c) 2015 STELLAR SOFTWARE all rights reserved.
+  */
+class Surrogate implements B4constants
+{
+    static final int MINNODES = 5;
+    static final int MAXNODES = 65;
+    static final int MAXVALUES = 4000000;     // doubles in all grids
+    static final int NFIT = RTWFE;             // attributes RX...RTNORMZ
+    static final double SAMPLES1[][] = {{0.5}, {0.25}, {0.75}};
+    static final double SAMPLES2[][] = {{0.5,0.5}, {0.0,0.5}, {1.0,0.5}, {0.5,0.0}, {0.5,1.0}};
+
+    private static boolean bActive = false;
+    private static boolean bBuilt = false;
+    private static long key = 0;
+    private static int ngroups = 0;
+    private static int stride = 0;            // doubles per node
+    private static int nodes = 0;             // per axis
+    private static double tol = 0.0;
+    private static int classOf[] = new int[MAXRAYS+1];   // grid, or -1
+    private static ArrayList<Grid> grids = new ArrayList<Grid>();
+    private static double xs[] = new double[2];      // scratch for bEvaluate()
+    private static int ss[] = new int[2];
+    private static double ws[][] = new double[2][4];
+    private static double acc[] = new double[0];
+
+    private static int nclasses=0, ntraced=0, ncells=0, nclean=0;
+    private static double errmax = 0.0;
+    private static long nserved=0, nfallback=0;
+
+
+    private static class Grid
+    // Traced starts of one class.
+    {
+        int krep;                 // representative table ray
+        int dims[];               // varying start attributes
+        double min[], span[];
+        int ncell;                // cells per axis
+        double vals[];            // [node][group][attrib]
+        boolean bNode[];          // node usable
+        boolean bCell[];          // cell usable
+        int found[];              // jfound row shared by usable nodes
+    }
+
+
+    static boolean isActive()
+    {
+        return bActive;
+    }
+
+
+    static String prepare()
+    // Called by Random as each run starts.  Returns a report.
+    {
+        bActive = "T".equals(DMF.reg.getuo(UO_SURR, 0))
+               && (DMF.giFlags[STATUS] == GPARSEOK)
+               && !NonSeq.isActive() && (RT13.gwave == 0);
+        if (!bActive)
+          return "Surrogate: off";
+        long h = Checkpoint.getContentHash(new int[] {UO_RAND, UO_DEF, UO_SURR});
+        if (!bBuilt || (h != key))
+        {
+            build();
+            key = h;
+            bBuilt = true;
+        }
+        return getReport();
+    }
+
+
+    static String getReport()
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append("Surrogate:  classes with grids = "+grids.size()+" of "+nclasses+'\n');
+        sb.append("Nodes per axis = "+nodes+"   rays traced = "+ntraced+'\n');
+        sb.append("Cells used = "+nclean+" of "+ncells+'\n');
+        sb.append("Largest cell error = "+U.fwe(errmax).trim()+"   tolerance = "+U.fwe(tol).trim()+'\n');
+        long n = nserved + nfallback;
+        if (n > 0)
+          sb.append("Random rays interpolated = "+nserved+" of "+n);
+        return sb.toString();
+    }
+
+
+    static boolean bEvaluate(int kray, double start[], double out[][], int found[])
+    // Interpolates random ray kray from its start, completed by RT13,
+    // into out[g][attrib] and found[g].  False if it must be traced.
+    {
+        if (!bActive || !bBuilt)
+          return false;
+        int c = classOf[kray];
+        if (c < 0)
+        {
+            nfallback++;
+            return false;
+        }
+        Grid gr = grids.get(c);
+        int nd = gr.dims.length;
+        double x[] = xs;
+        int s[] = ss;
+        int cell = 0;
+        for (int d=0; d<nd; d++)
+        {
+            x[d] = (start[gr.dims[d]] - gr.min[d]) / gr.span[d] * gr.ncell;
+            if (!(x[d] >= 0.0) || !(x[d] <= gr.ncell))   // also NaN
+            {
+                nfallback++;
+                return false;
+            }
+            int ic = Math.min((int) x[d], gr.ncell-1);
+            cell = cell*gr.ncell + ic;
+            s[d] = Math.max(0, Math.min(nodes-4, ic-1));
+        }
+        if (!gr.bCell[cell])
+        {
+            nfallback++;
+            return false;
+        }
+        vInterpolate(gr, x, s, out);
+        for (int g=1; g<=ngroups; g++)
+          found[g] = gr.found[g];
+        found[0] = 0;
+        nserved++;
+        return true;
+    }
+
+
+    //-------------private methods---------------------
+
+    private static void build()
+    {
+        nclasses = ntraced = ncells = nclean = 0;
+        errmax = 0.0;
+        nserved = nfallback = 0;
+        grids.clear();
+        ngroups = DMF.giFlags[ONGROUPS];
+        stride = (ngroups+1)*NFIT;
+        acc = new double[stride];
+        int nrays = DMF.giFlags[RNRAYS];
+        nodes = U.suckInt(DMF.reg.getuo(UO_SURR, 1));
+        nodes = Math.max(MINNODES, Math.min(MAXNODES, nodes));
+        tol = U.suckDouble(DMF.reg.getuo(UO_SURR, 2));
+        if (Double.isNaN(tol) || (tol <= 0.0))
+          tol = 1E-6;
+
+        //----classes, and the starts that vary in each-------
+
+        HashMap<String,Integer> classes = new HashMap<String,Integer>();
+        ArrayList<int[]> dimList = new ArrayList<int[]>();
+        ArrayList<Integer> repList = new ArrayList<Integer>();
+        for (int k=1; k<=nrays; k++)
+        {
+            String s = classKey(k);
+            Integer c = classes.get(s);
+            if (c == null)
+            {
+                c = Integer.valueOf(classes.size());
+                classes.put(s, c);
+                dimList.add(getDims(k));
+                repList.add(Integer.valueOf(k));
+            }
+            classOf[k] = c.intValue();
+        }
+        nclasses = classes.size();
+
+        //----fewer nodes if the grids would be too large----------
+
+        int n1=0, n2=0;
+        for (int c=0; c<nclasses; c++)
+          if (dimList.get(c) != null)
+          {
+              if (dimList.get(c).length == 2)
+                n2++;
+              else
+                n1++;
+          }
+        while ((nodes > MINNODES) && ((double) n2*nodes*nodes + n1*nodes)*stride > MAXVALUES)
+          nodes--;
+
+        int gridOf[] = new int[nclasses];
+        for (int c=0; c<nclasses; c++)
+        {
+            gridOf[c] = -1;
+            if (dimList.get(c) == null)
+              continue;
+            gridOf[c] = grids.size();
+            grids.add(buildGrid(repList.get(c).intValue(), dimList.get(c)));
+        }
+        for (int k=1; k<=nrays; k++)
+          classOf[k] = gridOf[classOf[k]];
+    }
+
+
+    private static String classKey(int k)
+    // Table rays with equal keys trace alike from equal starts.
+    {
+        double r[] = RT13.raystarts[k];
+        StringBuffer sb = new StringBuffer();
+        sb.append(RT13.iWFEgroup[k]).append(' ').append(RT13.gR2M[k]);
+        sb.append(' ').append(Double.doubleToLongBits(r[RSWAVEL]));
+        sb.append(' ').append(Double.doubleToLongBits(r[RSORDER]));
+        sb.append(' ').append(Double.doubleToLongBits(r[RPATH]));
+        for (int i=RX; i<=RW; i++)
+          sb.append(U.isNegZero(r[i]) ? " a" : " p");
+        return sb.toString();
+    }
+
+
+    private static int[] getDims(int k)
+    // Start attributes that vary across random rays of k's class;
+    // null unless one or two vary continuously, as in RT13.iInitRaySeq().
+    {
+        boolean bXYZ = "T".equals(DMF.reg.getuo(UO_RAND, 3));
+        boolean bUVW = "T".equals(DMF.reg.getuo(UO_RAND, 5));
+        for (int i=1; i<4; i++)       // isotropic methods
+          if ("T".equals(DMF.reg.getuo(UO_DEF, 5+i)))
+            return null;
+        int g = RT13.iWFEgroup[k];
+        int dims[] = new int[RW+1];
+        int nd = 0;
+        for (int i=RX; i<=RW; i++)
+        {
+            if (U.isNegZero(RT13.raystarts[k][i]))
+              continue;
+            if (!((i <= RZ) ? bXYZ : bUVW))
+              return null;
+            double span = RT13.spans[g][i];
+            if (span == 0.0)
+              continue;
+            if (Double.isNaN(span) || Double.isNaN(RT13.smins[g][i]) || (nd == 2))
+              return null;
+            dims[nd++] = i;
+        }
+        if (nd < 1)
+          return null;
+        int d[] = new int[nd];
+        System.arraycopy(dims, 0, d, 0, nd);
+        return d;
+    }
+
+
+    private static Grid buildGrid(int krep, int dims[])
+    {
+        int g = RT13.iWFEgroup[krep];
+        int nd = dims.length;
+        Grid gr = new Grid();
+        gr.krep = krep;
+        gr.dims = dims;
+        gr.min = new double[nd];
+        gr.span = new double[nd];
+        for (int d=0; d<nd; d++)
+        {
+            gr.min[d] = RT13.smins[g][dims[d]];
+            gr.span[d] = RT13.spans[g][dims[d]];
+        }
+        gr.ncell = nodes-1;
+        int nnodes = (nd == 2) ? nodes*nodes : nodes;
+        int ncell = (nd == 2) ? gr.ncell*gr.ncell : gr.ncell;
+        gr.vals = new double[nnodes*stride];
+        gr.bNode = new boolean[nnodes];
+        gr.bCell = new boolean[ncell];
+        gr.found = null;
+
+        double start[] = new double[RW+1];
+        for (int i=RX; i<=RW; i++)
+          start[i] = U.isNegZero(RT13.raystarts[krep][i]) ? -0.0 : RT13.smins[g][i];
+
+        //-----trace the nodes--------------
+
+        double x[] = new double[2];
+        for (int n=0; n<nnodes; n++)
+        {
+            x[0] = (nd == 2) ? n / nodes : n;
+            x[1] = n % nodes;
+            gr.bNode[n] = bTrace(gr, start, x);
+            if (gr.bNode[n])
+              vCopy(gr.vals, n*stride);
+        }
+
+        //-----failed nodes and their neighbors----------
+
+        boolean bNear[] = new boolean[nnodes];
+        for (int n=0; n<nnodes; n++)
+        {
+            if (gr.bNode[n])
+              continue;
+            int a = (nd == 2) ? n / nodes : n;
+            int b = n % nodes;
+            for (int i=Math.max(0, a-1); i<=Math.min(nodes-1, a+1); i++)
+              if (nd == 1)
+                bNear[i] = true;
+              else
+                for (int j=Math.max(0, b-1); j<=Math.min(nodes-1, b+1); j++)
+                  bNear[i*nodes + j] = true;
+        }
+
+        //-----trace samples of each cell and compare------------
+
+        double est[][] = new double[ngroups+1][NFIT];
+        double samp[][] = (nd == 2) ? SAMPLES2 : SAMPLES1;
+        int s[] = new int[2];
+        for (int c=0; c<ncell; c++)
+        {
+            ncells++;
+            int ic[] = {(nd == 2) ? c / gr.ncell : c, c % gr.ncell};
+            boolean bOK = true;
+            for (int d=0; d<nd; d++)
+              s[d] = Math.max(0, Math.min(nodes-4, ic[d]-1));
+            for (int i=0; (i<4) && bOK; i++)
+              if (nd == 1)
+                bOK = gr.bNode[s[0]+i];
+              else
+                for (int j=0; (j<4) && bOK; j++)
+                  bOK = gr.bNode[(s[0]+i)*nodes + s[1]+j];
+            for (int i=0; (i<2) && bOK; i++)          // corners
+              if (nd == 1)
+                bOK = !bNear[ic[0]+i];
+              else
+                for (int j=0; (j<2) && bOK; j++)
+                  bOK = !bNear[(ic[0]+i)*nodes + ic[1]+j];
+            double err = 0.0;
+            for (int p=0; (p<samp.length) && bOK && (err <= tol); p++)
+            {
+                for (int d=0; d<nd; d++)
+                  x[d] = ic[d] + samp[p][d];
+                bOK = bTrace(gr, start, x);
+                if (bOK)
+                {
+                    vInterpolate(gr, x, s, est);
+                    err = Math.max(err, getError(est));
+                }
+            }
+            if (!bOK)
+              continue;
+            errmax = Math.max(errmax, err);
+            if (err <= tol)
+            {
+                gr.bCell[c] = true;
+                nclean++;
+            }
+        }
+        return gr;
+    }
+
+
+    private static boolean bTrace(Grid gr, double start[], double x[])
+    // Traces ray zero at grid position x; true if it reaches the final
+    // surface through the same surfaces as the other usable nodes.
+    {
+        for (int d=0; d<gr.dims.length; d++)
+          start[gr.dims[d]] = gr.min[d] + gr.span[d]*x[d]/gr.ncell;
+        ntraced++;
+        if (!RT13.bRunStart(gr.krep, start) || (RT13.getHowfarLoop(0) != ngroups))
+          return false;
+        if (gr.found == null)
+        {
+            gr.found = new int[ngroups+1];
+            for (int g=1; g<=ngroups; g++)
+              gr.found[g] = RT13.getFound(0, g);
+        }
+        for (int g=1; g<=ngroups; g++)
+          if (gr.found[g] != RT13.getFound(0, g))
+            return false;
+        return true;
+    }
+
+
+    private static void vCopy(double vals[], int base)
+    {
+        for (int g=0; g<=ngroups; g++)
+          for (int i=0; i<NFIT; i++)
+            vals[base + g*NFIT + i] = RT13.dGetRay(0, g, i);
+    }
+
+
+    private static double getError(double est[][])
+    // Interpolated against traced ray zero, in lens units.
+    {
+        double osize = Math.max(TOL, DMF.getOsize());
+        double err = 0.0;
+        for (int g=1; g<=ngroups; g++)
+        {
+            for (int i=RX; i<=RZ; i++)
+              err = Math.max(err, Math.abs(est[g][i] - RT13.dGetRay(0, g, i)));
+            for (int i=RU; i<=RW; i++)
+              err = Math.max(err, osize*Math.abs(est[g][i] - RT13.dGetRay(0, g, i)));
+            for (int i=RTNORMX; i<=RTNORMZ; i++)
+              err = Math.max(err, osize*Math.abs(est[g][i] - RT13.dGetRay(0, g, i)));
+            err = Math.max(err, Math.abs(est[g][RPATH] - RT13.dGetRay(0, g, RPATH)));
+        }
+        return err;
+    }
+
+
+    private static void vInterpolate(Grid gr, double x[], int s[], double out[][])
+    // Cubic Lagrange on nodes s[d]...s[d]+3 along each axis.
+    {
+        int nd = gr.dims.length;
+        double w[][] = ws;
+        for (int d=0; d<nd; d++)
+        {
+            double u = x[d] - s[d];
+            w[d][0] = -(u-1.0)*(u-2.0)*(u-3.0)/6.0;
+            w[d][1] =  u*(u-2.0)*(u-3.0)/2.0;
+            w[d][2] = -u*(u-1.0)*(u-3.0)/2.0;
+            w[d][3] =  u*(u-1.0)*(u-2.0)/6.0;
+        }
+        double sum[] = acc;
+        Arrays.fill(sum, 0.0);
+        for (int i=0; i<4; i++)
+          for (int j=0; j<((nd == 2) ? 4 : 1); j++)
+          {
+              int n = (nd == 2) ? (s[0]+i)*nodes + s[1]+j : s[0]+i;
+              double wt = (nd == 2) ? w[0][i]*w[1][j] : w[0][i];
+              int base = n*stride;
+              for (int m=0; m<stride; m++)
+                sum[m] += wt*gr.vals[base+m];
+          }
+        for (int g=0; g<=ngroups; g++)
+          System.arraycopy(sum, g*NFIT, out[g], 0, NFIT);
+    }
+}
@@ -0,0 +1,497 @@
+package com.stellarsoftware.beam;
+
+import java.util.*;        // HashMap, HashSet
+
+/** Symmetry.java
+  *
+  *  Reduced tracing for symmetric systems.  prepare() examines the
+  *  optics each time RT13 builds the table rays.  Every surface must
+  *  be centered and untilted with centered apertures, and its type,
+  *  profile and spider must be unchanged by the mirror x to -x, the
+  *  mirror y to -y, or the exchange of x and y:
+  *
+  *    conics and polynomials of revolution pass all three;
+  *    cylinders, torics and biconics pass the two mirrors;
+  *    each Zernike term passes those its azimuthal order allows;
+  *    n spider legs pass mirror y, mirror x if n is even, and the
+  *    exchange if n is a multiple of four;
+  *    unequal x and y diameters fail the exchange;
+  *    gratings, arrays, scatterers and coordinate breaks fail all.
+  *
+  *  The operations every surface passes generate a group of up to
+  *  eight, the symmetries of a square.  An element is a bit set: mirror
+  *  x if MX, then mirror y if MY, then exchange if SWAP.  Its action on
+  *  a ray negates or exchanges the x and y parts of position, direction,
+  *  local position, local direction and normal; zeros keep their sign
+  *  so that absent -0.0 entries stay absent.
+  *
+  *  Table rays: when a ray start is the image of an earlier start,
+  *  with the same wavelength, color and order, RT13.iBuildRays() traces
+  *  only the earlier ray and fills the later one with the image of its
+  *  results.  Map and AutoAdj gain the most: a square pupil grid costs
+  *  about a quarter of its full trace, an eighth if on axis.
+  *
+  *  Random rays: when each WFE group's start distribution is itself
+  *  unchanged by an element, H1D and H2D also bin that image of each
+  *  random ray; see RT13.bNextRandomImage().  Each trace then adds up
+  *  to eight samples.  Isotropic U0 or V0 starts pass one mirror only.
+  *
+  *  An image is not bit-identical to the trace it replaces, since the
+  *  trace rounds differently on the mirrored path.  The mode is opt-in,
+  *  UO_SYMM.  Turning it on runs validate(), which traces the table both
+  *  ways and keeps the mode only if every ray has the same status and
+  *  every result agrees within RELTOL of the object size, 1E-9.
+  *
+  *  All static methods; no constructor.
+  *
+  *  (c) 2015 STELLAR SOFTWARE all rights reserved.
+  */
+class Symmetry implements B4constants
+{
+    static final int MX=1, MY=2, SWAP=4;        // generators
+    static final int NELEMENTS = 8;
+    static final String GENNAMES[] = {"mirror X", "mirror Y", "exchange X,Y"};
+    static final double RELTOL = 1E-9;           // validate(), random boxes
+
+    private static boolean bEnabled = false;
+    private static int genOptics = 0;            // surfaces pass these
+    private static int genRandom = 0;            // and so do random starts
+    private static int genStarts = 0;            // random starts alone
+
+    private static int source[] = new int[MAXRAYS+1];   // earlier ray, or itself
+    private static int element[] = new int[MAXRAYS+1];  // ray = element(source)
+    private static int ntraced = 0;
+
+    private static double keyStarts[][] = new double[0][];   // table cache
+    private static int keyMedia[] = new int[0];
+    private static String keyOptions = "";
+    private static int keyGen = -1;
+
+
+    static boolean prepare()
+    // Called by RT13.iBuildRays(); true if table rays may be reduced.
+    {
+        bEnabled = "T".equals(DMF.reg.getuo(UO_SYMM, 0));
+        if (!bEnabled || NonSeq.isActive())
+        {
+            genOptics = genRandom = 0;
+            return false;
+        }
+        genOptics = getOpticsGen();
+        int nrays = DMF.giFlags[RNRAYS];
+        String options = getRandomOptions();
+        if (!bSameTable(nrays, options))
+        {
+            mapTable(nrays);
+            genStarts = getRandomGen(nrays);
+        }
+        genRandom = closure(genOptics & genStarts);
+        return genOptics != 0;
+    }
+
+
+    static int getSource(int kray)
+    {
+        return source[kray];
+    }
+
+
+    static int getElement(int kray)
+    {
+        return element[kray];
+    }
+
+
+    static boolean bRandomElement(int e)
+    // True if random rays may be replaced by their images under e.
+    {
+        return bEnabled && (e > 0) && (genRandom != 0) && ((e & ~genRandom) == 0);
+    }
+
+
+    static void vApplyRay(int e, double ray[])
+    // One row of ray results, in place.
+    {
+        vApply(e, ray, RX, RY);
+        vApply(e, ray, RU, RV);
+        vApply(e, ray, RTXL, RTYL);
+        vApply(e, ray, RTUL, RTVL);
+        vApply(e, ray, RTNORMX, RTNORMY);
+    }
+
+
+    static String validate()
+    // Traces the table with and without reduction and compares.
+    // Turns the mode off unless every ray agrees.
+    {
+        if (DMF.giFlags[STATUS] != GPARSEOK)
+          return "Symmetry: no valid parse";
+        int nrays = DMF.giFlags[RNRAYS];
+        int ngroups = DMF.giFlags[ONGROUPS];
+        DMF.reg.putuo(UO_SYMM, 0, "F");
+        RT13.iBuildRays(true);
+        int status[] = new int[nrays+1];
+        double full[][] = new double[nrays+1][RTWFE*(ngroups+1)];
+        for (int k=1; k<=nrays; k++)
+        {
+            status[k] = RT13.getStatus(k);
+            for (int g=0; g<=ngroups; g++)
+              for (int i=0; i<RTWFE; i++)
+                full[k][g*RTWFE+i] = RT13.dGetRay(k, g, i);
+        }
+
+        DMF.reg.putuo(UO_SYMM, 0, "T");
+        keyGen = -1;                  // fresh table map
+        RT13.iBuildRays(true);
+        if (genOptics == 0)
+        {
+            DMF.reg.putuo(UO_SYMM, 0, "F");
+            return "Symmetry: these optics have none; mode is off";
+        }
+        int nbad = 0;
+        double dmax = 0.0;
+        for (int k=1; k<=nrays; k++)
+        {
+            if (status[k] != RT13.getStatus(k))
+            {
+                nbad++;
+                continue;
+            }
+            if (status[k] != RROK)
+              continue;
+            for (int g=0; g<=ngroups; g++)
+              for (int i=0; i<RTWFE; i++)
+                dmax = Math.max(dmax, Math.abs(full[k][g*RTWFE+i] - RT13.dGetRay(k, g, i)));
+        }
+        double tol = RELTOL * Math.max(1.0, DMF.getOsize());
+        StringBuffer sb = new StringBuffer("Symmetry:");
+        for (int i=0; i<3; i++)
+          if ((genOptics & (1<<i)) != 0)
+            sb.append("  " + GENNAMES[i]);
+        sb.append("\nTable rays traced = " + ntraced + " of " + nrays);
+        int nimages = 1;
+        for (int e=1; e<NELEMENTS; e++)
+          if (bRandomElement(e))
+            nimages++;
+        sb.append("\nSamples per random ray = " + nimages);
+        sb.append("\nLargest difference from full trace = " + U.fwe(dmax).trim());
+        if ((nbad > 0) || (dmax > tol))
+        {
+            DMF.reg.putuo(UO_SYMM, 0, "F");
+            sb.append("\nRays differing in status = " + nbad + ";  mode is off");
+        }
+        RT13.iBuildRays(true);
+        return sb.toString();
+    }
+
+
+    //-------------private methods---------------------
+
+    private static void vApply(int e, double v[], int ix, int iy)
+    {
+        double x = v[ix];
+        double y = v[iy];
+        if ((e & MX) != 0)
+          x = neg(x);
+        if ((e & MY) != 0)
+          y = neg(y);
+        if ((e & SWAP) != 0)
+        {
+            v[ix] = y;
+            v[iy] = x;
+        }
+        else
+        {
+            v[ix] = x;
+            v[iy] = y;
+        }
+    }
+
+
+    private static double neg(double d)
+    // Keeps the sign of zero: -0.0 marks an absent entry.
+    {
+        return (d == 0.0) ? d : -d;
+    }
+
+
+    private static int closure(int gen)
+    // Mirror x and exchange imply mirror y, and so on.
+    {
+        if ((gen & SWAP) != 0)
+          if ((gen & (MX|MY)) != 0)
+            gen |= MX|MY;
+        return gen;
+    }
+
+
+    private static int getOpticsGen()
+    {
+        int gen = MX|MY|SWAP;
+        for (int j=1; j<=DMF.giFlags[ONSURFS]; j++)
+          gen &= getSurfaceGen(RT13.surfs[j]);
+        return closure(gen);
+    }
+
+
+    private static int getSurfaceGen(double s[])
+    {
+        int type = (int) s[OTYPE];
+        if ((type!=OTLENS) && (type!=OTMIRROR) && (type!=OTIRIS) && (type!=OTDISTORT))
+          return 0;
+        if ((s[OGROOVY] != 0.0) || (s[OSCATTER] != 0.0))
+          return 0;
+        int attrs[] = {OX, OY, OTILT, OPITCH, OROLL, OFFOX, OFFOY, OFFIX, OFFIY};
+        for (int i=0; i<attrs.length; i++)
+          if (s[attrs[i]] != 0.0)
+            return 0;
+
+        int gen = MX|MY|SWAP;
+        switch ((int) s[OPROFILE])
+        {
+            case OSPLANO:
+            case OSCONIC:
+            case OSCONICLT:
+            case OSCONICGT:
+            case OSPOLYREV:  break;
+            case OSZERNREV:  gen &= getZernGen(s); break;
+            case OSXCYL:
+            case OSXCYLLT:
+            case OSXCYLGT:
+            case OSYCYL:
+            case OSYCYLLT:
+            case OSYCYLGT:
+            case OSTORIC:
+            case OSBICONIC:  gen &= MX|MY; break;
+            case OSZERNTOR:  gen &= (MX|MY) & getZernGen(s); break;
+            default:         return 0;
+        }
+
+        double ox = U.isNegZero(s[OODIAX]) ? s[OODIAY] : s[OODIAX];
+        double ix = U.isNegZero(s[OIDIAX]) ? s[OIDIAY] : s[OIDIAX];
+        if ((ox != s[OODIAY]) || (ix != s[OIDIAY]))
+          gen &= MX|MY;
+
+        int nlegs = (int) s[ONSPIDER];
+        if (nlegs > 0)
+        {
+            if (nlegs % 2 != 0)
+              gen &= MY;
+            if (nlegs % 4 != 0)
+              gen &= MX|MY;
+        }
+        return gen;
+    }
+
+
+    private static int getZernGen(double s[])
+    // Each nonzero term cos(m theta) or sin(m theta); see Z.azimuthalZern().
+    {
+        int gen = MX|MY|SWAP;
+        for (int index=1; index<=35; index++)
+        {
+            if (s[OZ00+index] == 0.0)
+              continue;
+            int halfsum = (int) Math.sqrt(index);
+            int idif = index - halfsum*halfsum;
+            int m = halfsum - idif/2;
+            boolean bCos = (idif%2 == 0);
+            if (!bCos)
+              gen &= ~MY;
+            if (bCos != (m%2 == 0))
+              gen &= ~MX;
+            if (bCos ? (m%4 != 0) : (m%4 != 2))
+              gen &= ~SWAP;
+        }
+        return gen;
+    }
+
+
+    private static String getRandomOptions()
+    {
+        String s = "";
+        for (int i=3; i<=6; i++)
+          s += DMF.reg.getuo(UO_RAND, i);
+        for (int i=3; i<=8; i++)
+          s += DMF.reg.getuo(UO_DEF, i);
+        return s;
+    }
+
+
+    private static boolean bSameTable(int nrays, String options)
+    {
+        if ((keyGen != genOptics) || !keyOptions.equals(options) || (keyStarts.length != nrays+1))
+          return false;
+        for (int k=1; k<=nrays; k++)
+        {
+            if (keyMedia[k] != RT13.gR2M[k])
+              return false;
+            for (int i=0; i<RNSTARTS; i++)
+              if (Double.doubleToLongBits(keyStarts[k][i]) != Double.doubleToLongBits(RT13.raystarts[k][i]))
+                return false;
+        }
+        return true;
+    }
+
+
+    private static void mapTable(int nrays)
+    // Each ray is either traced or the image of an earlier traced ray.
+    {
+        keyGen = genOptics;
+        keyOptions = getRandomOptions();
+        keyStarts = new double[nrays+1][RNSTARTS];
+        keyMedia = new int[nrays+1];
+        HashMap<String,Integer> images = new HashMap<String,Integer>();
+        double img[] = new double[RNSTARTS];
+        ntraced = 0;
+        for (int k=1; k<=nrays; k++)
+        {
+            System.arraycopy(RT13.raystarts[k], 0, keyStarts[k], 0, RNSTARTS);
+            keyMedia[k] = RT13.gR2M[k];
+            source[k] = k;
+            element[k] = 0;
+            Integer found = images.get(key(RT13.raystarts[k], RT13.gR2M[k]));
+            if (found != null)
+            {
+                int r = found.intValue() / NELEMENTS;
+                int e = found.intValue() % NELEMENTS;
+                vStartImage(e, RT13.raystarts[r], img);
+                if ((RT13.gR2M[r] == RT13.gR2M[k]) && bSameBits(img, RT13.raystarts[k]))
+                {
+                    source[k] = r;
+                    element[k] = e;
+                    continue;
+                }
+            }
+            ntraced++;
+            for (int e=0; e<NELEMENTS; e++)
+              if ((e & ~genOptics) == 0)
+              {
+                  vStartImage(e, RT13.raystarts[k], img);
+                  String h = key(img, RT13.gR2M[k]);
+                  if (!images.containsKey(h))
+                    images.put(h, Integer.valueOf(k*NELEMENTS + e));
+              }
+        }
+    }
+
+
+    private static void vStartImage(int e, double start[], double img[])
+    {
+        System.arraycopy(start, 0, img, 0, RNSTARTS);
+        vApply(e, img, RX, RY);
+        vApply(e, img, RU, RV);
+    }
+
+
+    private static String key(double start[], int media)
+    // Exact: a sum of bit patterns would confuse mirrors, which
+    // differ only in sign bits.
+    {
+        StringBuffer sb = new StringBuffer().append(media);
+        for (int i=0; i<RNSTARTS; i++)
+          sb.append(' ').append(Long.toHexString(Double.doubleToLongBits(start[i])));
+        return sb.toString();
+    }
+
+
+    private static boolean bSameBits(double a[], double b[])
+    {
+        for (int i=0; i<RNSTARTS; i++)
+          if (Double.doubleToLongBits(a[i]) != Double.doubleToLongBits(b[i]))
+            return false;
+        return true;
+    }
+
+
+    private static int getRandomGen(int nrays)
+    // Elements leaving the random start distribution unchanged;
+    // see RT13.iInitRaySeq().
+    {
+        if (nrays < 1)
+          return 0;
+        int gen = MX|MY|SWAP;
+        int method = 0;
+        for (int i=0; i<4; i++)
+          if ("T".equals(DMF.reg.getuo(UO_DEF, 5+i)))
+            method = i;
+        if (method == 1)               // isotropic about U0
+          gen &= MY;
+        if (method == 2)               // isotropic about V0
+          gen &= MX;
+
+        boolean bXYZ = "T".equals(DMF.reg.getuo(UO_RAND, 3));
+        boolean bUVW = "T".equals(DMF.reg.getuo(UO_RAND, 5));
+        HashSet<Integer> groups = new HashSet<Integer>();
+        for (int k=1; k<=nrays; k++)
+        {
+            double s[] = RT13.raystarts[k];
+            if ((U.isNegZero(s[RX]) != U.isNegZero(s[RY]))
+             || (U.isNegZero(s[RU]) != U.isNegZero(s[RV])))
+              gen &= MX|MY;
+            groups.add(Integer.valueOf(RT13.iWFEgroup[k]));
+        }
+        if (bXYZ)
+          for (Integer g : groups)
+            gen &= getBoxGen(g.intValue(), RX, RY);
+        else
+          gen &= getSetGen(nrays, RX);
+        if (method == 0)
+        {
+            if (bUVW)
+              for (Integer g : groups)
+                gen &= getBoxGen(g.intValue(), RU, RV);
+            else
+              gen &= getSetGen(nrays, RU);
+        }
+        return closure(gen);
+    }
+
+
+    private static int getBoxGen(int g, int ix, int iy)
+    // Continuous starts: each box must be centered, and square to exchange.
+    {
+        double xlo = RT13.smins[g][ix], xhi = xlo + RT13.spans[g][ix];
+        double ylo = RT13.smins[g][iy], yhi = ylo + RT13.spans[g][iy];
+        double tol = RELTOL * (Math.abs(xlo) + Math.abs(xhi) + Math.abs(ylo) + Math.abs(yhi) + TOL);
+        int gen = MX|MY|SWAP;
+        if (Math.abs(xlo + xhi) > tol)
+          gen &= ~MX;
+        if (Math.abs(ylo + yhi) > tol)
+          gen &= ~MY;
+        if ((Math.abs(xlo - ylo) > tol) || (Math.abs(xhi - yhi) > tol))
+          gen &= ~SWAP;
+        return gen;
+    }
+
+
+    private static int getSetGen(int nrays, int i0)
+    // Discrete starts: the table's triplets at i0 must map onto themselves.
+    {
+        HashSet<String> set = new HashSet<String>();
+        double t[] = new double[RNSTARTS];
+        for (int k=1; k<=nrays; k++)
+          set.add(tripletKey(RT13.raystarts[k], i0));
+        int gen = 0;
+        for (int b=0; b<3; b++)
+        {
+            boolean bOK = true;
+            for (int k=1; bOK && (k<=nrays); k++)
+            {
+                System.arraycopy(RT13.raystarts[k], 0, t, 0, RNSTARTS);
+                vApply(1<<b, t, i0, i0+1);
+                bOK = set.contains(tripletKey(t, i0));
+            }
+            if (bOK)
+              gen |= 1<<b;
+        }
+        return gen;
+    }
+
+
+    private static String tripletKey(double s[], int i0)
+    {
+        return Double.doubleToLongBits(s[i0]) + ":" + Double.doubleToLongBits(s[i0+1])
+             + ":" + Double.doubleToLongBits(s[i0+2]);
+    }
+}
@@ -0,0 +1,311 @@
+package com.stellarsoftware.beam;
+
+import java.lang.management.*;   // ManagementFactory
+import java.util.concurrent.atomic.*;  // AtomicLong
+import javax.management.*;       // MBeanServer, ObjectName, StandardMBean
+
+/** TraceStats.java
+  *
+  *  Low-overhead instrumentation of the ray trace, published through
+  *  JMX; see TraceStatsMBean.  All static methods; no constructor.
+  *
+  *  Counters are always on: rays traced and rays good, counted in
+  *  RT13.bRunOneRay(), and numerical intercept calls and Brent
+  *  iterations per surface, counted in RT13.dNumSolve().  Each costs
+  *  one atomic increment, small beside the trace of a ray.  Arrays of
+  *  numerically solved facets also count facet intercepts, the cells
+  *  each ray walked, and rays that found no facet; see
+  *  RT13.dArrayNumSolve().
+  *
+  *  Every failed ray, table or random, is also counted by the surface
+  *  where it stopped and its failure code (RRMIS, RRBAK, RRDIA...); see
+  *  Failures for the report.  That table is striped: each thread adds
+  *  into one of NSTRIPES arrays chosen by its thread id, and readers
+  *  sum the stripes, so parallel tracers seldom touch the same cache
+  *  line and never lose a count.
+  *
+  *  Timed events cover iBuildRays, Random batches, AutoAdj iterations,
+  *  Map cells and GPanel redraws.  A client brackets its work with
+  *
+  *      long t0 = TraceStats.begin();
+  *      ...
+  *      TraceStats.end(TraceStats.EV_MAPCELL, t0);
+  *
+  *  When disabled begin() returns zero and end() returns at once, so
+  *  the cost is one volatile read.  Enable with -Dbeam.tracestats=true
+  *  or by setting the Enabled attribute from a JMX console.
+  *
+  *  (c) 2015 STELLAR SOFTWARE all rights reserved.
+  */
+class TraceStats implements B4constants
+{
+    static final int EV_BUILDRAYS=0, EV_RANDOM=1, EV_AUTOITER=2, EV_MAPCELL=3, EV_REDRAW=4;
+    static final int NEVENTS = 5;
+    static final String EVNAMES[] = {"BuildRays", "RandomBatch", "AutoIter", "MapCell", "Redraw"};
+
+    private static volatile boolean bEnabled = Boolean.getBoolean("beam.tracestats");
+
+    private static final AtomicLong nTraced = new AtomicLong();
+    private static final AtomicLong nGood = new AtomicLong();
+    private static final AtomicLongArray solveCalls = new AtomicLongArray(MAXSURFS+1);
+    private static final AtomicLongArray solveIters = new AtomicLongArray(MAXSURFS+1);
+    private static final AtomicLongArray facetCalls = new AtomicLongArray(MAXSURFS+1);
+    private static final AtomicLongArray facetCells = new AtomicLongArray(MAXSURFS+1);
+    private static final AtomicLongArray facetMiss = new AtomicLongArray(MAXSURFS+1);
+    private static final AtomicLongArray evCount = new AtomicLongArray(NEVENTS);
+    private static final AtomicLongArray evNanos = new AtomicLongArray(NEVENTS);
+    private static final AtomicLongArray evMax = new AtomicLongArray(NEVENTS);
+
+    static final int NCODES = sResults.length;  // failure codes incl. RROK
+    private static final int NSTRIPES = 8;
+    private static final AtomicLongArray fails[] = new AtomicLongArray[NSTRIPES];
+    static
+    {
+        for (int i=0; i<NSTRIPES; i++)
+          fails[i] = new AtomicLongArray((MAXSURFS+1)*NCODES);
+    }
+
+    private static long prevTraced = 0;         // for getRaysPerSecond()
+    private static long prevNanos = System.nanoTime();
+    private static boolean bRegistered = false;
+
+
+    static void register()
+    // Called once by DMF; failure only costs the JMX view.
+    {
+        if (bRegistered)
+          return;
+        bRegistered = true;
+        try
+        {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            mbs.registerMBean(new StandardMBean(new Bean(), TraceStatsMBean.class),
+              new ObjectName("com.stellarsoftware.beam:type=TraceStats"));
+        }
+        catch (JMException e)
+        {
+        }
+        catch (SecurityException e)
+        {
+        }
+    }
+
+
+    static long begin()
+    {
+        return bEnabled ? System.nanoTime() : 0L;
+    }
+
+
+    static void end(int ev, long t0)
+    {
+        if (t0 == 0L)
+          return;
+        long dt = System.nanoTime() - t0;
+        evCount.incrementAndGet(ev);
+        evNanos.addAndGet(ev, dt);
+        long m = evMax.get(ev);
+        while ((dt > m) && !evMax.compareAndSet(ev, m, dt))
+          m = evMax.get(ev);
+    }
+
+
+    static void countRay(boolean bOK)
+    {
+        nTraced.incrementAndGet();
+        if (bOK)
+          nGood.incrementAndGet();
+    }
+
+
+    static void countFail(int jsurf, int code)
+    // A ray stopped at surface jsurf for reason code.
+    {
+        if ((jsurf < 0) || (jsurf > MAXSURFS) || (code <= RROK) || (code >= NCODES))
+          return;
+        int stripe = (int) (Thread.currentThread().getId() % NSTRIPES);
+        fails[stripe].incrementAndGet(jsurf*NCODES + code);
+    }
+
+
+    static long[][] getFailTable(int nsurfs)
+    // Sums of all stripes: [surface][code] for surfaces 0..nsurfs.
+    {
+        nsurfs = Math.max(0, Math.min(MAXSURFS, nsurfs));
+        long t[][] = new long[nsurfs+1][NCODES];
+        for (int j=0; j<=nsurfs; j++)
+          for (int c=1; c<NCODES; c++)
+            for (int i=0; i<NSTRIPES; i++)
+              t[j][c] += fails[i].get(j*NCODES + c);
+        return t;
+    }
+
+
+    static long getRaysTraced()
+    {
+        return nTraced.get();
+    }
+
+
+    static long getRaysGood()
+    {
+        return nGood.get();
+    }
+
+
+    static void countSolve(int jsurf, int niter)
+    {
+        if ((jsurf < 0) || (jsurf > MAXSURFS))
+          return;
+        solveCalls.incrementAndGet(jsurf);
+        solveIters.addAndGet(jsurf, niter);
+    }
+
+
+    static void countFacets(int jsurf, int ncells, boolean bHit)
+    // An array intercept that walked ncells cells; bHit if it landed.
+    {
+        if ((jsurf < 0) || (jsurf > MAXSURFS))
+          return;
+        facetCalls.incrementAndGet(jsurf);
+        facetCells.addAndGet(jsurf, ncells);
+        if (!bHit)
+          facetMiss.incrementAndGet(jsurf);
+    }
+
+
+    static long[][] getFacetTable(int nsurfs)
+    // [surface][0=intercepts, 1=cells walked, 2=misses, 3=solver iterations]
+    {
+        nsurfs = Math.max(0, Math.min(MAXSURFS, nsurfs));
+        long t[][] = new long[nsurfs+1][4];
+        for (int j=0; j<=nsurfs; j++)
+        {
+            t[j][0] = facetCalls.get(j);
+            t[j][1] = facetCells.get(j);
+            t[j][2] = facetMiss.get(j);
+            t[j][3] = solveIters.get(j);
+        }
+        return t;
+    }
+
+
+    static void reset()
+    {
+        nTraced.set(0);
+        nGood.set(0);
+        for (int j=0; j<=MAXSURFS; j++)
+        {
+            solveCalls.set(j, 0);
+            solveIters.set(j, 0);
+            facetCalls.set(j, 0);
+            facetCells.set(j, 0);
+            facetMiss.set(j, 0);
+        }
+        for (int i=0; i<NSTRIPES; i++)
+          for (int n=0; n<(MAXSURFS+1)*NCODES; n++)
+            fails[i].set(n, 0);
+        for (int i=0; i<NEVENTS; i++)
+        {
+            evCount.set(i, 0);
+            evNanos.set(i, 0);
+            evMax.set(i, 0);
+        }
+        synchronized (TraceStats.class)
+        {
+            prevTraced = 0;
+            prevNanos = System.nanoTime();
+        }
+    }
+
+
+    //-----the JMX view; arrays are trimmed to the parsed surfaces------
+
+    static class Bean implements TraceStatsMBean
+    {
+        public boolean isEnabled()          { return bEnabled; }
+        public void setEnabled(boolean b)   { bEnabled = b; }
+        public long getRaysTraced()         { return nTraced.get(); }
+        public long getRaysGood()           { return nGood.get(); }
+        public String[] getEventNames()     { return EVNAMES.clone(); }
+        public void reset()                 { TraceStats.reset(); }
+
+        public double getGoodFraction()
+        {
+            long n = nTraced.get();
+            return (n > 0) ? nGood.get()/(double) n : 0.0;
+        }
+
+        public double getRaysPerSecond()
+        {
+            synchronized (TraceStats.class)
+            {
+                long n = nTraced.get();
+                long t = System.nanoTime();
+                double r = (t > prevNanos) ? 1E9*(n-prevTraced)/(t-prevNanos) : 0.0;
+                prevTraced = n;
+                prevNanos = t;
+                return r;
+            }
+        }
+
+        public long[] getSolverCalls()      { return trim(solveCalls); }
+        public long[] getSolverIterations() { return trim(solveIters); }
+        public long[] getFacetIntercepts()  { return trim(facetCalls); }
+        public long[] getFacetCellsWalked() { return trim(facetCells); }
+        public long[] getFacetMisses()      { return trim(facetMiss); }
+
+        public long[] getFailuresBySurface()
+        {
+            long t[][] = getFailTable(DMF.giFlags[ONSURFS]);
+            long c[] = new long[t.length];
+            for (int j=0; j<t.length; j++)
+              for (int k=1; k<NCODES; k++)
+                c[j] += t[j][k];
+            return c;
+        }
+
+        public long[] getFailuresByCode()
+        {
+            long t[][] = getFailTable(DMF.giFlags[ONSURFS]);
+            long c[] = new long[NCODES];
+            for (int j=0; j<t.length; j++)
+              for (int k=1; k<NCODES; k++)
+                c[k] += t[j][k];
+            return c;
+        }
+
+        public long[] getEventCounts()
+        {
+            long c[] = new long[NEVENTS];
+            for (int i=0; i<NEVENTS; i++)
+              c[i] = evCount.get(i);
+            return c;
+        }
+
+        public double[] getEventMillis()
+        {
+            double d[] = new double[NEVENTS];
+            for (int i=0; i<NEVENTS; i++)
+              d[i] = 1E-6*evNanos.get(i);
+            return d;
+        }
+
+        public double[] getEventMaxMillis()
+        {
+            double d[] = new double[NEVENTS];
+            for (int i=0; i<NEVENTS; i++)
+              d[i] = 1E-6*evMax.get(i);
+            return d;
+        }
+
+        private long[] trim(AtomicLongArray a)
+        {
+            int n = Math.max(0, Math.min(MAXSURFS, DMF.giFlags[ONSURFS]));
+            long c[] = new long[n+1];
+            for (int j=0; j<=n; j++)
+              c[j] = a.get(j);
+            return c;
+        }
+    }
+}
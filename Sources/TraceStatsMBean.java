@@ -0,0 +1,35 @@
+package com.stellarsoftware.beam;
+
+/** TraceStatsMBean.java
+  *
+  *  JMX management interface of TraceStats, registered under the name
+  *  com.stellarsoftware.beam:type=TraceStats.  Browse it with jconsole
+  *  or any JMX client; arrays are indexed by surface or event number.
+  *
+  *  (c) 2015 STELLAR SOFTWARE all rights reserved.
+  */
+public interface TraceStatsMBean
+{
+    boolean isEnabled();               // timed events on or off
+    void setEnabled(boolean b);
+
+    long getRaysTraced();              // counters, always on
+    long getRaysGood();
+    double getGoodFraction();
+    double getRaysPerSecond();         // since the previous query
+
+    long[] getSolverCalls();           // numerical intercepts per surface
+    long[] getSolverIterations();      // Brent or Newton iterations per surface
+    long[] getFacetIntercepts();       // array facet intercepts per surface
+    long[] getFacetCellsWalked();      // cells crossed by those rays
+    long[] getFacetMisses();           // rays that found no facet
+    long[] getFailuresBySurface();     // failed rays, where they stopped
+    long[] getFailuresByCode();        // failed rays, indexed as sResults[]
+
+    String[] getEventNames();          // timed events, when enabled
+    long[] getEventCounts();
+    double[] getEventMillis();
+    double[] getEventMaxMillis();
+
+    void reset();
+}
@@ -133,6 +133,15 @@ class U implements B4constants
         return sum;
     }
     
+    static double grand(java.util.Random r)
+    // Same, but drawing from a given generator.
+    {
+        double sum = -6.0; 
+        for (int i=0; i<12; i++)
+          sum += r.nextDouble(); 
+        return sum;
+    }
+    
     static double put360(double x)
     // Puts x into range 0<=x<360
     { 
@@ -938,6 +947,32 @@ class U implements B4constants
     }
 
 
+    /** Fast paths for fourn(), with the same data layout, signs and 
+      * scaling, using plans of bit reversals and twiddles cached per size,
+      * see FFT.java.  fourn() stays as the reference for these. 
+      *
+      * fft():     one dimension, n complex points, n a power of two.
+      * realfft(): n real points x[], n a power of two; out[0...n+1] 
+      *            gets the complex bins 0...n/2, at half the work. 
+      * fft2():    two dimensions as fourn() with nn={n0,n1}; the row 
+      *            and column passes run in parallel on large grids. 
+      */
+    static public void fft(double data[], int n, int isign)
+    {
+        FFT.transform(data, 0, n, isign); 
+    }
+
+    static public void realfft(double x[], int n, double out[], int isign)
+    {
+        FFT.realTransform(x, n, out, isign); 
+    }
+
+    static public void fft2(double data[], int n0, int n1, int isign)
+    {
+        FFT.transform2D(data, n0, n1, isign); 
+    }
+
+
 
     
     //----private static method for nationalization------------
@@ -45,6 +45,15 @@ class Z implements B4constants
     {
         x = dSawtoothX(x, surf); 
         y = dSawtoothY(y, surf); 
+        return dGetZprofile(x, y, surf); 
+    }
+
+
+    static public double dGetZprofile(double x, double y, double surf[])
+    // Smooth profile z(x,y) without array folding: x,y are taken
+    // relative to the vertex of one array cell.  
+    // Called by dGetZsurf() and by RT13 facet intercepts.
+    {
         switch ((int) surf[OPROFILE])
         {
            case OSPLANO:   return 0.0; 
@@ -75,6 +84,14 @@ class Z implements B4constants
     {
         x = dSawtoothX(x, surf); 
         y = dSawtoothY(y, surf); 
+        vGetZnormProfile(x, y, surf, norm); 
+    }
+
+
+    static public void vGetZnormProfile(double x, double y, double surf[], double norm[])
+    // Normal of the smooth profile without array folding; see dGetZprofile().
+    // The slopes are dz/dx = -norm[0]/norm[2] and dz/dy = -norm[1]/norm[2].
+    {
         switch ((int) surf[OPROFILE])
         {
            case OSPLANO:   vGradPlane(norm); break;
@@ -304,8 +321,9 @@ class Z implements B4constants
 
     //----------------Zernike support---------------------
 
-    static private double zernTerm(int index, double rho, double theta)
+    static public double zernTerm(int index, double rho, double theta)
     // rho = normalized radius, 0 to 1.0; theta in radians
+    // Also used by Zernike.java for wavefront fits. 
     // Copyright 2006 STELLAR SOFTWARE all rights reserved
     {
         return radialZern(index, rho) * azimuthalZern(index, theta); 
@@ -0,0 +1,298 @@
+package com.stellarsoftware.beam;
+
+import java.util.*;             // ArrayList
+import java.util.concurrent.*;  // ExecutorService
+
+/** Zernike.java
+  *
+  *  Least squares fit of the first 36 Zernike terms to the wavefront
+  *  error of each WFE group, in the index order of Z.zernTerm():
+  *  0=piston, 1,2=tilt, 3=focus, 4,5=astigmatism, 6,7=coma, 8=spherical...
+  *
+  *  The fit uses the good table rays of each group, after doWFEtask()
+  *  has removed piston and tilt, so terms 0...2 come out near zero.
+  *  The pupil is the coordinate pair that RT13.bGetPupil() found on the
+  *  final surface, centered on the ray centroid and normalized by the
+  *  largest ray radius about it.  Each ray adds its 36 basis values to
+  *  the normal equations, which are solved by Cholesky factoring.  A term
+  *  the rays cannot resolve, as with too few rays or a pupil sampled
+  *  along a line, gets a zero coefficient.
+  *
+  *  Fits are made on demand: RT13 calls invalidate() after each table
+  *  trace and the first getCoef() afterward fits every group, one task
+  *  per group in parallel on daemon threads made on first use and kept,
+  *  as in FFT.  Random rays share the fit of their guide ray's group;
+  *  see RT13.dGetRay().
+  *
+  *  Ray table fields "Zern4" etc show the coefficient of each ray's group;
+  *  goal fields "Zern4g" are matched by AutoAdj through Comparo.  Map can
+  *  show the rss of a list of terms, e.g. "4 5" for astigmatism.
+  *
+  *  All static methods; no constructor.
+  *
+  *  (c) 2015 STELLAR SOFTWARE all rights reserved.
+  */
+class Zernike implements B4constants
+{
+    static final double EPSFIT = 1E-9;    // smallest usable pivot, relative
+
+    private static boolean bStale = true;
+    private static int ngroups = 0;
+    private static double coef[][] = new double[MAXWFEGROUPS][RNZERN];
+    private static double rmsFit[] = new double[MAXWFEGROUPS];
+    private static int nFit[] = new int[MAXWFEGROUPS];
+    private static ExecutorService pool = null;
+
+
+    static synchronized void invalidate()
+    // The table rays have been retraced.
+    {
+        bStale = true;
+    }
+
+
+    static synchronized double getCoef(int ig, int n)
+    // Coefficient of term n for WFE group ig, refitting if stale.
+    {
+        if (bStale)
+          fitAll();
+        if ((ig < 0) || (ig >= ngroups) || (n < 0) || (n >= RNZERN))
+          return -0.0;
+        return coef[ig][n];
+    }
+
+
+    static synchronized double getRms(int ig)
+    // rms of the wavefront error left over by the fit of group ig.
+    {
+        if (bStale)
+          fitAll();
+        if ((ig < 0) || (ig >= ngroups))
+          return -0.0;
+        return rmsFit[ig];
+    }
+
+
+    static synchronized int getCount(int ig)
+    // How many rays were fitted in group ig.
+    {
+        if (bStale)
+          fitAll();
+        if ((ig < 0) || (ig >= ngroups))
+          return 0;
+        return nFit[ig];
+    }
+
+
+    static double getRss(int ig, int terms[])
+    // Root sum square of the listed coefficients: 4,5 = astigmatism.
+    {
+        double sum = 0.0;
+        for (int i=0; i<terms.length; i++)
+        {
+            double c = getCoef(ig, terms[i]);
+            sum += c*c;
+        }
+        return Math.sqrt(sum);
+    }
+
+
+    //-------------private methods---------------------
+
+    private static void fitAll()
+    {
+        bStale = false;
+        ngroups = Math.max(0, Math.min(MAXWFEGROUPS, DMF.giFlags[RNWFEGROUPS]));
+        for (int ig=0; ig<ngroups; ig++)
+        {
+            Arrays.fill(coef[ig], 0.0);
+            rmsFit[ig] = 0.0;
+            nFit[ig] = 0;
+        }
+        if (ngroups < 1)
+          return;
+        if (ngroups == 1)
+        {
+            new FitTask(0).call();
+            return;
+        }
+        ArrayList<FitTask> tasks = new ArrayList<FitTask>();
+        for (int ig=0; ig<ngroups; ig++)
+          tasks.add(new FitTask(ig));
+        try
+        {
+            getPool().invokeAll(tasks);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private static ExecutorService getPool()
+    // Makes the daemon pool on first use.
+    {
+        if (pool == null)
+        {
+            int nthreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+            pool = Executors.newFixedThreadPool(nthreads, new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "Zernike");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return pool;
+    }
+
+
+    private static class FitTask implements Callable<Object>
+    // One WFE group; reads the RT13 tables, writes only its own row.
+    {
+        int ig;
+
+        FitTask(int g)
+        {
+            ig = g;
+        }
+
+        public Object call()
+        {
+            int jx = RT13.getPupilAxis(ig, 0);
+            int jy = RT13.getPupilAxis(ig, 1);
+            if (jx == jy)                      // no pupil was found
+              return null;
+            int nrays = DMF.giFlags[RNRAYS];
+            int g = DMF.giFlags[ONGROUPS];
+
+            //-----center and radius of the pupil--------
+
+            double xc=0.0, yc=0.0;
+            int n = 0;
+            for (int k=1; k<=nrays; k++)
+              if (RT13.bGoodRay[k] && (ig == RT13.iWFEgroup[k]))
+              {
+                  xc += RT13.dGetRay(k, g, jx);
+                  yc += RT13.dGetRay(k, g, jy);
+                  n++;
+              }
+            if (n < 1)
+              return null;
+            xc /= n;
+            yc /= n;
+            double r2max = 0.0;
+            for (int k=1; k<=nrays; k++)
+              if (RT13.bGoodRay[k] && (ig == RT13.iWFEgroup[k]))
+              {
+                  double x = RT13.dGetRay(k, g, jx) - xc;
+                  double y = RT13.dGetRay(k, g, jy) - yc;
+                  r2max = Math.max(r2max, x*x + y*y);
+              }
+            if (r2max <= 0.0)
+              return null;
+            double rmax = Math.sqrt(r2max);
+
+            //-----accumulate the normal equations----------
+
+            double a[][] = new double[RNZERN][RNZERN];   // lower triangle
+            double b[] = new double[RNZERN];
+            double t[][] = new double[nrays+1][];
+            for (int k=1; k<=nrays; k++)
+              if (RT13.bGoodRay[k] && (ig == RT13.iWFEgroup[k]))
+              {
+                  t[k] = getBasis((RT13.dGetRay(k, g, jx) - xc)/rmax,
+                                  (RT13.dGetRay(k, g, jy) - yc)/rmax);
+                  double w = RT13.dGetRay(k, g, RTWFE);
+                  for (int i=0; i<RNZERN; i++)
+                  {
+                      b[i] += t[k][i]*w;
+                      for (int j=0; j<=i; j++)
+                        a[i][j] += t[k][i]*t[k][j];
+                  }
+              }
+            double c[] = coef[ig];
+            vSolve(a, b, c);
+
+            //-----residual of the fit----------
+
+            double sum = 0.0;
+            for (int k=1; k<=nrays; k++)
+              if (t[k] != null)
+              {
+                  double d = RT13.dGetRay(k, g, RTWFE);
+                  for (int i=0; i<RNZERN; i++)
+                    d -= c[i]*t[k][i];
+                  sum += d*d;
+              }
+            rmsFit[ig] = Math.sqrt(sum/n);
+            nFit[ig] = n;
+            return null;
+        }
+    }
+
+
+    private static double[] getBasis(double x, double y)
+    // All 36 terms at a normalized pupil point.
+    {
+        double rho = Math.min(1.0, Math.sqrt(x*x + y*y));
+        double theta = Math.atan2(y, x);
+        double t[] = new double[RNZERN];
+        for (int i=0; i<RNZERN; i++)
+          t[i] = Z.zernTerm(i, rho, theta);
+        return t;
+    }
+
+
+    private static void vSolve(double a[][], double b[], double c[])
+    // Solves a*c=b by Cholesky factoring in place of the lower triangle.
+    // A term whose pivot falls below EPSFIT of its diagonal is dropped.
+    {
+        int n = b.length;
+        boolean used[] = new boolean[n];
+        for (int i=0; i<n; i++)
+        {
+            for (int j=0; j<i; j++)
+              if (used[j])
+              {
+                  double s = a[i][j];
+                  for (int k=0; k<j; k++)
+                    if (used[k])
+                      s -= a[i][k]*a[j][k];
+                  a[i][j] = s/a[j][j];
+              }
+            double diag = a[i][i];
+            double d = diag;
+            for (int k=0; k<i; k++)
+              if (used[k])
+                d -= a[i][k]*a[i][k];
+            used[i] = (diag > 0.0) && (d > EPSFIT*diag);
+            if (used[i])
+              a[i][i] = Math.sqrt(d);
+        }
+        double y[] = new double[n];
+        for (int i=0; i<n; i++)
+          if (used[i])
+          {
+              double s = b[i];
+              for (int k=0; k<i; k++)
+                if (used[k])
+                  s -= a[i][k]*y[k];
+              y[i] = s/a[i][i];
+          }
+        for (int i=n-1; i>=0; i--)
+        {
+            c[i] = 0.0;
+            if (!used[i])
+              continue;
+            double s = y[i];
+            for (int k=i+1; k<n; k++)
+              if (used[k])
+                s -= a[k][i]*c[k];
+            c[i] = s/a[i][i];
+        }
+    }
+}